@@ -0,0 +1,74 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.Color;
+import java.awt.geom.Ellipse2D;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/** Tests that Filter.apply, which filters tile by tile, gives the pixels
+ * of the filter run once on the whole image. */
+class FilterTest {
+    private static final int W= 700, H= 530;
+
+    /** Return a W x H image: a translucent background, some tiles left
+     * unallocated, gradients and noise elsewhere. */
+    private static TiledImage sample(long seed) {
+        Random rnd= new Random(seed);
+        TiledImage img= new TiledImage(W, H, new Color(30, 60, 90, 200));
+        for (int y= 0; y < H; y++) {
+            for (int x= 0; x < W; x++) {
+                if (x < 256  &&  y < 256) continue;
+                int p= 0xFF000000 | x % 256 << 16 | y % 256 << 8 | (x ^ y) & 0xFF;
+                if ((x / 37 + y / 23) % 5 == 0) p= rnd.nextInt();
+                img.setRGB(x, y, p);
+            }
+        }
+        return img;
+    }
+
+    /** Return the pixels of img filtered by f in one piece, the edges
+     * extended by the halo, keeping the pixels outside sel (if not null). */
+    private static int[] reference(TiledImage img, Filter f, Selection sel) {
+        int halo= f.halo(), sw= W + 2 * halo;
+        int[] src= new int[sw * (H + 2 * halo)];
+        for (int y= 0; y < H + 2 * halo; y++) {
+            for (int x= 0; x < sw; x++) {
+                int ix= Math.min(W - 1, Math.max(0, x - halo)), iy= Math.min(H - 1, Math.max(0, y - halo));
+                src[y * sw + x]= img.getRGB(ix, iy);
+            }
+        }
+        int[] dst= new int[W * H];
+        f.filter(src, dst, W, H, new Filter.Scratch());
+        if (sel != null) {
+            for (int i= 0; i < dst.length; i++) {
+                if (!sel.contains(i % W, i / W)) dst[i]= img.getRGB(i % W, i / W);
+            }
+        }
+        return dst;
+    }
+
+    /** Assert that f applied to a sample image (in sel, if not null) gives
+     * the reference pixels. */
+    private static void check(String name, Filter f, Selection sel) {
+        TiledImage img= sample(name.hashCode());
+        int[] want= reference(img, f, sel);
+        f.apply(img, sel);
+        int[] got= new int[W * H];
+        img.getRGB(0, 0, W, H, got, 0, W);
+        assertArrayEquals(want, got, name + (sel == null ? "" : " in a selection"));
+    }
+
+    @Test
+    void tiledEqualsWhole() {
+        Selection sel= new Selection(W, H, new Ellipse2D.Double(150, 100, 400, 300));
+        for (Selection s : new Selection[] {null, sel}) {
+            check("gaussian 2.5", Filters.gaussianBlur(2.5), s);
+            check("gaussian 40", Filters.gaussianBlur(40), s);
+            check("box 6", Filters.boxBlur(6), s);
+            check("unsharp", Filters.unsharpMask(3, 120, 4), s);
+            check("levels", Filters.levels(20, 230, 1.4, 10, 250), s);
+            check("curves", Filters.curves(new int[] {0, 64, 128, 192, 255}, new int[] {0, 40, 140, 220, 255}), s);
+            check("hue", Filters.hueSaturation(45, -30, 10), s);
+        }
+    }
+}
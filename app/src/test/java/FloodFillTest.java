@@ -0,0 +1,111 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.Color;
+import java.awt.geom.Ellipse2D;
+import java.util.ArrayDeque;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/** Tests of FloodFill against a naive breadth-first fill, contiguous and
+ * global, with and without a selection. */
+class FloodFillTest {
+    private static final int W= 700, H= 600;
+
+    /** Return a W x H image with a white background, some rectangles of a
+     * few colors (so some tiles stay unallocated) and noise. */
+    private static TiledImage sample(long seed) {
+        Random rnd= new Random(seed);
+        TiledImage img= new TiledImage(W, H, Color.WHITE);
+        int[] colors= {0xFF000000, 0xFF0A0A0A, 0xFFFF0000, 0x80FF0000, 0xFFFFFFF0};
+        for (int k= 0; k < 60; k++) {
+            int x= rnd.nextInt(W - 40), y= rnd.nextInt(H / 2 - 40), w= 1 + rnd.nextInt(120), h= 1 + rnd.nextInt(40);
+            int c= colors[rnd.nextInt(colors.length)];
+            for (int j= y; j < Math.min(H, y + h); j++) {
+                for (int i= x; i < Math.min(W, x + w); i++) img.setRGB(i, j, c);
+            }
+        }
+        for (int k= 0; k < 2000; k++) img.setRGB(rnd.nextInt(W), rnd.nextInt(H / 2), 0xFF000000);
+        return img;
+    }
+
+    /** Return true iff no channel of a and b differs by more than t. */
+    private static boolean within(int a, int b, int t) {
+        for (int s= 0; s < 32; s += 8) {
+            if (Math.abs((a >> s & 0xFF) - (b >> s & 0xFF)) > t) return false;
+        }
+        return true;
+    }
+
+    /** Return the pixels of img after the naive fill of the pixels (in sel,
+     * if not null) within t of the color at (x, y): those 4-connected to
+     * (x, y) if contiguous, else all. */
+    private static int[] reference(TiledImage img, Selection sel, int x, int y, int c, int t, boolean contiguous) {
+        int[] p= new int[W * H];
+        img.getRGB(0, 0, W, H, p, 0, W);
+        int ref= p[y * W + x];
+        boolean[] ok= new boolean[W * H];
+        for (int i= 0; i < ok.length; i++) {
+            ok[i]= within(p[i], ref, t)  &&  (sel == null  ||  sel.contains(i % W, i / W));
+        }
+        if (!contiguous) {
+            for (int i= 0; i < ok.length; i++) if (ok[i]) p[i]= c;
+            return p;
+        }
+        boolean[] seen= new boolean[W * H];
+        ArrayDeque<Integer> queue= new ArrayDeque<>();
+        queue.add(y * W + x);
+        seen[y * W + x]= true;
+        while (!queue.isEmpty()) {
+            int i= queue.poll();
+            p[i]= c;
+            int px= i % W, py= i / W;
+            int[] next= {px > 0 ? i - 1 : -1, px < W - 1 ? i + 1 : -1, py > 0 ? i - W : -1, py < H - 1 ? i + W : -1};
+            for (int n : next) {
+                if (n >= 0  &&  !seen[n]  &&  ok[n]) {
+                    seen[n]= true;
+                    queue.add(n);
+                }
+            }
+        }
+        return p;
+    }
+
+    /** Fill a sample image at (x, y) both ways and assert the same pixels. */
+    private static void check(long seed, Selection sel, int x, int y, int c, int t, boolean contiguous) {
+        TiledImage img= sample(seed);
+        int[] want= reference(img, sel, x, y, c, t, contiguous);
+        new FloodFill().fill(img, sel, x, y, c, t, contiguous);
+        int[] got= new int[W * H];
+        img.getRGB(0, 0, W, H, got, 0, W);
+        assertArrayEquals(want, got, "seed " + seed + " at (" + x + ", " + y + "), tolerance " + t
+                + (contiguous ? ", contiguous" : ", global") + (sel == null ? "" : ", selection"));
+    }
+
+    @Test
+    void contiguous() {
+        for (int t : new int[] {0, 10, 128}) {
+            check(1, null, 5, H - 5, 0xFF00FF00, t, true);
+            check(2, null, 300, 100, 0xFF0000FF, t, true);
+            check(3, null, 650, 50, 0xFFFFFFFF, t, true); // a color within the tolerance
+        }
+    }
+
+    @Test
+    void global() {
+        for (int t : new int[] {0, 10, 128}) {
+            check(4, null, 5, H - 5, 0xFF00FF00, t, false);
+            check(5, null, 300, 100, 0x400000FF, t, false);
+        }
+    }
+
+    @Test
+    void withSelection() {
+        Selection sel= new Selection(W, H, new Ellipse2D.Double(100, 50, 450, 400));
+        for (boolean contiguous : new boolean[] {true, false}) {
+            check(6, sel, 320, 250, 0xFF00FF00, 10, contiguous);
+            check(7, sel, 300, 100, 0xFF0000FF, 0, contiguous);
+        }
+        TiledImage img= sample(8);
+        assertNull(new FloodFill().fill(img, sel, 5, 5, 0xFF00FF00, 0, true));
+    }
+}
@@ -0,0 +1,96 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Tests that ImageLoader decodes files compressed as one stream (decoded
+ * once if the rows come in order, in bands if not) to the pixels ImageIO
+ * reads. */
+class ImageLoaderTest {
+    /** A size of more than one band of the loader. */
+    private static final int W= 700, H= 24600;
+
+    @TempDir Path dir;
+
+    /** Return a W x H image of type type: gradients, with noisy rows. */
+    private static BufferedImage sample(int type) {
+        Random rnd= new Random(type);
+        BufferedImage b= new BufferedImage(W, H, type);
+        int[] row= new int[W];
+        for (int y= 0; y < H; y++) {
+            for (int x= 0; x < W; x++) {
+                row[x]= y % 100 < 3 ? rnd.nextInt() : (x * 3 + y) % 256 << 24 | x % 256 << 16 | y % 256 << 8 | (x ^ y) & 0xFF;
+            }
+            b.setRGB(0, y, W, 1, row, 0, W);
+        }
+        return b;
+    }
+
+    /** Write b to a new file name in format format, interlaced (or
+     * progressive) iff interlaced, and return the file. */
+    private File write(BufferedImage b, String format, boolean interlaced, String name) throws IOException {
+        File f= dir.resolve(name).toFile();
+        ImageWriter w= ImageIO.getImageWritersByFormatName(format).next();
+        ImageWriteParam p= w.getDefaultWriteParam();
+        p.setProgressiveMode(interlaced ? ImageWriteParam.MODE_DEFAULT : ImageWriteParam.MODE_DISABLED);
+        try (ImageOutputStream out= ImageIO.createImageOutputStream(f)) {
+            w.setOutput(out);
+            w.write(null, new IIOImage(b, null, null), p);
+        } finally {
+            w.dispose();
+        }
+        return f;
+    }
+
+    /** Load f with an ImageLoader and assert it gives the pixels of
+     * ImageIO.read(f). */
+    private static void assertLoads(File f) throws Exception {
+        ImageLoader loader= ImageLoader.open(f);
+        assertEquals(W, loader.getWidth());
+        assertEquals(H, loader.getHeight());
+        TiledImage img= new TiledImage(W, H, Color.WHITE);
+        CompletableFuture<IOException> done= new CompletableFuture<>();
+        loader.start(img, new ImageLoader.Sink() {
+            @Override public void loaded(int x, int y, int w, int h) {}
+            @Override public Rectangle priority() { return null; }
+        }, new ImageLoader.Listener() {
+            @Override public void progress(File file, int percent) {}
+            @Override public void done(File file, IOException exc) { done.complete(exc); }
+        });
+        assertNull(done.get());
+
+        BufferedImage ref= ImageIO.read(f);
+        int[] want= new int[W], got= new int[W];
+        for (int y= 0; y < H; y++) {
+            ref.getRGB(0, y, W, 1, want, 0, W);
+            img.getRGB(0, y, W, 1, got, 0, W);
+            assertArrayEquals(want, got, f.getName() + ", row " + y);
+        }
+    }
+
+    @Test
+    void png() throws Exception {
+        BufferedImage gray= sample(BufferedImage.TYPE_BYTE_GRAY);
+        assertLoads(write(gray, "png", false, "gray.png"));
+        assertLoads(write(gray, "png", true, "interlaced.png"));
+        assertLoads(write(sample(BufferedImage.TYPE_INT_ARGB), "png", false, "argb.png"));
+    }
+
+    @Test
+    void jpeg() throws Exception {
+        assertLoads(write(sample(BufferedImage.TYPE_INT_RGB), "jpeg", false, "rgb.jpg"));
+    }
+}
@@ -0,0 +1,90 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+
+/** Tests of PngEncoder: its files, decoded by ImageIO, have the pixels
+ * of the image. */
+class PngEncoderTest {
+    /** Return the pixels of img, as ARGB, row by row. */
+    private static int[] pixels(RenderedImage img) {
+        int w= img.getWidth(), h= img.getHeight();
+        int[] p= new int[w * h];
+        if (img instanceof TiledImage) ((TiledImage) img).getRGB(0, 0, w, h, p, 0, w);
+        else ((BufferedImage) img).getRGB(0, 0, w, h, p, 0, w);
+        return p;
+    }
+
+    /** Encode img at level level, decode it with ImageIO and assert that
+     * the pixels are the same. Pixels with alpha 0 may come back with any
+     * color, so they are compared as 0. */
+    private static void assertRoundTrip(RenderedImage img, int level) throws IOException {
+        ByteArrayOutputStream out= new ByteArrayOutputStream();
+        new PngEncoder(level).write(img, out, p -> {});
+        BufferedImage back= ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+        assertNotNull(back, "ImageIO cannot read the file");
+        assertEquals(img.getWidth(), back.getWidth());
+        assertEquals(img.getHeight(), back.getHeight());
+        int[] a= pixels(img), b= pixels(back);
+        for (int i= 0; i < a.length; i++) {
+            if (a[i] >>> 24 == 0) a[i]= 0;
+            if (b[i] >>> 24 == 0) b[i]= 0;
+        }
+        assertArrayEquals(a, b, img.getWidth() + " x " + img.getHeight() + " at level " + level);
+    }
+
+    /** Return a w x h image of smooth gradients with a noisy band (so
+     * that rows take different filters), translucent iff alpha. */
+    private static BufferedImage sample(int w, int h, boolean alpha, long seed) {
+        Random rnd= new Random(seed);
+        BufferedImage b= new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        for (int y= 0; y < h; y++) {
+            for (int x= 0; x < w; x++) {
+                int a= alpha ? (x * 7 + y) & 0xFF : 0xFF;
+                int p= a << 24 | (x & 0xFF) << 16 | (y & 0xFF) << 8 | (x + y) & 0xFF;
+                if (y % 50 < 10) p= alpha ? rnd.nextInt() : rnd.nextInt() | 0xFF000000;
+                b.setRGB(x, y, p);
+            }
+        }
+        return b;
+    }
+
+    @Test
+    void oddWidths() throws IOException {
+        for (int w : new int[] {1, 3, 17, 257}) {
+            assertRoundTrip(sample(w, 40, false, w), 6);
+            assertRoundTrip(sample(w, 40, true, w), 6);
+        }
+    }
+
+    /** Images of many bands, whose checksums are combined. */
+    @Test
+    void manyBands() throws IOException {
+        int w= 1001, h= 4 * PngEncoder.BAND_BYTES / (4 * w) + 37;
+        for (int level : new int[] {1, 9}) {
+            assertRoundTrip(sample(w, h, false, level), level);
+            assertRoundTrip(sample(w, h, true, level), level);
+        }
+    }
+
+    @Test
+    void tiledImage() throws IOException {
+        TiledImage t= new TiledImage(700, 530, new Color(0x40, 0x80, 0xC0, 0x90));
+        BufferedImage s= sample(300, 200, true, 5);
+        int[] p= new int[300 * 200];
+        s.getRGB(0, 0, 300, 200, p, 0, 300);
+        t.setRGB(250, 300, 300, 200, p, 0, 300);
+        assertRoundTrip(t, 6);
+
+        TiledImage opaque= new TiledImage(513, 259, Color.WHITE);
+        opaque.setRGB(511, 257, 0xFF123456);
+        assertRoundTrip(opaque, 6);
+    }
+}
@@ -0,0 +1,128 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Tests of ProjectFile: full saves, incremental saves and reopening. */
+class ProjectFileTest {
+    private static final int T= TiledImage.TILE_SIZE;
+
+    @TempDir Path dir;
+
+    /** Save d to f as Window does: the full save job writes a temporary
+     * file, which is renamed to f. Return the binding. */
+    private static ProjectFile saveAs(File f, Document d) throws IOException {
+        ProjectFile pf= ProjectFile.saveAs(f, d);
+        File tmp= File.createTempFile(f.getName() + ".", ".tmp", f.getParentFile());
+        pf.getFullSave().write(tmp, p -> {});
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return pf;
+    }
+
+    /** Assert that the layers of a and b have the same pixels. */
+    private static void assertSamePixels(Document a, Document b) {
+        assertEquals(a.layerCount(), b.layerCount());
+        for (int k= 0; k < a.layerCount(); k++) {
+            TiledImage x= a.getLayer(k).getPixels(), y= b.getLayer(k).getPixels();
+            assertEquals(x.getWidth(), y.getWidth());
+            assertEquals(x.getHeight(), y.getHeight());
+            int w= x.getWidth(), h= x.getHeight();
+            int[] px= new int[w * h], py= new int[w * h];
+            x.getRGB(0, 0, w, h, px, 0, w);
+            y.getRGB(0, 0, w, h, py, 0, w);
+            assertArrayEquals(px, py, "layer " + k);
+        }
+    }
+
+    /** Fill tile (col, row) of img with color argb. */
+    private static void paintTile(TiledImage img, int col, int row, int argb) {
+        for (int y= 0; y < T; y++) {
+            for (int x= 0; x < T; x++) img.setRGB(col * T + x, row * T + y, argb);
+        }
+    }
+
+    @Test
+    void saveAsThenReopen() throws IOException {
+        Document d= new Document(new TiledImage(3 * T + 5, 2 * T + 7, Color.WHITE));
+        paintTile(d.getActive().getPixels(), 1, 1, 0xff123456);
+        d.getActive().getPixels().setRGB(3 * T + 4, 2 * T + 6, 0x80ff0000);
+        File f= dir.resolve("a." + ProjectFile.EXTENSION).toFile();
+        saveAs(f, d);
+        assertSamePixels(d, ProjectFile.open(f).getDocument());
+    }
+
+    /** Tiles first written by incremental saves after a Save As must not
+     * take the header page (offset 0 means "no slot" in the index). */
+    @Test
+    void saveAsThenTwoIncrementalSaves() throws IOException {
+        Document d= new Document(new TiledImage(4 * T, 3 * T, Color.WHITE));
+        paintTile(d.getActive().getPixels(), 0, 0, 0xff0000ff);
+        File f= dir.resolve("b." + ProjectFile.EXTENSION).toFile();
+        ProjectFile pf= saveAs(f, d);
+
+        paintTile(d.getActive().getPixels(), 2, 1, 0xff00ff00);
+        pf.saveChanges(d);
+        paintTile(d.getActive().getPixels(), 3, 2, 0xffff0000);
+        pf.saveChanges(d);
+
+        Document r= ProjectFile.open(f).getDocument();
+        assertEquals(0xffff0000, r.getActive().getPixels().getRGB(3 * T + 1, 2 * T + 1));
+        assertSamePixels(d, r);
+    }
+
+    @Test
+    void incrementalSavesReuseFreedSpace() throws IOException {
+        Document d= new Document(new TiledImage(4 * T, 4 * T, Color.WHITE));
+        File f= dir.resolve("c." + ProjectFile.EXTENSION).toFile();
+        ProjectFile pf= saveAs(f, d);
+        d.addLayer();
+        paintTile(d.getLayer(1).getPixels(), 1, 1, 0xff445566);
+        pf.saveChanges(d);
+        for (int i= 0; i < 20; i++) {
+            paintTile(d.getLayer(1).getPixels(), i % 4, 2, 0xff000000 | i * 0x0a0b0c);
+            pf.saveChanges(d);
+        }
+        long size= f.length();
+        for (int i= 0; i < 20; i++) {
+            paintTile(d.getLayer(1).getPixels(), i % 4, 2, 0xff010101 * i | 0xff000000);
+            pf.saveChanges(d);
+        }
+        assertTrue(f.length() <= size + 2 * 4096, "file grew from " + size + " to " + f.length());
+        assertSamePixels(d, ProjectFile.open(f).getDocument());
+    }
+
+    @Test
+    void deletedLayerAfterSaveAs() throws IOException {
+        Document d= new Document(new TiledImage(2 * T, 2 * T, Color.WHITE));
+        d.addLayer();
+        paintTile(d.getLayer(1).getPixels(), 0, 1, 0xff778899);
+        File f= dir.resolve("d." + ProjectFile.EXTENSION).toFile();
+        ProjectFile pf= saveAs(f, d);
+        d.removeLayer(1);
+        pf.saveChanges(d);
+        paintTile(d.getLayer(0).getPixels(), 1, 0, 0xff102030);
+        pf.saveChanges(d);
+        assertSamePixels(d, ProjectFile.open(f).getDocument());
+    }
+
+    @Test
+    void saveChangesOverOpenedFile() throws IOException {
+        Document d= new Document(new TiledImage(3 * T, 3 * T, Color.WHITE));
+        paintTile(d.getActive().getPixels(), 0, 0, 0xff111111);
+        paintTile(d.getActive().getPixels(), 2, 2, 0xff222222);
+        File f= dir.resolve("e." + ProjectFile.EXTENSION).toFile();
+        saveAs(f, d);
+        ProjectFile pf= ProjectFile.open(f);
+        Document o= pf.getDocument();
+        paintTile(o.getActive().getPixels(), 0, 0, 0xff333333);
+        paintTile(o.getActive().getPixels(), 1, 1, 0xff444444);
+        pf.saveChanges(o);
+        assertSamePixels(o, ProjectFile.open(f).getDocument());
+    }
+}
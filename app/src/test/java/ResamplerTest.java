@@ -0,0 +1,71 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.Color;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/** Tests of Resampler on images with tiles left unallocated. */
+class ResamplerTest {
+    private static final int T= TiledImage.TILE_SIZE;
+
+    /** Return a w x h image of background bg with random pixels in the
+     * rectangle (x, y, rw, rh) only. */
+    private static TiledImage sparse(int w, int h, Color bg, int x, int y, int rw, int rh) {
+        Random rnd= new Random(w * 31 + h);
+        TiledImage img= new TiledImage(w, h, bg);
+        for (int j= y; j < y + rh; j++) {
+            for (int i= x; i < x + rw; i++) img.setRGB(i, j, rnd.nextInt());
+        }
+        return img;
+    }
+
+    /** Return a copy of img with every tile allocated. */
+    private static TiledImage dense(TiledImage img) {
+        int w= img.getWidth(), h= img.getHeight();
+        int[] p= new int[w * h];
+        img.getRGB(0, 0, w, h, p, 0, w);
+        TiledImage d= new TiledImage(w, h, new Color(img.getBackground(), true));
+        d.setRGB(0, 0, w, h, p, 0, w);
+        assertEquals(d.getCols() * d.getRows(), d.allocatedTiles());
+        return d;
+    }
+
+    /** Assert that a and b have the same pixels. */
+    private static void assertSamePixels(TiledImage a, TiledImage b, String what) {
+        int w= a.getWidth(), h= a.getHeight();
+        assertEquals(w, b.getWidth());
+        assertEquals(h, b.getHeight());
+        int[] pa= new int[w * h], pb= new int[w * h];
+        a.getRGB(0, 0, w, h, pa, 0, w);
+        b.getRGB(0, 0, w, h, pb, 0, w);
+        assertArrayEquals(pb, pa, what);
+    }
+
+    /** Resampling leaves tiles that read only background unallocated,
+     * with the pixels it gives the same image with all tiles allocated. */
+    @Test
+    void backgroundTilesStayUnallocated() {
+        int[][] sizes= {{500, 350}, {2250, 450}, {1499, 1001}, {40, 30}};
+        for (Color bg : new Color[] {Color.WHITE, new Color(0x33, 0x66, 0x99, 0x80), new Color(0, true)}) {
+            TiledImage src= sparse(1500, 1000, bg, 500, 350, 150, 100);
+            TiledImage ref= dense(src);
+            for (Resampler.Method m : Resampler.Method.values()) {
+                for (int[] s : sizes) {
+                    String what= m + " to " + s[0] + " x " + s[1] + " on " + Integer.toHexString(bg.getRGB());
+                    TiledImage got= new Resampler().resample(src, s[0], s[1], m);
+                    assertSamePixels(got, new Resampler().resample(ref, s[0], s[1], m), what);
+                    int tiles= got.getCols() * got.getRows();
+                    assertTrue(got.allocatedTiles() < tiles  ||  tiles == 1, what + ": " + got.allocatedTiles() + " tiles");
+                }
+            }
+        }
+    }
+
+    @Test
+    void blankImage() {
+        TiledImage src= new TiledImage(5 * T, 3 * T, Color.WHITE);
+        TiledImage got= new Resampler().resample(src, 7 * T, 2 * T, Resampler.Method.LANCZOS3);
+        assertEquals(0, got.allocatedTiles());
+        assertEquals(0xFFFFFFFF, got.getRGB(100, 100));
+    }
+}
@@ -0,0 +1,71 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import org.junit.jupiter.api.Test;
+
+/** Tests of StrokeEngine. */
+class StrokeEngineTest {
+    /** Assert that the damage of e covers every pixel of img that is not
+     * background. */
+    private static void assertDamageCovers(StrokeEngine e, TiledImage img) {
+        DirtyRegion d= e.getDamage();
+        int bg= img.getBackground();
+        for (int y= 0; y < img.getHeight(); y++) {
+            for (int x= 0; x < img.getWidth(); x++) {
+                if (img.getRGB(x, y) == bg) continue;
+                assertTrue(x >= d.getX()  &&  x < d.getX() + d.getWidth()
+                        &&  y >= d.getY()  &&  y < d.getY() + d.getHeight(),
+                        "pixel (" + x + ", " + y + ") is outside the damage");
+            }
+        }
+    }
+
+    @Test
+    void lineDamageCoversSquareCaps() {
+        double[][] lines= {{100, 100, 200, 200}, {300, 120, 150, 160}, {50, 300, 50.5, 100}};
+        for (int s : new int[] {1, 2, 7, 50}) {
+            for (double[] l : lines) {
+                TiledImage img= new TiledImage(400, 400, Color.WHITE);
+                StrokeEngine e= new StrokeEngine(img, 1);
+                e.line(Color.BLACK, l[0], l[1], l[2], l[3], s);
+                assertDamageCovers(e, img);
+            }
+        }
+    }
+
+    /** Lines draw the same pixels as when every tile of their box is
+     * drawn on, on tiles of their outline only. */
+    @Test
+    void lineDrawsOnlyTilesItMeets() {
+        double[][] lines= {{10, 10, 1000, 990}, {900, 30, 40, 700}, {5, 500, 1020, 505}, {600, 600, 600, 600},
+            {255, 0, 257, 1000}};
+        for (int s : new int[] {1, 5, 40}) {
+            for (double[] l : lines) {
+                TiledImage img= new TiledImage(1024, 1024, Color.WHITE);
+                new StrokeEngine(img, 1).line(Color.BLACK, l[0], l[1], l[2], l[3], s);
+                TiledImage ref= new TiledImage(1024, 1024, Color.WHITE);
+                for (int row= 0; row < ref.getRows(); row++) {
+                    for (int col= 0; col < ref.getCols(); col++) {
+                        Graphics2D g= ref.graphics(col, row);
+                        g.setColor(Color.BLACK);
+                        g.setStroke(new BasicStroke(s));
+                        g.drawLine((int) l[0], (int) l[1], (int) l[2], (int) l[3]);
+                    }
+                }
+                int[] a= new int[1024 * 1024], b= new int[1024 * 1024];
+                img.getRGB(0, 0, 1024, 1024, a, 0, 1024);
+                ref.getRGB(0, 0, 1024, 1024, b, 0, 1024);
+                assertArrayEquals(b, a, "width " + s + ", line " + java.util.Arrays.toString(l));
+            }
+        }
+    }
+
+    @Test
+    void thinDiagonalStaysSparse() {
+        TiledImage img= new TiledImage(20000, 20000, Color.WHITE);
+        new StrokeEngine(img, 1).line(Color.BLACK, 0, 0, 19999, 19999, 5);
+        assertTrue(img.allocatedTiles() <= 3 * img.getCols(), img.allocatedTiles() + " tiles allocated");
+    }
+}
@@ -0,0 +1,94 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.Color;
+import java.awt.event.MouseEvent;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Field;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/** Tests that a recording of strokes drawn on a Canvas (see StrokeRecorder)
+ * replays (see StrokeReplay) to the same pixels. */
+class StrokeReplayTest {
+    private static final int W= 900, H= 700;
+
+    private Canvas canvas;
+
+    /** Send a mouse event of type id at (x, y) of the view to the canvas. */
+    private void mouse(int id, double x, double y) {
+        MouseEvent e= new MouseEvent(canvas, id, 0, 0, (int) x, (int) y, 1, false, MouseEvent.BUTTON1);
+        if (id == MouseEvent.MOUSE_PRESSED) canvas.mousePressed(e);
+        else if (id == MouseEvent.MOUSE_DRAGGED) canvas.mouseDragged(e);
+        else canvas.mouseReleased(e);
+    }
+
+    @Test
+    void replayDrawsTheRecordedPixels() throws Exception {
+        canvas= new Canvas(null, W, H, Color.WHITE, 10);
+        // setActiveTool sets a custom cursor, which needs a screen.
+        Field active= Canvas.class.getDeclaredField("activeTool");
+        active.setAccessible(true);
+        Field other= Canvas.class.getDeclaredField("otherTool");
+        other.setAccessible(true);
+
+        ByteArrayOutputStream out= new ByteArrayOutputStream();
+        canvas.setZoomShift(1);
+        canvas.startRecording(out);
+        Random rnd= new Random(3);
+        Tool[] tools= {Tool.PENCIL, Tool.AIRBRUSH, Tool.ERASER, Tool.LINE};
+        for (int s= 0; s < 40; s++) {
+            active.set(canvas, tools[s % tools.length]);
+            other.set(canvas, null);
+            canvas.setToolSize(1 + rnd.nextInt(40));
+            if (s % 5 == 4) {
+                canvas.setOtherTool(Canvas.OtherTool.FILL);
+                canvas.setFillContiguous(s % 10 != 9);
+                canvas.setFillTolerance(rnd.nextInt(60));
+            }
+            canvas.setForeGroundColor(new Color(rnd.nextInt()));
+            double x= rnd.nextInt(2 * W), y= rnd.nextInt(2 * H);
+            mouse(MouseEvent.MOUSE_PRESSED, x, y);
+            for (int k= 0; k < 30; k++) {
+                x += rnd.nextInt(41) - 20;
+                y += rnd.nextInt(41) - 20;
+                mouse(MouseEvent.MOUSE_DRAGGED, x, y);
+            }
+            mouse(MouseEvent.MOUSE_RELEASED, x, y);
+            if (s % 4 == 3) mouse(MouseEvent.MOUSE_PRESSED, rnd.nextInt(2 * W), rnd.nextInt(2 * H)); // end of a LINE
+            if (s % 7 == 6) canvas.undo();
+            if (s % 14 == 13) canvas.redo();
+        }
+        long n= canvas.stopRecording();
+        canvas.dispose(); // the strokes posted are drawn
+        assertTrue(n > 0);
+
+        StrokeReplay replay= new StrokeReplay(new ByteArrayInputStream(out.toByteArray()));
+        TiledImage img= replay.newImage(null, 1);
+        assertEquals(n, replay.replay(img, 1));
+        int[] want= new int[W * H], got= new int[W * H];
+        canvas.getImg().getRGB(0, 0, W, H, want, 0, W);
+        img.getRGB(0, 0, W, H, got, 0, W);
+        assertNotEquals(0, java.util.Arrays.stream(want).filter(p -> p != 0xFFFFFFFF).count(), "nothing was drawn");
+        assertArrayEquals(want, got);
+    }
+
+    /** A replay draws with the default brush and no selection: recording
+     * with others is refused. */
+    @Test
+    void refusesWhatReplayCannotDraw() throws Exception {
+        canvas= new Canvas(null, W, H, Color.WHITE, 10);
+        assertNull(canvas.whyNotRecordable());
+        canvas.setSelection(new Selection(W, H, new java.awt.Rectangle(10, 10, 100, 100)));
+        assertThrows(IllegalStateException.class, () -> canvas.startRecording(new ByteArrayOutputStream()));
+        canvas.setSelection(null);
+        canvas.setBrush(new Brush(0.5, 0.25, 1, Brush.Dynamics.NONE, 1, Brush.Dynamics.NONE, 1));
+        assertThrows(IllegalStateException.class, () -> canvas.startRecording(new ByteArrayOutputStream()));
+        canvas.setBrush(new Brush(1, 0.25, 1, Brush.Dynamics.NONE, 1, Brush.Dynamics.NONE, 1));
+        assertNull(canvas.whyNotRecordable());
+        canvas.startRecording(new ByteArrayOutputStream());
+        assertTrue(canvas.isRecording());
+        canvas.stopRecording();
+        canvas.dispose();
+    }
+}
@@ -0,0 +1,58 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.Color;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import org.junit.jupiter.api.Test;
+
+/** Tests of UndoHistory, with edits kept in memory and spilled to disk. */
+class UndoHistoryTest {
+    /** Paint the rectangle (x, y, w, h) of img with argb, as one edit of h. */
+    private static void paint(UndoHistory h, TiledImage img, int x, int y, int w, int hh, int argb) {
+        h.beginEdit();
+        for (int j= y; j < y + hh; j++) {
+            for (int i= x; i < x + w; i++) img.setRGB(i, j, argb);
+        }
+        h.endEdit();
+    }
+
+    @Test
+    void undoRedoSpilledEdits() {
+        TiledImage img= new TiledImage(600, 400, Color.WHITE);
+        UndoHistory h= new UndoHistory();
+        h.attach(img);
+        paint(h, img, 10, 10, 300, 200, 0xff0000ff);
+        paint(h, img, 200, 100, 300, 250, 0xff00ff00);
+        h.setMemoryBudget(0);
+        assertEquals(0xff00ff00, img.getRGB(250, 150));
+        assertNotNull(h.undo());
+        assertEquals(0xff0000ff, img.getRGB(250, 150));
+        assertNotNull(h.undo());
+        assertEquals(0xffffffff, img.getRGB(250, 150));
+        assertNull(h.undo());
+        assertNotNull(h.redo());
+        assertNotNull(h.redo());
+        assertEquals(0xff00ff00, img.getRGB(250, 150));
+        assertEquals(0xff0000ff, img.getRGB(20, 20));
+    }
+
+    /** An edit that cannot be read back stays in the history. */
+    @Test
+    void failedLoadKeepsEdit() throws Exception {
+        TiledImage img= new TiledImage(300, 300, Color.WHITE);
+        UndoHistory h= new UndoHistory();
+        h.attach(img);
+        paint(h, img, 0, 0, 100, 100, 0xffff0000);
+        h.setMemoryBudget(0);
+
+        Field f= UndoHistory.class.getDeclaredField("spillFile");
+        f.setAccessible(true);
+        ((RandomAccessFile) f.get(h)).setLength(0);
+
+        assertThrows(UncheckedIOException.class, h::undo);
+        assertTrue(h.canUndo());
+        assertFalse(h.canRedo());
+        assertEquals(0xffff0000, img.getRGB(50, 50));
+    }
+}
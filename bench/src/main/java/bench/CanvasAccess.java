@@ -0,0 +1,107 @@
+package bench;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.event.MouseEvent;
+import java.awt.geom.Point2D;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import javax.swing.JComponent;
+
+/** Access to a Canvas without a Window, for benchmarks.
+ *
+ * The application classes are in the unnamed package, which code in a
+ * named package (as JMH requires) cannot import, so they are reached
+ * through method handles. The handles are looked up once; invoking them
+ * costs a few nanoseconds. */
+final class CanvasAccess {
+    private static final MethodHandles.Lookup lookup= MethodHandles.lookup();
+
+    /** The canvas. */
+    final JComponent canvas;
+
+    private final MethodHandle colorClick;  // colorClick(Color, int, int)
+    private final MethodHandle colorDrag;   // colorDrag(Color)
+    private final MethodHandle airBrush;    // airBrush(Color)
+    private final MethodHandle pickColor;   // pickColor(MouseEvent)
+    private final MethodHandle paintComponent; // paintComponent(Graphics)
+    private final MethodHandle dispose;        // dispose()
+    private final Point2D.Double mousePos;     // position of the stroke
+    private final Point2D.Double mousePosPrev; // previous position of the stroke
+
+    /** Constructor: a canvas of size (w, h) with background color bck and
+     * tool size toolSize, with anti-aliasing on iff antialias. */
+    CanvasAccess(int w, int h, Color bck, int toolSize, boolean antialias) throws ReflectiveOperationException {
+        Class<?> canvasClass= Class.forName("Canvas");
+        Class<?> windowClass= Class.forName("Window");
+        Constructor<?> ctor= canvasClass.getConstructor(windowClass, int.class, int.class, Color.class, int.class);
+        canvas= (JComponent) ctor.newInstance(null, w, h, bck, toolSize);
+
+        Object img= canvasClass.getMethod("getImg").invoke(canvas);
+        img.getClass().getMethod("setAntialiasing", boolean.class).invoke(img, antialias);
+
+        colorClick= bind(canvasClass, "colorClick", Color.class, int.class, int.class)
+                .asType(MethodType.methodType(void.class, Color.class, int.class, int.class));
+        colorDrag= bind(canvasClass, "colorDrag", Color.class)
+                .asType(MethodType.methodType(void.class, Color.class));
+        airBrush= bind(canvasClass, "airBrush", Color.class)
+                .asType(MethodType.methodType(void.class, Color.class));
+        pickColor= bind(canvasClass, "pickColor", MouseEvent.class)
+                .asType(MethodType.methodType(void.class, MouseEvent.class));
+        paintComponent= bind(canvasClass, "paintComponent", Graphics.class)
+                .asType(MethodType.methodType(void.class, Graphics.class));
+        dispose= bind(canvasClass, "dispose")
+                .asType(MethodType.methodType(void.class));
+        mousePos= (Point2D.Double) field(canvasClass, "strokePos").get(canvas);
+        mousePosPrev= (Point2D.Double) field(canvasClass, "strokePrev").get(canvas);
+    }
+
+    /** Return a handle to method name of c with parameter types ps, bound to canvas. */
+    private MethodHandle bind(Class<?> c, String name, Class<?>... ps) throws ReflectiveOperationException {
+        Method m= c.getDeclaredMethod(name, ps);
+        m.setAccessible(true);
+        return lookup.unreflect(m).bindTo(canvas);
+    }
+
+    /** Return field name of c, made accessible. */
+    private static Field field(Class<?> c, String name) throws ReflectiveOperationException {
+        Field f= c.getDeclaredField(name);
+        f.setAccessible(true);
+        return f;
+    }
+
+    /** Set the previous mouse position to (px, py) and the mouse position to (x, y). */
+    void setMouse(double px, double py, double x, double y) {
+        mousePosPrev.setLocation(px, py);
+        mousePos.setLocation(x, y);
+    }
+
+    void colorClick(Color c, int x, int y) throws Throwable {
+        colorClick.invokeExact(c, x, y);
+    }
+
+    void colorDrag(Color c) throws Throwable {
+        colorDrag.invokeExact(c);
+    }
+
+    void airBrush(Color c) throws Throwable {
+        airBrush.invokeExact(c);
+    }
+
+    void pickColor(MouseEvent e) throws Throwable {
+        pickColor.invokeExact(e);
+    }
+
+    void paintComponent(Graphics g) throws Throwable {
+        paintComponent.invokeExact(g);
+    }
+
+    /** Stop the render thread of the canvas. */
+    void dispose() throws Throwable {
+        dispose.invokeExact();
+    }
+}
@@ -0,0 +1,94 @@
+package bench;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** Latency of the Canvas drawing primitives, run headless.
+ *
+ * Run with e.g.
+ *     java -jar bench/target/benchmarks.jar CanvasBenchmark
+ * and add -prof gc to check that the stroke methods do not allocate. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations= 3, time= 1)
+@Measurement(iterations= 5, time= 1)
+@Fork(value= 1, jvmArgsAppend= "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class CanvasBenchmark {
+    /** Image size, width x height. 15360x8640 is 16K. */
+    @Param({"640x480", "3840x2160", "15360x8640"})
+    public String size;
+
+    @Param({"1", "5", "20", "50"})
+    public int toolSize;
+
+    @Param({"true", "false"})
+    public boolean antialias;
+
+    /** Size of the viewport painted by paintComponent. */
+    private static final int VIEW_W= 700, VIEW_H= 520;
+
+    private CanvasAccess canvas;
+    private int width, height;
+    private Graphics2D view; // off-screen Graphics2D painted on
+    private MouseEvent press;  // BUTTON1 press for pickColor
+    private int step;       // moves the mouse so strokes do not repeat exactly
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        String[] wh= size.split("x");
+        width= Integer.parseInt(wh[0]);
+        height= Integer.parseInt(wh[1]);
+        canvas= new CanvasAccess(width, height, Color.WHITE, toolSize, antialias);
+
+        view= new BufferedImage(VIEW_W, VIEW_H, BufferedImage.TYPE_INT_RGB).createGraphics();
+        view.setClip(0, 0, VIEW_W, VIEW_H);
+
+        press= new MouseEvent(canvas.canvas, MouseEvent.MOUSE_PRESSED, 0, 0,
+                width / 2, height / 2, 1, false, MouseEvent.BUTTON1);
+    }
+
+    @TearDown
+    public void tearDown() throws Throwable {
+        view.dispose();
+        canvas.dispose();
+    }
+
+    /** Return the next x coordinate of a zigzag in the middle of the image. */
+    private int nextX() {
+        step= (step + 1) & 63;
+        return width / 2 - 32 + step;
+    }
+
+    @Benchmark
+    public void colorClick() throws Throwable {
+        canvas.colorClick(Color.BLACK, nextX(), height / 2);
+    }
+
+    @Benchmark
+    public void colorDrag() throws Throwable {
+        int x= nextX();
+        canvas.setMouse(x + 0.5, height / 2 + 0.5, x + 8.5, height / 2 + 3.5);
+        canvas.colorDrag(Color.BLACK);
+    }
+
+    @Benchmark
+    public void airBrush() throws Throwable {
+        canvas.setMouse(0, 0, nextX() + 0.5, height / 2 + 0.5);
+        canvas.airBrush(Color.BLACK);
+    }
+
+    @Benchmark
+    public void pickColor() throws Throwable {
+        canvas.pickColor(press);
+    }
+
+    @Benchmark
+    public void paintComponent() throws Throwable {
+        canvas.paintComponent(view);
+    }
+}
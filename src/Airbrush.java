@@ -0,0 +1,180 @@
+import java.util.Arrays;
+
+/** An instance sprays random pixels of a color inside a disk, writing
+ * straight into the pixels of a TiledImage.
+ *
+ * For each size, the pixels of the disk are computed once and kept as a
+ * mask, together with the probability (as an integer threshold) that each
+ * one is sprayed. The probability is the density at the center and falls
+ * off toward the edge as given by the falloff. Random numbers come from a
+ * SplitMix64 generator, which is fast and gives the same spray for the
+ * same seed. */
+class Airbrush {
+    /** A mask: pixel k of the disk is at offset (dx[k], dy[k]) from the
+     * center and is sprayed if 24 random bits are less than threshold[k]. */
+    private static class Mask {
+        final int[] dx, dy, threshold;
+
+        Mask(int n) {
+            dx= new int[n];
+            dy= new int[n];
+            threshold= new int[n];
+        }
+    }
+
+    private double density= 0.25; // probability that the center pixel is sprayed
+    private double falloff= 0;     // 0: uniform; 1: probability drops to 0 at the edge
+    private Mask[] masks= new Mask[0]; // masks[s] is the mask of size s (null if not yet needed)
+    private long seed;  // state of the random number generator
+    private double carry; // distance along the spray line since its last disk
+
+    /** Constructor: an airbrush whose random numbers start from seed s. */
+    public Airbrush(long s) {
+        seed= s;
+    }
+
+    /** Restart the random numbers from seed s. */
+    public void setSeed(long s) {
+        seed= s;
+    }
+
+    /** Return the state of the random numbers: setSeed of it restarts them
+     * from here. */
+    public long getSeed() {
+        return seed;
+    }
+
+    /** Return the probability that the center pixel is sprayed. */
+    public double getDensity() {
+        return density;
+    }
+
+    /** Set the probability that the center pixel is sprayed to d.
+     * Throw an IllegalArgumentException if d is not in 0..1. */
+    public void setDensity(double d) {
+        if (!(d >= 0  &&  d <= 1)) throw new IllegalArgumentException("setDensity: " + d);
+        density= d;
+        masks= new Mask[0];
+    }
+
+    /** Return the falloff of the probability toward the edge. */
+    public double getFalloff() {
+        return falloff;
+    }
+
+    /** Set the falloff to f: the probability of a pixel at distance r from
+     * the center of a disk of radius R is density * (1 - f * (r/R)^2).
+     * Throw an IllegalArgumentException if f is not in 0..1. */
+    public void setFalloff(double f) {
+        if (!(f >= 0  &&  f <= 1)) throw new IllegalArgumentException("setFalloff: " + f);
+        falloff= f;
+        masks= new Mask[0];
+    }
+
+    /** Return the mask of size s, computing it the first time. */
+    private Mask maskFor(int s) {
+        if (s >= masks.length) {
+            masks= Arrays.copyOf(masks, Math.max(s + 1, 2 * masks.length));
+        }
+        if (masks[s] != null) return masks[s];
+
+        // The disk of the original airbrush: pixel (i, j) of the s x s
+        // square is in it if its squared distance to (s/2, s/2) is at most (s/2)^2.
+        int c= s / 2;
+        int r2= c * c;
+        int n= 0;
+        for (int j= 0; j < s; j++) {
+            for (int i= 0; i < s; i++) {
+                if ((i-c)*(i-c) + (j-c)*(j-c) <= r2) n++;
+            }
+        }
+        Mask m= new Mask(n);
+        int k= 0;
+        for (int j= 0; j < s; j++) {
+            for (int i= 0; i < s; i++) {
+                int d2= (i-c)*(i-c) + (j-c)*(j-c);
+                if (d2 > r2) continue;
+                double p= density * (1 - falloff * (r2 == 0 ? 0 : (double) d2 / r2));
+                m.dx[k]= i - c;
+                m.dy[k]= j - c;
+                m.threshold[k]= (int) Math.round(p * (1 << 24));
+                k++;
+            }
+        }
+        masks[s]= m;
+        return m;
+    }
+
+    /** Return the next 64 random bits (SplitMix64). */
+    private long nextLong() {
+        long z= (seed += 0x9E3779B97F4A7C15L);
+        z= (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z= (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /** Spray color argb on img in the disk of size s centered at (x, y),
+     * and begin a spray line there (see sprayLine). Pixels outside img, and
+     * outside selection sel if it is not null, are skipped. */
+    public void spray(TiledImage img, int x, int y, int s, int argb, Selection sel) {
+        carry= 0;
+        disk(img, x, y, s, argb, sel);
+    }
+
+    /** Spray color argb on img in the disk of size s centered at (x, y),
+     * skipping pixels outside img and outside sel (if not null). */
+    private void disk(TiledImage img, int x, int y, int s, int argb, Selection sel) {
+        if (s <= 0) return;
+        if (sel != null  &&  !sel.meets(x - s/2, y - s/2, s, s)) return;
+        Mask m= maskFor(s);
+        int width= img.getWidth();
+        int height= img.getHeight();
+        int alpha= argb >>> 24;
+
+        int tile= -1;   // index (row*cols + col) of the tile in data
+        int[] data= null;
+        int cols= img.getCols();
+        long bits= 0;   // random bits not used yet
+        int nBits= 0;   // number of 24-bit chunks left in bits
+        for (int k= 0; k < m.dx.length; k++) {
+            if (nBits == 0) {
+                bits= nextLong();
+                nBits= 2;
+            }
+            int r= (int) (bits & 0xFFFFFF);
+            bits >>>= 24;
+            nBits--;
+            if (r >= m.threshold[k]) continue;
+
+            int px= x + m.dx[k];
+            int py= y + m.dy[k];
+            if (px < 0  ||  py < 0  ||  px >= width  ||  py >= height) continue;
+            if (sel != null  &&  !sel.contains(px, py)) continue;
+            int t= (py >> TiledImage.TILE_SHIFT) * cols + (px >> TiledImage.TILE_SHIFT);
+            if (t != tile) {
+                tile= t;
+                data= img.writableTileData(px >> TiledImage.TILE_SHIFT, py >> TiledImage.TILE_SHIFT);
+            }
+            int i= ((py & (TiledImage.TILE_SIZE-1)) << TiledImage.TILE_SHIFT) + (px & (TiledImage.TILE_SIZE-1));
+            data[i]= alpha == 255 ? argb : BlendMode.NORMAL.composite(data[i], argb | 0xFF000000, alpha);
+        }
+    }
+
+    /** Continue the spray line begun by spray with color argb on img, with
+     * disks of size s along the segment from (ax, ay) to (bx, by). Disks are
+     * s pixels apart along the line, carrying the distance left over from
+     * one segment to the next, so that the paint laid down per pixel of the
+     * line is about that of one disk, however fast the mouse moves (a disk
+     * lays down density at its center). Pixels outside sel (if not null)
+     * are skipped. */
+    public void sprayLine(TiledImage img, double ax, double ay, double bx, double by, int s, int argb, Selection sel) {
+        double len= Math.hypot(bx - ax, by - ay);
+        double spacing= Math.max(1, s);
+        double d= spacing - carry; // distance along the segment of the next disk
+        for (; d <= len; d += spacing) {
+            double f= d / len;
+            disk(img, (int) (ax + f * (bx - ax)), (int) (ay + f * (by - ay)), s, argb, sel);
+        }
+        carry= len - (d - spacing);
+    }
+}
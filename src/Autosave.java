@@ -0,0 +1,531 @@
+import java.awt.Color;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** An instance keeps a recovery journal of a document: a file to which
+ * the tiles that changed are appended from time to time, so that if the
+ * program dies, the work since the last save can be restored.
+ *
+ * checkpoint(d) takes snapshots of the layers of d (on the EDT; that costs
+ * arrays of references) and hands them to a background thread, which
+ * appends to the journal
+ *  - a LAYERS record: the size of the document, its active layer, and the
+ *    id and properties of each layer;
+ *  - a TILE record for each tile whose stamp (TiledImage.getStamp) differs
+ *    from that of the copy of the tile last appended;
+ *  - a COMMIT record.
+ * recover(f) replays the records of journal f up to its last COMMIT, so a
+ * checkpoint cut short by a crash is ignored.
+ *
+ * saved(d, f) says that d was saved in document file f (ProjectFile): the
+ * journal is cut back to a BASE record that names f and the ids of its
+ * layers, and the stamps of the tiles of d become the baseline, so the
+ * next checkpoint appends only the tiles changed since the save. recover
+ * then starts from the document in f.
+ *
+ * The thread throttles itself: after each tile it sleeps long enough that
+ * it works (computes or waits for the disk) at most a fraction share of
+ * the time. If a checkpoint is still being written when the next is asked
+ * for, the new one is skipped; the EDT never waits for the journal.
+ *
+ * discard() deletes the journal (e.g. after the image was saved in a
+ * format that cannot restore the layers); the next checkpoint then
+ * appends all tiles of the document.
+ *
+ * Each running instance of the program has its own journal, which it
+ * locks (see defaultFile). */
+class Autosave {
+    private static final long MAGIC= 0x41364A524E4C3031L; // "A6JRNL01"
+    private static final int LAYERS= 1, TILE= 2, COMMIT= 3, BASE= 4; // record types
+
+    /** Largest number of journals in the directory of defaultFile. */
+    private static final int MAX_JOURNALS= 16;
+
+    /** The lock on the journal of defaultFile (null if none), held until
+     * the program ends. */
+    private static FileLock lock;
+    private static final int TILE_PIXELS= TiledImage.TILE_SIZE * TiledImage.TILE_SIZE;
+
+    private final File file;       // the journal
+    private volatile double share; // fraction of the time the thread may work
+
+    /** The thread that writes the journal. */
+    private final ExecutorService executor= Executors.newSingleThreadExecutor(r -> {
+        Thread t= new Thread(r, "autosave");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    /** True iff a checkpoint is queued or being written. */
+    private volatile boolean busy;
+
+    // State of the journal, used only on the thread that writes it.
+    private DataOutputStream out;  // the journal, open for appending (null if not open)
+    private final IdentityHashMap<TiledImage, Integer> ids= new IdentityHashMap<>(); // ids of layer images
+    private final IdentityHashMap<TiledImage, long[]> written= new IdentityHashMap<>(); // stamps of tiles in the journal
+    private int nextId;  // id of the next layer image seen
+    private long slept;  // nanoseconds slept in the current checkpoint
+    private long worked; // nanoseconds worked in the current checkpoint
+
+    /** Constructor: a journal in file f, whose thread works at most a
+     * fraction share (0 < share <= 1) of the time.
+     * Throw an IllegalArgumentException if share is not in that range. */
+    public Autosave(File f, double share) {
+        file= f;
+        setShare(share);
+    }
+
+    /** Return the journal of this instance of the program: the first
+     * journal in directory .a6paint-recovery of the home directory of the
+     * user that no other running instance has locked, locking it. If it
+     * exists, it was left by a session that ended without saving. If no
+     * journal can be locked, return a new temporary file. */
+    public static synchronized File defaultFile() {
+        File dir= new File(System.getProperty("user.home"), ".a6paint-recovery");
+        if (dir.isDirectory()  ||  dir.mkdirs()) {
+            for (int k= 0; k < MAX_JOURNALS; k++) {
+                File f= new File(dir, "journal-" + k);
+                try {
+                    // Lock a file beside the journal: compaction replaces the journal.
+                    FileChannel ch= FileChannel.open(new File(dir, "journal-" + k + ".lock").toPath(),
+                            StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                    FileLock l;
+                    try {
+                        l= ch.tryLock();
+                    } catch (OverlappingFileLockException exc) {
+                        l= null; // locked by this instance
+                    }
+                    if (l != null) {
+                        lock= l;
+                        return f;
+                    }
+                    ch.close();
+                } catch (IOException exc) {
+                    System.err.println("Autosave: cannot lock " + f + ": " + exc.getMessage());
+                }
+            }
+        }
+        try {
+            File f= File.createTempFile("a6paint-recovery", "");
+            f.deleteOnExit();
+            return f;
+        } catch (IOException exc) {
+            throw new UncheckedIOException(exc);
+        }
+    }
+
+    /** Return the journal file. */
+    public File getFile() {
+        return file;
+    }
+
+    /** Set the fraction of the time the thread may work to s.
+     * Throw an IllegalArgumentException if s is not in (0, 1]. */
+    public void setShare(double s) {
+        if (!(s > 0  &&  s <= 1)) throw new IllegalArgumentException("setShare: share " + s + " not in (0, 1]");
+        share= s;
+    }
+
+    /** Start appending the tiles of d that changed since the last
+     * checkpoint, unless the last one is still being written; return false
+     * iff so. d must not change during this call. Call on the EDT. */
+    public boolean checkpoint(Document d) {
+        if (busy) return false;
+        busy= true;
+        int n= d.layerCount();
+        Layer[] copies= new Layer[n];
+        TiledImage[] live= new TiledImage[n];
+        for (int k= 0; k < n; k++) {
+            Layer l= d.getLayer(k);
+            live[k]= l.getPixels();
+            copies[k]= new Layer(l.getName(), l.getPixels().snapshot());
+            copies[k].setOpacity(l.getOpacity());
+            copies[k].setBlendMode(l.getBlendMode());
+            copies[k].setVisible(l.isVisible());
+        }
+        int active= d.getActiveIndex();
+        executor.execute(() -> {
+            try {
+                write(copies, live, active);
+            } catch (IOException | RuntimeException exc) {
+                // The journal may end in a partial record: start a new one.
+                System.err.println("Autosave: " + exc);
+                close();
+                written.clear();
+                if (file.exists()  &&  !file.delete()) System.err.println("Autosave: cannot delete " + file);
+            } finally {
+                busy= false;
+            }
+        });
+        return true;
+    }
+
+    /** Document d was saved in document file f (e.g. by ProjectFile): cut
+     * the journal back to a record that names f, after the checkpoints
+     * started before, and take the tiles of d as they are now as already
+     * journaled. d must not change during this call. Call on the EDT. */
+    public void saved(Document d, File f) {
+        int n= d.layerCount();
+        TiledImage[] live= new TiledImage[n];
+        long[][] stamps= new long[n][];
+        for (int k= 0; k < n; k++) {
+            TiledImage img= d.getLayer(k).getPixels();
+            live[k]= img;
+            stamps[k]= new long[img.getCols() * img.getRows()];
+            for (int i= 0; i < stamps[k].length; i++) stamps[k][i]= img.getStamp(i % img.getCols(), i / img.getCols());
+        }
+        String path= f.getAbsolutePath();
+        executor.execute(() -> {
+            close();
+            written.clear();
+            try {
+                out= new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+                out.writeLong(MAGIC);
+                out.writeByte(BASE);
+                out.writeUTF(path);
+                out.writeInt(n);
+                for (int k= 0; k < n; k++) {
+                    Integer id= ids.get(live[k]);
+                    if (id == null) {
+                        id= nextId++;
+                        ids.put(live[k], id);
+                    }
+                    out.writeInt(id);
+                    written.put(live[k], stamps[k]);
+                }
+                out.flush();
+            } catch (IOException exc) {
+                System.err.println("Autosave: " + exc);
+                close();
+                written.clear();
+                if (file.exists()  &&  !file.delete()) System.err.println("Autosave: cannot delete " + file);
+            }
+        });
+    }
+
+    /** Delete the journal, after the checkpoints started before. */
+    public void discard() {
+        executor.execute(() -> {
+            close();
+            ids.clear();
+            written.clear();
+            if (file.exists()  &&  !file.delete()) System.err.println("Autosave: cannot delete " + file);
+        });
+    }
+
+    /** Wait at most millis milliseconds for the journal thread to finish
+     * the checkpoints started, and stop it. Return true iff it finished. */
+    public boolean finish(long millis) {
+        executor.shutdown();
+        try {
+            return executor.awaitTermination(millis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /** Append a checkpoint of layers copies (snapshots of images live, bottom
+     * first) with active layer active to the journal. */
+    private void write(Layer[] copies, TiledImage[] live, int active) throws IOException {
+        worked= 0;
+        slept= 0;
+        long start= System.nanoTime();
+
+        // Once the journal is much larger than the document, write the whole
+        // document to a new journal, which then replaces it.
+        long size= 0;
+        for (Layer l : copies) size += (long) l.getPixels().allocatedTiles() * (13 + 4 * TILE_PIXELS);
+        File tmp= new File(file.getPath() + ".new");
+        boolean compact= file.length() > 2 * size + (1 << 20);
+        if (compact) {
+            close();
+            written.clear();
+            out= new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+            out.writeLong(MAGIC);
+        } else if (out == null) {
+            open();
+        }
+
+        // Forget the layers that are gone.
+        Set<TiledImage> now= Collections.newSetFromMap(new IdentityHashMap<>());
+        now.addAll(Arrays.asList(live));
+        ids.keySet().retainAll(now);
+        written.keySet().retainAll(now);
+
+        TiledImage first= copies[0].getPixels();
+        out.writeByte(LAYERS);
+        out.writeInt(first.getWidth());
+        out.writeInt(first.getHeight());
+        out.writeInt(copies.length);
+        out.writeInt(active);
+        for (int k= 0; k < copies.length; k++) {
+            Integer id= ids.get(live[k]);
+            if (id == null) {
+                id= nextId++;
+                ids.put(live[k], id);
+            }
+            Layer l= copies[k];
+            out.writeInt(id);
+            out.writeUTF(l.getName());
+            out.writeInt(l.getOpacity());
+            out.writeUTF(l.getBlendMode().name());
+            out.writeBoolean(l.isVisible());
+            out.writeInt(l.getPixels().getBackground());
+        }
+
+        ByteBuffer buf= ByteBuffer.allocate(4 * TILE_PIXELS);
+        for (int k= 0; k < copies.length; k++) {
+            TiledImage img= copies[k].getPixels();
+            long[] stamps= written.get(live[k]);
+            if (stamps == null  ||  stamps.length != img.getCols() * img.getRows()) {
+                stamps= new long[img.getCols() * img.getRows()];
+                Arrays.fill(stamps, -1);
+                written.put(live[k], stamps);
+            }
+            for (int row= 0; row < img.getRows(); row++) {
+                for (int col= 0; col < img.getCols(); col++) {
+                    int i= row * img.getCols() + col;
+                    if (!img.isAllocated(col, row)  ||  img.getStamp(col, row) == stamps[i]) continue;
+                    buf.clear();
+                    buf.asIntBuffer().put(img.tileData(col, row));
+                    out.writeByte(TILE);
+                    out.writeInt(ids.get(live[k]));
+                    out.writeInt(col);
+                    out.writeInt(row);
+                    out.write(buf.array());
+                    stamps[i]= img.getStamp(col, row);
+                    start= pace(start);
+                }
+            }
+        }
+        out.writeByte(COMMIT);
+        out.flush();
+        if (compact) {
+            close();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        pace(start);
+    }
+
+    /** Record the time worked since start, sleep so that the thread works
+     * at most a fraction share of the time, and return the time it wakes. */
+    private long pace(long start) {
+        long t= System.nanoTime();
+        worked += t - start;
+        long sleep= (long) (worked * (1 - share) / share) - slept;
+        if (sleep > 1_000_000) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(sleep);
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+            }
+            long woke= System.nanoTime();
+            slept += woke - t;
+            return woke;
+        }
+        return t;
+    }
+
+    /** Open the journal for appending, starting it if it is empty.
+     * If it has no valid start, it is replaced. */
+    private void open() throws IOException {
+        boolean fresh= !file.exists()  ||  file.length() == 0  ||  !hasMagic(file);
+        out= new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, !fresh), 1 << 16));
+        if (fresh) {
+            out.writeLong(MAGIC);
+            // A new journal lacks every tile.
+            written.clear();
+        }
+    }
+
+    /** Close the journal, if it is open. */
+    private void close() {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException exc) {
+            System.err.println("Autosave: " + exc.getMessage());
+        }
+        out= null;
+    }
+
+    /** Return true iff file f starts with the magic number of journals. */
+    private static boolean hasMagic(File f) {
+        try (DataInputStream in= new DataInputStream(new FileInputStream(f))) {
+            return in.readLong() == MAGIC;
+        } catch (IOException exc) {
+            return false;
+        }
+    }
+
+    /** Return the document in journal f as of its last complete checkpoint,
+     * or null if it has none. Throw an IOException if f cannot be read. */
+    public static Document recover(File f) throws IOException {
+        if (!f.exists()  ||  !hasMagic(f)) return null;
+        long end= lastCommit(f);
+        if (end < 0) return null;
+
+        HashMap<Integer, TiledImage> images= new HashMap<>();
+        ArrayList<Layer> layers= null;
+        int active= 0;
+        int[] pixels= new int[TILE_PIXELS];
+        byte[] bytes= new byte[4 * TILE_PIXELS];
+        Counter count= new Counter(new FileInputStream(f));
+        try (DataInputStream in= new DataInputStream(count)) {
+            in.readLong();
+            while (count.count < end) {
+                int type= in.readByte();
+                if (type == LAYERS) {
+                    Header h= readLayers(in);
+                    active= h.active;
+                    layers= new ArrayList<>();
+                    HashMap<Integer, TiledImage> now= new HashMap<>();
+                    for (Entry e : h.entries) {
+                        TiledImage img= images.get(e.id);
+                        if (img == null  ||  img.getWidth() != h.width  ||  img.getHeight() != h.height
+                                ||  img.getBackground() != e.background) {
+                            img= new TiledImage(h.width, h.height, new Color(e.background, true));
+                        }
+                        now.put(e.id, img);
+                        Layer l= new Layer(e.name, img);
+                        l.setOpacity(e.opacity);
+                        l.setBlendMode(BlendMode.valueOf(e.mode));
+                        l.setVisible(e.visible);
+                        layers.add(l);
+                    }
+                    images= now;
+                } else if (type == BASE) {
+                    File base= new File(in.readUTF());
+                    Document d= ProjectFile.open(base).getDocument();
+                    int n= in.readInt();
+                    if (n != d.layerCount()) throw new IOException(base.getName() + " changed since it was journaled");
+                    images= new HashMap<>();
+                    layers= new ArrayList<>();
+                    for (int k= 0; k < n; k++) {
+                        images.put(in.readInt(), d.getLayer(k).getPixels());
+                        layers.add(d.getLayer(k));
+                    }
+                    active= d.getActiveIndex();
+                } else if (type == TILE) {
+                    int id= in.readInt();
+                    int col= in.readInt();
+                    int row= in.readInt();
+                    in.readFully(bytes);
+                    ByteBuffer.wrap(bytes).asIntBuffer().get(pixels);
+                    TiledImage img= images.get(id);
+                    if (img == null) throw new IOException("tile of unknown layer " + id);
+                    System.arraycopy(pixels, 0, img.writableTileData(col, row), 0, TILE_PIXELS);
+                } else if (type != COMMIT) {
+                    throw new IOException("bad record " + type);
+                }
+            }
+        } catch (IllegalArgumentException | IndexOutOfBoundsException exc) {
+            throw new IOException(f.getName() + " is damaged", exc);
+        }
+        return layers == null ? null : new Document(layers, active);
+    }
+
+    /** Return the offset just past the last COMMIT record of journal f, or
+     * -1 if it has none. Records after it (and a damaged end) are ignored. */
+    private static long lastCommit(File f) {
+        long last= -1;
+        try (Counter count= new Counter(new FileInputStream(f))) {
+            DataInputStream in= new DataInputStream(count);
+            in.readLong();
+            while (true) {
+                int type= in.readByte();
+                if (type == LAYERS) {
+                    readLayers(in);
+                } else if (type == BASE) {
+                    in.readUTF();
+                    int skip= 4 * in.readInt();
+                    if (in.skipBytes(skip) != skip) break;
+                } else if (type == TILE) {
+                    int skip= 12 + 4 * TILE_PIXELS;
+                    if (in.skipBytes(skip) != skip) break;
+                } else if (type == COMMIT) {
+                    last= count.count;
+                } else {
+                    break;
+                }
+            }
+        } catch (IOException exc) {
+            // The end of the journal, or a record cut short by a crash.
+        }
+        return last;
+    }
+
+    /** The contents of a LAYERS record. */
+    private static class Header {
+        int width, height; // size of the document
+        int active;        // index of the active layer
+        Entry[] entries;   // the layers, bottom first
+    }
+
+    /** A layer in a LAYERS record. */
+    private static class Entry {
+        int id;
+        String name;
+        int opacity;
+        String mode; // name of the blend mode
+        boolean visible;
+        int background;
+    }
+
+    /** Read the rest of a LAYERS record (after its type) from in. */
+    private static Header readLayers(DataInputStream in) throws IOException {
+        Header h= new Header();
+        h.width= in.readInt();
+        h.height= in.readInt();
+        h.entries= new Entry[in.readInt()];
+        h.active= in.readInt();
+        for (int k= 0; k < h.entries.length; k++) {
+            Entry e= new Entry();
+            e.id= in.readInt();
+            e.name= in.readUTF();
+            e.opacity= in.readInt();
+            e.mode= in.readUTF();
+            e.visible= in.readBoolean();
+            e.background= in.readInt();
+            h.entries[k]= e;
+        }
+        return h;
+    }
+
+    /** A buffered stream that counts the bytes read from it. */
+    private static class Counter extends BufferedInputStream {
+        long count; // number of bytes read or skipped
+
+        Counter(InputStream in) {
+            super(in, 1 << 16);
+        }
+
+        @Override public synchronized int read() throws IOException {
+            int b= super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override public synchronized int read(byte[] b, int off, int len) throws IOException {
+            int n= super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+
+        @Override public synchronized long skip(long n) throws IOException {
+            long k= super.skip(n);
+            count += k;
+            return k;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import javax.imageio.ImageIO;
+
+/** A command-line program that draws a stroke script (see StrokeScript) on
+ * every image in a directory and writes the results to another directory,
+ * with a pool of worker threads. It needs no display:
+ *
+ *   java -Djava.awt.headless=true -cp a6.jar Batch [options] script in-dir out-dir
+ *
+ * Options:
+ *   -threads n   number of worker threads (default: the number of cores)
+ *   -level n     compression level of PNG files, 0..9 (default 6)
+ *
+ * Each output file has the name and format of its input file. Each worker
+ * thread keeps its own StrokeEngine and its own BufferedImage for formats
+ * without alpha (e.g. JPEG), reused from file to file. The airbrush starts
+ * from the seed of the script for each file, so every file gets the same
+ * strokes. The exit status is 0 iff all files were processed. */
+class Batch {
+    private final StrokeScript script; // the strokes to draw
+    private final File outDir;         // directory of the results
+    private final PngEncoder png;      // encoder of PNG results
+
+    /** The engine of each worker thread. */
+    private final ThreadLocal<StrokeEngine> engines= ThreadLocal.withInitial(() -> new StrokeEngine(null, 0));
+
+    /** The RGB image of each worker thread, for formats without alpha. */
+    private final ThreadLocal<BufferedImage[]> rgbImages= ThreadLocal.withInitial(() -> new BufferedImage[1]);
+
+    /** Constructor: a batch that draws script s on images, writing them to
+     * directory out with PNG level level. */
+    Batch(StrokeScript s, File out, int level) {
+        script= s;
+        outDir= out;
+        png= new PngEncoder(level);
+    }
+
+    /** Draw the script on image file f and write the result to the output
+     * directory. Throw an IOException if f cannot be read or written. */
+    void process(File f) throws IOException {
+        BufferedImage in= ImageIO.read(f);
+        if (in == null) throw new IOException("unknown image format");
+        TiledImage img= TiledImage.fromImage(in);
+        StrokeEngine engine= engines.get();
+        engine.setImage(img);
+        script.apply(engine);
+        engine.getDamage().clear();
+
+        File out= new File(outDir, f.getName());
+        String format= format(f);
+        if (format.equals("png")) {
+            png.write(img, out, p -> {});
+        } else if (format.equals("jpg")  ||  format.equals("jpeg")  ||  format.equals("bmp")) {
+            if (!ImageIO.write(rgb(img), format, out)) throw new IOException("cannot write format " + format);
+        } else {
+            if (!ImageIO.write(img, format, out)) throw new IOException("cannot write format " + format);
+        }
+    }
+
+    /** Return the pixels of img without alpha, in the RGB image of this
+     * thread (replaced if it has another size). */
+    private BufferedImage rgb(TiledImage img) {
+        BufferedImage[] b= rgbImages.get();
+        if (b[0] == null  ||  b[0].getWidth() != img.getWidth()  ||  b[0].getHeight() != img.getHeight()) {
+            b[0]= new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
+        }
+        int[] row= new int[img.getWidth()];
+        for (int y= 0; y < img.getHeight(); y++) {
+            img.getRGB(0, y, row.length, 1, row, 0, row.length);
+            b[0].setRGB(0, y, row.length, 1, row, 0, row.length);
+        }
+        return b[0];
+    }
+
+    /** Return the format of image file f: its extension, in lower case. */
+    private static String format(File f) {
+        String name= f.getName();
+        return name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+    }
+
+    /** Return the image files in directory dir that ImageIO can read,
+     * sorted by name. Throw an IOException if dir cannot be listed. */
+    static File[] imageFiles(File dir) throws IOException {
+        Set<String> suffixes= new HashSet<>();
+        for (String s : ImageIO.getReaderFileSuffixes()) suffixes.add(s.toLowerCase());
+        File[] files= dir.listFiles(f -> f.isFile()  &&  suffixes.contains(format(f)));
+        if (files == null) throw new IOException("cannot list " + dir);
+        Arrays.sort(files);
+        return files;
+    }
+
+    /** Print how to use the program and exit with status 2. */
+    private static void usage() {
+        System.err.println("Usage: java -Djava.awt.headless=true Batch [-threads n] [-level n] script in-dir out-dir");
+        System.exit(2);
+    }
+
+    /** Run the program with arguments args (see the class comment). */
+    public static void main(String[] args) throws InterruptedException {
+        int threads= Runtime.getRuntime().availableProcessors();
+        int level= Deflater.DEFAULT_COMPRESSION;
+        int i= 0;
+        try {
+            for (; i < args.length  &&  args[i].startsWith("-"); i += 2) {
+                if (i + 1 >= args.length) usage();
+                if (args[i].equals("-threads")) threads= Integer.parseInt(args[i + 1]);
+                else if (args[i].equals("-level")) level= Integer.parseInt(args[i + 1]);
+                else usage();
+            }
+        } catch (NumberFormatException exc) {
+            usage();
+        }
+        if (args.length - i != 3  ||  threads < 1) usage();
+
+        StrokeScript script;
+        File[] files;
+        Batch batch;
+        File outDir= new File(args[i + 2]);
+        try {
+            script= StrokeScript.read(new File(args[i]));
+            files= imageFiles(new File(args[i + 1]));
+            if (!outDir.isDirectory()  &&  !outDir.mkdirs()) throw new IOException("cannot create " + outDir);
+            batch= new Batch(script, outDir, level);
+        } catch (IOException | IllegalArgumentException exc) {
+            System.err.println("Batch: " + exc.getMessage());
+            System.exit(2);
+            return;
+        }
+
+        long start= System.nanoTime();
+        AtomicInteger failed= new AtomicInteger();
+        ExecutorService pool= Executors.newFixedThreadPool(threads);
+        for (File f : files) {
+            pool.execute(() -> {
+                try {
+                    batch.process(f);
+                } catch (IOException | RuntimeException exc) {
+                    failed.incrementAndGet();
+                    System.err.println(f + ": " + exc.getMessage());
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+
+        double secs= (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d files in %.1f s (%.0f files/min) on %d threads, %d failed%n",
+                files.length, secs, files.length / secs * 60, threads, failed.get());
+        System.exit(failed.get() == 0 ? 0 : 1);
+    }
+}
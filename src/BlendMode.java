@@ -0,0 +1,57 @@
+/** An enumeration of the ways a layer's pixels are combined with the
+ * pixels below it. */
+public enum BlendMode {
+    NORMAL("Normal"),
+    MULTIPLY("Multiply"),
+    SCREEN("Screen"),
+    OVERLAY("Overlay"),
+    DARKEN("Darken"),
+    LIGHTEN("Lighten");
+
+    private String string; // The name to use for toString
+
+    /** Constructor: an instance with toString result name. */
+    BlendMode(String name) {
+        string= name;
+    }
+
+    /** Return the name. */
+    @Override public String toString() {
+        return string;
+    }
+
+    /** Return the blend of channel value s of a layer with channel value b
+     * below it (both 0..255). */
+    private int mix(int b, int s) {
+        switch (this) {
+            case MULTIPLY: return b * s / 255;
+            case SCREEN:   return b + s - b * s / 255;
+            case OVERLAY:  return b < 128 ? 2 * b * s / 255 : 255 - 2 * (255 - b) * (255 - s) / 255;
+            case DARKEN:   return Math.min(b, s);
+            case LIGHTEN:  return Math.max(b, s);
+            default:       return s;
+        }
+    }
+
+    /** Return ARGB pixel src, with its alpha scaled by opacity (0..255),
+     * blended in this mode and drawn over ARGB pixel dst. Pixels are not
+     * premultiplied. */
+    public int composite(int dst, int src, int opacity) {
+        int sa= opacity == 255 ? src >>> 24 : ((src >>> 24) * opacity + 127) / 255;
+        if (sa == 0) return dst;
+        int da= dst >>> 24;
+        if (sa == 255  &&  (this == NORMAL  ||  da == 0)) return src | 0xFF000000;
+
+        int oa= sa + da * (255 - sa) / 255; // alpha of the result
+        int res= oa << 24;
+        for (int shift= 16; shift >= 0; shift -= 8) {
+            int cb= (dst >> shift) & 0xFF;
+            int cs= (src >> shift) & 0xFF;
+            // Where dst is opaque the blended color replaces src's color.
+            if (this != NORMAL) cs= ((255 - da) * cs + da * mix(cb, cs)) / 255;
+            int c= (cs * sa + cb * da * (255 - sa) / 255) / oa;
+            res |= c << shift;
+        }
+        return res;
+    }
+}
@@ -0,0 +1,135 @@
+import java.util.Objects;
+
+/** An instance is the shape and behavior of the brush of the pencil and
+ * eraser: round dabs of a hardness, spaced along the stroke, each laid
+ * down with an opacity, and dynamics that vary the size and opacity of the
+ * dabs with the pressure of a tablet pen or the speed of the stroke.
+ * Instances are immutable. */
+class Brush {
+    /** What varies a property of the dabs from its minimum to its full value. */
+    public enum Dynamics {
+        /** Nothing: the property is always at its full value. */
+        NONE("None"),
+        /** The pressure of the pen: full at full pressure (AWT mouse events
+         * have no pressure, so it is full unless set, see
+         * StrokeEngine.setPressure). */
+        PRESSURE("Pressure"),
+        /** The speed of the stroke: full when slow, minimum at FAST_SPEED
+         * and faster, like ink. */
+        VELOCITY("Velocity");
+
+        private final String label;
+
+        Dynamics(String label) {
+            this.label= label;
+        }
+
+        @Override public String toString() {
+            return label;
+        }
+    }
+
+    /** Speed (pixels per millisecond) at which VELOCITY dynamics reach
+     * their minimum. */
+    public static final double FAST_SPEED= 3;
+
+    /** The brush of the original pencil: hard, opaque, spaced a quarter of
+     * its size, without dynamics. */
+    public static final Brush DEFAULT= new Brush(1, 0.25, 1, Dynamics.NONE, 1, Dynamics.NONE, 1);
+
+    private final double hardness; // 1: a sharp (anti-aliased) edge; 0: soft from the center
+    private final double spacing;  // distance between dabs, as a fraction of their size
+    private final double opacity;  // opacity of each dab
+    private final Dynamics sizeDynamics, opacityDynamics;
+    private final double minSize, minOpacity; // fractions of the size and opacity at the minimum of the dynamics
+
+    /** Constructor: a brush of hardness h whose dabs are spaced sp times
+     * their size apart and laid down with opacity op; their size varies
+     * with sd from ms times the tool size to the tool size, and their
+     * opacity with od from mo times op to op.
+     * Throw an IllegalArgumentException if h, op, ms or mo is not in 0..1,
+     * or sp is not in 0.01..10. */
+    public Brush(double h, double sp, double op, Dynamics sd, double ms, Dynamics od, double mo) {
+        if (!(h >= 0  &&  h <= 1)) throw new IllegalArgumentException("Brush: hardness " + h);
+        if (!(sp >= 0.01  &&  sp <= 10)) throw new IllegalArgumentException("Brush: spacing " + sp);
+        if (!(op >= 0  &&  op <= 1)) throw new IllegalArgumentException("Brush: opacity " + op);
+        if (!(ms >= 0  &&  ms <= 1)) throw new IllegalArgumentException("Brush: minimum size " + ms);
+        if (!(mo >= 0  &&  mo <= 1)) throw new IllegalArgumentException("Brush: minimum opacity " + mo);
+        hardness= h;
+        spacing= sp;
+        opacity= op;
+        sizeDynamics= sd;
+        minSize= ms;
+        opacityDynamics= od;
+        minOpacity= mo;
+    }
+
+    /** Return the hardness: 1 for a sharp edge, 0 for a dab that fades
+     * from its center. */
+    public double getHardness() {
+        return hardness;
+    }
+
+    /** Return the distance between dabs, as a fraction of their size. */
+    public double getSpacing() {
+        return spacing;
+    }
+
+    /** Return the opacity of each dab. */
+    public double getOpacity() {
+        return opacity;
+    }
+
+    /** Return what varies the size of the dabs. */
+    public Dynamics getSizeDynamics() {
+        return sizeDynamics;
+    }
+
+    /** Return the smallest size of the dabs, as a fraction of the tool size. */
+    public double getMinSize() {
+        return minSize;
+    }
+
+    /** Return what varies the opacity of the dabs. */
+    public Dynamics getOpacityDynamics() {
+        return opacityDynamics;
+    }
+
+    /** Return the smallest opacity of the dabs, as a fraction of the opacity. */
+    public double getMinOpacity() {
+        return minOpacity;
+    }
+
+    /** Return the fraction of the tool size of a dab at pen pressure p
+     * (0..1) and speed v (pixels per ms). */
+    public double sizeFactor(double p, double v) {
+        return factor(sizeDynamics, minSize, p, v);
+    }
+
+    /** Return the fraction of the opacity of a dab at pen pressure p (0..1)
+     * and speed v (pixels per ms). */
+    public double opacityFactor(double p, double v) {
+        return factor(opacityDynamics, minOpacity, p, v);
+    }
+
+    /** Return the value between min and 1 given by dynamics d at pressure p
+     * and speed v. */
+    private static double factor(Dynamics d, double min, double p, double v) {
+        if (d == Dynamics.PRESSURE) return min + (1 - min) * Math.min(1, Math.max(0, p));
+        if (d == Dynamics.VELOCITY) return min + (1 - min) * Math.max(0, 1 - v / FAST_SPEED);
+        return 1;
+    }
+
+    /** Return true iff ob is a Brush with the same properties as this one. */
+    @Override public boolean equals(Object ob) {
+        if (!(ob instanceof Brush)) return false;
+        Brush b= (Brush) ob;
+        return hardness == b.hardness  &&  spacing == b.spacing  &&  opacity == b.opacity
+                &&  sizeDynamics == b.sizeDynamics  &&  minSize == b.minSize
+                &&  opacityDynamics == b.opacityDynamics  &&  minOpacity == b.minOpacity;
+    }
+
+    @Override public int hashCode() {
+        return Objects.hash(hardness, spacing, opacity, sizeDynamics, minSize, opacityDynamics, minOpacity);
+    }
+}
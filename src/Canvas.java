@@ -3,44 +3,168 @@ import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.BufferedImage;
 import java.awt.geom.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import javax.swing.Timer;
 
 /**  This class represents the painting panel and implements all relevant
- * functionality. */
-public class Canvas extends JPanel implements MouseListener, MouseMotionListener  {
+ * functionality. The image is a Document of layers; strokes are drawn on
+ * its active layer and the composite of its layers is shown.
+ *
+ * The image is shown at a zoom of 2^zoomShift (the panel is meant to be
+ * in a JScrollPane, which pans it). Mouse positions are mapped back to
+ * image coordinates. Zoomed-out views are drawn from a mipmap pyramid of
+ * the composite, so they read only as many pixels as they show.
+ *
+ * The mouse handlers run on the event dispatch thread (EDT) but do not draw:
+ * they post the strokes to a StrokeRenderer, whose thread draws them (see
+ * render) and repaints the area they changed.
+ *
+ * Metrics time each mouse handler, each batch of the renderer, each paint
+ * and the path from a post to the paint that shows its pixels; they can be
+ * shown over the image (see setMetricsShown). */
+public class Canvas extends JPanel implements MouseListener, MouseMotionListener, StrokeRenderer.Target,
+        ImageLoader.Sink {
 	private static final long serialVersionUID = 201801;
 
 	/** This is useful for creating custom cursors. */
     private static Toolkit tk= Toolkit.getDefaultToolkit();
 
+    /** Traces of the mouse and paint events, and of changes of the image,
+     * at DEBUG (see Log; e.g. -Dlog.canvas=DEBUG for all three). PAINT
+     * reports the display path at INFO. */
+    private static final Log MOUSE= Log.get("canvas.mouse");
+    private static final Log PAINT= Log.get("canvas.paint");
+    private static final Log LOG= Log.get("canvas.image");
+
     private final Color defaultForegroundColor= Color.BLACK; // Default foreground color
 
-    private BufferedImage img; // The image.
+    private Document doc; // The image: its layers and their composite.
     private int width;  // width of the image
     private int height;  // height of the image
 
-    private Window window; // main window of the program
+    private Window window; // main window of the program (null if none)
+
+    /** Range of zoomShift: zoom 1/64 .. 32. */
+    public static final int MIN_ZOOM_SHIFT= -6, MAX_ZOOM_SHIFT= 5;
+
+    /** The image is shown at zoom 2^zoomShift. Read by the render and
+     * loader threads; with a display cache, changed holding its lock. */
+    private volatile int zoomShift;
+
+    /** Mipmap pyramid of the composite of doc, for zoomed-out views. */
+    private MipPyramid pyramid;
+
+    /** Cache of the view in the format of the screen, or null if there is
+     * no screen (or -Dcanvas.display=direct): then the image is drawn
+     * directly on each repaint. */
+    private final DisplayCache display= DisplayCache.available() ? new DisplayCache(this::paintView) : null;
+    private String displayPath; // the display path reported last (see reportDisplayPath)
+
+    /** Colors of the lines of the border around the image, inside out. */
+    private static final Color[] BORDER= {new Color(0, 0, 0), new Color(63, 63, 63),
+        new Color(126, 126, 126), new Color(189, 189, 189), new Color(252, 252, 252)};
+
+    /** True iff an ImageLoader is decoding the image: it is shown, but
+     * cannot be drawn on or changed. */
+    private boolean loading;
+
+    /** True iff a filter is being applied to the active layer on another
+     * thread (see applyFilter). */
+    private boolean filtering;
+
+    /** Area of the image painted last (in image coordinates), which an
+     * ImageLoader decodes first. */
+    private volatile Rectangle shown= new Rectangle();
+
+    /** Number of changes made to the image so far. Strokes are counted on
+     * the render thread as soon as they are drawn. */
+    private final AtomicLong edits= new AtomicLong();
 
     private Tool activeTool; // the active tool.
     private int toolSize; // size of the tool.
 
-    private Point2D.Double mousePos;     // Position of mouse, always
-    private Point2D.Double mousePosPrev; // Previous mouse position (used to interpolate)
+    /** Tools that Tool has no constants for (Tool must not be changed). */
+    public enum OtherTool {
+        FILL, SELECT_RECTANGLE, SELECT_ELLIPSE, SELECT_LASSO
+    }
+
+    private OtherTool otherTool; // the active tool if it is not a Tool (then activeTool is null)
+
+    private int fillTolerance= 32; // largest difference of a channel from the color clicked
+    private boolean fillContiguous= true; // fill only the area connected to the pixel clicked
+
+    /** The selected pixels, to which strokes are limited (null: all). */
+    private Selection selection;
+
+    // The selection being dragged out: its shape (null if none), in image
+    // coordinates, its first corner and (for a lasso) its path.
+    private Shape selecting;
+    private final Point2D.Double selectStart= new Point2D.Double();
+    private Path2D.Double lasso;
+
+    /** Stroke of the outline of a selection. */
+    private static final BasicStroke outlineStroke= new BasicStroke(1, BasicStroke.CAP_BUTT,
+            BasicStroke.JOIN_MITER, 10, new float[] {4, 4}, 0);
+
+    // The mouse positions are updated in place, so that mouse events
+    // do not allocate.
+    private final Point2D.Double mousePos= new Point2D.Double();     // Position of mouse, always
+    private final Point2D.Double oldMousePos= new Point2D.Double();  // Position before the last mouseMoved
 
     // State for LINE drawing. False means that no LINE is being drawn.
     // True means: the LINE tool is active and the first press has been made.
     // If it is true, firstPoint describes the point of the first press.
     private boolean pointPressed;
-    private Point2D.Double firstPoint;
+    private final Point2D.Double firstPoint= new Point2D.Double();
 
     private Color foreColor; // Foreground color (used for drawing).
     private Color backColor; // Background color (used for erasing).
 
-    /** Random generator for airbrush. */
-    private Random random= new Random(System.currentTimeMillis());
+    /** Area of the LINE preview to repaint at the end of a mouse event. */
+    private DirtyRegion damage= new DirtyRegion(); // (in image coordinates)
+
+    /** Stroke of the LINE preview, of width previewStroke.getLineWidth(). */
+    private BasicStroke previewStroke= new BasicStroke(1);
+
+    /** Changes to the layers, one edit per press-drag-release of the mouse. */
+    private UndoHistory history= new UndoHistory();
+
+    /** Draws the strokes into the active layer. Used only by the render thread. */
+    private StrokeEngine engine;
+
+    /** Latencies and counts of the events, from the mouse to the screen. */
+    private final Metrics metrics= new Metrics();
+
+    /** Thread that draws the strokes posted by the mouse handlers. */
+    private StrokeRenderer renderer= new StrokeRenderer(this, metrics);
+
+    /** Milliseconds between updates of the metrics overlay. */
+    private static final int METRICS_INTERVAL= 500;
+
+    /** Repaints the metrics overlay while it is shown, else null. */
+    private Timer metricsTimer;
+    private final Rectangle metricsArea= new Rectangle(); // where the overlay was painted last (view coordinates)
+    private static final Font METRICS_FONT= new Font(Font.MONOSPACED, Font.PLAIN, 11);
+    private static final Color METRICS_BACKGROUND= new Color(0, 0, 0, 160);
+
+    /** Records the strokes posted, or null if none are being recorded. */
+    private StrokeRecorder recorder;
+
+    // State of the stroke being drawn, used only by the render thread:
+    // its current and previous positions and its size.
+    private final Point2D.Double strokePos= new Point2D.Double();
+    private final Point2D.Double strokePrev= new Point2D.Double();
+    private int strokeSize;
 
     /** Constructor: a new drawing panel for application window of
-     * size(w, h), background color bckColor, and tool size toolSize. */
+     * size(w, h), background color bckColor, and tool size toolSize.
+     * window may be null, e.g. to draw without a GUI in benchmarks. */
     public Canvas(Window window, int w, int h, Color bckColor, int toolSize) {
         this.window= window;
         width= w;
@@ -48,11 +172,11 @@ public class Canvas extends JPanel implements MouseListener, MouseMotionListener
         setToolSize(toolSize);
 
         // Create image with background color bckColor
-        img= new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g2d= (Graphics2D) img.getGraphics();
-        g2d.setColor(bckColor);
-        System.out.println("DrawingPanel. mousePos: " + mousePos);
-        g2d.fillRect(0, 0, w, h);  //mousePos.distance(center);
+        doc= new Document(new TiledImage(w, h, bckColor));
+        history.attach(doc.getActive().getPixels());
+        engine= new StrokeEngine(doc.getActive().getPixels(), System.currentTimeMillis());
+        pyramid= new MipPyramid(doc.getComposite(), -MIN_ZOOM_SHIFT);
+        strokeSize= toolSize;
 
         foreColor= defaultForegroundColor;
         backColor= bckColor;
@@ -69,7 +193,8 @@ public class Canvas extends JPanel implements MouseListener, MouseMotionListener
         foreColor= c;
 
         if (activeTool == Tool.LINE  &&  pointPressed) {
-            repaint();
+            damageLinePreview();
+            damage.flush(this, zoom());
         }
     }
 
@@ -90,9 +215,26 @@ public class Canvas extends JPanel implements MouseListener, MouseMotionListener
         return backColor;
     }
 
-    /** Return the image. */
-    public BufferedImage getImg() {
-        return img;
+    /** Return the image (the composite of the layers), after the strokes
+     * posted so far have been drawn. */
+    public TiledImage getImg() {
+        renderer.await();
+        return doc.getComposite();
+    }
+
+    /** Return a snapshot of the image (the composite of the layers) with
+     * the strokes posted so far. Later strokes do not change it, so it can
+     * be saved on another thread while painting goes on. */
+    public TiledImage snapshot() {
+        renderer.await();
+        return doc.getComposite().snapshot();
+    }
+
+    /** Return the document, after the strokes posted so far have been
+     * drawn. Change its layers only through the methods of this class. */
+    public Document getDocument() {
+        renderer.await();
+        return doc;
     }
 
     /** Return the tool size. */
@@ -117,10 +259,16 @@ public class Canvas extends JPanel implements MouseListener, MouseMotionListener
         // reset line state
         pointPressed= false;
 
-        img= new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g2d= (Graphics2D) img.getGraphics();
-        g2d.setColor(c);
-        g2d.fillRect(0, 0, w, h);
+        // Tiles are allocated only when drawn on.
+        stopRecording();
+        renderer.await();
+        clearSelection();
+        loading= false;
+        doc= new Document(new TiledImage(w, h, c));
+        history.attach(doc.getActive().getPixels());
+        engine.setImage(doc.getActive().getPixels());
+        pyramid= new MipPyramid(doc.getComposite(), -MIN_ZOOM_SHIFT);
+        if (display != null) display.invalidateAll();
 
         repaint();
         revalidate();
@@ -128,45 +276,660 @@ public class Canvas extends JPanel implements MouseListener, MouseMotionListener
 
     /** Change the image to img. */
     public void newImage(BufferedImage img) {
-        System.out.println("newImage");
+        LOG.debug("newImage %d x %d", img.getWidth(), img.getHeight());
 
         // reset line state
 
+        stopRecording();
+        renderer.await();
+        clearSelection();
+        loading= false;
         width= img.getWidth();
         height= img.getHeight();
-        this.img= img;
+        doc= new Document(TiledImage.fromImage(img));
+        history.attach(doc.getActive().getPixels());
+        engine.setImage(doc.getActive().getPixels());
+        pyramid= new MipPyramid(doc.getComposite(), -MIN_ZOOM_SHIFT);
+        if (display != null) display.invalidateAll();
+
+        repaint();
+        revalidate();
+    }
+
+    /** Change the document to d (e.g. one opened from a file). */
+    public void setDocument(Document d) {
+        pointPressed= false;
+
+        stopRecording();
+        renderer.await();
+        clearSelection();
+        loading= false;
+        width= d.getWidth();
+        height= d.getHeight();
+        doc= d;
+        history.clear();
+        for (int k= 0; k < d.layerCount(); k++) history.watch(d.getLayer(k).getPixels());
+        engine.setImage(doc.getActive().getPixels());
+        pyramid= new MipPyramid(doc.getComposite(), -MIN_ZOOM_SHIFT);
+        if (display != null) display.invalidateAll();
 
         repaint();
         revalidate();
     }
 
+    /** Resample every layer of the image to width w and height h with
+     * method m. As when a file is opened, the undo history is cleared.
+     * Throw an IllegalArgumentException if w or h is not positive. */
+    public void resizeImage(int w, int h, Resampler.Method m) {
+        if (w <= 0  ||  h <= 0) throw new IllegalArgumentException("resizeImage: size " + w + " x " + h);
+        if (loading  ||  filtering) return;
+        renderer.await();
+        Resampler r= new Resampler();
+        setDocument(copyLayers(l -> r.resample(l.getPixels(), w, h, m)));
+        markUnsaved();
+    }
+
+    /** Change the size of the image to width w and height h, moving its
+     * pixels right by dx and down by dy, without resampling: pixels moved
+     * outside the image are cut off, and new areas of each layer are its
+     * background color. As when a file is opened, the undo history is
+     * cleared. Throw an IllegalArgumentException if w or h is not positive. */
+    public void resizeCanvas(int w, int h, int dx, int dy) {
+        if (w <= 0  ||  h <= 0) throw new IllegalArgumentException("resizeCanvas: size " + w + " x " + h);
+        if (loading  ||  filtering) return;
+        renderer.await();
+        setDocument(copyLayers(l -> l.getPixels().resized(w, h, dx, dy)));
+        markUnsaved();
+    }
+
+    /** Return a new document with layers like those of doc (name, opacity,
+     * blend mode and visibility), each with the image f makes of it. */
+    private Document copyLayers(Function<Layer, TiledImage> f) {
+        List<Layer> ls= new ArrayList<>();
+        for (int k= 0; k < doc.layerCount(); k++) {
+            Layer l= doc.getLayer(k);
+            Layer c= new Layer(l.getName(), f.apply(l));
+            c.setOpacity(l.getOpacity());
+            c.setBlendMode(l.getBlendMode());
+            c.setVisible(l.isVisible());
+            ls.add(c);
+        }
+        return new Document(ls, doc.getActiveIndex());
+    }
+
+    /** Change the image to a blank image of width w and height h with
+     * background color c, into which an ImageLoader will decode a file,
+     * and return it. Until loadFinished() is called, the image cannot be
+     * drawn on or changed; the loader tells this canvas (as its Sink) which
+     * areas to repaint. */
+    public TiledImage newLoadingImage(int w, int h, Color c) {
+        newBlankImage(w, h, c);
+        history.clear();
+        loading= true;
+        return doc.getActive().getPixels();
+    }
+
+    /** The ImageLoader of the image ended: allow drawing on the image. */
+    public void loadFinished() {
+        if (!loading) return;
+        loading= false;
+        history.attach(doc.getActive().getPixels());
+    }
+
+    /** Return true iff the image is being loaded. */
+    public boolean isLoading() {
+        return loading;
+    }
+
+    /** Area (x, y, w, h) of the image was decoded: repaint it.
+     * Called on the loader thread. */
+    @Override public void loaded(int x, int y, int w, int h) {
+        imageChanged(x, y, w, h);
+        double z= zoom();
+        int left= (int) Math.floor(x * z);
+        int top= (int) Math.floor(y * z);
+        repaint(left, top, (int) Math.ceil((x + w) * z) - left, (int) Math.ceil((y + h) * z) - top);
+    }
+
+    /** The composite changed in the rectangle of the image with top-left
+     * corner (x, y), width w and height h: mark it stale in the pyramid and
+     * the display cache. May be called on any thread. */
+    private void imageChanged(int x, int y, int w, int h) {
+        pyramid.invalidate(x, y, w, h);
+        if (display == null) return;
+        // The zoom cannot change between here and the invalidation.
+        synchronized (display) {
+            double z= zoom();
+            int left= (int) Math.floor(x * z);
+            int top= (int) Math.floor(y * z);
+            display.invalidate(left, top, (int) Math.ceil((x + w) * z) - left, (int) Math.ceil((y + h) * z) - top);
+        }
+    }
+
+    /** Return the area of the image painted last, to be decoded first.
+     * Called on the loader thread. */
+    @Override public Rectangle priority() {
+        return shown;
+    }
+
+    /** Return the airbrush, e.g. to set its density and falloff
+     * between strokes. */
+    public Airbrush getAirbrush() {
+        return engine.getAirbrush();
+    }
+
+    /** Stop drawing strokes: render those posted so far and end the render
+     * thread, and release the display cache. The canvas must not be drawn
+     * on afterwards. */
+    public void dispose() {
+        setMetricsShown(false);
+        renderer.stop();
+        if (display != null) display.release();
+    }
+
+    /** Return the brush of the pencil and eraser. */
+    public Brush getBrush() {
+        return engine.getBrush();
+    }
+
+    /** Draw with the pencil and eraser with brush b from the next stroke on. */
+    public void setBrush(Brush b) {
+        stopRecordingFor("a brush change");
+        renderer.await(); // no stroke is being drawn
+        engine.setBrush(b);
+    }
+
+    /** Return why strokes cannot be recorded now, or null if they can: a
+     * replay (see StrokeReplay) draws with the default brush and without
+     * a selection, so it would not draw the strokes as they are drawn. */
+    public String whyNotRecordable() {
+        if (!engine.getBrush().equals(Brush.DEFAULT)) return "the brush is not the default brush";
+        if (selection != null) return "there is a selection";
+        return null;
+    }
+
+    /** Record the strokes, undos and redos from now on to out (see
+     * StrokeRecorder), until stopRecording is called or the image is
+     * replaced. Throw an IllegalStateException if strokes cannot be
+     * recorded now (see whyNotRecordable), and an IOException if out
+     * cannot be written. */
+    public void startRecording(OutputStream out) throws IOException {
+        String why= whyNotRecordable();
+        if (why != null) throw new IllegalStateException("startRecording: " + why);
+        stopRecording();
+        renderer.await(); // the airbrush is idle
+        recorder= new StrokeRecorder(out, width, height,
+                doc.getActive().getPixels().getBackground(), engine.getAirbrush().getSeed());
+    }
+
+    /** Return true iff strokes are being recorded. */
+    public boolean isRecording() {
+        return recorder != null;
+    }
+
+    /** Stop recording strokes, if they are being recorded, and return the
+     * number of events recorded, or -1 if the recording failed. */
+    public long stopRecording() {
+        if (recorder == null) return 0;
+        StrokeRecorder r= recorder;
+        recorder= null;
+        try {
+            r.close();
+            return r.events();
+        } catch (IOException exc) {
+            System.err.println("Recording failed: " + exc.getMessage());
+            return -1;
+        }
+    }
+
+    /** Stop recording, if strokes are being recorded, before operation op,
+     * which a recording cannot hold: a replay would not draw the strokes
+     * after it as they were drawn. */
+    private void stopRecordingFor(String op) {
+        if (recorder == null) return;
+        long n= stopRecording();
+        LOG.info("Recording stopped after %d events: %s cannot be recorded", n, op);
+    }
+
+    /** Post event type with tool t, color c and size s at (x, y) to the
+     * renderer (see StrokeRenderer.post), recording it if recording. */
+    private void post(int type, Tool t, Color c, int s, double x0, double y0, double x, double y) {
+        if (recorder != null) record(type, t, c, s, x0, y0, x, y);
+        renderer.post(type, t, c, s, x0, y0, x, y);
+    }
+
+    /** Record event type (see StrokeRecorder.record). If it cannot be
+     * written, stop recording. */
+    private void record(int type, Tool t, Color c, int s, double x0, double y0, double x, double y) {
+        try {
+            recorder.record(type, t, c, s, x0, y0, x, y);
+        } catch (IOException exc) {
+            System.err.println("Recording failed: " + exc.getMessage());
+            try {
+                recorder.close();
+            } catch (IOException e) {
+                // Already reported.
+            }
+            recorder= null;
+        }
+    }
+
+    /** Return the undo history of the image. */
+    public UndoHistory getHistory() {
+        return history;
+    }
 
-    /** Return the dimension of this image. */
+    /** Return the metrics of the events of this canvas. */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /** Return true iff the metrics are shown over the image. */
+    public boolean isMetricsShown() {
+        return metricsTimer != null;
+    }
+
+    /** Show the metrics over the top-left corner of the visible part of the
+     * image, updated every METRICS_INTERVAL ms (if b), or hide them (if !b).
+     * While they are shown, the view is not scrolled by copying it, which
+     * would copy the overlay too. */
+    public void setMetricsShown(boolean b) {
+        if (b == isMetricsShown()) return;
+        if (b) {
+            metricsTimer= new Timer(METRICS_INTERVAL, e -> repaintMetrics());
+            metricsTimer.start();
+        } else {
+            metricsTimer.stop();
+            metricsTimer= null;
+        }
+        if (getParent() instanceof JViewport) {
+            ((JViewport) getParent()).setScrollMode(b ? JViewport.SIMPLE_SCROLL_MODE : JViewport.BLIT_SCROLL_MODE);
+        }
+        repaintMetrics();
+    }
+
+    /** Return the active tool, as a tool of the metrics. */
+    private int metricsTool() {
+        if (otherTool != null) return Metrics.tool(otherTool);
+        return activeTool != null ? Metrics.tool(activeTool) : Metrics.NO_TOOL;
+    }
+
+    /** Repaint the metrics overlay, with room for it to grow. */
+    private void repaintMetrics() {
+        Rectangle v= getVisibleRect();
+        repaint(v.x, v.y, Math.max(metricsArea.width, 320) + 64, Math.max(metricsArea.height, 100) + 8);
+    }
+
+    /** A mouse handler that started at time start (System.nanoTime), when
+     * this thread had allocated alloc bytes (-1: unknown), returns: count
+     * and time it. */
+    private void handled(long start, long alloc) {
+        metrics.record(Metrics.Phase.EVENT, metricsTool(), toolSize, System.nanoTime() - start);
+        metrics.countEvent(alloc < 0 ? -1 : Metrics.allocatedBytes() - alloc);
+    }
+
+    /** Undo the last edit of the image, if any. */
+    public void undo() {
+        if (loading  ||  filtering) return;
+        renderer.await();
+        Rectangle r;
+        try {
+            r= history.undo();
+        } catch (UncheckedIOException exc) {
+            System.err.println("Cannot undo: " + exc.getCause().getMessage());
+            return;
+        }
+        if (r == null) return;
+        if (recorder != null) record(StrokeRecorder.UNDO, null, null, 0, 0, 0, 0, 0);
+        for (Map.Entry<TiledImage, Rectangle> c : history.lastChanges().entrySet()) {
+            doc.update(c.getKey(), c.getValue());
+        }
+        imageChanged(r.x, r.y, r.width, r.height);
+        damage.addRect(r.x, r.y, r.width, r.height);
+        damage.flush(this, zoom());
+        markUnsaved();
+    }
+
+    /** Redo the last undone edit of the image, if any. */
+    public void redo() {
+        if (loading  ||  filtering) return;
+        renderer.await();
+        Rectangle r;
+        try {
+            r= history.redo();
+        } catch (UncheckedIOException exc) {
+            System.err.println("Cannot redo: " + exc.getCause().getMessage());
+            return;
+        }
+        if (r == null) return;
+        if (recorder != null) record(StrokeRecorder.REDO, null, null, 0, 0, 0, 0, 0);
+        for (Map.Entry<TiledImage, Rectangle> c : history.lastChanges().entrySet()) {
+            doc.update(c.getKey(), c.getValue());
+        }
+        imageChanged(r.x, r.y, r.width, r.height);
+        damage.addRect(r.x, r.y, r.width, r.height);
+        damage.flush(this, zoom());
+        markUnsaved();
+    }
+
+    /** Add a new transparent layer above the active one and make it active. */
+    public void addLayer() {
+        if (loading  ||  filtering) return;
+        stopRecordingFor("a layer operation");
+        renderer.await();
+        history.watch(doc.addLayer().getPixels());
+        layersChanged();
+    }
+
+    /** Delete the active layer, unless it is the only one. */
+    public void deleteLayer() {
+        if (loading  ||  filtering) return;
+        stopRecordingFor("a layer operation");
+        renderer.await();
+        if (doc.layerCount() == 1) return;
+        history.unwatch(doc.getActive().getPixels());
+        doc.removeLayer(doc.getActiveIndex());
+        layersChanged();
+    }
+
+    /** Make layer i active. */
+    public void selectLayer(int i) {
+        if (loading  ||  filtering) return;
+        stopRecordingFor("a layer operation");
+        renderer.await();
+        doc.setActive(i);
+        engine.setImage(doc.getActive().getPixels());
+        if (pyramid.getImage() != doc.getComposite()) {
+            pyramid= new MipPyramid(doc.getComposite(), -MIN_ZOOM_SHIFT);
+        }
+        if (window != null) window.updateLayerLabel();
+    }
+
+    /** Move the active layer up (d > 0) or down (d < 0) d places, as far
+     * as possible. */
+    public void moveLayer(int d) {
+        if (loading  ||  filtering) return;
+        stopRecordingFor("a layer operation");
+        renderer.await();
+        int i= doc.getActiveIndex();
+        int j= Math.max(0, Math.min(doc.layerCount() - 1, i + d));
+        doc.moveLayer(i, j);
+        layersChanged();
+    }
+
+    /** Show (if b) or hide (if !b) the active layer. */
+    public void setLayerVisible(boolean b) {
+        if (loading  ||  filtering) return;
+        stopRecordingFor("a layer operation");
+        renderer.await();
+        doc.setVisible(doc.getActiveIndex(), b);
+        layersChanged();
+    }
+
+    /** Set the opacity of the active layer to o, 0 (transparent) .. 255
+     * (opaque). Throw an IllegalArgumentException if o is not in 0..255. */
+    public void setLayerOpacity(int o) {
+        if (loading  ||  filtering) return;
+        stopRecordingFor("a layer operation");
+        renderer.await();
+        doc.setOpacity(doc.getActiveIndex(), o);
+        layersChanged();
+    }
+
+    /** Set the blend mode of the active layer to m. */
+    public void setLayerBlendMode(BlendMode m) {
+        if (loading  ||  filtering) return;
+        stopRecordingFor("a layer operation");
+        renderer.await();
+        doc.setBlendMode(doc.getActiveIndex(), m);
+        layersChanged();
+    }
+
+    /** Apply filter f to the selected pixels of the active layer (all of
+     * them if there is no selection), as one edit, on another thread.
+     * Until it is done, the image cannot be drawn on or changed (see
+     * isFiltering). Then the change is shown and done (if not null) is
+     * run, on the EDT. */
+    public void applyFilter(Filter f, Runnable done) {
+        if (loading  ||  filtering) return;
+        stopRecordingFor("a filter");
+        renderer.await();
+        filtering= true;
+        TiledImage img= doc.getActive().getPixels();
+        Selection sel= selection;
+        // Only the filter thread writes the image until filterDone ends the edit.
+        history.beginEdit();
+        Thread t= new Thread(() -> {
+            Rectangle r;
+            try {
+                r= f.apply(img, sel);
+            } catch (RuntimeException exc) {
+                System.err.println("Filter failed: " + exc);
+                r= new Rectangle(0, 0, img.getWidth(), img.getHeight()); // some tiles may have changed
+            }
+            Rectangle changed= r;
+            SwingUtilities.invokeLater(() -> filterDone(changed, done));
+        }, "filter");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** Return true iff a filter is being applied (see applyFilter). */
+    public boolean isFiltering() {
+        return filtering;
+    }
+
+    /** The filter of applyFilter changed area r of the active layer (nothing
+     * if r is null): end its edit, show the change and run done (if not null). */
+    private void filterDone(Rectangle r, Runnable done) {
+        history.endEdit();
+        filtering= false;
+        if (r != null) {
+            doc.update(r);
+            imageChanged(r.x, r.y, r.width, r.height);
+            damage.addRect(r.x, r.y, r.width, r.height);
+            damage.flush(this, zoom());
+            markUnsaved();
+        }
+        if (done != null) done.run();
+    }
+
+    /** The layers of doc changed: draw on the active one and show the new
+     * composite. Call only when the render thread is idle. */
+    private void layersChanged() {
+        engine.setImage(doc.getActive().getPixels());
+        if (pyramid.getImage() != doc.getComposite()) {
+            pyramid= new MipPyramid(doc.getComposite(), -MIN_ZOOM_SHIFT);
+        }
+        if (display != null) display.invalidateAll();
+        repaint();
+        markUnsaved();
+        if (window != null) window.updateLayerLabel();
+    }
+
+    /** Return the zoom: 2^(zoom shift). */
+    public double zoom() {
+        return Math.scalb(1.0, zoomShift);
+    }
+
+    /** Return the zoom shift: the image is shown at zoom 2^(zoom shift). */
+    public int getZoomShift() {
+        return zoomShift;
+    }
+
+    /** Show the image at zoom 2^s, with s clamped to MIN_ZOOM_SHIFT ..
+     * MAX_ZOOM_SHIFT, keeping the center of the visible area in place. */
+    public void setZoomShift(int s) {
+        s= Math.max(MIN_ZOOM_SHIFT, Math.min(MAX_ZOOM_SHIFT, s));
+        if (s == zoomShift) return;
+        renderer.await(); // the render thread repaints at the zoom
+        Rectangle v= getVisibleRect();
+        double f= Math.scalb(1.0, s - zoomShift);
+        int cx= (int) ((v.x + v.width / 2.0) * f);
+        int cy= (int) ((v.y + v.height / 2.0) * f);
+        if (display == null) zoomShift= s;
+        else synchronized (display) {
+            // The loader may be marking an area stale at the old zoom:
+            // wait for it, so that the cache is all stale at the new one.
+            zoomShift= s;
+            display.invalidateAll();
+        }
+        revalidate();
+        repaint();
+        // Scroll once the enclosing scroll pane has taken the new size.
+        SwingUtilities.invokeLater(() ->
+            scrollRectToVisible(new Rectangle(cx - v.width / 2, cy - v.height / 2, v.width, v.height)));
+    }
+
+    /** Return the size of the image as shown: n pixels at the zoom. */
+    private int view(int n) {
+        return zoomShift >= 0 ? n << zoomShift : Math.max(1, (n + (1 << -zoomShift) - 1) >> -zoomShift);
+    }
+
+    /** Return the dimension of this image, as shown at the zoom. */
     @Override public Dimension getPreferredSize() {
-        return new Dimension(width, height);
+        return new Dimension(view(width), view(height));
     }
     
     /** Update the mouse position to the coordinates given by e
      *  and make the position appear in the GUI (it's given by label
      *  PaintGUI.mousePositionLabel) */
     @Override public void mouseMoved(MouseEvent e) {
+        oldMousePos.setLocation(mousePos);
         updateMousePosition(e);
         
         // Passes current mouse position to window
         // TODO #06 Implement me!
-        this.window.setMousePosition((int) mousePos.x, (int) mousePos.y);
+        if (window != null) window.setMousePosition((int) mousePos.x, (int) mousePos.y);
         
         // Draws temporary line 
-        drawTempLine(e);
+        drawTempLine(oldMousePos);
+
+
 
 
+    }
+
 
 
+    /** Make t the active tool. With FILL (the paint bucket), a click fills
+     * the area around it with the foreground color (see StrokeEngine.fill).
+     * With the others, a drag selects a rectangle, an ellipse or a lasso
+     * (free-hand polygon), and a click selects all. */
+    public void setOtherTool(OtherTool t) {
+        pointPressed= false;
+        repaint();
+        setCursor(Cursor.getPredefinedCursor(Cursor.CROSSHAIR_CURSOR));
+        activeTool= null;
+        otherTool= t;
     }
 
+    /** Return the active tool if it is not a Tool, else null. */
+    public OtherTool getOtherTool() {
+        return otherTool;
+    }
+
+    /** Return the selection (null if all pixels are selected). */
+    public Selection getSelection() {
+        return selection;
+    }
 
+    /** Limit strokes to the pixels of s from now on (to none if s is null).
+     * Throw an IllegalArgumentException if s is not the size of the image. */
+    public void setSelection(Selection s) {
+        if (s != null  &&  (s.getWidth() != width  ||  s.getHeight() != height))
+            throw new IllegalArgumentException("setSelection: selection of another size");
+        stopRecordingFor("a selection");
+        renderer.await();
+        damageOutline(selection == null ? null : selection.getShape());
+        selection= s;
+        engine.setSelection(s);
+        damageOutline(s == null ? null : s.getShape());
+        damage.flush(this, zoom());
+    }
+
+    /** Select all pixels. */
+    public void deselect() {
+        setSelection(null);
+    }
+
+    /** Drop the selection, as the image is replaced. Call only when the
+     * renderer is idle. */
+    private void clearSelection() {
+        selection= null;
+        selecting= null;
+        engine.setSelection(null);
+    }
+
+    /** Add the area of the outline of shape s (if not null) to the damage. */
+    private void damageOutline(Shape s) {
+        if (s == null) return;
+        Rectangle r= s.getBounds();
+        // The outline is drawn in the view, one pixel of it around r.
+        int pad= (int) Math.ceil(1 / zoom()) + 1;
+        damage.addRect(r.x - pad, r.y - pad, r.width + 2 * pad, r.height + 2 * pad);
+    }
+
+    /** Return the shape of the selection being dragged by the active tool,
+     * from selectStart to the mouse. A rectangle or ellipse covers the
+     * pixels at both corners. */
+    private Shape dragShape() {
+        if (otherTool == OtherTool.SELECT_LASSO) return lasso;
+        double x0= Math.floor(Math.min(selectStart.x, mousePos.x));
+        double y0= Math.floor(Math.min(selectStart.y, mousePos.y));
+        double x1= Math.floor(Math.max(selectStart.x, mousePos.x)) + 1;
+        double y1= Math.floor(Math.max(selectStart.y, mousePos.y)) + 1;
+        if (otherTool == OtherTool.SELECT_ELLIPSE) return new Ellipse2D.Double(x0, y0, x1 - x0, y1 - y0);
+        return new Rectangle2D.Double(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    /** The selection of the active tool is being dragged: show it. */
+    private void dragSelection() {
+        damageOutline(selecting);
+        if (otherTool == OtherTool.SELECT_LASSO) lasso.lineTo(mousePos.x, mousePos.y);
+        selecting= dragShape();
+        damageOutline(selecting);
+        damage.flush(this, zoom());
+    }
+
+    /** The selection of the active tool was dragged out: select it. If the
+     * mouse did not move, select all. */
+    private void endSelection() {
+        damageOutline(selecting);
+        Shape s= selecting;
+        selecting= null;
+        if (otherTool == OtherTool.SELECT_LASSO) lasso.closePath();
+        boolean moved= !mousePos.equals(selectStart);
+        Selection sel= moved ? new Selection(width, height, s) : null;
+        setSelection(sel == null  ||  sel.isEmpty() ? null : sel);
+    }
 
-    /** Return the active tool. */
+    /** Return the tolerance of the paint bucket. */
+    public int getFillTolerance() {
+        return fillTolerance;
+    }
+
+    /** Set the tolerance of the paint bucket to t: it fills pixels none of
+     * whose channels differ from the pixel clicked by more than t.
+     * Throw an IllegalArgumentException if t is not in 0..255. */
+    public void setFillTolerance(int t) {
+        if (t < 0  ||  t > 255) throw new IllegalArgumentException("setFillTolerance: " + t);
+        fillTolerance= t;
+    }
+
+    /** Return true iff the paint bucket fills only the area connected to
+     * the pixel clicked (rather than all pixels of its color). */
+    public boolean isFillContiguous() {
+        return fillContiguous;
+    }
+
+    /** Make the paint bucket fill only the area connected to the pixel
+     * clicked (if b) or all pixels of its color (if !b). */
+    public void setFillContiguous(boolean b) {
+        fillContiguous= b;
+    }
+
+    /** Return the active tool (null if it is the paint bucket). */
     public Tool getActiveTool() {
         return activeTool;
     }
@@ -183,6 +946,7 @@ public class Canvas extends JPanel implements MouseListener, MouseMotionListener
     public void setActiveTool(Tool t) {
         // reset linestate
         pointPressed= false;
+        otherTool= null;
 
         repaint();
 
@@ -218,90 +982,137 @@ public class Canvas extends JPanel implements MouseListener, MouseMotionListener
 
     /** Update the position of the mouse to the position given by e. */
     private void updateMousePosition(MouseEvent e) {
-        int x= e.getX();
-        int y= e.getY();
-        // center of pixel
-        mousePos= new Point2D.Double(x+0.5, y+0.5);
+        double z= zoom();
+        // center of pixel, in image coordinates
+        mousePos.setLocation((e.getX() + 0.5) / z, (e.getY() + 0.5) / z);
     }
 
-    	/** Draw a square of size (toolSize x toolSize) filled with color c. 
+    	/** Stamp a dab of the brush of size strokeSize and color c. 
     	 *  Its center should be at location (x,y).
     	 */
-    private void colorClick(Graphics2D g2d, Color c, int x, int y) {
+    private void colorClick(Color c, int x, int y) {
     	// TODO #07 Implement me!
-    	g2d.setColor(c);
-    	//g2d.setPaint(c);
-    	//g2d.draw(new Rectangle(x - toolSize/2, y - toolSize/2, toolSize, toolSize));
-    	g2d.fill(new Rectangle(x - toolSize/2, y - toolSize/2, toolSize, toolSize));
-    	repaint();
-    	revalidate();
-    	window.setImageUnsaved();
+    	engine.stamp(c, x, y, strokeSize);
     }
     
-    /** Draws a line with color c and stroke toolSize from
-     *  mouse position mousePosPrev to position mousePos.
+    /** Continue the stroke of color c and size strokeSize to position
+     *  strokePos. The stroke is a smooth curve through its positions,
+     *  drawn one position behind (see StrokeEngine.strokeTo).
      */
-    private void colorDrag(Graphics2D g2d, Color c) {
+    private void colorDrag(Color c) {
     	// TODO #08 Implement me!
-    	g2d.setColor(c);
-    	g2d.setStroke(new BasicStroke(toolSize));
-    	g2d.drawLine((int) mousePosPrev.x, (int) mousePosPrev.y, (int) mousePos.x, (int) mousePos.y);
-    	repaint();
-    	revalidate();
-    	window.setImageUnsaved();
+    	engine.strokeTo(c, strokePos.x, strokePos.y, strokeSize);
     }
     
-    /** Airbrush with the current foreground color in a square of size
-     *  toolsize centered at the current position of the mouse.
-     * 
-     *  Note: for nicer-looking results, you may use a circle instead 
-     *  of a square.		
+    /** Airbrush with color c in a disk of size strokeSize
+     *  centered at position strokePos.
      */
-    private void airBrush(Graphics2D g2d, Color c) {
+    private void airBrush(Color c) {
     	// TODO #9 implement me!
-    	g2d.setColor(c);
-    	for(int i = 0; i < toolSize; i++) {
-    		for(int j = 0; j < toolSize; j++) {
-    			if(Math.pow(i - (toolSize/2),2) + 
-    					Math.pow(j - (toolSize/2), 2)
-    					> Math.pow(toolSize/2, 2))
-    				continue;
-    			if (random.nextDouble() > 0.75)
-    				g2d.fillRect((int)mousePos.x - (toolSize/2) + i, (int)mousePos.y - (toolSize/2) + j, 1, 1);
-    		}
-    	}
-    	window.setImageUnsaved();
-    	repaint();
-    	revalidate();
+    	engine.spray(c, (int) strokePos.x, (int) strokePos.y, strokeSize);
     }
-    
 
+    /** Draw event type of the StrokeRenderer: tool t with color c and size s
+     * at (x, y); for a LINE, (x0, y0) is its first point.
+     * Called on the render thread. */
+    @Override public void render(int type, Tool t, Color c, int s, double x0, double y0, double x, double y) {
+        engine.setTime(renderer.eventTime() / 1000);
+        strokeSize= s;
+        strokePos.setLocation(x, y);
+        if (type == StrokeRenderer.PRESS) {
+            history.beginEdit();
+            engine.press(t, c, x, y, s);
+        }
+        else if (type == StrokeRenderer.DRAG) {
+            engine.drag(c, x, y, s);
+        }
+        else if (type == StrokeRenderer.RELEASE) {
+            engine.release();
+            history.endEdit();
+        }
+        else if (type == StrokeRenderer.LINE) {
+            history.beginEdit();
+            engine.line(c, x0, y0, x, y, s);
+            history.endEdit();
+        }
+        else if (type == StrokeRenderer.FILL) {
+            history.beginEdit();
+            engine.fill(c, (int) x, (int) y, s, x0 == 0);
+            history.endEdit();
+        }
+        strokePrev.setLocation(strokePos);
+    }
+
+    /** Recomposite and repaint the area changed by the strokes rendered
+     * since the last call and return true iff there was one.
+     * Called on the render thread. */
+    @Override public boolean present() {
+        DirtyRegion d= engine.getDamage();
+        if (d.isEmpty()) return false;
+        edits.incrementAndGet();
+        metrics.countPixels(d.getArea());
+        doc.update(d.getX(), d.getY(), d.getWidth(), d.getHeight());
+        imageChanged(d.getX(), d.getY(), d.getWidth(), d.getHeight());
+        return d.flush(this, zoom());
+    }
+
+    /** Strokes changed the image. Called on the EDT. */
+    @Override public void rendered() {
+        if (window != null) window.setImageUnsaved();
+    }
+
+    /** Count a change of the image and tell the window (if any) that the
+     * image has unsaved changes. */
+    private void markUnsaved() {
+        edits.incrementAndGet();
+        if (window != null) window.setImageUnsaved();
+    }
+
+    /** Return the number of changes made to the image so far. Right after
+     * a method that waits for the strokes posted so far (e.g. snapshot or
+     * getDocument), it counts exactly the changes of what that returned. */
+    public long getEdits() {
+        return edits.get();
+    }
 
     /** Process the press of the mouse, given by e. */
     @Override public void mousePressed(MouseEvent e) {
+        long start= System.nanoTime(), alloc= Metrics.allocatedBytes();
         updateMousePosition(e);
-        System.out.println("mousePressed: " + mousePos + ", active tool: " + getActiveTool());
+        if ((loading  ||  filtering)  &&  activeTool != Tool.COLOR_PICKER) return;
+        if (MOUSE.isDebug()) MOUSE.debug("mousePressed: (%.1f, %.1f), active tool: %s", mousePos.x, mousePos.y, getActiveTool());
 
-        Graphics2D g2d= (Graphics2D) img.getGraphics();
-        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON); // anti-aliasing
-
-        if (activeTool == Tool.PENCIL) {
-            System.out.println("mousePressed: pencil");
-            colorClick(g2d, foreGroundColor(),e.getX(), e.getY());
+        if (otherTool == OtherTool.FILL) {
+            MOUSE.debug("mousePressed: fill");
+            post(StrokeRenderer.FILL, null, foreColor, fillTolerance, fillContiguous ? 0 : 1, 0, mousePos.x, mousePos.y);
+        }
+        else if (otherTool != null) {
+            MOUSE.debug("mousePressed: select");
+            selectStart.setLocation(mousePos);
+            if (otherTool == OtherTool.SELECT_LASSO) {
+                lasso= new Path2D.Double();
+                lasso.moveTo(mousePos.x, mousePos.y);
+            }
+            selecting= dragShape();
+            damageOutline(selecting);
+        }
+        else if (activeTool == Tool.PENCIL) {
+            MOUSE.debug("mousePressed: pencil");
+            post(StrokeRenderer.PRESS, activeTool, foreGroundColor(), toolSize, 0, 0, mousePos.x, mousePos.y);
         }
         else if (activeTool == Tool.ERASER) {
-            System.out.println("mousePressed: eraser");
-            colorClick(g2d, backGroundColor(),e.getX(), e.getY());
+            MOUSE.debug("mousePressed: eraser");
+            post(StrokeRenderer.PRESS, activeTool, backGroundColor(), toolSize, 0, 0, mousePos.x, mousePos.y);
         }
         else if (activeTool == Tool.COLOR_PICKER) {
-            System.out.println("mousePressed: pick color");
+            MOUSE.debug("mousePressed: pick color");
             // Pick the color of the pixel the mouse is currently over.            
             // Left mouse button pressed: set the new foreground color
             // Right mouse button pressed: set the new background color
             pickColor(e);
         }
         else if (activeTool == Tool.LINE){
-            System.out.println("mousePressed: line");
+            MOUSE.debug("mousePressed: line");
 
             // TODO: #10a. Implement me!
             // If no mouse press has been made yet with this tool active,
@@ -310,25 +1121,25 @@ public class Canvas extends JPanel implements MouseListener, MouseMotionListener
             // draw the line.
             if(!pointPressed) {
             	pointPressed = true;
-            	firstPoint = mousePos;
+            	firstPoint.setLocation(mousePos);
             }
             
             else {
-            	mousePosPrev = firstPoint;
-            	colorDrag(g2d, foreColor);
+            	post(StrokeRenderer.LINE, activeTool, foreColor, toolSize,
+            	        firstPoint.x, firstPoint.y, mousePos.x, mousePos.y);
             	pointPressed = false;
             }
         }
         else if (activeTool == Tool.AIRBRUSH) {
-            System.out.println("mousePressed: airbrush");
-            airBrush(g2d, foreColor);
+            MOUSE.debug("mousePressed: airbrush");
+            post(StrokeRenderer.PRESS, activeTool, foreColor, toolSize, 0, 0, mousePos.x, mousePos.y);
         }
         else {
             System.err.println("Unknown tool: " + activeTool);
         }
 
-        // set prevMousePos
-        mousePosPrev= mousePos;
+        damage.flush(this, zoom());
+        handled(start, alloc);
     }
 
 
@@ -337,95 +1148,203 @@ public class Canvas extends JPanel implements MouseListener, MouseMotionListener
     }
 
     @Override public void mouseReleased(MouseEvent e) {
-        // End of drawing, reset prevMousePos.
-        mousePosPrev= null;
+        // End of drawing.
+        if (loading  ||  filtering  ||  otherTool == OtherTool.FILL) return;
+        long start= System.nanoTime(), alloc= Metrics.allocatedBytes();
+        if (otherTool != null) {
+            if (selecting != null) endSelection();
+        } else {
+            post(StrokeRenderer.RELEASE, activeTool, null, toolSize, 0, 0, mousePos.x, mousePos.y);
+        }
+        handled(start, alloc);
     }
     
 
 
     /** Process the dragging of the mouse given by e. */
     @Override public void mouseDragged(MouseEvent e) {
+        long start= System.nanoTime(), alloc= Metrics.allocatedBytes();
         updateMousePosition(e);
-        System.out.println("mouseDragged: " + mousePos + ", active tool: " + activeTool);		
-
-        Graphics2D g2d= (Graphics2D) img.getGraphics();
-        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        if (loading  ||  filtering) return;
+        if (MOUSE.isDebug()) MOUSE.debug("mouseDragged: (%.1f, %.1f), active tool: %s", mousePos.x, mousePos.y, activeTool);
 
         if (activeTool == Tool.PENCIL) {
-        	colorDrag(g2d,foreGroundColor());
-
+        	post(StrokeRenderer.DRAG, activeTool, foreGroundColor(), toolSize, 0, 0, mousePos.x, mousePos.y);
         }
         else if (activeTool == Tool.ERASER) {
-        	colorDrag(g2d,backGroundColor());
+        	post(StrokeRenderer.DRAG, activeTool, backGroundColor(), toolSize, 0, 0, mousePos.x, mousePos.y);
         }
-        else if (activeTool == Tool.COLOR_PICKER) {
+        else if (activeTool == Tool.COLOR_PICKER  ||  activeTool == Tool.LINE  ||  otherTool == OtherTool.FILL) {
             // Nothing to do here.
         }
+        else if (otherTool != null) {
+            if (selecting != null) dragSelection();
+        }
         else if (activeTool == Tool.AIRBRUSH) {
-            airBrush(g2d, foreColor); // note: doesn't interpolate
+            post(StrokeRenderer.DRAG, activeTool, foreColor, toolSize, 0, 0, mousePos.x, mousePos.y);
         }
         else {
             System.err.println("active tool: " + activeTool);
         }
-
-        // update prevMousePos
-        mousePosPrev= mousePos;
+        handled(start, alloc);
     }
 
-    private void drawTempLine(MouseEvent e) {
+    /** If a LINE is being drawn, repaint the area covered by its preview
+     * to the old mouse position oldPos and to the current mouse position. */
+    private void drawTempLine(Point2D.Double oldPos) {
         // TODO #10b. Implement me!
         // If the active tool is the Line  and the first mouse 
         // press has been recognized,  repaint().
     	if(activeTool == Tool.LINE && pointPressed) {
-    		repaint();
+    		damage.addSegment(firstPoint.x, firstPoint.y, oldPos.x, oldPos.y, StrokeEngine.capPad(toolSize));
+    		damageLinePreview();
+    		damage.flush(this, zoom());
     	}
     }
+
+    /** Add the area covered by the LINE preview (from firstPoint to the
+     * mouse position) to the damage. */
+    private void damageLinePreview() {
+        damage.addSegment(firstPoint.x, firstPoint.y, mousePos.x, mousePos.y, StrokeEngine.capPad(toolSize));
+    }
     
     /** Paint this component using g. */
     @Override public void paintComponent(Graphics g) {
-        System.out.println("Paint drawing pane.");
+        long start= System.nanoTime();
 
-        super.paintComponent(g);
         Graphics2D g2d= (Graphics2D) g;
 
-        // Draw a border around the image.
-        int z= 0;
-        for (int i= 0; i<5; i++) {
-            Color c= new Color(z,z,z);
-            g2d.setColor(c);
-            g2d.drawLine(0, height+i, width+i, height+i);
-            g2d.drawLine(width+i, 0, width+i, height+i);
-            z += 63;
+        // Draw only the part of the view inside the clip (the damaged area).
+        Rectangle clip= g2d.getClipBounds();
+        if (clip == null) clip= new Rectangle(0, 0, view(width), view(height));
+        PAINT.debug("paintComponent: clip %s", clip);
+        if (loading) {
+            // The loader decodes the visible area (not just the clip) first.
+            Rectangle v= getVisibleRect();
+            double zm= zoom();
+            shown= new Rectangle((int) (v.x / zm), (int) (v.y / zm), (int) Math.ceil(v.width / zm),
+                    (int) Math.ceil(v.height / zm));
         }
-
-        g2d.drawImage(img, 0, 0, null);
+        // The cache is opaque: it covers the background too.
+        long blit= System.nanoTime();
+        boolean cached= display != null
+                &&  display.paint(g2d, getGraphicsConfiguration(), getVisibleRect(), clip, getBackground());
+        if (!cached) {
+            super.paintComponent(g);
+            paintView(g2d, clip);
+        }
+        metrics.record(Metrics.Phase.BLIT, metricsTool(), toolSize, System.nanoTime() - blit);
+        reportDisplayPath(cached);
 
         // TODO: #10c. Implement me!
         // If the active tool is the LINE and the first point has been pressed,
         // draw the line on g2d using the foreColor and toolSize.
         if(activeTool == Tool.LINE && pointPressed) {
-        	mousePosPrev = firstPoint;
+        	double zm= zoom();
         	g2d.setColor(foreColor);
-        	g2d.setStroke(new BasicStroke(toolSize));
-        	g2d.drawLine((int) mousePosPrev.x, (int) mousePosPrev.y, (int) mousePos.x, (int) mousePos.y);
+        	if (previewStroke.getLineWidth() != (float) (toolSize * zm)) previewStroke= new BasicStroke((float) (toolSize * zm));
+        	g2d.setStroke(previewStroke);
+        	g2d.drawLine((int) (firstPoint.x * zm), (int) (firstPoint.y * zm), (int) (mousePos.x * zm), (int) (mousePos.y * zm));
         }
 
+        // Outline the selection and the one being dragged out.
+        if (selection != null) drawOutline(g2d, selection.getShape());
+        if (selecting != null) drawOutline(g2d, selecting);
+
+        if (metricsTimer != null) drawMetrics(g2d);
+        long end= System.nanoTime();
+        metrics.record(Metrics.Phase.REPAINT, metricsTool(), toolSize, end - start);
+        metrics.painted(end);
     }
 
+    /** Draw the border and the image of view rectangle clip on g2d (the
+     * background is drawn by the caller). Called on the EDT, by
+     * paintComponent or the display cache. */
+    private void paintView(Graphics2D g2d, Rectangle clip) {
+        // Draw a border around the image.
+        int vw= view(width);
+        int vh= view(height);
+        for (int i= 0; i < BORDER.length; i++) {
+            g2d.setColor(BORDER[i]);
+            g2d.drawLine(0, vh+i, vw+i, vh+i);
+            g2d.drawLine(vw+i, 0, vw+i, vh+i);
+        }
+
+        int s= zoomShift;
+        if (s <= 0) {
+            // One pixel of level -s of the pyramid per pixel of the view.
+            TiledImage img= pyramid.level(-s, clip.x, clip.y, clip.x + clip.width, clip.y + clip.height);
+            img.paint(g2d, clip.x, clip.y, clip.x + clip.width, clip.y + clip.height);
+        } else {
+            AffineTransform t= g2d.getTransform();
+            g2d.scale(1 << s, 1 << s);
+            doc.getComposite().paint(g2d, clip.x >> s, clip.y >> s,
+                    (clip.x + clip.width + (1 << s) - 1) >> s, (clip.y + clip.height + (1 << s) - 1) >> s);
+            g2d.setTransform(t);
+        }
+    }
+
+    /** Report the display path of the last paint (cached or not) in the
+     * metrics and, when it changes, in PAINT. */
+    private void reportDisplayPath(boolean cached) {
+        String p= cached ? (display.isAccelerated() ? "volatile, accelerated" : "volatile, unaccelerated")
+                : display == null ? (GraphicsEnvironment.isHeadless() ? "direct, headless" : "direct, by canvas.display")
+                : "direct, not cacheable";
+        if (p.equals(displayPath)) return;
+        displayPath= p;
+        metrics.setDisplayPath(p);
+        PAINT.info("display path: %s", p);
+    }
+
+    /** Draw the summary of the metrics on g2d, over the top-left corner of
+     * the visible part of the image, and remember where in metricsArea. */
+    private void drawMetrics(Graphics2D g2d) {
+        List<String> lines= metrics.summary();
+        g2d.setFont(METRICS_FONT);
+        FontMetrics fm= g2d.getFontMetrics();
+        int w= 0;
+        for (String l : lines) w= Math.max(w, fm.stringWidth(l));
+        Rectangle v= getVisibleRect();
+        metricsArea.setBounds(v.x + 4, v.y + 4, w + 8, lines.size() * fm.getHeight() + 8);
+        g2d.setColor(METRICS_BACKGROUND);
+        g2d.fill(metricsArea);
+        g2d.setColor(Color.WHITE);
+        for (int i= 0; i < lines.size(); i++) {
+            g2d.drawString(lines.get(i), metricsArea.x + 4, metricsArea.y + 4 + fm.getAscent() + i * fm.getHeight());
+        }
+    }
+
+
+    /** Draw the outline of shape s (in image coordinates) on g2d, as dashes
+     * that show on any color. */
+    private void drawOutline(Graphics2D g2d, Shape s) {
+        Shape v= AffineTransform.getScaleInstance(zoom(), zoom()).createTransformedShape(s);
+        g2d.setStroke(new BasicStroke(1));
+        g2d.setColor(Color.WHITE);
+        g2d.draw(v);
+        g2d.setStroke(outlineStroke);
+        g2d.setColor(Color.BLACK);
+        g2d.draw(v);
+    }
 
-    /** Pick the color of the pixel of img given by e. 
+    /** Pick the color of the pixel of the image given by e. 
      * Left mouse button pressed: use color as new foreground color.
      * Right mouse button pressed: use color as new background color. */
     private void pickColor(MouseEvent e) {
-        int rgb= img.getRGB(e.getX(),e.getY());
+        renderer.await();
+        double zm= zoom();
+        int x= (int) ((e.getX() + 0.5) / zm);
+        int y= (int) ((e.getY() + 0.5) / zm);
+        if (x < 0  ||  y < 0  ||  x >= width  ||  y >= height) return;
+        int rgb= doc.getComposite().getRGB(x, y);
         Color pickedColor= new Color(rgb);
         int b= e.getButton();
         if (b == MouseEvent.BUTTON1) {
             setForeGroundColor(pickedColor);   // Left button clicked
-            window.updateForeColor();
+            if (window != null) window.updateForeColor();
         } else if (b == MouseEvent.BUTTON3) {
             setBackGroundColor(pickedColor);  // Right button clicked
-            window.updateBackColor();
+            if (window != null) window.updateBackColor();
         }
     }
 
@@ -0,0 +1,138 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** An instance keeps the coverage masks of brush dabs, computed once per
+ * size, hardness and subpixel position, and forgets the least recently
+ * used ones when they take more than a budget of memory.
+ *
+ * Sizes are rounded, to 1/4 pixel below 16 pixels and to 1/64 of a power
+ * of 2 (under 1.6%) above, so that dabs whose size varies with dynamics
+ * share masks. Dabs under PHASED_SIZE are centered to 1/4 pixel (so small
+ * dabs move smoothly), larger ones on the center of a pixel. A hit does
+ * not allocate. */
+class DabCache {
+    /** Default budget of the masks, in bytes. */
+    public static final long DEFAULT_BUDGET= 16L << 20;
+
+    /** Dabs smaller than this are centered to 1/4 pixel. */
+    public static final double PHASED_SIZE= 64;
+
+    /** A coverage mask: the dab covers pixel (i, j) of a square of side
+     * side = 2 radius + 1 to coverage[j * side + i] / 255. */
+    static final class Dab {
+        final int radius, side;
+        final byte[] coverage;
+
+        Dab(int radius) {
+            this.radius= radius;
+            side= 2 * radius + 1;
+            coverage= new byte[side * side];
+        }
+    }
+
+    /** A key of the map; the probe is changed for each lookup. */
+    private static final class Key {
+        long value;
+
+        Key(long v) {
+            value= v;
+        }
+
+        @Override public boolean equals(Object o) {
+            return o instanceof Key  &&  ((Key) o).value == value;
+        }
+
+        @Override public int hashCode() {
+            return Long.hashCode(value);
+        }
+    }
+
+    private final long budget; // largest number of bytes of the masks kept
+    private long bytes;        // number of bytes of the masks kept
+    private final LinkedHashMap<Key, Dab> dabs= new LinkedHashMap<>(64, 0.75f, true); // least recently used first
+    private final Key probe= new Key(0);
+    private long hits, misses;
+
+    /** Constructor: a cache of at most about b bytes of masks. */
+    public DabCache(long b) {
+        budget= b;
+    }
+
+    /** Return true iff dabs of size d are centered to 1/4 pixel. */
+    public static boolean phased(double d) {
+        return d < PHASED_SIZE;
+    }
+
+    /** Return size d rounded as the cache rounds it. */
+    public static double round(double d) {
+        if (d < 16) return Math.max(0.25, Math.round(d * 4) / 4.0);
+        double step= Math.scalb(1.0, Math.getExponent(d) - 6);
+        return Math.round(d / step) * step;
+    }
+
+    /** Return the mask of a dab of size d and hardness h (see Brush) whose
+     * center is (qx/4, qy/4) right of and below the top-left corner of the
+     * pixel at its radius (qx, qy in 0..3). */
+    public Dab get(double d, double h, int qx, int qy) {
+        double dq= round(d);
+        long hq= Math.round(h * 1000);
+        long k= Math.round(dq * 4) << 16 | hq << 4 | qx << 2 | qy;
+        probe.value= k;
+        Dab m= dabs.get(probe);
+        if (m != null) {
+            hits++;
+            return m;
+        }
+        misses++;
+        m= rasterize(dq, hq / 1000.0, qx / 4.0, qy / 4.0);
+        dabs.put(new Key(k), m);
+        bytes += m.coverage.length;
+        for (Iterator<Map.Entry<Key, Dab>> it= dabs.entrySet().iterator(); bytes > budget  &&  it.hasNext(); ) {
+            Dab old= it.next().getValue();
+            if (old == m) break;
+            bytes -= old.coverage.length;
+            it.remove();
+        }
+        return m;
+    }
+
+    /** Return the number of masks found in the cache. */
+    public long hits() {
+        return hits;
+    }
+
+    /** Return the number of masks computed. */
+    public long misses() {
+        return misses;
+    }
+
+    /** Return a new mask of a dab of size d and hardness h centered at
+     * (fx, fy) in the pixel at its radius. The coverage is 1 out to
+     * d/2 - w, then falls smoothly to 0 at d/2, where w, the width of the
+     * soft edge, is (1 - h) d/2 but at least 1 pixel (which anti-aliases a
+     * hard edge). */
+    private static Dab rasterize(double d, double h, double fx, double fy) {
+        double r= d / 2;
+        double w= Math.max(1, r * (1 - h));
+        double inner= r - w;
+        Dab m= new Dab((int) Math.ceil(r + 0.5));
+        int R= m.radius, side= m.side;
+        for (int j= 0; j < side; j++) {
+            double dy= j - R + 0.5 - fy;
+            for (int i= 0; i < side; i++) {
+                double dx= i - R + 0.5 - fx;
+                double dist= Math.sqrt(dx * dx + dy * dy);
+                double c;
+                if (dist <= inner) c= 1;
+                else if (dist >= r) c= 0;
+                else {
+                    double t= (r - dist) / w; // 0 at the edge .. 1 inside
+                    c= t * t * (3 - 2 * t);
+                }
+                m.coverage[j * side + i]= (byte) Math.round(c * 255);
+            }
+        }
+        return m;
+    }
+}
@@ -0,0 +1,96 @@
+import javax.swing.JComponent;
+
+/** An instance accumulates the area of the image that changed during one
+ * batch of events, so that only that area has to be repainted.
+ * The area is kept as a single bounding box. */
+class DirtyRegion {
+    private boolean empty= true; // true means nothing has been damaged
+    private int x0, y0; // top-left corner of the damage (inclusive)
+    private int x1, y1; // bottom-right corner of the damage (exclusive)
+    private long area;  // sum of the areas of the rectangles added, before they were merged
+
+    /** Return true iff no damage has been added since the last clear. */
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    /** Return the x-coordinate of the left edge of the damage. */
+    public int getX() {
+        return x0;
+    }
+
+    /** Return the y-coordinate of the top edge of the damage. */
+    public int getY() {
+        return y0;
+    }
+
+    /** Return the width of the damage (0 if there is none). */
+    public int getWidth() {
+        return empty ? 0 : x1 - x0;
+    }
+
+    /** Return the height of the damage (0 if there is none). */
+    public int getHeight() {
+        return empty ? 0 : y1 - y0;
+    }
+
+    /** Return the sum of the areas of the rectangles added since the last
+     * clear or flush: the pixels changed, without the area between them
+     * that the bounding box takes in (overlaps count more than once). */
+    public long getArea() {
+        return empty ? 0 : area;
+    }
+
+    /** Add the rectangle with top-left corner (x, y), width w and height h. */
+    public void addRect(int x, int y, int w, int h) {
+        if (w <= 0  ||  h <= 0) return;
+        if (empty) {
+            area= (long) w * h;
+            x0= x;
+            y0= y;
+            x1= x + w;
+            y1= y + h;
+            empty= false;
+            return;
+        }
+        area += (long) w * h;
+        x0= Math.min(x0, x);
+        y0= Math.min(y0, y);
+        x1= Math.max(x1, x + w);
+        y1= Math.max(y1, y + h);
+    }
+
+    /** Add the segment from (ax, ay) to (bx, by), widened by pad pixels
+     * on every side (e.g. half the stroke width). */
+    public void addSegment(double ax, double ay, double bx, double by, int pad) {
+        // One extra pixel covers antialiasing and truncation of coordinates.
+        int left= (int) Math.floor(Math.min(ax, bx)) - pad - 1;
+        int top= (int) Math.floor(Math.min(ay, by)) - pad - 1;
+        int right= (int) Math.ceil(Math.max(ax, bx)) + pad + 2;
+        int bottom= (int) Math.ceil(Math.max(ay, by)) + pad + 2;
+        addRect(left, top, right - left, bottom - top);
+    }
+
+    /** Remove all damage. */
+    public void clear() {
+        empty= true;
+    }
+
+    /** Ask c to repaint the damaged area (if any) and clear this region.
+     * Return true iff there was damage. This may be called on any thread. */
+    public boolean flush(JComponent c) {
+        return flush(c, 1);
+    }
+
+    /** Ask c, which shows the image at scale scale, to repaint the damaged
+     * area (if any) and clear this region. Return true iff there was damage.
+     * This may be called on any thread. */
+    public boolean flush(JComponent c, double scale) {
+        if (empty) return false;
+        int left= (int) Math.floor(x0 * scale);
+        int top= (int) Math.floor(y0 * scale);
+        c.repaint(left, top, (int) Math.ceil(x1 * scale) - left, (int) Math.ceil(y1 * scale) - top);
+        empty= true;
+        return true;
+    }
+}
@@ -0,0 +1,229 @@
+import java.awt.*;
+import java.awt.image.VolatileImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/** An instance keeps the visible part of the view of the Canvas (its
+ * background, border and image, without overlays such as the LINE preview
+ * or selection outlines) in a VolatileImage of the format of the screen,
+ * so that a repaint copies pixels the screen can take as they are instead
+ * of converting the ARGB tiles of the image each time.
+ *
+ * When the image changes, invalidate marks the area of the view over the
+ * change as stale; a paint draws the stale part of the area it shows into
+ * the cache (with the Painter) and copies that area of the cache to the
+ * screen. The stale part is kept as a few rectangles, so that separate
+ * changes (e.g. two strokes far apart) are drawn again without the area
+ * between them. Scrolling keeps the part of the cache that stays visible. If the
+ * contents of the VolatileImage are lost (e.g. the display mode changed),
+ * all of it is drawn again.
+ *
+ * invalidate may be called on any thread (e.g. the render thread); paint
+ * only on the EDT. A VolatileImage needs a screen: in a headless JVM,
+ * available() is false and the Canvas paints the image directly. */
+class DisplayCache {
+    /** Draws the view, in view coordinates, on a Graphics2D. */
+    public interface Painter {
+        /** Draw the background, border and image of view rectangle r on g. */
+        void paintView(Graphics2D g, Rectangle r);
+    }
+
+    /** Sizes of the VolatileImage are multiples of this, so that it is not
+     * recreated for each small change of the size of the view. */
+    private static final int GRAIN= 256;
+
+    private final Painter painter;
+    private VolatileImage image; // the cache (null until the first paint)
+    private final Rectangle area= new Rectangle(); // area of the view in image, in view coordinates
+    private final Rectangle shown= new Rectangle(); // visible part of the view at the last paint
+
+    /** Most rectangles in stale: more are merged. */
+    private static final int MAX_STALE= 16;
+
+    /** Rectangles over the stale part of the view, in view coordinates
+     * (none if none), at most MAX_STALE. Only the part of the cache in
+     * shown that is not stale is up to date. Guarded by this. */
+    private final List<Rectangle> stale= new ArrayList<>();
+
+    /** A rectangle over any view. */
+    private static final Rectangle ALL= new Rectangle(Integer.MIN_VALUE / 4, Integer.MIN_VALUE / 4,
+            Integer.MAX_VALUE / 2, Integer.MAX_VALUE / 2);
+
+    /** Constructor: a cache of the view drawn by p. */
+    public DisplayCache(Painter p) {
+        painter= p;
+    }
+
+    /** Return true iff the view can be cached: there is a screen, and
+     * property canvas.display is not "direct". */
+    public static boolean available() {
+        return !GraphicsEnvironment.isHeadless()
+                &&  !"direct".equalsIgnoreCase(System.getProperty("canvas.display"));
+    }
+
+    /** Return true iff the cache is in accelerated (video) memory; false
+     * if it is not (or not yet) created. */
+    public boolean isAccelerated() {
+        VolatileImage v= image;
+        return v != null  &&  v.getCapabilities().isAccelerated();
+    }
+
+    /** Mark as stale the rectangle of the view with top-left corner (x, y),
+     * width w and height h. */
+    public synchronized void invalidate(int x, int y, int w, int h) {
+        if (w <= 0  ||  h <= 0) return;
+        addStale(new Rectangle(x, y, w, h));
+    }
+
+    /** Mark all of the view as stale. */
+    public synchronized void invalidateAll() {
+        stale.clear();
+        stale.add(new Rectangle(ALL));
+    }
+
+    /** Add non-empty rectangle r to stale: drop the rectangles inside it,
+     * and if there are then too many, merge r into the one whose bounds
+     * with it grow least. Call only holding the lock of this. */
+    private void addStale(Rectangle r) {
+        for (int k= stale.size() - 1; k >= 0; k--) {
+            Rectangle s= stale.get(k);
+            if (s.contains(r)) return;
+            if (r.contains(s)) stale.remove(k);
+        }
+        if (stale.size() < MAX_STALE) {
+            stale.add(r);
+            return;
+        }
+        int best= 0;
+        long growth= Long.MAX_VALUE;
+        for (int k= 0; k < stale.size(); k++) {
+            Rectangle s= stale.get(k);
+            long g= area(s.union(r)) - area(s);
+            if (g < growth) {
+                best= k;
+                growth= g;
+            }
+        }
+        Rectangle u= stale.remove(best).union(r);
+        addStale(u);
+    }
+
+    /** Return the area of r. */
+    private static long area(Rectangle r) {
+        return (long) r.width * r.height;
+    }
+
+    /** Paint area clip of the view, whose visible part is visible, on g,
+     * configured by gc, from the cache, drawing its stale part first, and
+     * return true; with background bg. Return false, painting nothing, if
+     * the cache cannot be used (clip is not inside visible, or gc is null). */
+    public boolean paint(Graphics2D g, GraphicsConfiguration gc, Rectangle visible, Rectangle clip, Color bg) {
+        if (gc == null  ||  visible.isEmpty()  ||  !visible.contains(clip)) return false;
+        cover(gc, visible);
+        do {
+            int v= image.validate(gc);
+            if (v == VolatileImage.IMAGE_INCOMPATIBLE) {
+                create(gc, area.width, area.height);
+                invalidateAll();
+            } else if (v == VolatileImage.IMAGE_RESTORED) {
+                invalidateAll();
+            }
+            refresh(visible, clip, bg);
+            g.drawImage(image, clip.x, clip.y, clip.x + clip.width, clip.y + clip.height,
+                    clip.x - area.x, clip.y - area.y, clip.x - area.x + clip.width, clip.y - area.y + clip.height, null);
+        } while (image.contentsLost());
+        return true;
+    }
+
+    /** Release the VolatileImage (e.g. when the Canvas goes away). It is
+     * created again by the next paint. */
+    public void release() {
+        if (image != null) image.flush();
+        image= null;
+        area.setBounds(0, 0, 0, 0);
+        shown.setBounds(0, 0, 0, 0);
+    }
+
+    /** Make the cache cover view rectangle v, keeping what it has of it,
+     * and mark the part of v that was not shown before as stale. */
+    private void cover(GraphicsConfiguration gc, Rectangle v) {
+        if (image == null  ||  v.width > area.width  ||  v.height > area.height) {
+            int w= (v.width + GRAIN - 1) / GRAIN * GRAIN, h= (v.height + GRAIN - 1) / GRAIN * GRAIN;
+            create(gc, w, h);
+            area.setBounds(v.x, v.y, w, h);
+            shown.setBounds(v);
+            invalidateAll();
+            return;
+        }
+        Rectangle kept= shown.intersection(v); // up to date and still shown
+        if (!area.contains(v)) {
+            // Move the area to v, shifting what is kept.
+            Rectangle moved= new Rectangle(v.x, v.y, area.width, area.height);
+            if (!kept.isEmpty()) {
+                Graphics2D g= image.createGraphics();
+                g.copyArea(kept.x - area.x, kept.y - area.y, kept.width, kept.height, area.x - moved.x, area.y - moved.y);
+                g.dispose();
+            }
+            area.setBounds(moved);
+        }
+        if (kept.equals(v)) {
+            // Nothing new is shown.
+        } else if (kept.isEmpty()) {
+            invalidateAll();
+        } else if (kept.x == v.x  &&  kept.width == v.width) {
+            // Scrolled vertically: a strip at the top or bottom is new.
+            invalidate(v.x, kept.y == v.y ? kept.y + kept.height : v.y, v.width, v.height - kept.height);
+        } else if (kept.y == v.y  &&  kept.height == v.height) {
+            // Scrolled horizontally: a strip at the left or right is new.
+            invalidate(kept.x == v.x ? kept.x + kept.width : v.x, v.y, v.width - kept.width, v.height);
+        } else {
+            invalidateAll();
+        }
+        shown.setBounds(v);
+    }
+
+    /** Replace the VolatileImage by a new, opaque one of w x h pixels, of
+     * the format of gc. */
+    private void create(GraphicsConfiguration gc, int w, int h) {
+        if (image != null) image.flush();
+        image= gc.createCompatibleVolatileImage(w, h, Transparency.OPAQUE);
+    }
+
+    /** Draw the stale part of view area r, in visible part v of the view,
+     * into the cache, on background bg, and mark it fresh. */
+    private void refresh(Rectangle v, Rectangle r, Color bg) {
+        List<Rectangle> drawn= new ArrayList<>();
+        synchronized (this) {
+            List<Rectangle> old= new ArrayList<>(stale);
+            stale.clear();
+            for (Rectangle o : old) {
+                Rectangle s= o.intersection(v); // only the part shown matters
+                if (s.isEmpty()) continue;
+                Rectangle d= s.intersection(r);
+                if (d.isEmpty()) {
+                    addStale(s);
+                    continue;
+                }
+                drawn.add(d);
+                // What stays stale: the bands of s above, below, left and right of d.
+                int sx1= s.x + s.width, sy1= s.y + s.height, dx1= d.x + d.width, dy1= d.y + d.height;
+                if (d.y > s.y) addStale(new Rectangle(s.x, s.y, s.width, d.y - s.y));
+                if (dy1 < sy1) addStale(new Rectangle(s.x, dy1, s.width, sy1 - dy1));
+                if (d.x > s.x) addStale(new Rectangle(s.x, d.y, d.x - s.x, d.height));
+                if (dx1 < sx1) addStale(new Rectangle(dx1, d.y, sx1 - dx1, d.height));
+            }
+        }
+        if (drawn.isEmpty()) return;
+        Graphics2D g= image.createGraphics();
+        g.translate(-area.x, -area.y);
+        g.setColor(bg);
+        for (Rectangle d : drawn) {
+            Graphics2D gd= (Graphics2D) g.create();
+            gd.clipRect(d.x, d.y, d.width, d.height);
+            gd.fillRect(d.x, d.y, d.width, d.height);
+            painter.paintView(gd, d);
+            gd.dispose();
+        }
+        g.dispose();
+    }
+}
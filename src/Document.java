@@ -0,0 +1,357 @@
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** An instance is a document: an ordered list of layers (first is the
+ * bottom one), one of which is active (drawn on), and the composite of
+ * the visible layers, which is what is shown and saved.
+ *
+ * The composite is a cache. After the active layer changes in some
+ * rectangle, call update to recomposite only the pixels in it. To make
+ * that cost the same for any number of layers, the document keeps two
+ * more caches: the layers below the active one flattened into one image,
+ * and the layers above it flattened into another. A pixel of the composite
+ * is then computed from just three pixels. (Layers above can be flattened
+ * only if they all blend normally; otherwise update composites them one
+ * by one.) The caches are rebuilt when another layer becomes active or
+ * when the layers or their properties change.
+ *
+ * A document with a single visible, opaque, normally blended layer is its
+ * own composite: drawing on it costs nothing extra. */
+class Document {
+    private final int width;  // width of the document
+    private final int height; // height of the document
+
+    private final ArrayList<Layer> layers= new ArrayList<>(); // bottom first
+    private int active;     // index of the active layer
+    private int layersMade; // number of layers created, for naming them
+
+    private TiledImage composite; // the composite of the visible layers
+    private TiledImage below;     // layers below the active one flattened (null if none visible)
+    private TiledImage above;     // layers above the active one flattened (null if none visible
+                                  // or if they cannot be flattened)
+    private boolean aboveFlat;    // true iff above (even if null) stands for the layers above
+
+    /** Constructor: a document with one layer, whose image is img. */
+    public Document(TiledImage img) {
+        width= img.getWidth();
+        height= img.getHeight();
+        layers.add(new Layer(nextName(), img));
+        rebuild();
+    }
+
+    /** Constructor: a document with layers ls (bottom first), of which
+     * layer active is active. Throw an IllegalArgumentException if there
+     * is no layer active or the layers differ in size. */
+    public Document(List<Layer> ls, int active) {
+        if (active < 0  ||  active >= ls.size()) throw new IllegalArgumentException("no layer " + active);
+        width= ls.get(0).getPixels().getWidth();
+        height= ls.get(0).getPixels().getHeight();
+        for (Layer l : ls) {
+            if (l.getPixels().getWidth() != width  ||  l.getPixels().getHeight() != height)
+                throw new IllegalArgumentException("layers differ in size");
+        }
+        layers.addAll(ls);
+        layersMade= ls.size();
+        this.active= active;
+        rebuild();
+    }
+
+    /** Return the name for the next layer created. */
+    private String nextName() {
+        layersMade++;
+        return layersMade == 1 ? "Background" : "Layer " + layersMade;
+    }
+
+    /** Return the width of the document. */
+    public int getWidth() {
+        return width;
+    }
+
+    /** Return the height of the document. */
+    public int getHeight() {
+        return height;
+    }
+
+    /** Return the composite of the visible layers. Do not write to it.
+     * The document may replace it when the layers change. */
+    public TiledImage getComposite() {
+        return composite;
+    }
+
+    /** Return the number of layers. */
+    public int layerCount() {
+        return layers.size();
+    }
+
+    /** Return layer i (0 is the bottom one). */
+    public Layer getLayer(int i) {
+        return layers.get(i);
+    }
+
+    /** Return the index of the active layer. */
+    public int getActiveIndex() {
+        return active;
+    }
+
+    /** Return the active layer. */
+    public Layer getActive() {
+        return layers.get(active);
+    }
+
+    /** Make layer i active.
+     * Throw an IllegalArgumentException if there is no layer i. */
+    public void setActive(int i) {
+        checkIndex(i);
+        if (i == active) return;
+        active= i;
+        rebuild();
+    }
+
+    /** Add a new transparent layer just above the active one, make it
+     * active, and return it. */
+    public Layer addLayer() {
+        Layer l= new Layer(nextName(), new TiledImage(width, height, new Color(0, true)));
+        active++;
+        layers.add(active, l);
+        rebuild();
+        return l;
+    }
+
+    /** Remove layer i. The layer above it (or the new top layer) becomes
+     * active if i was active. Throw an IllegalArgumentException if there
+     * is no layer i or it is the only layer. */
+    public void removeLayer(int i) {
+        checkIndex(i);
+        if (layers.size() == 1) throw new IllegalArgumentException("removeLayer: only layer");
+        layers.remove(i);
+        if (active > i  ||  active == layers.size()) active--;
+        rebuild();
+    }
+
+    /** Move layer i to index j; the active layer stays active.
+     * Throw an IllegalArgumentException if there is no layer i or j. */
+    public void moveLayer(int i, int j) {
+        checkIndex(i);
+        checkIndex(j);
+        if (i == j) return;
+        Layer a= getActive();
+        layers.add(j, layers.remove(i));
+        active= layers.indexOf(a);
+        rebuild();
+    }
+
+    /** Make layer i visible (if b) or hidden (if !b). */
+    public void setVisible(int i, boolean b) {
+        checkIndex(i);
+        layers.get(i).setVisible(b);
+        changed(i);
+    }
+
+    /** Set the opacity of layer i to o, 0 (transparent) .. 255 (opaque).
+     * Throw an IllegalArgumentException if o is not in 0..255. */
+    public void setOpacity(int i, int o) {
+        checkIndex(i);
+        layers.get(i).setOpacity(o);
+        changed(i);
+    }
+
+    /** Set the blend mode of layer i to m. */
+    public void setBlendMode(int i, BlendMode m) {
+        checkIndex(i);
+        layers.get(i).setBlendMode(m);
+        changed(i);
+    }
+
+    /** Throw an IllegalArgumentException if there is no layer i. */
+    private void checkIndex(int i) {
+        if (i < 0  ||  i >= layers.size())
+            throw new IllegalArgumentException("no layer " + i);
+    }
+
+    /** The properties of layer i changed: bring the caches up to date.
+     * The caches of the other layers do not depend on the active layer. */
+    private void changed(int i) {
+        if (i != active) rebuild();
+        else if (isOwnComposite()) composite= getActive().getPixels();
+        else recomposite();
+    }
+
+    /** Return true iff the active layer is the only layer and is plain,
+     * so that it is its own composite. */
+    private boolean isOwnComposite() {
+        return layers.size() == 1  &&  getActive().isPlain();
+    }
+
+    /** Rebuild the caches of the layers below and above the active one,
+     * and the composite. */
+    private void rebuild() {
+        below= flatten(0, active);
+        aboveFlat= true;
+        for (int k= active + 1; k < layers.size(); k++) {
+            Layer l= layers.get(k);
+            if (l.isVisible()  &&  l.getBlendMode() != BlendMode.NORMAL) aboveFlat= false;
+        }
+        above= aboveFlat ? flatten(active + 1, layers.size()) : null;
+        recomposite();
+    }
+
+    /** Recompute the whole composite from the caches. */
+    private void recomposite() {
+        if (isOwnComposite()) {
+            composite= getActive().getPixels();
+            return;
+        }
+        composite= new TiledImage(width, height, new Color(background(0, layers.size()), true));
+        int cols= composite.getCols();
+        for (int row= 0; row < composite.getRows(); row++) {
+            for (int col= 0; col < cols; col++) {
+                if (anyAllocated(0, layers.size(), col, row)) {
+                    int tx= col << TiledImage.TILE_SHIFT;
+                    int ty= row << TiledImage.TILE_SHIFT;
+                    update(tx, ty, TiledImage.TILE_SIZE, TiledImage.TILE_SIZE);
+                }
+            }
+        }
+    }
+
+    /** Recomposite the rectangle with top-left corner (x, y), width w and
+     * height h, after the active layer changed in it. The rectangle is
+     * clipped to the document. */
+    public void update(int x, int y, int w, int h) {
+        if (composite == getActive().getPixels()) return;
+        int x0= Math.max(x, 0);
+        int y0= Math.max(y, 0);
+        int x1= Math.min(x + w, width);
+        int y1= Math.min(y + h, height);
+        if (x0 >= x1  ||  y0 >= y1) return;
+
+        Layer a= getActive();
+        TiledImage act= a.isVisible() ? a.getPixels() : null;
+        int op= a.getOpacity();
+        BlendMode mode= a.getBlendMode();
+        for (int row= y0 >> TiledImage.TILE_SHIFT; row <= (y1 - 1) >> TiledImage.TILE_SHIFT; row++) {
+            int ty= row << TiledImage.TILE_SHIFT;
+            int j0= Math.max(y0, ty) - ty;
+            int j1= Math.min(y1, ty + TiledImage.TILE_SIZE) - ty;
+            for (int col= x0 >> TiledImage.TILE_SHIFT; col <= (x1 - 1) >> TiledImage.TILE_SHIFT; col++) {
+                int tx= col << TiledImage.TILE_SHIFT;
+                int i0= Math.max(x0, tx) - tx;
+                int i1= Math.min(x1, tx + TiledImage.TILE_SIZE) - tx;
+                int[] out= composite.writableTileData(col, row);
+                int[] b= below == null ? null : below.tileData(col, row);
+                int[] s= act == null ? null : act.tileData(col, row);
+                int[] t= above == null ? null : above.tileData(col, row);
+                for (int j= j0; j < j1; j++) {
+                    for (int k= (j << TiledImage.TILE_SHIFT) + i0, end= k - i0 + i1; k < end; k++) {
+                        int c= b == null ? 0 : b[k];
+                        if (s != null) c= mode.composite(c, s[k], op);
+                        if (t != null) c= BlendMode.NORMAL.composite(c, t[k], 255);
+                        else if (!aboveFlat) c= compositeAbove(c, col, row, k);
+                        out[k]= c;
+                    }
+                }
+            }
+        }
+    }
+
+    /** Update the rectangle r (see update(x, y, w, h)). */
+    public void update(Rectangle r) {
+        update(r.x, r.y, r.width, r.height);
+    }
+
+    /** Recomposite rectangle r after the pixels of img, the image of any
+     * layer, changed in it (e.g. by an undo): the cache of the layers below
+     * or above the active one that holds img is brought up to date first.
+     * Do nothing if img is not the image of a layer. */
+    public void update(TiledImage img, Rectangle r) {
+        int i= 0;
+        while (i < layers.size()  &&  layers.get(i).getPixels() != img) i++;
+        if (i == layers.size()) return;
+        if (i < active  &&  below != null) reflatten(below, 0, active, r);
+        else if (i > active  &&  above != null) reflatten(above, active + 1, layers.size(), r);
+        update(r);
+    }
+
+    /** Flatten again the tiles of cache res (of the layers in from..to-1)
+     * over rectangle r. */
+    private void reflatten(TiledImage res, int from, int to, Rectangle r) {
+        int x0= Math.max(r.x, 0), y0= Math.max(r.y, 0);
+        int x1= Math.min(r.x + r.width, width), y1= Math.min(r.y + r.height, height);
+        if (x0 >= x1  ||  y0 >= y1) return;
+        for (int row= y0 >> TiledImage.TILE_SHIFT; row <= (y1 - 1) >> TiledImage.TILE_SHIFT; row++) {
+            for (int col= x0 >> TiledImage.TILE_SHIFT; col <= (x1 - 1) >> TiledImage.TILE_SHIFT; col++) {
+                if (res.isAllocated(col, row)  ||  anyAllocated(from, to, col, row)) {
+                    flattenTile(res, from, to, col, row);
+                }
+            }
+        }
+    }
+
+    /** Return pixel c with pixel k of tile (col, row) of each visible layer
+     * above the active one composited over it. */
+    private int compositeAbove(int c, int col, int row, int k) {
+        for (int i= active + 1; i < layers.size(); i++) {
+            Layer l= layers.get(i);
+            if (l.isVisible()) {
+                c= l.getBlendMode().composite(c, l.getPixels().tileData(col, row)[k], l.getOpacity());
+            }
+        }
+        return c;
+    }
+
+    /** Return the visible layers in from..to-1 flattened into one image,
+     * or null if none of them is visible. Only tiles allocated in one of
+     * the layers are allocated in the result. */
+    private TiledImage flatten(int from, int to) {
+        boolean any= false;
+        for (int i= from; i < to; i++) any= any  ||  layers.get(i).isVisible();
+        if (!any) return null;
+
+        TiledImage res= new TiledImage(width, height, new Color(background(from, to), true));
+        for (int row= 0; row < res.getRows(); row++) {
+            for (int col= 0; col < res.getCols(); col++) {
+                if (anyAllocated(from, to, col, row)) flattenTile(res, from, to, col, row);
+            }
+        }
+        return res;
+    }
+
+    /** Store in tile (col, row) of res the visible layers in from..to-1
+     * flattened. */
+    private void flattenTile(TiledImage res, int from, int to, int col, int row) {
+        int[] out= res.writableTileData(col, row);
+        Arrays.fill(out, 0);
+        for (int i= from; i < to; i++) {
+            Layer l= layers.get(i);
+            if (!l.isVisible()) continue;
+            int[] src= l.getPixels().tileData(col, row);
+            BlendMode m= l.getBlendMode();
+            int op= l.getOpacity();
+            for (int k= 0; k < out.length; k++) out[k]= m.composite(out[k], src[k], op);
+        }
+    }
+
+    /** Return the composite of the backgrounds of the visible layers in
+     * from..to-1 (the color of tiles none of them has written). */
+    private int background(int from, int to) {
+        int c= 0;
+        for (int i= from; i < to; i++) {
+            Layer l= layers.get(i);
+            if (l.isVisible()) c= l.getBlendMode().composite(c, l.getPixels().getBackground(), l.getOpacity());
+        }
+        return c;
+    }
+
+    /** Return true iff a visible layer in from..to-1 has allocated tile
+     * (col, row). */
+    private boolean anyAllocated(int from, int to, int col, int row) {
+        for (int i= from; i < to; i++) {
+            Layer l= layers.get(i);
+            if (l.isVisible()  &&  l.getPixels().isAllocated(col, row)) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,194 @@
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** An instance is an image filter, e.g. a blur or a color adjustment (see
+ * Filters for those of the Filter menu). A subclass gives the filter of a
+ * rectangle of ARGB pixels, with a halo of pixels around it if the result
+ * of a pixel depends on its neighbors; apply runs it on a TiledImage.
+ *
+ * apply filters the image tile by tile, each tile a task on a ForkJoinPool.
+ * A task copies its tile and the halo around it (read from a snapshot of
+ * the image taken before the filter, and extended at the edges of the
+ * image) into an int[] buffer of its thread, filters that into another,
+ * and writes the result into the tile. With a selection, only the tiles
+ * in the bounds of the selection are filtered, and only the selected
+ * pixels of them are changed. Tiles that are not allocated, and whose halo
+ * is not either, are skipped if the filter does not change the background. */
+abstract class Filter {
+    private static final int T= TiledImage.TILE_SIZE;
+    private static final int SHIFT= TiledImage.TILE_SHIFT;
+
+    /** The work buffers of each thread. */
+    private static final ThreadLocal<Scratch> scratch= ThreadLocal.withInitial(Scratch::new);
+
+    /** Work buffers of a thread, grown as needed: int buffers 0 and 1 are
+     * the source and result of the tile being filtered; a filter may use
+     * the others. */
+    static final class Scratch {
+        private final int[][] buffers= new int[4][0];
+        private final long[][] longs= new long[6][0];
+
+        /** Return int buffer k, with at least n elements. Its contents are
+         * left from its last use. */
+        int[] get(int k, int n) {
+            if (buffers[k].length < n) buffers[k]= new int[n];
+            return buffers[k];
+        }
+
+        /** Return long buffer k, with at least n elements. Its contents are
+         * left from its last use. */
+        long[] getLongs(int k, int n) {
+            if (longs[k].length < n) longs[k]= new long[n];
+            return longs[k];
+        }
+    }
+
+    /** Return the number of pixels on each side of a pixel that its result
+     * depends on (0, the default, if it depends on the pixel alone). */
+    public int halo() {
+        return 0;
+    }
+
+    /** Return the filter to use on the image scaled by s (e.g. s < 1 for
+     * a preview on a smaller image): by default, this filter. */
+    public Filter scaled(double s) {
+        return this;
+    }
+
+    /** Filter the pixels of a rectangle of width w and height h: src has
+     * its ARGB pixels with halo() pixels around them, (w + 2 halo()) per
+     * row, row by row; put the w x h filtered pixels in dst, row by row.
+     * Do not change src. s has work buffers for the filter (not int
+     * buffers 0 and 1). */
+    abstract void filter(int[] src, int[] dst, int w, int h, Scratch s);
+
+    /** Filter the pixels of img in selection sel (all pixels if sel is
+     * null) on the common pool and return the rectangle of the pixels that
+     * may have changed (null if none). Call on one thread at a time per
+     * image: tiles are made writable (for the undo history) on this thread. */
+    public Rectangle apply(TiledImage img, Selection sel) {
+        return apply(img, sel, ForkJoinPool.commonPool());
+    }
+
+    /** Filter the pixels of img in selection sel (all pixels if sel is
+     * null) on pool and return the rectangle of the pixels that may have
+     * changed (null if none). */
+    public Rectangle apply(TiledImage img, Selection sel, ForkJoinPool pool) {
+        Rectangle r= new Rectangle(0, 0, img.getWidth(), img.getHeight());
+        if (sel != null) r= r.intersection(sel.getBounds());
+        if (r.isEmpty()) return null;
+        int halo= halo();
+        // Tiles read their neighbors as they were before the filter.
+        TiledImage src= halo == 0 ? img : img.snapshot();
+        boolean skipBlank= keeps(img.getBackground());
+        int reach= (halo + T - 1) >> SHIFT; // tiles of the halo on each side
+
+        List<TileTask> tasks= new ArrayList<>();
+        for (int row= r.y >> SHIFT; row <= (r.y + r.height - 1) >> SHIFT; row++) {
+            for (int col= r.x >> SHIFT; col <= (r.x + r.width - 1) >> SHIFT; col++) {
+                int state= sel == null ? Selection.FULL : sel.tileState(col, row);
+                if (state == Selection.EMPTY) continue;
+                if (skipBlank  &&  isBlank(src, col, row, reach)) continue;
+                // writableTileData and the write listener are not thread-safe.
+                int[] data= img.writableTileData(col, row);
+                long[] mask= state == Selection.PARTIAL ? sel.tileBits(col, row) : null;
+                tasks.add(new TileTask(src, data, mask, col, row, r));
+            }
+        }
+        if (tasks.isEmpty()) return null;
+        pool.invoke(new RecursiveAction() {
+            @Override protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+        return r;
+    }
+
+    /** Return true iff the filter leaves an area of color argb unchanged. */
+    private boolean keeps(int argb) {
+        int n= 2 * halo() + 1;
+        int[] src= new int[n * n];
+        Arrays.fill(src, argb);
+        int[] dst= new int[1];
+        filter(src, dst, 1, 1, new Scratch());
+        return dst[0] == argb;
+    }
+
+    /** Return true iff no tile of img within reach tiles of (col, row) is
+     * allocated. */
+    private static boolean isBlank(TiledImage img, int col, int row, int reach) {
+        for (int r= Math.max(0, row - reach); r <= Math.min(img.getRows() - 1, row + reach); r++) {
+            for (int c= Math.max(0, col - reach); c <= Math.min(img.getCols() - 1, col + reach); c++) {
+                if (img.isAllocated(c, r)) return false;
+            }
+        }
+        return true;
+    }
+
+    /** The task that filters the part of a tile in a rectangle. */
+    private final class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 201801;
+        private final TiledImage src; // the image before the filter
+        private final int[] data;     // pixels of the tile, writable
+        private final long[] mask;    // the selected pixels of the tile, or null for all
+        private final int x0, y0, x1, y1; // the part of the tile to filter, in image coordinates
+        private final int ox, oy;     // position of the tile in the image
+
+        TileTask(TiledImage src, int[] data, long[] mask, int col, int row, Rectangle r) {
+            this.src= src;
+            this.data= data;
+            this.mask= mask;
+            ox= col << SHIFT;
+            oy= row << SHIFT;
+            x0= Math.max(ox, r.x);
+            y0= Math.max(oy, r.y);
+            x1= Math.min(ox + T, r.x + r.width);
+            y1= Math.min(oy + T, r.y + r.height);
+        }
+
+        @Override protected void compute() {
+            int halo= halo();
+            int w= x1 - x0, h= y1 - y0;
+            Scratch s= scratch.get();
+            int[] in= s.get(0, (w + 2 * halo) * (h + 2 * halo));
+            int[] out= s.get(1, w * h);
+            read(src, x0 - halo, y0 - halo, w + 2 * halo, h + 2 * halo, in);
+            filter(in, out, w, h, s);
+            for (int y= 0; y < h; y++) {
+                int d= ((y0 - oy + y) << SHIFT) + x0 - ox;
+                if (mask == null) {
+                    System.arraycopy(out, y * w, data, d, w);
+                    continue;
+                }
+                for (int x= 0, k= y * w; x < w; x++, k++, d++) {
+                    if ((mask[d >> 6] & 1L << d) != 0) data[d]= out[k];
+                }
+            }
+        }
+    }
+
+    /** Put the pixels of the rectangle of img with top-left corner (x, y),
+     * width w and height h in dst, row by row. Pixels outside img are those
+     * of the nearest edge of img. The rectangle must meet img in x. */
+    static void read(TiledImage img, int x, int y, int w, int h, int[] dst) {
+        int iw= img.getWidth(), ih= img.getHeight();
+        int cx= Math.max(x, 0), ex= Math.min(x + w, iw); // columns inside img
+        for (int j= 0; j < h; j++) {
+            int sy= Math.min(Math.max(y + j, 0), ih - 1);
+            int d= j * w;
+            int base= (sy & (T - 1)) << SHIFT;
+            for (int sx= cx; sx < ex; ) {
+                int col= sx >> SHIFT;
+                int end= Math.min(ex, (col + 1) << SHIFT);
+                System.arraycopy(img.tileData(col, sy >> SHIFT), base + (sx & (T - 1)), dst, d + sx - x, end - sx);
+                sx= end;
+            }
+            if (cx > x) Arrays.fill(dst, d, d + cx - x, dst[d + cx - x]);
+            if (ex < x + w) Arrays.fill(dst, d + ex - x, d + w, dst[d + ex - x - 1]);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+import javax.swing.*;
+import javax.swing.event.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+
+/** An instance is a modal dialog window that sets the parameters of a
+ * filter with sliders and shows a live preview of it on the active layer.
+ *
+ * The preview is drawn on a proxy: the layer scaled down (by a level of a
+ * MipPyramid) to at most PREVIEW_SIZE pixels on a side, with the selection
+ * scaled to match, and the filter scaled to the proxy (see Filter.scaled).
+ * So a change of a slider costs the filter of at most PREVIEW_SIZE^2
+ * pixels, whatever the size of the image. */
+public class FilterDialog extends JDialog implements ChangeListener, ActionListener {
+    private static final long serialVersionUID = 201801;
+
+    /** Largest width and height of the preview. */
+    public static final int PREVIEW_SIZE= 400;
+
+    /** Makes the filter of the values of the sliders. */
+    public interface Maker {
+        /** Return the filter with parameter values v (in the order of the
+         * sliders). Throw an IllegalArgumentException if they are not valid. */
+        Filter make(int[] v);
+    }
+
+    private final Maker maker;
+    private final JSlider[] sliders;
+    private final JLabel[] valueLabels;   // the value of each slider
+    private final JLabel preview= new JLabel();
+    private final JButton okButton= new JButton("OK");
+    private final JButton cancelButton= new JButton("Cancel");
+
+    private final TiledImage proxy;     // the layer, scaled down
+    private final Selection proxySelection; // the selection, scaled down (null if none)
+    private final double scale;         // scale of the proxy
+
+    private Filter filter; // the filter chosen (null if canceled)
+
+    /** Constructor: a dialog titled title over frame for the filter made by
+     * m from parameters named names, with ranges mins[k]..maxs[k] and first
+     * values values[k], previewed on the active layer of canvas. */
+    public FilterDialog(JFrame frame, Canvas canvas, String title, String[] names,
+            int[] mins, int[] maxs, int[] values, Maker m) {
+        super(frame, true);
+        setTitle(title);
+        maker= m;
+
+        // The proxy: the smallest level of the layer that is at least
+        // PREVIEW_SIZE / 2 on its longer side.
+        TiledImage layer= canvas.getDocument().getActive().getPixels().snapshot();
+        int k= 0;
+        while (Math.max(layer.getWidth(), layer.getHeight()) >> k > PREVIEW_SIZE) k++;
+        proxy= new MipPyramid(layer, k).level(k, 0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        scale= proxy.getWidth() / (double) layer.getWidth();
+        Selection sel= canvas.getSelection();
+        Selection ps= null;
+        if (sel != null) {
+            Shape s= AffineTransform.getScaleInstance(scale, scale).createTransformedShape(sel.getShape());
+            ps= new Selection(proxy.getWidth(), proxy.getHeight(), s);
+        }
+        proxySelection= ps;
+
+        JPanel controls= new JPanel(new GridLayout(names.length, 3, 6, 2));
+        sliders= new JSlider[names.length];
+        valueLabels= new JLabel[names.length];
+        for (int i= 0; i < names.length; i++) {
+            sliders[i]= new JSlider(mins[i], maxs[i], values[i]);
+            sliders[i].addChangeListener(this);
+            valueLabels[i]= new JLabel("" + values[i]);
+            controls.add(new JLabel(names[i]));
+            controls.add(sliders[i]);
+            controls.add(valueLabels[i]);
+        }
+
+        JPanel buttons= new JPanel();
+        okButton.addActionListener(this);
+        buttons.add(okButton);
+        cancelButton.addActionListener(this);
+        buttons.add(cancelButton);
+
+        preview.setHorizontalAlignment(SwingConstants.CENTER);
+        preview.setPreferredSize(new Dimension(proxy.getWidth(), proxy.getHeight()));
+        getContentPane().add(preview, BorderLayout.CENTER);
+        JPanel south= new JPanel(new BorderLayout());
+        south.add(controls, BorderLayout.CENTER);
+        south.add(buttons, BorderLayout.SOUTH);
+        getContentPane().add(south, BorderLayout.SOUTH);
+        updatePreview();
+
+        getRootPane().setDefaultButton(okButton);
+        pack();
+        setLocationRelativeTo(frame);
+        setVisible(true);
+    }
+
+    /** Return the filter chosen, or null if the dialog was canceled. */
+    public Filter getFilter() {
+        return filter;
+    }
+
+    /** Return the values of the sliders. */
+    private int[] values() {
+        int[] v= new int[sliders.length];
+        for (int i= 0; i < v.length; i++) v[i]= sliders[i].getValue();
+        return v;
+    }
+
+    /** Show the proxy filtered with the values of the sliders. */
+    private void updatePreview() {
+        TiledImage img= proxy.snapshot();
+        try {
+            maker.make(values()).scaled(scale).apply(img, proxySelection);
+            preview.setText(null);
+        } catch (IllegalArgumentException exc) {
+            preview.setText(exc.getMessage());
+        }
+        BufferedImage b= img.toBufferedImage();
+        preview.setIcon(new ImageIcon(b));
+    }
+
+    /** A slider changed: show its value and the new preview. */
+    @Override public void stateChanged(ChangeEvent e) {
+        for (int i= 0; i < sliders.length; i++) {
+            if (e.getSource() == sliders[i]) valueLabels[i].setText("" + sliders[i].getValue());
+        }
+        updatePreview();
+    }
+
+    /** Process a click of the OK or Cancel button, given by e. */
+    @Override public void actionPerformed(ActionEvent e) {
+        if (e.getSource() == okButton) {
+            try {
+                filter= maker.make(values());
+            } catch (IllegalArgumentException exc) {
+                JOptionPane.showMessageDialog(this, exc.getMessage());
+                return;
+            }
+        }
+        setVisible(false);
+        dispose();
+    }
+}
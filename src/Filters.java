@@ -0,0 +1,425 @@
+import java.util.Arrays;
+
+/** The filters of the Filter menu: blurs, unsharp masking, and color
+ * adjustments (levels, curves, hue/saturation). Each is a Filter; this
+ * class only makes them.
+ *
+ * Blurs are separable convolutions with int[] kernels in 16-bit fixed
+ * point, one pass along rows and one along columns, on premultiplied
+ * pixels (so that transparent pixels do not darken their neighbors). The
+ * color adjustments change R, G and B through a 256-entry table, or (hue
+ * and saturation) through HSL, and keep alpha. */
+class Filters {
+    /** Kernel weights are in units of 1/ONE. */
+    private static final int ONE= 1 << 16;
+
+    // Half of ONE in both 32-bit lanes of a long, and the low 8 bits of both.
+    private static final long LANE_HALF= (long) (ONE / 2) << 32 | ONE / 2;
+    private static final long LANE_MASK= 0xFFL << 32 | 0xFF;
+
+    private Filters() {
+    }
+
+    /** Return a Gaussian blur with standard deviation radius (pixels).
+     * Throw an IllegalArgumentException if radius is negative. */
+    public static Filter gaussianBlur(double radius) {
+        if (radius < 0) throw new IllegalArgumentException("gaussianBlur: radius " + radius);
+        return new Gaussian(radius);
+    }
+
+    /** Return a box blur: each pixel the average of the square of side
+     * 2 radius + 1 centered on it.
+     * Throw an IllegalArgumentException if radius is negative. */
+    public static Filter boxBlur(int radius) {
+        if (radius < 0) throw new IllegalArgumentException("boxBlur: radius " + radius);
+        return new Box(radius);
+    }
+
+    /** Return an unsharp mask: each channel moved away from that of a
+     * Gaussian blur with standard deviation radius by amount percent of the
+     * difference, where the difference is at least threshold (0..255).
+     * Throw an IllegalArgumentException if an argument is out of range. */
+    public static Filter unsharpMask(double radius, int amount, int threshold) {
+        if (radius < 0  ||  amount < 0  ||  threshold < 0  ||  threshold > 255)
+            throw new IllegalArgumentException("unsharpMask: " + radius + ", " + amount + ", " + threshold);
+        return new Unsharp(radius, amount, threshold);
+    }
+
+    /** Return a levels adjustment: channel values inBlack..inWhite are
+     * stretched to 0..1, raised to the power 1/gamma, and mapped to
+     * outBlack..outWhite. Throw an IllegalArgumentException if a value is
+     * not in 0..255, inBlack >= inWhite, or gamma is not positive. */
+    public static Filter levels(int inBlack, int inWhite, double gamma, int outBlack, int outWhite) {
+        if (!in255(inBlack)  ||  !in255(inWhite)  ||  !in255(outBlack)  ||  !in255(outWhite)
+                ||  inBlack >= inWhite  ||  !(gamma > 0))
+            throw new IllegalArgumentException("levels: " + inBlack + ", " + inWhite + ", " + gamma);
+        int[] lut= new int[256];
+        for (int v= 0; v < 256; v++) {
+            double t= Math.min(1, Math.max(0, (v - inBlack) / (double) (inWhite - inBlack)));
+            lut[v]= (int) Math.round(outBlack + Math.pow(t, 1 / gamma) * (outWhite - outBlack));
+        }
+        return new Lookup(lut);
+    }
+
+    /** Return a curves adjustment: channel value xs[k] becomes ys[k], and
+     * values in between follow a smooth monotone curve through the points
+     * (values outside xs[0]..xs[n-1] are those of the end points).
+     * Throw an IllegalArgumentException if there are fewer than two points,
+     * a value is not in 0..255, or xs is not increasing. */
+    public static Filter curves(int[] xs, int[] ys) {
+        int n= xs.length;
+        if (n < 2  ||  ys.length != n) throw new IllegalArgumentException("curves: need two points or more");
+        for (int k= 0; k < n; k++) {
+            if (!in255(xs[k])  ||  !in255(ys[k])  ||  k > 0  &&  xs[k] <= xs[k - 1])
+                throw new IllegalArgumentException("curves: bad point " + xs[k] + ", " + ys[k]);
+        }
+        // Monotone cubic interpolation (Fritsch-Carlson): the tangents at the
+        // points are limited so that the curve does not overshoot.
+        double[] d= new double[n - 1]; // slopes of the segments
+        for (int k= 0; k < n - 1; k++) d[k]= (ys[k + 1] - ys[k]) / (double) (xs[k + 1] - xs[k]);
+        double[] m= new double[n];     // tangents at the points
+        m[0]= d[0];
+        m[n - 1]= d[n - 2];
+        for (int k= 1; k < n - 1; k++) m[k]= d[k - 1] * d[k] <= 0 ? 0 : (d[k - 1] + d[k]) / 2;
+        for (int k= 0; k < n - 1; k++) {
+            if (d[k] == 0) {
+                m[k]= 0;
+                m[k + 1]= 0;
+                continue;
+            }
+            double a= m[k] / d[k], b= m[k + 1] / d[k];
+            double s= a * a + b * b;
+            if (s > 9) {
+                double t= 3 / Math.sqrt(s);
+                m[k]= t * a * d[k];
+                m[k + 1]= t * b * d[k];
+            }
+        }
+        int[] lut= new int[256];
+        int k= 0;
+        for (int v= 0; v < 256; v++) {
+            if (v <= xs[0]) {
+                lut[v]= ys[0];
+                continue;
+            }
+            if (v >= xs[n - 1]) {
+                lut[v]= ys[n - 1];
+                continue;
+            }
+            while (v > xs[k + 1]) k++;
+            double h= xs[k + 1] - xs[k];
+            double t= (v - xs[k]) / h;
+            double y= (2*t*t*t - 3*t*t + 1) * ys[k] + (t*t*t - 2*t*t + t) * h * m[k]
+                    + (-2*t*t*t + 3*t*t) * ys[k + 1] + (t*t*t - t*t) * h * m[k + 1];
+            lut[v]= (int) Math.min(255, Math.max(0, Math.round(y)));
+        }
+        return new Lookup(lut);
+    }
+
+    /** Return a hue/saturation adjustment: hue rotated by hue degrees
+     * (-180..180), saturation changed by saturation percent (-100, gray,
+     * .. 100, double) and lightness by lightness percent (-100, black, ..
+     * 100, white). Throw an IllegalArgumentException if an argument is out
+     * of range. */
+    public static Filter hueSaturation(int hue, int saturation, int lightness) {
+        if (hue < -180  ||  hue > 180  ||  saturation < -100  ||  saturation > 100
+                ||  lightness < -100  ||  lightness > 100)
+            throw new IllegalArgumentException("hueSaturation: " + hue + ", " + saturation + ", " + lightness);
+        return new HueSaturation(hue, saturation, lightness);
+    }
+
+    /** Return true iff v is in 0..255. */
+    private static boolean in255(int v) {
+        return 0 <= v  &&  v <= 255;
+    }
+
+    /** A blur that is a separable convolution with a symmetric kernel. */
+    private abstract static class Convolution extends Filter {
+        private final int[] kernel; // weights, in units of 1/ONE, summing to ONE
+        private final int r;        // radius of the kernel
+
+        /** Constructor: a convolution with kernel k (of odd length). */
+        Convolution(int[] k) {
+            kernel= k;
+            r= k.length / 2;
+        }
+
+        @Override public int halo() {
+            return r;
+        }
+
+        @Override void filter(int[] src, int[] dst, int w, int h, Scratch s) {
+            blur(src, dst, w, h, s);
+        }
+
+        /** Put the blur of src (as in filter) in dst, unpremultiplied. Use
+         * long work buffers 0..5 of s.
+         *
+         * Each premultiplied pixel is spread into two longs, red and blue
+         * in one and alpha and green in the other, each channel in a 32-bit
+         * lane; a sum of channels times weights (at most 255 ONE) fits in a
+         * lane, so one multiplication weighs two channels. */
+        void blur(int[] src, int[] dst, int w, int h, Scratch s) {
+            int sw= w + 2 * r, sh= h + 2 * r;
+            long[] rb= s.getLongs(0, sw * sh), ag= s.getLongs(1, sw * sh);
+            long[] midRb= s.getLongs(2, w * sh), midAg= s.getLongs(3, w * sh);
+            for (int i= 0; i < sw * sh; i++) {
+                int p= premultiply(src[i]);
+                rb[i]= (long) (p >> 16 & 0xFF) << 32 | p & 0xFF;
+                ag[i]= (long) (p >>> 24) << 32 | p >> 8 & 0xFF;
+            }
+
+            // Along rows: sh rows of w pixels.
+            long[] acc1= s.getLongs(4, w), acc2= s.getLongs(5, w);
+            for (int y= 0; y < sh; y++) {
+                int row= y * sw;
+                convolveRow(rb, ag, row, 1, w, acc1, acc2);
+                for (int x= 0, o= y * w; x < w; x++, o++) {
+                    midRb[o]= round(acc1[x]);
+                    midAg[o]= round(acc2[x]);
+                }
+            }
+            // Along columns: h rows of w pixels.
+            for (int y= 0; y < h; y++) {
+                convolveRow(midRb, midAg, y * w, w, w, acc1, acc2);
+                for (int x= 0, o= y * w; x < w; x++, o++) {
+                    long v1= round(acc1[x]), v2= round(acc2[x]);
+                    dst[o]= unpremultiply((int) (v2 >>> 32) << 24 | (int) (v1 >>> 32) << 16 | (int) v2 << 8 | (int) v1);
+                }
+            }
+        }
+
+        /** Set acc1[0..w-1] and acc2[0..w-1] to the sums of the pixels of
+         * lanes l1 and l2 times the kernel: the sum for x is over taps k of
+         * kernel[k] times the pixel at first + x + k * step. The loops go
+         * along x innermost, so that reads and writes are sequential, and
+         * the kernel is symmetric, so taps k and n-1-k are weighed together. */
+        private void convolveRow(long[] l1, long[] l2, int first, int step, int w, long[] acc1, long[] acc2) {
+            int n= kernel.length;
+            int c= kernel[r];
+            for (int x= 0, m= first + r * step; x < w; x++, m++) {
+                acc1[x]= l1[m] * c;
+                acc2[x]= l2[m] * c;
+            }
+            for (int k= 0; k < r; k++) {
+                c= kernel[k];
+                int i= first + k * step, j= first + (n - 1 - k) * step;
+                for (int x= 0; x < w; x++) {
+                    acc1[x] += (l1[i + x] + l1[j + x]) * c;
+                    acc2[x] += (l2[i + x] + l2[j + x]) * c;
+                }
+            }
+        }
+
+        /** Return the two lanes of sums v (units of 1/ONE) rounded to 0..255. */
+        private static long round(long v) {
+            return (v + LANE_HALF) >>> 16 & LANE_MASK;
+        }
+
+        /** Return a kernel of weights w (of odd length) in units of 1/ONE
+         * summing to ONE exactly (the rounding error goes to the middle). */
+        static int[] normalize(double[] w) {
+            double sum= 0;
+            for (double v : w) sum += v;
+            int[] k= new int[w.length];
+            int total= 0;
+            for (int i= 0; i < w.length; i++) {
+                k[i]= (int) Math.round(w[i] / sum * ONE);
+                total += k[i];
+            }
+            k[w.length / 2] += ONE - total;
+            return k;
+        }
+    }
+
+    /** A Gaussian blur. */
+    private static final class Gaussian extends Convolution {
+        private final double sigma;
+
+        Gaussian(double sigma) {
+            super(kernel(sigma));
+            this.sigma= sigma;
+        }
+
+        /** Return the kernel of standard deviation sigma, to 3 sigma. */
+        static int[] kernel(double sigma) {
+            int r= (int) Math.ceil(3 * sigma);
+            double[] w= new double[2 * r + 1];
+            for (int i= -r; i <= r; i++) w[i + r]= sigma == 0 ? 1 : Math.exp(-i * i / (2 * sigma * sigma));
+            return normalize(w);
+        }
+
+        @Override public Filter scaled(double s) {
+            return new Gaussian(sigma * s);
+        }
+    }
+
+    /** A box blur. */
+    private static final class Box extends Convolution {
+        private final int radius;
+
+        Box(int radius) {
+            super(kernel(radius));
+            this.radius= radius;
+        }
+
+        /** Return the kernel of radius r: all weights equal. */
+        static int[] kernel(int r) {
+            double[] w= new double[2 * r + 1];
+            Arrays.fill(w, 1);
+            return normalize(w);
+        }
+
+        @Override public Filter scaled(double s) {
+            return new Box((int) Math.round(radius * s));
+        }
+    }
+
+    /** An unsharp mask. */
+    private static final class Unsharp extends Filter {
+        private final Gaussian blur;
+        private final double radius;
+        private final int amount;    // percent
+        private final int threshold; // least difference sharpened
+
+        Unsharp(double radius, int amount, int threshold) {
+            blur= new Gaussian(radius);
+            this.radius= radius;
+            this.amount= amount;
+            this.threshold= threshold;
+        }
+
+        @Override public int halo() {
+            return blur.halo();
+        }
+
+        @Override public Filter scaled(double s) {
+            return new Unsharp(radius * s, amount, threshold);
+        }
+
+        @Override void filter(int[] src, int[] dst, int w, int h, Scratch s) {
+            int r= blur.halo(), sw= w + 2 * r;
+            blur.blur(src, dst, w, h, s);
+            int f= (amount << 8) / 100; // amount, in units of 1/256
+            for (int y= 0; y < h; y++) {
+                for (int x= 0, o= y * w, i= (y + r) * sw + r; x < w; x++, o++, i++) {
+                    int p= src[i], q= dst[o];
+                    dst[o]= p & 0xFF000000 | sharpen(p >> 16 & 0xFF, q >> 16 & 0xFF, f) << 16
+                            | sharpen(p >> 8 & 0xFF, q >> 8 & 0xFF, f) << 8 | sharpen(p & 0xFF, q & 0xFF, f);
+                }
+            }
+        }
+
+        /** Return channel value v moved away from its blur b by f/256 of
+         * the difference, if that is at least threshold. */
+        private int sharpen(int v, int b, int f) {
+            int d= v - b;
+            if (Math.abs(d) < threshold) return v;
+            return Math.min(255, Math.max(0, v + (d * f >> 8)));
+        }
+    }
+
+    /** A change of R, G and B through a table. */
+    private static final class Lookup extends Filter {
+        private final int[] lut; // new value of each value 0..255
+
+        Lookup(int[] lut) {
+            this.lut= lut;
+        }
+
+        @Override void filter(int[] src, int[] dst, int w, int h, Scratch s) {
+            for (int i= 0; i < w * h; i++) {
+                int p= src[i];
+                dst[i]= p & 0xFF000000 | lut[p >> 16 & 0xFF] << 16 | lut[p >> 8 & 0xFF] << 8 | lut[p & 0xFF];
+            }
+        }
+    }
+
+    /** A change of hue, saturation and lightness. */
+    private static final class HueSaturation extends Filter {
+        private final float hue;        // rotation, in turns
+        private final float saturation; // factor
+        private final float lightness;  // -1..1
+
+        HueSaturation(int hue, int saturation, int lightness) {
+            this.hue= hue / 360f;
+            this.saturation= 1 + saturation / 100f;
+            this.lightness= lightness / 100f;
+        }
+
+        @Override void filter(int[] src, int[] dst, int w, int h, Scratch s) {
+            int last= ~src[0]; // a pixel other than the first, so that it is converted
+            int out= 0;
+            for (int i= 0; i < w * h; i++) {
+                int p= src[i];
+                // Runs of one color are common (e.g. in drawings); convert them once.
+                if (p != last) {
+                    last= p;
+                    out= p & 0xFF000000 | adjust(p & 0xFFFFFF);
+                }
+                dst[i]= out;
+            }
+        }
+
+        /** Return RGB color rgb adjusted. */
+        private int adjust(int rgb) {
+            float r= (rgb >> 16 & 0xFF) / 255f, g= (rgb >> 8 & 0xFF) / 255f, b= (rgb & 0xFF) / 255f;
+            float max= Math.max(r, Math.max(g, b)), min= Math.min(r, Math.min(g, b));
+            float l= (max + min) / 2;
+            float h= 0, sat= 0;
+            if (max > min) {
+                float d= max - min;
+                sat= l > 0.5f ? d / (2 - max - min) : d / (max + min);
+                if (max == r) h= (g - b) / d + (g < b ? 6 : 0);
+                else if (max == g) h= (b - r) / d + 2;
+                else h= (r - g) / d + 4;
+                h /= 6;
+            }
+            h += hue;
+            h -= (float) Math.floor(h);
+            sat= Math.min(1, sat * saturation);
+            l= lightness >= 0 ? l + (1 - l) * lightness : l * (1 + lightness);
+            if (sat == 0) {
+                int v= Math.round(l * 255);
+                return v << 16 | v << 8 | v;
+            }
+            float q= l < 0.5f ? l * (1 + sat) : l + sat - l * sat;
+            float pp= 2 * l - q;
+            return channel(pp, q, h + 1 / 3f) << 16 | channel(pp, q, h) << 8 | channel(pp, q, h - 1 / 3f);
+        }
+
+        /** Return a channel (0..255) of HSL: the standard helper of hue t. */
+        private static int channel(float p, float q, float t) {
+            if (t < 0) t += 1;
+            if (t > 1) t -= 1;
+            float v;
+            if (t < 1 / 6f) v= p + (q - p) * 6 * t;
+            else if (t < 1 / 2f) v= q;
+            else if (t < 2 / 3f) v= p + (q - p) * (2 / 3f - t) * 6;
+            else v= p;
+            return Math.min(255, Math.max(0, Math.round(v * 255)));
+        }
+    }
+
+    /** Return ARGB pixel p with its color multiplied by its alpha. */
+    static int premultiply(int p) {
+        int a= p >>> 24;
+        if (a == 255) return p;
+        if (a == 0) return 0;
+        int r= ((p >> 16 & 0xFF) * a + 127) / 255;
+        int g= ((p >> 8 & 0xFF) * a + 127) / 255;
+        int b= ((p & 0xFF) * a + 127) / 255;
+        return a << 24 | r << 16 | g << 8 | b;
+    }
+
+    /** Return premultiplied pixel p as ARGB. */
+    static int unpremultiply(int p) {
+        int a= p >>> 24;
+        if (a == 255) return p;
+        if (a == 0) return 0;
+        int r= Math.min(255, ((p >> 16 & 0xFF) * 255 + a / 2) / a);
+        int g= Math.min(255, ((p >> 8 & 0xFF) * 255 + a / 2) / a);
+        int b= Math.min(255, ((p & 0xFF) * 255 + a / 2) / a);
+        return a << 24 | r << 16 | g << 8 | b;
+    }
+}
@@ -0,0 +1,367 @@
+import java.util.Arrays;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+
+/** An instance fills areas of a TiledImage with a color, as a paint
+ * bucket does: the pixels whose color is within a tolerance of the color
+ * at a seed pixel, either only those connected to the seed (contiguous) or
+ * all of them (global). With a selection, only selected pixels are filled
+ * (and a contiguous fill does not spread through the others); tiles outside
+ * the selection are not looked at.
+ *
+ * A contiguous fill is a scanline span fill that works directly on the
+ * int[] pixels of the tiles. Each tile is grown by one task at a time: a
+ * span that reaches the edge of a tile is handed to the neighboring tile
+ * as a seed, and the tile is given a task if it has none. Tiles are thus
+ * filled in parallel on a ForkJoinPool as the fill spreads. A global fill
+ * is a task per tile. The only allocations are per tile (a bitmap of the
+ * pixels filled and a seed stack), never per pixel. */
+class FloodFill {
+    private static final int T= TiledImage.TILE_SIZE;
+    private static final int SHIFT= TiledImage.TILE_SHIFT;
+
+    private final ForkJoinPool pool; // runs the tasks
+
+    /** Guards writableTileData: the image and its write listener (the undo
+     * history) are not thread-safe. */
+    private final Object writeLock= new Object();
+
+    // The fill being done (see fill).
+    private TiledImage img;
+    private Selection selection; // pixels that may be filled (null: all)
+    private int ref;       // color at the seed
+    private int tolerance; // largest difference of a channel from ref
+    private int color;     // color to fill with
+    private Tile[] tiles;  // state of each tile reached (null if none)
+
+    /** Constructor: a fill that runs its tasks on the common pool. */
+    public FloodFill() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /** Constructor: a fill that runs its tasks on pool p. */
+    public FloodFill(ForkJoinPool p) {
+        pool= p;
+    }
+
+    /** The state of the fill in one tile. Its seeds are spans, each packed
+     * as (row << 16) | (first x << 8) | last x, in tile coordinates. */
+    private final class Tile {
+        final int col, row;  // position of the tile
+        final int w, h;      // size of the part of the tile in the image
+        int[] pixels;        // pixels of the tile (writable once filled)
+        boolean writable;    // true iff pixels is writable
+        long[] filled;       // bit per pixel filled (contiguous fill only)
+        boolean uniform;     // true iff the tile is not allocated and its color matches
+        final long[] mask;   // the selected pixels of a tile partly selected, else null
+
+        // Seeds handed over by other tiles; guarded by this.
+        int[] inbox= new int[16];
+        int inboxSize;
+        boolean scheduled; // true iff a task will process the inbox
+
+        int minX= T, minY= T, maxX= -1, maxY= -1; // bounds of the pixels filled
+
+        Tile(int col, int row) {
+            this.col= col;
+            this.row= row;
+            w= Math.min(T, img.getWidth() - (col << SHIFT));
+            h= Math.min(T, img.getHeight() - (row << SHIFT));
+            pixels= img.tileData(col, row);
+            uniform= !img.isAllocated(col, row)  &&  matches(img.getBackground());
+            mask= selection == null ? null : selection.tileBits(col, row);
+        }
+
+        /** Fill all of the tile with color. */
+        void fillAll() {
+            makeWritable();
+            Arrays.fill(pixels, color);
+            minX= 0;
+            minY= 0;
+            maxX= w - 1;
+            maxY= h - 1;
+        }
+
+        /** Make pixels writable, if not yet. */
+        void makeWritable() {
+            if (writable) return;
+            synchronized (writeLock) {
+                pixels= img.writableTileData(col, row);
+            }
+            writable= true;
+        }
+    }
+
+    /** Fill the pixels of img connected to (x, y) (if contiguous) or all
+     * pixels of img (if not) whose color is within tolerance of the color
+     * at (x, y) with color c (ARGB), but only pixels of selection sel if it
+     * is not null. Two colors are within t iff none of their channels
+     * (alpha included) differ by more than t. Return the smallest rectangle
+     * {x, y, w, h} containing the pixels filled, or null if (x, y) is
+     * outside img or (for a contiguous fill) outside sel. */
+    public synchronized int[] fill(TiledImage img, Selection sel, int x, int y, int c, int tolerance, boolean contiguous) {
+        if (x < 0  ||  y < 0  ||  x >= img.getWidth()  ||  y >= img.getHeight()) return null;
+        if (contiguous  &&  sel != null  &&  !sel.contains(x, y)) return null;
+        if (tolerance < 0) throw new IllegalArgumentException("fill: tolerance " + tolerance);
+        this.img= img;
+        selection= sel;
+        ref= img.getRGB(x, y);
+        this.tolerance= tolerance;
+        color= c;
+        tiles= new Tile[img.getCols() * img.getRows()];
+        try {
+            if (contiguous) {
+                pool.invoke(new Root(x, y));
+            } else {
+                pool.invoke(new Root(-1, -1));
+            }
+            return bounds();
+        } finally {
+            this.img= null;
+            selection= null;
+            tiles= null;
+        }
+    }
+
+    /** Return the bounds of the pixels filled, as in fill. */
+    private int[] bounds() {
+        int x0= Integer.MAX_VALUE, y0= Integer.MAX_VALUE, x1= -1, y1= -1;
+        for (Tile t : tiles) {
+            if (t == null  ||  t.maxX < 0) continue;
+            x0= Math.min(x0, (t.col << SHIFT) + t.minX);
+            y0= Math.min(y0, (t.row << SHIFT) + t.minY);
+            x1= Math.max(x1, (t.col << SHIFT) + t.maxX);
+            y1= Math.max(y1, (t.row << SHIFT) + t.maxY);
+        }
+        if (x1 < 0) return new int[] {0, 0, 0, 0};
+        return new int[] {x0, y0, x1 - x0 + 1, y1 - y0 + 1};
+    }
+
+    /** Return true iff color p is within the tolerance of the seed color. */
+    private boolean matches(int p) {
+        if (p == ref) return true;
+        int t= tolerance;
+        return Math.abs((p >>> 24) - (ref >>> 24)) <= t
+                &&  Math.abs((p >> 16 & 0xFF) - (ref >> 16 & 0xFF)) <= t
+                &&  Math.abs((p >> 8 & 0xFF) - (ref >> 8 & 0xFF)) <= t
+                &&  Math.abs((p & 0xFF) - (ref & 0xFF)) <= t;
+    }
+
+    /** The root task: seeds the fill and completes when all tiles are done. */
+    private final class Root extends CountedCompleter<Void> {
+        private static final long serialVersionUID = 201801;
+
+        final int x, y; // the seed, or -1 for a global fill
+
+        Root(int x, int y) {
+            this.x= x;
+            this.y= y;
+        }
+
+        @Override public void compute() {
+            if (x < 0) {
+                int n= img.getCols() * img.getRows();
+                setPendingCount(n);
+                for (int i= 0; i < n; i++) new Global(this, i).fork();
+            } else {
+                int col= x >> SHIFT, row= y >> SHIFT;
+                int lx= x & (T - 1);
+                handOver(this, col, row, ((y & (T - 1)) << 16) | (lx << 8) | lx);
+            }
+            tryComplete();
+        }
+    }
+
+    /** Give tile (col, row) seed span s, and a task to grow it if it has
+     * none. The task is a child of root. */
+    private void handOver(CountedCompleter<?> root, int col, int row, int s) {
+        if (selection != null  &&  selection.tileState(col, row) == Selection.EMPTY) return;
+        int i= row * img.getCols() + col;
+        Tile t;
+        synchronized (tiles) {
+            t= tiles[i];
+            if (t == null) {
+                t= tiles[i]= new Tile(col, row);
+                t.filled= new long[T * T / 64];
+                // Pixels that are not selected count as filled: the fill stops at them.
+                if (t.mask != null) for (int k= 0; k < t.filled.length; k++) t.filled[k]= ~t.mask[k];
+            }
+        }
+        synchronized (t) {
+            if (t.inboxSize == t.inbox.length) t.inbox= Arrays.copyOf(t.inbox, 2 * t.inboxSize);
+            t.inbox[t.inboxSize++]= s;
+            if (t.scheduled) return;
+            t.scheduled= true;
+        }
+        root.addToPendingCount(1);
+        new Grow(root, t).fork();
+    }
+
+    /** A task that grows the fill in one tile until it has no seeds left. */
+    private final class Grow extends CountedCompleter<Void> {
+        private static final long serialVersionUID = 201801;
+
+        final CountedCompleter<?> root;
+        final Tile t;
+        int[] stack= new int[64]; // seeds to process
+        int size;
+
+        Grow(CountedCompleter<?> root, Tile t) {
+            super(root);
+            this.root= root;
+            this.t= t;
+        }
+
+        @Override public void compute() {
+            if (t.uniform  &&  t.mask == null) {
+                // All of the tile is connected to its seeds: fill it at once.
+                t.uniform= false;
+                t.fillAll();
+                Arrays.fill(t.filled, -1L);
+                int all= t.w - 1;
+                if (t.row > 0) handOver(root, t.col, t.row - 1, ((T - 1) << 16) | all);
+                if (t.h == T  &&  ((t.row + 1) << SHIFT) < img.getHeight()) handOver(root, t.col, t.row + 1, all);
+                for (int y= 0; y < t.h; y++) {
+                    if (t.col > 0) handOver(root, t.col - 1, t.row, (y << 16) | ((T - 1) << 8) | (T - 1));
+                    if (t.w == T  &&  ((t.col + 1) << SHIFT) < img.getWidth()) handOver(root, t.col + 1, t.row, y << 16);
+                }
+            }
+            while (true) {
+                synchronized (t) {
+                    if (t.inboxSize == 0) {
+                        t.scheduled= false;
+                        break;
+                    }
+                    // Swap the inbox with the (empty) stack.
+                    int[] in= t.inbox;
+                    size= t.inboxSize;
+                    t.inbox= stack;
+                    t.inboxSize= 0;
+                    stack= in;
+                }
+                while (size > 0) span(stack[--size]);
+            }
+            tryComplete();
+        }
+
+        /** Push seed span s of this tile. */
+        private void push(int s) {
+            if (size == stack.length) stack= Arrays.copyOf(stack, 2 * size);
+            stack[size++]= s;
+        }
+
+        /** Fill each run of matching pixels not yet filled that overlaps
+         * seed span s, and seed the rows above and below those runs. */
+        private void span(int s) {
+            int y= s >>> 16, x= s >> 8 & 0xFF, last= s & 0xFF;
+            int[] p= t.pixels;
+            long[] filled= t.filled;
+            int base= y << SHIFT;
+            while (x <= last) {
+                int k= base + x;
+                // Skip the pixels already filled, a word of the bitmap at a time.
+                long free= ~filled[k >> 6] >>> k;
+                if (free == 0) {
+                    x= ((k | 63) + 1) - base;
+                    continue;
+                }
+                x += Long.numberOfTrailingZeros(free);
+                if (x > last) break;
+                k= base + x;
+                if (!matches(p[k])) {
+                    x++;
+                    continue;
+                }
+                // Extend the run left and right of x.
+                int l= x, r= x;
+                while (l > 0  &&  (filled[(k= base + l - 1) >> 6] & 1L << k) == 0  &&  matches(p[k])) l--;
+                while (r < t.w - 1  &&  (filled[(k= base + r + 1) >> 6] & 1L << k) == 0  &&  matches(p[k])) r++;
+
+                t.makeWritable();
+                p= t.pixels;
+                Arrays.fill(p, base + l, base + r + 1, color);
+                setBits(filled, base + l, base + r);
+                if (l < t.minX) t.minX= l;
+                if (r > t.maxX) t.maxX= r;
+                if (y < t.minY) t.minY= y;
+                if (y > t.maxY) t.maxY= y;
+
+                int run= (l << 8) | r;
+                if (y > 0) push(((y - 1) << 16) | run);
+                else if (t.row > 0) handOver(root, t.col, t.row - 1, ((T - 1) << 16) | run);
+                if (y < t.h - 1) push(((y + 1) << 16) | run);
+                else if (((t.row + 1) << SHIFT) < img.getHeight()) handOver(root, t.col, t.row + 1, run);
+                if (l == 0  &&  t.col > 0) handOver(root, t.col - 1, t.row, (y << 16) | ((T - 1) << 8) | (T - 1));
+                if (r == T - 1  &&  ((t.col + 1) << SHIFT) < img.getWidth()) handOver(root, t.col + 1, t.row, y << 16);
+                x= r + 2; // r + 1 does not match or is outside the tile
+            }
+        }
+    }
+
+    /** Set bits i..j of bitmap b. */
+    private static void setBits(long[] b, int i, int j) {
+        int wi= i >> 6, wj= j >> 6;
+        long first= -1L << i, last= -1L >>> (63 - (j & 63));
+        if (wi == wj) {
+            b[wi] |= first & last;
+            return;
+        }
+        b[wi] |= first;
+        for (int w= wi + 1; w < wj; w++) b[w]= -1L;
+        b[wj] |= last;
+    }
+
+    /** A task that fills the matching pixels of one tile (global fill). */
+    private final class Global extends CountedCompleter<Void> {
+        private static final long serialVersionUID = 201801;
+
+        final int i; // index of the tile
+
+        Global(CountedCompleter<?> root, int i) {
+            super(root);
+            this.i= i;
+        }
+
+        @Override public void compute() {
+            int col= i % img.getCols(), row= i / img.getCols();
+            if (selection != null  &&  selection.tileState(col, row) == Selection.EMPTY) {
+                tryComplete();
+                return;
+            }
+            Tile t= new Tile(col, row);
+            // A tile that is not allocated has one color: all or none of it matches.
+            if (t.uniform  &&  t.mask == null) t.fillAll();
+            else if (t.uniform  ||  img.isAllocated(col, row)) fillMatching(t);
+            synchronized (tiles) {
+                tiles[i]= t;
+            }
+            tryComplete();
+        }
+
+        /** Fill the matching (and selected) pixels of tile t. */
+        private void fillMatching(Tile t) {
+            int[] p= t.pixels;
+            long[] mask= t.mask;
+            for (int y= 0; y < t.h; y++) {
+                int base= y << SHIFT;
+                int first= -1, last= -1; // first and last pixel of the row filled
+                for (int x= 0; x < t.w; x++) {
+                    int k= base + x;
+                    if (mask != null  &&  (mask[k >> 6] & 1L << k) == 0  ||  !matches(p[k])) continue;
+                    if (first < 0) {
+                        t.makeWritable();
+                        p= t.pixels;
+                        first= x;
+                    }
+                    p[base + x]= color;
+                    last= x;
+                }
+                if (first < 0) continue;
+                if (first < t.minX) t.minX= first;
+                if (last > t.maxX) t.maxX= last;
+                if (y < t.minY) t.minY= y;
+                t.maxY= y;
+            }
+        }
+    }
+}
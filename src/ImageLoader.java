@@ -0,0 +1,413 @@
+import java.awt.Rectangle;
+import java.awt.image.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import javax.imageio.*;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.SwingUtilities;
+
+/** An instance opens an image file progressively, so that a huge image
+ * can be shown (and zoomed and panned) long before it is fully decoded.
+ *
+ * open(f) reads only the header of the file, which gives the size of the
+ * image. start(...) then decodes the pixels on a background thread into a
+ * TiledImage, telling a Sink which areas are ready:
+ *  - If the file has a thumbnail, it is first scaled up into the whole
+ *    image as a preview.
+ *  - If the format can decode any region of the image without decoding
+ *    the rest (tiled images and TIFF), the image is decoded in regions of
+ *    REGION x REGION pixels, those nearest the area the sink shows first.
+ *  - Otherwise (e.g. PNG and JPEG, which are compressed as one stream),
+ *    the image is decoded from top to bottom into a buffer of a few rows
+ *    (or, if the decoder needs the whole image, in bands of at most
+ *    BAND_PIXELS pixels), and rows are copied into the image as the
+ *    decoder produces them.
+ * Tiles whose pixels are all the background color of the image are not
+ * allocated. */
+class ImageLoader {
+    /** Width and height of the regions decoded one at a time. */
+    public static final int REGION= 2 * TiledImage.TILE_SIZE;
+
+    /** Rows decoded by a sequential decoder before they are copied. */
+    private static final int BAND= 32;
+
+    /** Largest number of pixels a sequential decoder decodes in one read
+     * into an image of its own. Each read decodes the file from its start,
+     * skipping the rows above its band, so bands are as large as this
+     * allows, and are used only when a Ring cannot be. */
+    private static final int BAND_PIXELS= 1 << 24;
+
+    /** The receiver of the pixels, called on the loader thread. */
+    public interface Sink {
+        /** The rectangle with top-left corner (x, y), width w and height h
+         * of the image has new pixels. */
+        void loaded(int x, int y, int w, int h);
+
+        /** Return the area of the image to decode first (e.g. the area
+         * shown), or null if none. */
+        Rectangle priority();
+    }
+
+    /** The receiver of the progress of the load, called on the EDT. */
+    public interface Listener {
+        /** Opening f is percent (0..100) done. */
+        void progress(File f, int percent);
+
+        /** Opening f ended: successfully if exc is null, otherwise with
+         * error exc. */
+        void done(File f, IOException exc);
+    }
+
+    private final File file;          // the file
+    private final ImageInputStream in; // its contents
+    private final ImageReader reader; // decoder of in
+    private final int width;  // width of the image
+    private final int height; // height of the image
+
+    private volatile boolean cancelled; // true iff the load should stop
+    private int reported= -1; // last percent reported to the listener
+
+    /** Return a loader of image file f, having read its header.
+     * Throw an IOException if f cannot be read or has no known format. */
+    public static ImageLoader open(File f) throws IOException {
+        ImageInputStream in= ImageIO.createImageInputStream(f);
+        if (in == null) throw new IOException("cannot read " + f);
+        Iterator<ImageReader> readers= ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) {
+            in.close();
+            throw new IOException("unknown image format: " + f.getName());
+        }
+        ImageReader r= readers.next();
+        r.setInput(in, false, true);
+        try {
+            return new ImageLoader(f, in, r, r.getWidth(0), r.getHeight(0));
+        } catch (IOException | RuntimeException exc) {
+            r.dispose();
+            in.close();
+            throw exc;
+        }
+    }
+
+    /** Constructor: a loader of file f, whose contents in are decoded by r
+     * into an image of size (w, h). */
+    private ImageLoader(File f, ImageInputStream in, ImageReader r, int w, int h) {
+        file= f;
+        this.in= in;
+        reader= r;
+        width= w;
+        height= h;
+    }
+
+    /** Return the width of the image. */
+    public int getWidth() {
+        return width;
+    }
+
+    /** Return the height of the image. */
+    public int getHeight() {
+        return height;
+    }
+
+    /** Start decoding the image into dst, which must have the size of the
+     * image, on a new thread. Tell sink which areas have been decoded and
+     * l (if not null) how the load goes. */
+    public void start(TiledImage dst, Sink sink, Listener l) {
+        Thread t= new Thread(() -> run(dst, sink, l), "image-loader");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** Stop decoding as soon as possible. The listener is not told. */
+    public void cancel() {
+        cancelled= true;
+        reader.abort();
+    }
+
+    /** Decode the image into dst, telling sink and l. */
+    private void run(TiledImage dst, Sink sink, Listener l) {
+        IOException error= null;
+        try {
+            if (reader.getNumThumbnails(0) > 0) {
+                preview(reader.readThumbnail(0, 0), dst, sink);
+            }
+            if (reader.isImageTiled(0)  ||  reader.getFormatName().toLowerCase().startsWith("tif")) {
+                readRegions(dst, sink, l);
+            } else {
+                readSequentially(dst, sink, l);
+            }
+        } catch (IOException exc) {
+            error= exc;
+        } catch (RuntimeException exc) {
+            // Decoders throw e.g. IllegalStateException for corrupt files.
+            error= new IOException(exc.toString(), exc);
+        } finally {
+            reader.dispose();
+            try {
+                in.close();
+            } catch (IOException exc) {
+                System.err.println(exc.getMessage());
+            }
+        }
+        IOException e= error;
+        if (l != null  &&  !cancelled) SwingUtilities.invokeLater(() -> l.done(file, e));
+    }
+
+    /** Scale thumbnail thumb up into the whole of dst and tell sink. */
+    private void preview(BufferedImage thumb, TiledImage dst, Sink sink) {
+        int tw= thumb.getWidth();
+        int th= thumb.getHeight();
+        int[] src= thumb.getRGB(0, 0, tw, th, null, 0, tw);
+        int[] row= new int[width];
+        for (int y= 0; y < height  &&  !cancelled; y++) {
+            int sy= (int) ((long) y * th / height) * tw;
+            for (int x= 0; x < width; x++) row[x]= src[sy + (int) ((long) x * tw / width)];
+            dst.setRGBSparse(0, y, width, 1, row, 0, width);
+        }
+        sink.loaded(0, 0, width, height);
+    }
+
+    /** Decode the image into dst region by region, nearest to the area
+     * sink gives priority first. */
+    private void readRegions(TiledImage dst, Sink sink, Listener l) throws IOException {
+        int cols= (width + REGION - 1) / REGION;
+        int rows= (height + REGION - 1) / REGION;
+        boolean[] done= new boolean[cols * rows];
+        ImageReadParam param= reader.getDefaultReadParam();
+        Rectangle region= new Rectangle();
+        int[] buf= new int[REGION * REGION];
+        for (int n= 0; n < done.length  &&  !cancelled; n++) {
+            // Pick the region nearest the center of the priority area.
+            Rectangle p= sink.priority();
+            double cx= p == null ? 0 : p.getCenterX();
+            double cy= p == null ? 0 : p.getCenterY();
+            int best= -1;
+            double bestDist= Double.MAX_VALUE;
+            for (int i= 0; i < done.length; i++) {
+                if (done[i]) continue;
+                double dx= (i % cols + 0.5) * REGION - cx;
+                double dy= (i / cols + 0.5) * REGION - cy;
+                double d= dx * dx + dy * dy;
+                if (d < bestDist) {
+                    bestDist= d;
+                    best= i;
+                }
+            }
+            done[best]= true;
+
+            int x= best % cols * REGION;
+            int y= best / cols * REGION;
+            region.setBounds(x, y, Math.min(REGION, width - x), Math.min(REGION, height - y));
+            param.setSourceRegion(region);
+            BufferedImage b= reader.read(0, param);
+            if (cancelled) break;
+            b.getRGB(0, 0, region.width, region.height, buf, 0, region.width);
+            dst.setRGBSparse(x, y, region.width, region.height, buf, 0, region.width);
+            sink.loaded(x, y, region.width, region.height);
+            progress(l, 100 * (n + 1) / done.length);
+        }
+    }
+
+    /** Decode the image into dst from top to bottom, copying rows into dst
+     * as the decoder produces them. An image of more than BAND_PIXELS
+     * pixels is decoded once into a Ring if the decoder produces its rows
+     * in order; otherwise (e.g. an interlaced image, whose passes update
+     * rows all over it) it is decoded in bands of whole rows of tiles, at
+     * most BAND_PIXELS pixels each. */
+    private void readSequentially(TiledImage dst, Sink sink, Listener l) throws IOException {
+        Rows rows= new Rows(dst, sink);
+        reader.addIIOReadUpdateListener(rows);
+        reader.addIIOReadProgressListener(new IIOReadProgressListener() {
+            @Override public void imageProgress(ImageReader source, float percentageDone) {
+                progress(l, (int) ((rows.top + rows.rows * percentageDone / 100) * 100 / height));
+            }
+            @Override public void sequenceStarted(ImageReader source, int minIndex) {}
+            @Override public void sequenceComplete(ImageReader source) {}
+            @Override public void imageStarted(ImageReader source, int imageIndex) {}
+            @Override public void imageComplete(ImageReader source) {}
+            @Override public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {}
+            @Override public void thumbnailProgress(ImageReader source, float percentageDone) {}
+            @Override public void thumbnailComplete(ImageReader source) {}
+            @Override public void readAborted(ImageReader source) {}
+        });
+        ImageReadParam param= reader.getDefaultReadParam();
+        int bandRows= Math.max(TiledImage.TILE_SIZE, BAND_PIXELS / width / TiledImage.TILE_SIZE * TiledImage.TILE_SIZE);
+        Ring ring= bandRows < height ? Ring.create(reader.getImageTypes(0).next(), width, height) : null;
+        if (ring != null) {
+            rows.startBand(0, height, ring);
+            param.setDestination(ring.image);
+            reader.read(0, param);
+            if (cancelled) return;
+            // Rows not reported (some decoders report none) may be overwritten.
+            if (!rows.unordered  &&  rows.next >= height - Ring.ROWS) {
+                rows.copy(ring.image, height);
+                progress(l, 100);
+                return;
+            }
+            param.setDestination(null);
+        }
+        for (int top= 0; top < height  &&  !cancelled; top += bandRows) {
+            int n= Math.min(bandRows, height - top);
+            rows.startBand(top, n, null);
+            param.setSourceRegion(new Rectangle(0, top, width, n));
+            BufferedImage img= reader.read(0, param);
+            if (cancelled) return;
+            // Copy the rows the decoder did not report (some decoders report none).
+            rows.copy(img, n);
+        }
+        progress(l, 100);
+    }
+
+    /** Tell l (if not null), on the EDT, that the load is percent done,
+     * once per whole percent that is more than reported before. */
+    private void progress(Listener l, int percent) {
+        if (l == null  ||  percent <= reported) return;
+        reported= percent;
+        SwingUtilities.invokeLater(() -> l.progress(file, percent));
+    }
+
+    /** Copies the rows a sequential decoder produces (of the band of the
+     * image being decoded) into an image, BAND rows at a time. An
+     * interlaced image is decoded in several passes, each of which updates
+     * rows all over the band; during each pass the rows are copied again
+     * from the top. When the decoder writes into a Ring, rows must come in
+     * order, in a single pass; if not, the read is aborted and unordered
+     * is set. */
+    private class Rows implements IIOReadUpdateListener {
+        private final TiledImage dst; // the image
+        private final Sink sink;      // told of the rows copied
+        int top, rows; // the band is rows top..top+rows-1 of the image
+        int next; // rows 0..next-1 of the band have been copied in the current pass
+        private Ring ring; // what the decoder writes into, or null if an image of the band
+        boolean unordered; // the decoder wrote rows out of order into ring
+        private int[] buf= new int[0];
+
+        Rows(TiledImage dst, Sink sink) {
+            this.dst= dst;
+            this.sink= sink;
+        }
+
+        /** Start copying the band of n rows from row top of the image on,
+         * which the decoder writes into ring (null if an image of the band). */
+        void startBand(int top, int n, Ring ring) {
+            this.top= top;
+            rows= n;
+            next= 0;
+            this.ring= ring;
+            unordered= false;
+        }
+
+        /** Copy rows next..end-1 of img, the band (or of ring, if not null),
+         * into dst, tell sink, and set next to end. */
+        void copy(BufferedImage img, int end) {
+            if (next >= end) return;
+            int n= end - next;
+            if (buf.length < width * n) buf= new int[width * n];
+            if (ring == null) img.getRGB(0, next, width, n, buf, 0, width);
+            else ring.getRGB(next, n, buf);
+            dst.setRGBSparse(0, top + next, width, n, buf, 0, width);
+            sink.loaded(0, top + next, width, n);
+            next= end;
+        }
+
+        @Override public void imageUpdate(ImageReader source, BufferedImage theImage, int minX, int minY,
+                                          int w, int h, int periodX, int periodY, int[] bands) {
+            if (unordered) return;
+            int end= Math.min(rows, minY + (h - 1) * periodY + 1);
+            if (ring != null  &&  (periodY != 1  ||  minY < next  ||  end - next > Ring.ROWS)) {
+                unordered= true;
+                source.abort();
+                return;
+            }
+            if (end - next >= BAND  ||  end == rows) copy(theImage, end);
+        }
+
+        @Override public void passStarted(ImageReader source, BufferedImage theImage, int pass, int minPass,
+                                          int maxPass, int minX, int minY, int periodX, int periodY, int[] bands) {
+            if (ring != null  &&  (periodY != 1  ||  next > 0)) {
+                unordered= true;
+                source.abort();
+            }
+            next= 0;
+        }
+
+        @Override public void passComplete(ImageReader source, BufferedImage theImage) {}
+        @Override public void thumbnailPassStarted(ImageReader source, BufferedImage theThumbnail, int pass,
+                                                   int minPass, int maxPass, int minX, int minY,
+                                                   int periodX, int periodY, int[] bands) {}
+        @Override public void thumbnailUpdate(ImageReader source, BufferedImage theThumbnail, int minX, int minY,
+                                              int w, int h, int periodX, int periodY, int[] bands) {}
+        @Override public void thumbnailPassComplete(ImageReader source, BufferedImage theThumbnail) {}
+    }
+
+    /** The pixels of a decoder's image of the whole height of the file,
+     * of which only the last ROWS rows are kept: element i of a bank is
+     * element i % size of the same bank of an image of ROWS rows (view).
+     * A decoder that writes the rows in order thus decodes the whole file
+     * in one read, into a buffer of a few rows, if they are copied out
+     * (from view) before they are overwritten. */
+    private static final class Ring extends DataBuffer {
+        /** Number of rows kept. */
+        static final int ROWS= TiledImage.TILE_SIZE;
+
+        final BufferedImage image;        // the decoder's image
+        private final BufferedImage view; // its last ROWS rows
+        private final DataBuffer data;    // the pixels of view
+        private final int size;           // number of elements of a bank of data
+
+        /** Return a ring for images of type t of size (w, h), or null if
+         * the layout of its pixels does not allow it. */
+        static Ring create(ImageTypeSpecifier t, int w, int h) {
+            SampleModel sm= t.getSampleModel(w, h);
+            int stride= stride(sm);
+            if (stride < 0  ||  (long) stride * h > Integer.MAX_VALUE) return null;
+            SampleModel vm= t.getSampleModel(w, ROWS);
+            if (stride(vm) != stride) return null;
+            WritableRaster v= Raster.createWritableRaster(vm, null);
+            ColorModel cm= t.getColorModel();
+            return new Ring(sm, stride * h, new BufferedImage(cm, v, cm.isAlphaPremultiplied(), null));
+        }
+
+        /** Return the number of elements of a row of sm, or -1 if the rows
+         * are not laid out one after the other. */
+        private static int stride(SampleModel sm) {
+            if (sm instanceof ComponentSampleModel) return ((ComponentSampleModel) sm).getScanlineStride();
+            if (sm instanceof MultiPixelPackedSampleModel) return ((MultiPixelPackedSampleModel) sm).getScanlineStride();
+            if (sm instanceof SinglePixelPackedSampleModel) return ((SinglePixelPackedSampleModel) sm).getScanlineStride();
+            return -1;
+        }
+
+        /** Constructor: a ring of n elements a bank, laid out by sm, whose
+         * last ROWS rows are those of view. */
+        private Ring(SampleModel sm, int n, BufferedImage view) {
+            super(view.getRaster().getDataBuffer().getDataType(), n, view.getRaster().getDataBuffer().getNumBanks());
+            this.view= view;
+            data= view.getRaster().getDataBuffer();
+            size= data.getSize();
+            ColorModel cm= view.getColorModel();
+            image= new BufferedImage(cm, Raster.createWritableRaster(sm, this, null), cm.isAlphaPremultiplied(), null);
+        }
+
+        /** Store in buf, as ARGB, the n (at most ROWS) rows of the image
+         * from row y on. */
+        void getRGB(int y, int n, int[] buf) {
+            int w= view.getWidth();
+            for (int k= 0; k < n; ) {
+                int vy= (y + k) % ROWS;
+                int m= Math.min(n - k, ROWS - vy);
+                view.getRGB(0, vy, w, m, buf, k * w, w);
+                k += m;
+            }
+        }
+
+        @Override public int getElem(int bank, int i) {
+            return data.getElem(bank, i % size);
+        }
+
+        @Override public void setElem(int bank, int i, int val) {
+            data.setElem(bank, i % size, val);
+        }
+    }
+}
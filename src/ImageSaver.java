@@ -0,0 +1,173 @@
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Iterator;
+import java.util.concurrent.*;
+import java.util.function.IntConsumer;
+import java.util.zip.Deflater;
+import javax.imageio.*;
+import javax.imageio.event.IIOWriteProgressListener;
+import javax.imageio.stream.ImageOutputStream;
+import javax.swing.SwingUtilities;
+
+/** An instance saves images to files on a background thread, one at a
+ * time, so that the GUI does not freeze while a large image is encoded.
+ *
+ * Give it an image that does not change while it is saved, e.g. a
+ * TiledImage.snapshot(), or a Job that writes such data. PNG files are
+ * compressed on all cores (see PngEncoder); other formats are written by
+ * ImageIO. The file is written as a temporary file in the same directory,
+ * which is then renamed to the file (atomically, if the file system can).
+ * So a failed or interrupted save never leaves a partly written file in
+ * place of the old one. */
+class ImageSaver {
+    /** The receiver of the progress of a save, called on the EDT. */
+    public interface Listener {
+        /** Saving to f is percent (0..100) done. */
+        void progress(File f, int percent);
+
+        /** Saving to f ended: successfully if exc is null, otherwise with
+         * error exc. */
+        void done(File f, IOException exc);
+    }
+
+    /** A job that writes a file. */
+    public interface Job {
+        /** Write the whole file tmp, calling progress with how many percent
+         * (0..100) are done from time to time. */
+        void write(File tmp, IntConsumer progress) throws IOException;
+    }
+
+    /** The thread that saves. */
+    private final ExecutorService executor= Executors.newSingleThreadExecutor(r -> {
+        Thread t= new Thread(r, "image-saver");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** Encoder of PNG files, which compresses on all cores. */
+    private final PngEncoder png= new PngEncoder(Deflater.DEFAULT_COMPRESSION);
+
+    /** Return the compression level of PNG files (0..9, or
+     * Deflater.DEFAULT_COMPRESSION). */
+    public int getPngLevel() {
+        return png.getLevel();
+    }
+
+    /** Set the compression level of PNG files saved from now on to v:
+     * 0 (fastest) to 9 (smallest), or Deflater.DEFAULT_COMPRESSION.
+     * Throw an IllegalArgumentException if v is not a valid level. */
+    public void setPngLevel(int v) {
+        png.setLevel(v);
+    }
+
+    /** Start saving img to file f in format format (e.g. "png"), after the
+     * saves started before. Tell l (if not null) how it goes. */
+    public void save(RenderedImage img, File f, String format, Listener l) {
+        if (format.equalsIgnoreCase("png")) {
+            save(f, (tmp, progress) -> png.write(img, tmp, progress), l);
+            return;
+        }
+        Iterator<ImageWriter> writers= ImageIO.getImageWritersByFormatName(format);
+        save(f, (tmp, progress) -> {
+            if (!writers.hasNext()) throw new IOException("cannot write format " + format);
+            write(img, tmp, writers.next(), progress);
+        }, l);
+    }
+
+    /** Start running job to write file f, after the saves started before.
+     * Tell l (if not null) how it goes. */
+    public void save(File f, Job job, Listener l) {
+        executor.execute(() -> {
+            IOException error= null;
+            try {
+                write(f, job, l);
+            } catch (IOException exc) {
+                error= exc;
+            } catch (RuntimeException exc) {
+                // e.g. an UncheckedIOException of a lazily read tile
+                error= new IOException(exc.toString(), exc);
+            }
+            IOException e= error;
+            if (l != null) SwingUtilities.invokeLater(() -> l.done(f, e));
+        });
+    }
+
+    /** Wait up to millis milliseconds for the saves started so far to end,
+     * and start no more. Return true iff they all ended. */
+    public boolean finish(long millis) {
+        executor.shutdown();
+        try {
+            return executor.awaitTermination(millis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /** Run job to write a temporary file and rename it to f, telling l
+     * the progress. */
+    private static void write(File f, Job job, Listener l) throws IOException {
+        File dir= f.getAbsoluteFile().getParentFile();
+        File tmp= File.createTempFile(f.getName() + ".", ".tmp", dir);
+        boolean done= false;
+        try {
+            job.write(tmp, l == null ? p -> {} : new Progress(f, l));
+            try {
+                Files.move(tmp.toPath(), f.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException exc) {
+                Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            done= true;
+        } finally {
+            if (!done) tmp.delete();
+        }
+    }
+
+    /** Write img to file tmp with writer, telling progress the progress. */
+    private static void write(RenderedImage img, File tmp, ImageWriter writer, IntConsumer progress)
+            throws IOException {
+        try (ImageOutputStream out= ImageIO.createImageOutputStream(tmp)) {
+            if (out == null) throw new IOException("cannot write " + tmp);
+            writer.setOutput(out);
+            writer.addIIOWriteProgressListener(new IIOWriteProgressListener() {
+                @Override public void imageProgress(ImageWriter source, float percentageDone) {
+                    progress.accept((int) percentageDone);
+                }
+                @Override public void imageStarted(ImageWriter source, int imageIndex) {
+                    progress.accept(0);
+                }
+                @Override public void imageComplete(ImageWriter source) {
+                    progress.accept(100);
+                }
+                @Override public void thumbnailStarted(ImageWriter source, int imageIndex, int thumbnailIndex) {}
+                @Override public void thumbnailProgress(ImageWriter source, float percentageDone) {}
+                @Override public void thumbnailComplete(ImageWriter source) {}
+                @Override public void writeAborted(ImageWriter source) {}
+            });
+            writer.write(img);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /** Passes progress to a Listener on the EDT, once per whole percent. */
+    private static class Progress implements IntConsumer {
+        private final File file;
+        private final Listener listener;
+        private int reported= -1; // last percent reported
+
+        Progress(File f, Listener l) {
+            file= f;
+            listener= l;
+        }
+
+        @Override public void accept(int percent) {
+            if (percent == reported) return;
+            reported= percent;
+            SwingUtilities.invokeLater(() -> listener.progress(file, percent));
+        }
+    }
+}
@@ -0,0 +1,94 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** An instance counts durations (in nanoseconds) in buckets whose width
+ * grows with the value, as HdrHistogram does, so that any percentile is
+ * known to within 1/128 (under 1%) of its value, from 1 ns to about a
+ * minute, in a fixed array of about 30 KB.
+ *
+ * Values 0..255 have a bucket each. Above that, each power of 2
+ * [2^(k+7), 2^(k+8)) is cut into 128 buckets of width 2^k. Larger values
+ * are counted as MAX_VALUE.
+ *
+ * Recording does not allocate or lock. It must be done by one thread at a
+ * time; any thread may read, and sees the counts as they were at some time
+ * during the read. */
+class LatencyHistogram {
+    /** Largest value recorded exactly (about 68.7 s); larger ones count as it. */
+    public static final long MAX_VALUE= (1L << 36) - 1;
+
+    private static final int SUB_BITS= 7;          // 2^SUB_BITS buckets per power of 2
+    private static final int SUB= 1 << SUB_BITS;
+    private static final int BUCKETS= 2 * SUB + (36 - SUB_BITS - 1) * SUB;
+
+    private final AtomicLongArray counts= new AtomicLongArray(BUCKETS);
+    private volatile long count; // number of values recorded
+    private volatile long total; // sum of the values recorded
+    private volatile long max;   // largest value recorded
+
+    /** Record duration ns (in nanoseconds; negative counts as 0). */
+    public void record(long ns) {
+        long v= Math.min(MAX_VALUE, Math.max(0, ns));
+        int i= index(v);
+        counts.lazySet(i, counts.get(i) + 1);
+        total += v;
+        if (v > max) max= v;
+        count= count + 1; // written last: readers see at least this many
+    }
+
+    /** Return the bucket of value v, 0 <= v <= MAX_VALUE. */
+    private static int index(long v) {
+        if (v < 2 * SUB) return (int) v;
+        int k= 63 - Long.numberOfLeadingZeros(v) - SUB_BITS; // width of the buckets is 2^k
+        return 2 * SUB + (k - 1) * SUB + (int) (v >> k) - SUB;
+    }
+
+    /** Return the largest value of bucket i. */
+    private static long highest(int i) {
+        if (i < 2 * SUB) return i;
+        int k= (i - 2 * SUB) / SUB + 1;
+        long lo= (long) (SUB + (i - 2 * SUB) % SUB) << k;
+        return lo + (1L << k) - 1;
+    }
+
+    /** Return the number of values recorded. */
+    public long count() {
+        return count;
+    }
+
+    /** Return the largest value recorded (0 if none). */
+    public long max() {
+        return max;
+    }
+
+    /** Return the mean of the values recorded (0 if none). */
+    public double mean() {
+        long n= count;
+        return n == 0 ? 0 : total / (double) n;
+    }
+
+    /** Return the value at percentile p: the smallest value (to within a
+     * bucket, rounded up) that at least p percent of the values recorded are
+     * at most. Return 0 if no value was recorded.
+     * Throw an IllegalArgumentException if p is not in 0..100. */
+    public long percentile(double p) {
+        if (!(p >= 0  &&  p <= 100)) throw new IllegalArgumentException("percentile: " + p);
+        long n= 0;
+        for (int i= 0; i < BUCKETS; i++) n += counts.get(i);
+        if (n == 0) return 0;
+        long rank= Math.max(1, (long) Math.ceil(p / 100 * n));
+        long seen= 0;
+        for (int i= 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(highest(i), max);
+        }
+        return max;
+    }
+
+    /** Forget all values recorded. Call only while no value is being recorded. */
+    public void reset() {
+        for (int i= 0; i < BUCKETS; i++) counts.set(i, 0);
+        total= 0;
+        max= 0;
+        count= 0;
+    }
+}
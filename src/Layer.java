@@ -0,0 +1,65 @@
+/** An instance is a layer of a Document: an image with an opacity, a
+ * blend mode, and a visibility. Change the properties through the
+ * Document, which keeps the composite of its layers up to date. */
+public class Layer {
+    private String name;       // name shown to the user
+    private final TiledImage pixels; // the layer's image
+    private int opacity= 255;  // 0 (transparent) .. 255 (opaque)
+    private BlendMode mode= BlendMode.NORMAL;
+    private boolean visible= true;
+
+    /** Constructor: a layer named n with image p. */
+    public Layer(String n, TiledImage p) {
+        name= n;
+        pixels= p;
+    }
+
+    /** Return the name of the layer. */
+    public String getName() {
+        return name;
+    }
+
+    /** Return the image of the layer. */
+    public TiledImage getPixels() {
+        return pixels;
+    }
+
+    /** Return the opacity, 0 (transparent) .. 255 (opaque). */
+    public int getOpacity() {
+        return opacity;
+    }
+
+    /** Return the blend mode. */
+    public BlendMode getBlendMode() {
+        return mode;
+    }
+
+    /** Return true iff the layer is visible. */
+    public boolean isVisible() {
+        return visible;
+    }
+
+    /** Set the opacity to o. Throw an IllegalArgumentException if o is
+     * not in 0..255. */
+    void setOpacity(int o) {
+        if (o < 0  ||  o > 255) throw new IllegalArgumentException("setOpacity: " + o);
+        opacity= o;
+    }
+
+    /** Set the blend mode to m. Throw an IllegalArgumentException if m is null. */
+    void setBlendMode(BlendMode m) {
+        if (m == null) throw new IllegalArgumentException();
+        mode= m;
+    }
+
+    /** Make the layer visible (if b) or hidden (if !b). */
+    void setVisible(boolean b) {
+        visible= b;
+    }
+
+    /** Return true iff the layer, as the only layer, would look exactly
+     * like its image. */
+    boolean isPlain() {
+        return visible  &&  opacity == 255  &&  mode == BlendMode.NORMAL;
+    }
+}
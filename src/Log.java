@@ -0,0 +1,340 @@
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.IllegalFormatException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/** An instance writes the messages of a category (e.g. "canvas.mouse") at
+ * or above its level. All categories are OFF unless configured, with
+ * system properties:
+ *   -Dlog.level=L           the level of all categories
+ *   -Dlog.canvas=L          the level of category canvas and those under
+ *                           it (canvas.mouse, ...), and so on for any category
+ *   -Dlog.file=f            append to file f rather than System.err
+ *   -Dlog.format=json       write one JSON object per line rather than text
+ * where L is DEBUG, INFO, WARN, ERROR or OFF.
+ *
+ * A call below the level costs a read of a field: it neither formats nor
+ * allocates (but for its arguments: box them inside an isDebug() test on
+ * hot paths). A call at the level puts its format and arguments into a
+ * lock-free ring buffer, and one background thread formats and writes
+ * them, so that the threads that log (e.g. the EDT) do not wait for the
+ * console. If the buffer is full, the message is dropped (and counted)
+ * rather than waited for. Arguments are formatted later, on that thread,
+ * so they must not be changed after the call.
+ *
+ * Messages are formatted with String.format. */
+final class Log {
+    /** Levels of messages, in increasing order of importance. */
+    public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    /** Number of slots of the ring buffer (a power of 2). */
+    private static final int CAPACITY= 1 << 12;
+
+    /** The logs, by category. */
+    private static final ConcurrentHashMap<String, Log> logs= new ConcurrentHashMap<>();
+
+    // Slot i (index i & (CAPACITY-1)) of the ring buffer is a message of
+    // level level[i] of log[i], logged at time[i] (ms) on the thread named
+    // thread[i]: fmt[i] with arguments a[i], b[i], c[i] (count[i] of them;
+    // -1: a[i] is an Object[] of them; -2: a[i] is a Supplier of the message).
+    // Slot i is filled iff seq[i] is the number of the message plus 1.
+    private static final long[] time= new long[CAPACITY];
+    private static final Level[] level= new Level[CAPACITY];
+    private static final Log[] log= new Log[CAPACITY];
+    private static final String[] thread= new String[CAPACITY];
+    private static final String[] fmt= new String[CAPACITY];
+    private static final Object[] a= new Object[CAPACITY], b= new Object[CAPACITY], c= new Object[CAPACITY];
+    private static final int[] count= new int[CAPACITY];
+    private static final AtomicLongArray seq= new AtomicLongArray(CAPACITY);
+
+    // Messages head..tail-1 are claimed but not yet written. Any thread may
+    // claim (increase tail); only the writer thread increases head.
+    private static final AtomicLong tail= new AtomicLong();
+    private static volatile long head;
+    private static final AtomicLong dropped= new AtomicLong(); // messages dropped, buffer full
+
+    private static volatile Thread writer;       // the writer thread, started by the first message
+    private static volatile boolean parked;      // true iff the writer may be parked
+    private static final boolean JSON= "json".equalsIgnoreCase(System.getProperty("log.format"));
+
+    private final String category;
+    private volatile Level threshold; // messages at this level or above are written
+
+    /** Constructor: the log of category name, at its configured level. */
+    private Log(String name) {
+        category= name;
+        threshold= configured(name);
+    }
+
+    /** Return the log of category name (e.g. "canvas.mouse"). */
+    public static Log get(String name) {
+        return logs.computeIfAbsent(name, Log::new);
+    }
+
+    /** Return the level of category name given by the system properties:
+     * that of log.name, else that of the nearest enclosing category, else
+     * that of log.level, else OFF. */
+    private static Level configured(String name) {
+        for (String n= name; ; n= n.substring(0, n.lastIndexOf('.'))) {
+            String v= System.getProperty("log." + n);
+            if (v != null) return parse(v, "log." + n);
+            if (n.indexOf('.') < 0) break;
+        }
+        String v= System.getProperty("log.level");
+        return v == null ? Level.OFF : parse(v, "log.level");
+    }
+
+    /** Return the level named v, the value of property p (OFF, with a
+     * report on System.err, if there is none). */
+    private static Level parse(String v, String p) {
+        try {
+            return Level.valueOf(v.trim().toUpperCase());
+        } catch (IllegalArgumentException exc) {
+            System.err.println("Log: bad level " + v + " of " + p);
+            return Level.OFF;
+        }
+    }
+
+    /** Return the category of this log. */
+    public String getCategory() {
+        return category;
+    }
+
+    /** Return the level of this log. */
+    public Level getLevel() {
+        return threshold;
+    }
+
+    /** Write the messages of this log at level l or above from now on. */
+    public void setLevel(Level l) {
+        threshold= l;
+    }
+
+    /** Return true iff messages of level l are written. */
+    public boolean isEnabled(Level l) {
+        return l.compareTo(threshold) >= 0  &&  l != Level.OFF;
+    }
+
+    /** Return true iff DEBUG messages are written. */
+    public boolean isDebug() {
+        return threshold == Level.DEBUG;
+    }
+
+    /** Log message m at level l. */
+    public void log(Level l, String m) {
+        if (isEnabled(l)) put(l, m, 0, null, null, null);
+    }
+
+    /** Log the message of format f with argument x at level l. */
+    public void log(Level l, String f, Object x) {
+        if (isEnabled(l)) put(l, f, 1, x, null, null);
+    }
+
+    /** Log the message of format f with arguments x, y at level l. */
+    public void log(Level l, String f, Object x, Object y) {
+        if (isEnabled(l)) put(l, f, 2, x, y, null);
+    }
+
+    /** Log the message of format f with arguments x, y, z at level l. */
+    public void log(Level l, String f, Object x, Object y, Object z) {
+        if (isEnabled(l)) put(l, f, 3, x, y, z);
+    }
+
+    /** Log the message of format f with arguments args at level l. */
+    public void log(Level l, String f, Object... args) {
+        if (isEnabled(l)) put(l, f, -1, args, null, null);
+    }
+
+    /** Log the message given by m (called only if it is written) at level l. */
+    public void log(Level l, Supplier<String> m) {
+        if (isEnabled(l)) put(l, null, -2, m, null, null);
+    }
+
+    /** Log message m at level DEBUG. */
+    public void debug(String m) {
+        log(Level.DEBUG, m);
+    }
+
+    /** Log the message of format f with argument x at level DEBUG. */
+    public void debug(String f, Object x) {
+        log(Level.DEBUG, f, x);
+    }
+
+    /** Log the message of format f with arguments x, y at level DEBUG. */
+    public void debug(String f, Object x, Object y) {
+        log(Level.DEBUG, f, x, y);
+    }
+
+    /** Log the message of format f with arguments x, y, z at level DEBUG. */
+    public void debug(String f, Object x, Object y, Object z) {
+        log(Level.DEBUG, f, x, y, z);
+    }
+
+    /** Log the message given by m at level DEBUG. */
+    public void debug(Supplier<String> m) {
+        log(Level.DEBUG, m);
+    }
+
+    /** Log message m at level INFO. */
+    public void info(String m) {
+        log(Level.INFO, m);
+    }
+
+    /** Log the message of format f with argument x at level INFO. */
+    public void info(String f, Object x) {
+        log(Level.INFO, f, x);
+    }
+
+    /** Log the message of format f with arguments args at level INFO. */
+    public void info(String f, Object... args) {
+        log(Level.INFO, f, args);
+    }
+
+    /** Put a message in the ring buffer (see the slots) and wake up the
+     * writer, or drop it if the buffer is full. */
+    private void put(Level l, String f, int n, Object x, Object y, Object z) {
+        long t;
+        do {
+            t= tail.get();
+            if (t - head >= CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!tail.compareAndSet(t, t + 1));
+        int k= (int) (t & (CAPACITY - 1));
+        time[k]= System.currentTimeMillis();
+        level[k]= l;
+        log[k]= this;
+        thread[k]= Thread.currentThread().getName();
+        fmt[k]= f;
+        count[k]= n;
+        a[k]= x;
+        b[k]= y;
+        c[k]= z;
+        seq.set(k, t + 1); // publishes the slot
+        if (writer == null) startWriter();
+        if (parked) LockSupport.unpark(writer);
+    }
+
+    /** Start the writer thread, if it is not started. */
+    private static synchronized void startWriter() {
+        if (writer != null) return;
+        PrintStream out= System.err;
+        String file= System.getProperty("log.file");
+        if (file != null) {
+            try {
+                out= new PrintStream(new FileOutputStream(file, true), false, "UTF-8");
+            } catch (IOException exc) {
+                System.err.println("Log: cannot open " + file + ": " + exc.getMessage());
+            }
+        }
+        PrintStream o= out;
+        Thread w= new Thread(() -> write(o), "log-writer");
+        w.setDaemon(true);
+        w.start();
+        writer= w;
+        // Write what is left at exit, e.g. the messages of a Quit.
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(1000)));
+    }
+
+    /** Wait at most ms milliseconds until the messages logged so far are
+     * written. */
+    public static void flush(long ms) {
+        long end= System.nanoTime() + ms * 1_000_000;
+        long t= tail.get();
+        while (head < t  &&  System.nanoTime() < end) {
+            if (writer != null) LockSupport.unpark(writer);
+            LockSupport.parkNanos(1_000_000);
+        }
+    }
+
+    /** Write the messages of the ring buffer to out as they come, flushing
+     * out whenever the buffer is empty. Run by the writer thread. */
+    private static void write(PrintStream out) {
+        SimpleDateFormat date= new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        StringBuilder line= new StringBuilder();
+        long reported= 0; // messages dropped that were reported
+        while (true) {
+            long h= head;
+            int k= (int) (h & (CAPACITY - 1));
+            if (seq.get(k) != h + 1) {
+                out.flush();
+                parked= true;
+                if (seq.get(k) != h + 1) LockSupport.parkNanos(100_000_000);
+                parked= false;
+                continue;
+            }
+            String m= message(k);
+            line.setLength(0);
+            format(line, date.format(new Date(time[k])), level[k], thread[k], log[k].category, m);
+            log[k]= null;
+            a[k]= b[k]= c[k]= null;
+            head= h + 1; // frees the slot
+            out.println(line);
+            long d= dropped.get();
+            if (d > reported  &&  head == tail.get()) {
+                line.setLength(0);
+                format(line, date.format(new Date()), Level.WARN, "log-writer", "log",
+                        (d - reported) + " messages dropped: the buffer was full");
+                out.println(line);
+                reported= d;
+            }
+        }
+    }
+
+    /** Return the message of slot k, formatted. */
+    private static String message(int k) {
+        try {
+            switch (count[k]) {
+                case 0: return fmt[k];
+                case 1: return String.format(fmt[k], a[k]);
+                case 2: return String.format(fmt[k], a[k], b[k]);
+                case 3: return String.format(fmt[k], a[k], b[k], c[k]);
+                case -1: return String.format(fmt[k], (Object[]) a[k]);
+                default: return String.valueOf(((Supplier<?>) a[k]).get());
+            }
+        } catch (IllegalFormatException exc) {
+            return fmt[k] + " (bad format: " + exc.getMessage() + ")";
+        } catch (RuntimeException exc) {
+            return "(message failed: " + exc + ")";
+        }
+    }
+
+    /** Append to s the line of message m of level l of category cat,
+     * logged at date d on thread t, as text or as JSON. */
+    private static void format(StringBuilder s, String d, Level l, String t, String cat, String m) {
+        if (!JSON) {
+            s.append(d).append(' ').append(l).append(" [").append(t).append("] ").append(cat).append(": ").append(m);
+            return;
+        }
+        s.append("{\"time\": ");
+        quote(s, d);
+        s.append(", \"level\": \"").append(l).append("\", \"thread\": ");
+        quote(s, t);
+        s.append(", \"category\": ");
+        quote(s, cat);
+        s.append(", \"message\": ");
+        quote(s, m);
+        s.append('}');
+    }
+
+    /** Append v to s as a JSON string. */
+    private static void quote(StringBuilder s, String v) {
+        s.append('"');
+        for (int i= 0; i < v.length(); i++) {
+            char ch= v.charAt(i);
+            if (ch == '"'  ||  ch == '\\') s.append('\\').append(ch);
+            else if (ch == '\n') s.append("\\n");
+            else if (ch == '\r') s.append("\\r");
+            else if (ch == '\t') s.append("\\t");
+            else if (ch < 0x20) s.append(String.format("\\u%04x", (int) ch));
+            else s.append(ch);
+        }
+        s.append('"');
+    }
+}
@@ -0,0 +1,356 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.ToLongFunction;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/** An instance measures the path of a mouse event to the pixels on the
+ * screen: a LatencyHistogram of the time of each phase (see Phase) per tool
+ * and class of tool size, one per phase for all tools and sizes, and
+ * counters of the events, the batches they were rendered in, the pixels
+ * strokes drew and the bytes allocated.
+ *
+ * Recording costs a few reads of System.nanoTime per event and does not
+ * allocate (but the first value of a histogram). Each phase is recorded by
+ * one thread (the EDT or the render thread); any thread may read. The
+ * metrics can be drawn by the Canvas over the image, written as JSON (see
+ * writeJson), or read with JMX (see register). */
+class Metrics implements MetricsMXBean {
+    /** The phases of an event, each timed by a histogram. */
+    public enum Phase {
+        /** A mouse handler, on the EDT: from its call to its return. */
+        EVENT("event"),
+        /** A batch of events on the render thread: drawing them and
+         * recompositing the area they changed. */
+        RASTER("raster"),
+        /** paintComponent of the Canvas, on the EDT. */
+        REPAINT("repaint"),
+        /** The part of REPAINT that puts the image on the screen: copying
+         * it from the DisplayCache (after drawing its stale part there), or
+         * drawing its tiles if it is not cached (see getDisplayPath). */
+        BLIT("blit"),
+        /** From the post of the first event of a batch to the end of the
+         * paintComponent that shows its pixels. */
+        INPUT_TO_PIXEL("inputToPixel");
+
+        private final String label;
+
+        Phase(String label) {
+            this.label= label;
+        }
+
+        @Override public String toString() {
+            return label;
+        }
+    }
+
+    /** Names of the tools: those of Tool, then those of Canvas.OtherTool,
+     * then NONE, for no tool. */
+    private static final String[] TOOLS;
+    static {
+        Tool[] t= Tool.values();
+        Canvas.OtherTool[] o= Canvas.OtherTool.values();
+        TOOLS= new String[t.length + o.length + 1];
+        for (int i= 0; i < t.length; i++) TOOLS[i]= t[i].name();
+        for (int i= 0; i < o.length; i++) TOOLS[t.length + i]= o[i].name();
+        TOOLS[TOOLS.length - 1]= "NONE";
+    }
+
+    /** The tool of events without one (see tool). */
+    public static final int NO_TOOL= Tool.values().length + Canvas.OtherTool.values().length;
+
+    /** Number of classes of tool size: 1, 2-3, 4-7, ..., 64-127, 128 and more. */
+    private static final int SIZES= 8;
+
+    /** Measures the bytes allocated by a thread, or null if the JVM cannot. */
+    private static final com.sun.management.ThreadMXBean threads= allocationBean();
+
+    /** histograms[(phase * TOOLS.length + tool) * SIZES + size class], made
+     * when first recorded. */
+    private final AtomicReferenceArray<LatencyHistogram> histograms=
+            new AtomicReferenceArray<>(Phase.values().length * TOOLS.length * SIZES);
+    private final LatencyHistogram[] all= new LatencyHistogram[Phase.values().length]; // per phase
+
+    private final AtomicLong events= new AtomicLong();
+    private final AtomicLong batches= new AtomicLong();
+    private final AtomicLong coalesced= new AtomicLong();
+    private final AtomicLong pixels= new AtomicLong();
+    private final AtomicLong bytes= new AtomicLong();
+
+    /** Time of the post of the oldest event presented but not yet painted
+     * (0 if none), with its tool and size. */
+    private final AtomicLong pending= new AtomicLong();
+    private volatile int pendingTool, pendingSize;
+
+    private final long startTime= System.currentTimeMillis(); // when measuring began
+    private volatile String displayPath= "direct"; // how the image is put on the screen
+
+    /** Constructor: metrics with nothing recorded. */
+    public Metrics() {
+        for (int i= 0; i < all.length; i++) all[i]= new LatencyHistogram();
+    }
+
+    /** Return the bean that measures the bytes allocated by threads, or
+     * null if there is none. */
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        try {
+            java.lang.management.ThreadMXBean b= ManagementFactory.getThreadMXBean();
+            if (!(b instanceof com.sun.management.ThreadMXBean)) return null;
+            com.sun.management.ThreadMXBean t= (com.sun.management.ThreadMXBean) b;
+            if (!t.isThreadAllocatedMemorySupported()) return null;
+            t.setThreadAllocatedMemoryEnabled(true);
+            return t;
+        } catch (UnsupportedOperationException | SecurityException exc) {
+            return null;
+        }
+    }
+
+    /** Return the number of bytes the current thread has allocated so far,
+     * or -1 if the JVM cannot tell. */
+    public static long allocatedBytes() {
+        return threads == null ? -1 : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /** Return the number of tool t in the histograms. */
+    public static int tool(Tool t) {
+        return t.ordinal();
+    }
+
+    /** Return the number of tool t in the histograms. */
+    public static int tool(Canvas.OtherTool t) {
+        return Tool.values().length + t.ordinal();
+    }
+
+    /** Return the class of tool size s. */
+    private static int sizeClass(int s) {
+        return Math.min(SIZES - 1, 31 - Integer.numberOfLeadingZeros(Math.max(1, s)));
+    }
+
+    /** Return the name of size class c. */
+    private static String sizeName(int c) {
+        if (c == 0) return "1";
+        if (c == SIZES - 1) return (1 << c) + "+";
+        return (1 << c) + "-" + ((2 << c) - 1);
+    }
+
+    /** Record that phase p took ns nanoseconds with tool t (see tool) and
+     * tool size s. Call on the one thread that records p. */
+    public void record(Phase p, int t, int s, long ns) {
+        int i= (p.ordinal() * TOOLS.length + t) * SIZES + sizeClass(s);
+        LatencyHistogram h= histograms.get(i);
+        if (h == null) {
+            h= new LatencyHistogram();
+            histograms.set(i, h);
+        }
+        h.record(ns);
+        all[p.ordinal()].record(ns);
+    }
+
+    /** Return the histogram of phase p for all tools and sizes. */
+    public LatencyHistogram histogram(Phase p) {
+        return all[p.ordinal()];
+    }
+
+    /** Count a mouse event that allocated n bytes (n < 0: unknown). */
+    public void countEvent(long n) {
+        events.incrementAndGet();
+        if (n > 0) bytes.addAndGet(n);
+    }
+
+    /** Count a batch of n events, rendered with b bytes allocated (b < 0:
+     * unknown). */
+    public void countBatch(int n, long b) {
+        batches.incrementAndGet();
+        coalesced.addAndGet(n - 1);
+        if (b > 0) bytes.addAndGet(b);
+    }
+
+    /** Count n pixels drawn by strokes (the area they damaged, before it
+     * was merged into one rectangle to repaint). */
+    public void countPixels(long n) {
+        pixels.addAndGet(n);
+    }
+
+    /** The pixels of events with tool t and size s, the first posted at
+     * time since (System.nanoTime), were presented: time them to the end of
+     * the next paint (see painted). */
+    public void presented(long since, int t, int s) {
+        if (pending.compareAndSet(0, since)) {
+            pendingTool= t;
+            pendingSize= s;
+        }
+    }
+
+    /** The canvas was painted, ending at time now (System.nanoTime): record
+     * the time from input to pixels of the events presented before. Call
+     * on the EDT. */
+    public void painted(long now) {
+        int t= pendingTool, s= pendingSize;
+        long since= pending.getAndSet(0);
+        if (since != 0) record(Phase.INPUT_TO_PIXEL, t, s, now - since);
+    }
+
+    /** Set how the canvas puts the image on the screen to p (e.g. "direct"),
+     * for the reports. */
+    public void setDisplayPath(String p) {
+        displayPath= p;
+    }
+
+    @Override public String getDisplayPath() {
+        return displayPath;
+    }
+
+    @Override public long getEvents() {
+        return events.get();
+    }
+
+    @Override public long getBatches() {
+        return batches.get();
+    }
+
+    @Override public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    @Override public long getPixelsTouched() {
+        return pixels.get();
+    }
+
+    @Override public long getBytesAllocated() {
+        return threads == null ? -1 : bytes.get();
+    }
+
+    @Override public Map<String, Double> getP50Millis() {
+        return millis(h -> h.percentile(50));
+    }
+
+    @Override public Map<String, Double> getP99Millis() {
+        return millis(h -> h.percentile(99));
+    }
+
+    @Override public Map<String, Double> getMaxMillis() {
+        return millis(LatencyHistogram::max);
+    }
+
+    /** Return the value f (in ns) of each histogram with a value, in ms, by
+     * name. */
+    private Map<String, Double> millis(ToLongFunction<LatencyHistogram> f) {
+        Map<String, Double> m= new LinkedHashMap<>();
+        for (Phase p : Phase.values()) {
+            if (all[p.ordinal()].count() > 0) m.put(p + "/all", f.applyAsLong(all[p.ordinal()]) / 1e6);
+        }
+        for (int i= 0; i < histograms.length(); i++) {
+            LatencyHistogram h= histograms.get(i);
+            if (h != null) m.put(name(i), f.applyAsLong(h) / 1e6);
+        }
+        return m;
+    }
+
+    /** Return the name phase/tool/size of histogram i of histograms. */
+    private static String name(int i) {
+        int c= i % SIZES, t= i / SIZES % TOOLS.length, p= i / SIZES / TOOLS.length;
+        return Phase.values()[p] + "/" + TOOLS[t] + "/" + sizeName(c);
+    }
+
+    @Override public String getJson() {
+        StringWriter w= new StringWriter();
+        try {
+            writeJson(w);
+        } catch (IOException exc) {
+            throw new UncheckedIOException(exc); // not thrown by a StringWriter
+        }
+        return w.toString();
+    }
+
+    /** Write the metrics to file f as JSON (see writeJson(Writer)).
+     * Throw an IOException if f cannot be written. */
+    public void writeJson(File f) throws IOException {
+        try (Writer w= new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8)) {
+            writeJson(w);
+        }
+    }
+
+    /** Write the metrics to w as a JSON object: the display path, the
+     * counters, and for each histogram with a value, its phase, tool and
+     * size ("all" for all tools and sizes), count, mean and percentiles, in
+     * nanoseconds. E.g.
+     *   {"startTime": 1760000000000, "displayPath": "direct", "elapsedMillis": 5000,
+     *    "counters": {"events": 120, ...},
+     *    "histograms": [{"phase": "raster", "tool": "PENCIL", "size": "8-15",
+     *                    "count": 118, "meanNs": 41000, "p50Ns": 38000, ...}, ...]}
+     * Throw an IOException if w cannot be written. */
+    public void writeJson(Writer w) throws IOException {
+        StringBuilder b= new StringBuilder();
+        b.append("{\n  \"startTime\": ").append(startTime);
+        b.append(",\n  \"displayPath\": \"").append(displayPath).append('"');
+        b.append(",\n  \"elapsedMillis\": ").append(System.currentTimeMillis() - startTime);
+        b.append(",\n  \"counters\": {\"events\": ").append(getEvents());
+        b.append(", \"batches\": ").append(getBatches());
+        b.append(", \"coalesced\": ").append(getCoalesced());
+        b.append(", \"pixelsTouched\": ").append(getPixelsTouched());
+        b.append(", \"bytesAllocated\": ").append(getBytesAllocated());
+        b.append("},\n  \"histograms\": [");
+        String sep= "\n    ";
+        for (Phase p : Phase.values()) {
+            LatencyHistogram h= all[p.ordinal()];
+            if (h.count() == 0) continue;
+            appendJson(b.append(sep), p.toString(), "all", "all", h);
+            sep= ",\n    ";
+        }
+        for (int i= 0; i < histograms.length(); i++) {
+            LatencyHistogram h= histograms.get(i);
+            if (h == null) continue;
+            String[] n= name(i).split("/");
+            appendJson(b.append(sep), n[0], n[1], n[2], h);
+            sep= ",\n    ";
+        }
+        b.append("\n  ]\n}\n");
+        w.write(b.toString());
+    }
+
+    /** Append histogram h of phase p, tool t and size s to b as a JSON object. */
+    private static void appendJson(StringBuilder b, String p, String t, String s, LatencyHistogram h) {
+        b.append("{\"phase\": \"").append(p).append("\", \"tool\": \"").append(t);
+        b.append("\", \"size\": \"").append(s).append("\", \"count\": ").append(h.count());
+        b.append(", \"meanNs\": ").append(Math.round(h.mean()));
+        b.append(", \"p50Ns\": ").append(h.percentile(50));
+        b.append(", \"p90Ns\": ").append(h.percentile(90));
+        b.append(", \"p99Ns\": ").append(h.percentile(99));
+        b.append(", \"p999Ns\": ").append(h.percentile(99.9));
+        b.append(", \"maxNs\": ").append(h.max()).append('}');
+    }
+
+    /** Return the lines of a summary of the metrics, for the overlay. */
+    public List<String> summary() {
+        List<String> lines= new ArrayList<>();
+        for (Phase p : Phase.values()) {
+            LatencyHistogram h= all[p.ordinal()];
+            lines.add(String.format("%-13s p50 %6.2f  p99 %6.2f  max %6.2f ms", p,
+                    h.percentile(50) / 1e6, h.percentile(99) / 1e6, h.max() / 1e6));
+        }
+        lines.add(String.format("events %d  batches %d  coalesced %d", getEvents(), getBatches(), getCoalesced()));
+        lines.add("display " + displayPath);
+        long b= getBytesAllocated();
+        lines.add(String.format("pixels %.1f M  allocated %s", getPixelsTouched() / 1e6,
+                b < 0 ? "?" : String.format("%.1f MB", b / 1e6)));
+        return lines;
+    }
+
+    /** Register this as an MBean named name (e.g. "a6:type=Metrics") with
+     * the platform MBean server, so that JMX clients can read it. If that
+     * fails (e.g. the name is taken), report it on System.err. */
+    public void register(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(name));
+        } catch (JMException | SecurityException exc) {
+            System.err.println("Metrics: cannot register " + name + ": " + exc.getMessage());
+        }
+    }
+}
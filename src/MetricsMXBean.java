@@ -0,0 +1,41 @@
+import java.util.Map;
+
+/** The management interface of Metrics, for JMX clients such as jconsole
+ * (see Metrics.register). Times are in milliseconds. Histograms are named
+ * phase/tool/size, e.g. "raster/PENCIL/8-15", or phase/all for all tools
+ * and sizes. */
+public interface MetricsMXBean {
+    /** Return how the canvas puts the image on the screen: "direct" (its
+     * tiles are drawn on each repaint) or "volatile" (it is copied from a
+     * VolatileImage cache), with whether the cache is accelerated. */
+    String getDisplayPath();
+
+    /** Return the number of mouse events handled. */
+    long getEvents();
+
+    /** Return the number of batches of events rendered. */
+    long getBatches();
+
+    /** Return the number of events rendered in a batch after its first. */
+    long getCoalesced();
+
+    /** Return the number of pixels strokes drew (the areas they damaged,
+     * before those were merged into rectangles to repaint). */
+    long getPixelsTouched();
+
+    /** Return the number of bytes allocated by the mouse handlers and the
+     * render thread (-1 if the JVM cannot tell). */
+    long getBytesAllocated();
+
+    /** Return the median of each histogram. */
+    Map<String, Double> getP50Millis();
+
+    /** Return the 99th percentile of each histogram. */
+    Map<String, Double> getP99Millis();
+
+    /** Return the largest value of each histogram. */
+    Map<String, Double> getMaxMillis();
+
+    /** Return all of the metrics as JSON (see Metrics.writeJson). */
+    String getJson();
+}
@@ -0,0 +1,167 @@
+import java.awt.Color;
+import java.util.Arrays;
+
+/** An instance is a mipmap pyramid of a TiledImage: level 0 is the image
+ * itself, and each level k > 0 is level k-1 at half its width and height,
+ * each pixel the average of four. A zoomed-out view is drawn from the
+ * level of its scale, so it reads only as many pixels as it shows.
+ *
+ * Levels are built lazily, tile by tile, when they are first asked for.
+ * After the image changes, invalidate marks the tiles over the change as
+ * stale in every level; they are rebuilt (from the level below, which is
+ * rebuilt first if needed) the next time they are asked for.
+ *
+ * invalidate may be called on any thread (e.g. the render thread) while
+ * level is called on another (e.g. the EDT). A tile invalidated while it
+ * is being rebuilt stays stale, so it is rebuilt again when next asked for. */
+class MipPyramid {
+    private static final int T= TiledImage.TILE_SIZE;
+    private static final int SHIFT= TiledImage.TILE_SHIFT;
+
+    /** levels[k] is the image at scale 1/2^k (null until first needed);
+     * levels[0] is the image itself. */
+    private final TiledImage[] levels;
+
+    /** stale[k][row*cols + col] is true iff tile (col, row) of level k
+     * (k > 0) must be rebuilt. Guarded by this. */
+    private final boolean[][] stale;
+
+    /** Constructor: a pyramid of img with levels 0..maxLevel, or fewer if
+     * the image becomes 1 pixel wide and high sooner. */
+    public MipPyramid(TiledImage img, int maxLevel) {
+        int n= 1;
+        while (n <= maxLevel  &&  Math.max(img.getWidth(), img.getHeight()) >> (n - 1) > 1) n++;
+        levels= new TiledImage[n];
+        levels[0]= img;
+        stale= new boolean[n][];
+    }
+
+    /** Return the image of level 0. */
+    public TiledImage getImage() {
+        return levels[0];
+    }
+
+    /** Return the number of levels. */
+    public int levelCount() {
+        return levels.length;
+    }
+
+    /** Mark as stale the tiles of every level over the rectangle of the
+     * image with top-left corner (x, y), width w and height h. */
+    public synchronized void invalidate(int x, int y, int w, int h) {
+        if (w <= 0  ||  h <= 0) return;
+        for (int k= 1; k < levels.length; k++) {
+            if (stale[k] == null) continue; // not built yet: all stale
+            TiledImage l= levels[k];
+            int c0= Math.max(x >> k, 0) >> SHIFT;
+            int r0= Math.max(y >> k, 0) >> SHIFT;
+            int c1= Math.min((x + w - 1) >> k, l.getWidth() - 1) >> SHIFT;
+            int r1= Math.min((y + h - 1) >> k, l.getHeight() - 1) >> SHIFT;
+            for (int row= r0; row <= r1; row++) {
+                for (int col= c0; col <= c1; col++) {
+                    stale[k][row * l.getCols() + col]= true;
+                }
+            }
+        }
+    }
+
+    /** Return level k, with its tiles over [x0, x1) x [y0, y1) (in the
+     * coordinates of level k) up to date. Call only on one thread. */
+    public TiledImage level(int k, int x0, int y0, int x1, int y1) {
+        if (k == 0) return levels[0];
+        TiledImage l= levelImage(k);
+        x0= Math.max(x0, 0);
+        y0= Math.max(y0, 0);
+        x1= Math.min(x1, l.getWidth());
+        y1= Math.min(y1, l.getHeight());
+        if (x0 >= x1  ||  y0 >= y1) return l;
+        for (int row= y0 >> SHIFT; row <= (y1 - 1) >> SHIFT; row++) {
+            for (int col= x0 >> SHIFT; col <= (x1 - 1) >> SHIFT; col++) {
+                ensure(k, col, row);
+            }
+        }
+        return l;
+    }
+
+    /** Return the image of level k (k > 0), creating it, with all its tiles
+     * stale, if needed. */
+    private TiledImage levelImage(int k) {
+        if (levels[k] == null) {
+            TiledImage img= levels[0];
+            TiledImage l= new TiledImage(Math.max(1, (img.getWidth() + (1 << k) - 1) >> k),
+                    Math.max(1, (img.getHeight() + (1 << k) - 1) >> k),
+                    new Color(img.getBackground(), true));
+            boolean[] s= new boolean[l.getCols() * l.getRows()];
+            Arrays.fill(s, true);
+            levels[k]= l;
+            synchronized (this) {
+                stale[k]= s;
+            }
+        }
+        return levels[k];
+    }
+
+    /** Rebuild tile (col, row) of level k (k > 0) if it is stale. */
+    private void ensure(int k, int col, int row) {
+        TiledImage dst= levelImage(k);
+        synchronized (this) {
+            int t= row * dst.getCols() + col;
+            if (!stale[k][t]) return;
+            stale[k][t]= false;
+        }
+
+        // The tile covers tiles (2col..2col+1, 2row..2row+1) of level k-1.
+        TiledImage src= k == 1 ? levels[0] : levelImage(k - 1);
+        boolean any= false; // true iff one of those tiles is allocated
+        for (int r= 2 * row; r <= Math.min(2 * row + 1, src.getRows() - 1); r++) {
+            for (int c= 2 * col; c <= Math.min(2 * col + 1, src.getCols() - 1); c++) {
+                if (k > 1) ensure(k - 1, c, r);
+                any= any  ||  src.isAllocated(c, r);
+            }
+        }
+        // Unwritten tiles of both levels are the background color.
+        if (!any  &&  !dst.isAllocated(col, row)) return;
+        downsample(src, dst, col, row);
+    }
+
+    /** Set tile (col, row) of dst to the pixels of src (twice as large)
+     * that it covers, each the average of four pixels of src. */
+    private static void downsample(TiledImage src, TiledImage dst, int col, int row) {
+        int[] out= dst.writableTileData(col, row);
+        int sw= src.getWidth();
+        int sh= src.getHeight();
+        int w= Math.min(T, dst.getWidth() - (col << SHIFT));
+        int h= Math.min(T, dst.getHeight() - (row << SHIFT));
+        for (int j= 0; j < h; j++) {
+            // Rows sy and sy1 of src are in the same tile row: sy is even.
+            int sy= 2 * ((row << SHIFT) + j);
+            int sy1= Math.min(sy + 1, sh - 1);
+            int o0= (sy & (T - 1)) << SHIFT;
+            int o1= (sy1 & (T - 1)) << SHIFT;
+            for (int i= 0; i < w; i++) {
+                int sx= 2 * ((col << SHIFT) + i);
+                int sx1= Math.min(sx + 1, sw - 1);
+                int[] d= src.tileData(sx >> SHIFT, sy >> SHIFT);
+                int a= sx & (T - 1);
+                int b= sx1 & (T - 1);
+                out[(j << SHIFT) + i]= average(d[o0 + a], d[o0 + b], d[o1 + a], d[o1 + b]);
+            }
+        }
+    }
+
+    /** Return the average of ARGB pixels p, q, r, s. Colors are weighted
+     * by alpha, so that transparent pixels do not darken the result. */
+    private static int average(int p, int q, int r, int s) {
+        if (p == q  &&  p == r  &&  p == s) return p;
+        int pa= p >>> 24, qa= q >>> 24, ra= r >>> 24, sa= s >>> 24;
+        int a= pa + qa + ra + sa;
+        if (a == 0) return 0;
+        int res= (a + 2) / 4 << 24;
+        for (int shift= 16; shift >= 0; shift -= 8) {
+            int c= ((p >> shift) & 0xFF) * pa + ((q >> shift) & 0xFF) * qa
+                    + ((r >> shift) & 0xFF) * ra + ((s >> shift) & 0xFF) * sa;
+            res |= (c + a / 2) / a << shift;
+        }
+        return res;
+    }
+}
@@ -0,0 +1,445 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntConsumer;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/** An instance writes images as PNG files, compressing on all cores.
+ *
+ * The pixel data of a PNG file is a single zlib stream. Like pigz, the
+ * encoder splits the rows of the image into bands of about BAND_BYTES
+ * bytes, and filters and deflates each band as a task on a ForkJoinPool.
+ * Each band is primed with the last 32 KB of the band before it (so
+ * matches may reach back across bands, as in a single stream) and ends
+ * with a sync flush, which ends on a byte boundary; so the compressed
+ * bands, concatenated, form one deflate stream. The Adler-32 checksums of
+ * the bands are combined into that of the whole stream. Each band is
+ * written as one IDAT chunk, in order, as soon as it and the bands before
+ * it are done; at most a few bands per thread are in memory at a time.
+ *
+ * Rows are filtered with the filter (of the five of PNG) that gives the
+ * least sum of absolute differences, as most encoders do. Images whose
+ * pixels are all opaque are written without alpha. */
+class PngEncoder {
+    /** Raw bytes (about) of the rows of a band. */
+    public static final int BAND_BYTES= 1 << 18;
+
+    private static final int WINDOW= 1 << 15; // bytes of the deflate window
+    private static final int ADLER_BASE= 65521;
+    private static final byte[] SIGNATURE= {(byte) 137, 'P', 'N', 'G', '\r', '\n', 26, '\n'};
+
+    private final ForkJoinPool pool; // runs the tasks
+    private volatile int level;      // compression level, 0..9
+
+    /** Constructor: an encoder that compresses at level level (0, none,
+     * to 9, best; or Deflater.DEFAULT_COMPRESSION) on the common pool.
+     * Throw an IllegalArgumentException if level is not a valid level. */
+    public PngEncoder(int level) {
+        this(level, ForkJoinPool.commonPool());
+    }
+
+    /** Constructor: an encoder that compresses at level level on pool. */
+    public PngEncoder(int level, ForkJoinPool pool) {
+        setLevel(level);
+        this.pool= pool;
+    }
+
+    /** Return the compression level. */
+    public int getLevel() {
+        return level;
+    }
+
+    /** Set the compression level to v: 0 (none) to 9 (best), or
+     * Deflater.DEFAULT_COMPRESSION.
+     * Throw an IllegalArgumentException if v is not a valid level. */
+    public void setLevel(int v) {
+        if (v != Deflater.DEFAULT_COMPRESSION  &&  (v < 0  ||  v > 9))
+            throw new IllegalArgumentException("setLevel: level " + v + " not in 0..9");
+        level= v;
+    }
+
+    /** Write img, which must not change meanwhile, to file f as PNG,
+     * calling progress with how many percent (0..100) are done. */
+    public void write(RenderedImage img, File f, IntConsumer progress) throws IOException {
+        try (OutputStream out= new BufferedOutputStream(new FileOutputStream(f), 1 << 16)) {
+            write(img, out, progress);
+        }
+    }
+
+    /** Write img, which must not change meanwhile, to out as PNG, calling
+     * progress with how many percent (0..100) are done. */
+    public void write(RenderedImage img, OutputStream out, IntConsumer progress) throws IOException {
+        int w= img.getWidth();
+        int h= img.getHeight();
+        Rows rows= Rows.of(img);
+        boolean alpha= !pool.invoke(new OpaqueTask(rows, 0, h));
+        int bpp= alpha ? 4 : 3;
+        int rowsPerBand= Math.max(1, BAND_BYTES / (w * bpp + 1));
+        int bands= (h + rowsPerBand - 1) / rowsPerBand;
+        int lvl= level;
+
+        out.write(SIGNATURE);
+        ByteArrayOutputStream ihdr= new ByteArrayOutputStream();
+        DataOutputStream header= new DataOutputStream(ihdr);
+        header.writeInt(w);
+        header.writeInt(h);
+        header.writeByte(8);              // bit depth
+        header.writeByte(alpha ? 6 : 2);  // color type: RGBA or RGB
+        header.writeByte(0);              // compression: deflate
+        header.writeByte(0);              // filter method: adaptive
+        header.writeByte(0);              // interlace: none
+        chunk(out, "IHDR", ihdr.toByteArray(), 0, ihdr.size());
+
+        // zlib header: deflate, 32K window, and the level hint.
+        int flevel= lvl == Deflater.DEFAULT_COMPRESSION ? 2 : lvl < 2 ? 0 : lvl < 6 ? 1 : lvl == 6 ? 2 : 3;
+        int cmf= 0x78;
+        int flg= flevel << 6;
+        flg += 31 - (cmf * 256 + flg) % 31;
+        byte[] first= {(byte) cmf, (byte) flg};
+        boolean firstWritten= false;
+
+        long adler= 1;
+        ArrayDeque<ForkJoinTask<Band>> running= new ArrayDeque<>();
+        int next= 0; // next band to start
+        int inFlight= 2 * pool.getParallelism() + 1;
+        for (int b= 0; b < bands; b++) {
+            while (next < bands  &&  running.size() < inFlight) {
+                int y0= next * rowsPerBand;
+                int y1= Math.min(h, y0 + rowsPerBand);
+                running.add(pool.submit(new BandTask(rows, y0, y1, bpp, lvl, next == bands - 1)));
+                next++;
+            }
+            Band band= running.poll().join();
+            adler= combine(adler, band.adler, band.rawLength);
+            if (!firstWritten) {
+                // The zlib header goes at the start of the first IDAT.
+                byte[] d= new byte[band.length + 2];
+                System.arraycopy(first, 0, d, 0, 2);
+                System.arraycopy(band.data, 0, d, 2, band.length);
+                band.data= d;
+                band.length += 2;
+                firstWritten= true;
+            }
+            if (b == bands - 1) {
+                byte[] d= new byte[band.length + 4];
+                System.arraycopy(band.data, 0, d, 0, band.length);
+                for (int k= 0; k < 4; k++) d[band.length + k]= (byte) (adler >>> (24 - 8 * k));
+                band.data= d;
+                band.length += 4;
+            }
+            chunk(out, "IDAT", band.data, 0, band.length);
+            progress.accept(100 * (b + 1) / bands);
+        }
+        chunk(out, "IEND", new byte[0], 0, 0);
+    }
+
+    /** Write a chunk of type type with data d[off..off+len-1] to out. */
+    private static void chunk(OutputStream out, String type, byte[] d, int off, int len) throws IOException {
+        CRC32 crc= new CRC32();
+        byte[] t= type.getBytes("US-ASCII");
+        crc.update(t);
+        crc.update(d, off, len);
+        writeInt(out, len);
+        out.write(t);
+        out.write(d, off, len);
+        writeInt(out, (int) crc.getValue());
+    }
+
+    /** Write v to out, most significant byte first. */
+    private static void writeInt(OutputStream out, int v) throws IOException {
+        out.write(v >>> 24);
+        out.write(v >>> 16);
+        out.write(v >>> 8);
+        out.write(v);
+    }
+
+    /** Return the Adler-32 checksum of the bytes of a and then b, given
+     * their checksums a and b and the number len of bytes of b. */
+    private static long combine(long a, long b, long len) {
+        long rem= len % ADLER_BASE;
+        long sum1= a & 0xFFFF;
+        long sum2= rem * sum1 % ADLER_BASE;
+        sum1 += (b & 0xFFFF) + ADLER_BASE - 1;
+        sum2 += (a >>> 16) + (b >>> 16) + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum2 >= 2L * ADLER_BASE) sum2 -= 2L * ADLER_BASE;
+        if (sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+        return sum1 | sum2 << 16;
+    }
+
+    /** Reads rows of ARGB pixels of an image, on any thread. */
+    private interface Rows {
+        /** Store row y of the image in dst. */
+        void get(int y, int[] dst);
+
+        /** Return the width of the image. */
+        int width();
+
+        /** Return rows of img: fast for a TiledImage, otherwise through its
+         * data. */
+        static Rows of(RenderedImage img) {
+            int w= img.getWidth();
+            if (img instanceof TiledImage) {
+                TiledImage t= (TiledImage) img;
+                return new Rows() {
+                    @Override public void get(int y, int[] dst) {
+                        t.getRGB(0, y, w, 1, dst, 0, w);
+                    }
+                    @Override public int width() {
+                        return w;
+                    }
+                };
+            }
+            BufferedImage b= new BufferedImage(img.getColorModel(),
+                    img.copyData(null), img.getColorModel().isAlphaPremultiplied(), null);
+            return new Rows() {
+                @Override public void get(int y, int[] dst) {
+                    b.getRGB(0, y, w, 1, dst, 0, w);
+                }
+                @Override public int width() {
+                    return w;
+                }
+            };
+        }
+    }
+
+    /** Computes whether rows y0..y1-1 are all opaque, splitting the work. */
+    private static class OpaqueTask extends RecursiveTask<Boolean> {
+        private static final long serialVersionUID = 201801;
+
+        private final Rows rows;
+        private final int y0, y1;
+
+        OpaqueTask(Rows rows, int y0, int y1) {
+            this.rows= rows;
+            this.y0= y0;
+            this.y1= y1;
+        }
+
+        @Override protected Boolean compute() {
+            if ((long) (y1 - y0) * rows.width() > BAND_BYTES  &&  y1 - y0 > 1) {
+                int mid= (y0 + y1) >>> 1;
+                OpaqueTask top= new OpaqueTask(rows, y0, mid);
+                top.fork();
+                boolean bottom= new OpaqueTask(rows, mid, y1).compute();
+                return top.join()  &&  bottom;
+            }
+            int[] row= new int[rows.width()];
+            for (int y= y0; y < y1; y++) {
+                rows.get(y, row);
+                for (int p : row) if (p >>> 24 != 255) return false;
+            }
+            return true;
+        }
+    }
+
+    /** The compressed data of a band. */
+    private static class Band {
+        byte[] data;    // data[0..length-1] is the deflate data
+        int length;
+        long adler;     // Adler-32 of the filtered rows
+        long rawLength; // number of bytes of the filtered rows
+    }
+
+    /** Filters and deflates rows y0..y1-1 of an image. */
+    private static class BandTask extends RecursiveTask<Band> {
+        private static final long serialVersionUID = 201801;
+
+        private final Rows rows;
+        private final int y0, y1;
+        private final int bpp;    // bytes per pixel: 3 or 4
+        private final int level;  // compression level
+        private final boolean last; // true iff this is the last band
+
+        BandTask(Rows rows, int y0, int y1, int bpp, int level, boolean last) {
+            this.rows= rows;
+            this.y0= y0;
+            this.y1= y1;
+            this.bpp= bpp;
+            this.level= level;
+            this.last= last;
+        }
+
+        @Override protected Band compute() {
+            int w= rows.width();
+            int stride= w * bpp;
+            int[] argb= new int[w];
+            byte[] prev= new byte[stride]; // row above, unfiltered (zero above row 0)
+            byte[] cur= new byte[stride];
+            byte[] raw= new byte[(y1 - y0) * (stride + 1)];
+            byte[] filtered= new byte[stride];
+            if (y0 > 0) {
+                rows.get(y0 - 1, argb);
+                pack(argb, prev);
+            }
+            for (int y= y0; y < y1; y++) {
+                rows.get(y, argb);
+                pack(argb, cur);
+                int at= (y - y0) * (stride + 1);
+                raw[at]= (byte) filter(cur, prev, filtered);
+                System.arraycopy(filtered, 0, raw, at + 1, stride);
+                byte[] t= prev;
+                prev= cur;
+                cur= t;
+            }
+
+            Deflater d= new Deflater(level, true);
+            try {
+                if (y0 > 0) {
+                    // Prime the window with the end of the band before,
+                    // filtered as that band filters it.
+                    byte[] dict= priorBytes(w, stride);
+                    d.setDictionary(dict);
+                }
+                d.setInput(raw);
+                if (last) d.finish();
+                ByteArrayOutputStream out= new ByteArrayOutputStream(raw.length / 2 + 64);
+                byte[] buf= new byte[1 << 16];
+                while (true) {
+                    int n= last ? d.deflate(buf) : d.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                    out.write(buf, 0, n);
+                    if (last ? d.finished() : n < buf.length  &&  d.needsInput()) break;
+                }
+                Adler32 a= new Adler32();
+                a.update(raw, 0, raw.length);
+                Band b= new Band();
+                b.data= out.toByteArray();
+                b.length= b.data.length;
+                b.adler= a.getValue();
+                b.rawLength= raw.length;
+                return b;
+            } finally {
+                d.end();
+            }
+        }
+
+        /** Return the last (up to) WINDOW bytes of the filtered rows before
+         * row y0, as the band before this one produced them. */
+        private byte[] priorBytes(int w, int stride) {
+            int n= Math.min(y0, (WINDOW + stride) / (stride + 1) + 1);
+            int[] argb= new int[w];
+            byte[] prev= new byte[stride];
+            byte[] cur= new byte[stride];
+            byte[] filtered= new byte[stride];
+            byte[] raw= new byte[n * (stride + 1)];
+            if (y0 - n > 0) {
+                rows.get(y0 - n - 1, argb);
+                pack(argb, prev);
+            }
+            for (int y= y0 - n; y < y0; y++) {
+                rows.get(y, argb);
+                pack(argb, cur);
+                int at= (y - y0 + n) * (stride + 1);
+                raw[at]= (byte) filter(cur, prev, filtered);
+                System.arraycopy(filtered, 0, raw, at + 1, stride);
+                byte[] t= prev;
+                prev= cur;
+                cur= t;
+            }
+            int len= Math.min(raw.length, WINDOW);
+            byte[] dict= new byte[len];
+            System.arraycopy(raw, raw.length - len, dict, 0, len);
+            return dict;
+        }
+
+        /** Store ARGB pixels argb in dst as RGB or RGBA bytes. */
+        private void pack(int[] argb, byte[] dst) {
+            int k= 0;
+            if (bpp == 4) {
+                for (int p : argb) {
+                    dst[k++]= (byte) (p >> 16);
+                    dst[k++]= (byte) (p >> 8);
+                    dst[k++]= (byte) p;
+                    dst[k++]= (byte) (p >>> 24);
+                }
+            } else {
+                for (int p : argb) {
+                    dst[k++]= (byte) (p >> 16);
+                    dst[k++]= (byte) (p >> 8);
+                    dst[k++]= (byte) p;
+                }
+            }
+        }
+
+        /** Store in out row cur filtered (given row prev above it) with the
+         * filter of least sum of absolute values, and return the filter.
+         * The sums of all five filters are computed in one pass. */
+        private int filter(byte[] cur, byte[] prev, byte[] out) {
+            int s0= 0, s1= 0, s2= 0, s3= 0, s4= 0;
+            // The first pixel has no left neighbors: a and c are 0.
+            for (int i= 0; i < bpp; i++) {
+                int x= cur[i] & 0xFF;
+                int b= prev[i] & 0xFF;
+                s0 += abs(x);
+                s1 += abs(x);
+                s2 += abs(x - b);
+                s3 += abs(x - (b >>> 1));
+                s4 += abs(x - b);
+            }
+            for (int i= bpp; i < cur.length; i++) {
+                int x= cur[i] & 0xFF;
+                int a= cur[i - bpp] & 0xFF;
+                int b= prev[i] & 0xFF;
+                int c= prev[i - bpp] & 0xFF;
+                s0 += abs(x);
+                s1 += abs(x - a);
+                s2 += abs(x - b);
+                s3 += abs(x - ((a + b) >>> 1));
+                s4 += abs(x - paeth(a, b, c));
+            }
+            int best= 0;
+            int bestSum= s0;
+            if (s1 < bestSum) { best= 1; bestSum= s1; }
+            if (s2 < bestSum) { best= 2; bestSum= s2; }
+            if (s3 < bestSum) { best= 3; bestSum= s3; }
+            if (s4 < bestSum) best= 4;
+
+            int n= cur.length;
+            switch (best) {
+                case 0:
+                    System.arraycopy(cur, 0, out, 0, n);
+                    break;
+                case 1:
+                    System.arraycopy(cur, 0, out, 0, bpp);
+                    for (int i= bpp; i < n; i++) out[i]= (byte) (cur[i] - cur[i - bpp]);
+                    break;
+                case 2:
+                    for (int i= 0; i < n; i++) out[i]= (byte) (cur[i] - prev[i]);
+                    break;
+                case 3:
+                    for (int i= 0; i < bpp; i++) out[i]= (byte) (cur[i] - ((prev[i] & 0xFF) >>> 1));
+                    for (int i= bpp; i < n; i++) {
+                        out[i]= (byte) (cur[i] - (((cur[i - bpp] & 0xFF) + (prev[i] & 0xFF)) >>> 1));
+                    }
+                    break;
+                default:
+                    for (int i= 0; i < bpp; i++) out[i]= (byte) (cur[i] - prev[i]);
+                    for (int i= bpp; i < n; i++) {
+                        out[i]= (byte) (cur[i] - paeth(cur[i - bpp] & 0xFF, prev[i] & 0xFF, prev[i - bpp] & 0xFF));
+                    }
+            }
+            return best;
+        }
+
+        /** Return the absolute value of d as a signed byte (d mod 256). */
+        private static int abs(int d) {
+            int v= (byte) d;
+            return v < 0 ? -v : v;
+        }
+
+        /** Return the Paeth predictor of left a, above b and upper left c. */
+        private static int paeth(int a, int b, int c) {
+            int pa= Math.abs(b - c); // |p - a|, where p= a + b - c
+            int pb= Math.abs(a - c);
+            int pc= Math.abs(a + b - 2 * c);
+            return pa <= pb  &&  pa <= pc ? a : pb <= pc ? b : c;
+        }
+    }
+}
@@ -0,0 +1,447 @@
+import java.awt.Color;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.IntConsumer;
+
+/** An instance is a document file in the native format of the program
+ * (extension EXTENSION), bound to the document last saved in or opened
+ * from it, so that later saves write only the tiles that changed.
+ *
+ * The file is a container of tiles:
+ *  - a header of HEADER bytes: MAGIC, the format version, the width and
+ *    height of the document, and the length and offset of the current
+ *    index (length 0: the index runs to the end of the file);
+ *  - slots of TILE_BYTES bytes, each the pixels of one tile (big-endian
+ *    ARGB ints, TILE_SIZE per row), at offsets that are multiples of PAGE;
+ *  - indexes. An index lists the layers (bottom first) with their
+ *    properties, the active layer, and for each tile of each layer the
+ *    offset of its slot (0 if the tile was never written).
+ *
+ * open(f) reads only the header and the index and memory-maps the rest;
+ * a tile is read from the mapping when it is first used.
+ *
+ * saveChanges(d) writes the tiles of d that changed since the last save
+ * (TiledImage.isChanged) and a new index, then points the header at it;
+ * its cost depends on the tiles changed, not on the size of the document.
+ * Nothing the header points at is overwritten before the header points
+ * at the new index: changed tiles and the index go to free space (copy on
+ * write), so a crash during a save leaves the file as the last save left
+ * it. Once the header is flipped, the old slots of the changed tiles and
+ * the old index become free space, which later saves reuse; free space at
+ * the end of the file is cut off. Slots in the part of the file that was
+ * mapped when it was opened are never reused (tiles not read yet, e.g. of
+ * snapshots, may still be read from there) until a full save (e.g. Save
+ * As to another file) writes a compact file. */
+class ProjectFile {
+    /** File extension of the format. */
+    public static final String EXTENSION= "a6p";
+
+    private static final long MAGIC= 0x41365041494E5431L; // "A6PAINT1"
+    private static final int VERSION= 1;
+    private static final int HEADER= 32; // bytes of the header
+    private static final int PAGE= 4096; // alignment of slots
+    private static final int TILE_BYTES= 4 * TiledImage.TILE_SIZE * TiledImage.TILE_SIZE;
+    private static final long SEGMENT= 1L << 28; // bytes mapped at a time
+
+    private final File file;  // the file
+    private long end;         // length of the file
+    private long mappedEnd;   // slots before this are never freed: the length of the file when
+                              // it was opened, or PAGE (the header) after a full save
+    private long indexOffset; // offset of the index the header points at
+    private long indexLength; // length of that index
+
+    /** Free space of the file: free.get(start) is the number of bytes from
+     * start on (both multiples of PAGE) that no slot or index of the file
+     * as its header describes lies in. Adjacent extents are merged. */
+    private TreeMap<Long, Long> free= new TreeMap<>();
+
+    /** slots.get(img)[row*cols + col] is the offset of the slot of tile
+     * (col, row) of layer image img, or 0 if it has none. */
+    private IdentityHashMap<TiledImage, long[]> slots= new IdentityHashMap<>();
+
+    private Document document; // the document bound to the file
+
+    /** Constructor: the binding of file f, of length end, to a document. */
+    private ProjectFile(File f, long end) {
+        file= f;
+        this.end= end;
+    }
+
+    /** Return the file. */
+    public File getFile() {
+        return file;
+    }
+
+    /** Return the document bound to the file. */
+    public Document getDocument() {
+        return document;
+    }
+
+    /** Return true iff file f has the extension of the format. */
+    public static boolean isProjectFile(File f) {
+        return f.getName().toLowerCase().endsWith("." + EXTENSION);
+    }
+
+    /** Open file f and return it, with the document in it. Only the header
+     * and the index are read; the tiles are read from a mapping of the
+     * file when they are first used.
+     * Throw an IOException if f cannot be read or is not in the format. */
+    public static ProjectFile open(File f) throws IOException {
+        try (FileChannel ch= FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            long size= ch.size();
+            ByteBuffer h= ByteBuffer.allocate(HEADER);
+            readFully(ch, h, 0);
+            h.flip();
+            if (h.getLong() != MAGIC) throw new IOException(f.getName() + " is not a document file");
+            int version= h.getInt();
+            if (version != VERSION) throw new IOException(f.getName() + ": unknown version " + version);
+            int w= h.getInt();
+            int ht= h.getInt();
+            int indexLength= h.getInt();
+            long indexOffset= h.getLong();
+            if (indexLength == 0) indexLength= (int) Math.min(Integer.MAX_VALUE, size - indexOffset);
+            if (w <= 0  ||  ht <= 0  ||  indexOffset < HEADER  ||  indexLength < 0  ||  indexOffset + indexLength > size)
+                throw new IOException(f.getName() + " is damaged");
+
+            // Map the file in segments that overlap by a slot, so each slot
+            // lies wholly in one. The mapping outlives the channel.
+            MappedByteBuffer[] segments= new MappedByteBuffer[(int) ((size + SEGMENT - 1) / SEGMENT)];
+            for (int s= 0; s < segments.length; s++) {
+                long start= s * SEGMENT;
+                segments[s]= ch.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT + TILE_BYTES, size - start));
+            }
+
+            ByteBuffer index= ByteBuffer.allocate(indexLength);
+            readFully(ch, index, indexOffset);
+            DataInputStream in= new DataInputStream(new ByteArrayInputStream(index.array()));
+            ProjectFile pf= new ProjectFile(f, size);
+            pf.mappedEnd= size;
+            pf.indexOffset= indexOffset;
+            pf.indexLength= indexLength;
+            int layerCount= in.readInt();
+            int active= in.readInt();
+            if (layerCount <= 0) throw new IOException(f.getName() + " is damaged");
+            ArrayList<Layer> layers= new ArrayList<>();
+            for (int k= 0; k < layerCount; k++) {
+                layers.add(pf.readLayer(in, w, ht, segments));
+            }
+            pf.document= new Document(layers, active);
+            return pf;
+        } catch (EOFException | IllegalArgumentException exc) {
+            throw new IOException(f.getName() + " is damaged", exc);
+        }
+    }
+
+    /** Read the entry of a layer of size (w, h) from in and return the
+     * layer, whose tiles are read lazily from segments. */
+    private Layer readLayer(DataInputStream in, int w, int h, MappedByteBuffer[] segments) throws IOException {
+        String name= in.readUTF();
+        int opacity= in.readInt();
+        BlendMode mode= BlendMode.valueOf(in.readUTF());
+        boolean visible= in.readBoolean();
+        int background= in.readInt();
+        TiledImage img= new TiledImage(w, h, new Color(background, true));
+        long[] off= new long[img.getCols() * img.getRows()];
+        for (int i= 0; i < off.length; i++) {
+            off[i]= in.readLong();
+            if (off[i] != 0  &&  (off[i] < HEADER  ||  off[i] + TILE_BYTES > mappedEnd))
+                throw new IOException(file.getName() + " is damaged");
+        }
+        // The source keeps its own offsets: saves change those of the binding.
+        MappedTiles source= new MappedTiles(segments, off.clone(), img.getCols());
+        for (int i= 0; i < off.length; i++) {
+            if (off[i] != 0) img.readLazily(i % img.getCols(), i / img.getCols(), source);
+        }
+        slots.put(img, off);
+
+        Layer l= new Layer(name, img);
+        l.setOpacity(opacity);
+        l.setBlendMode(mode);
+        l.setVisible(visible);
+        return l;
+    }
+
+    /** Reads the tiles of a layer from the segments of a mapped file. */
+    private static class MappedTiles implements TiledImage.TileSource {
+        private final MappedByteBuffer[] segments; // the file, SEGMENT bytes apart
+        private final long[] offsets; // offsets[row*cols + col] is the offset of tile (col, row)
+        private final int cols;       // number of tile columns
+
+        MappedTiles(MappedByteBuffer[] segments, long[] offsets, int cols) {
+            this.segments= segments;
+            this.offsets= offsets;
+            this.cols= cols;
+        }
+
+        @Override public void read(int col, int row, int[] dst) {
+            long off= offsets[row * cols + col];
+            ByteBuffer b= segments[(int) (off / SEGMENT)].duplicate();
+            b.position((int) (off % SEGMENT));
+            b.asIntBuffer().get(dst, 0, TILE_BYTES / 4);
+        }
+    }
+
+    /** Write the tiles of document d that changed since the last save
+     * (or that have no slot yet) and the properties of its layers to the
+     * file, and mark the tiles unchanged. d must be the document of the
+     * last save or open, possibly edited since, and must not change while
+     * this runs. If this throws, the file and the binding are as the last
+     * save left them. */
+    public void saveChanges(Document d) throws IOException {
+        try (FileChannel ch= FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            // This save writes only to space, and to the file past newEnd.
+            TreeMap<Long, Long> space= new TreeMap<>(free);
+            long newEnd= end;
+            TreeMap<Long, Long> freed= new TreeMap<>(); // free once the header is flipped
+            ByteBuffer buf= ByteBuffer.allocate(TILE_BYTES);
+            IdentityHashMap<TiledImage, long[]> now= new IdentityHashMap<>();
+            for (int k= 0; k < d.layerCount(); k++) {
+                TiledImage img= d.getLayer(k).getPixels();
+                long[] old= slots.get(img);
+                long[] off= old == null ? new long[img.getCols() * img.getRows()] : old.clone();
+                for (int i= 0; i < off.length; i++) {
+                    int col= i % img.getCols();
+                    int row= i / img.getCols();
+                    if (!img.isAllocated(col, row)) continue;
+                    if (off[i] != 0  &&  !img.isChanged(col, row)) continue;
+                    if (off[i] != 0  &&  off[i] >= mappedEnd) release(freed, off[i], TILE_BYTES);
+                    long o= take(space, TILE_BYTES);
+                    if (o < 0) {
+                        o= align(newEnd);
+                        newEnd= o + TILE_BYTES;
+                    }
+                    off[i]= o;
+                    buf.clear();
+                    buf.asIntBuffer().put(img.tileData(col, row));
+                    writeFully(ch, buf, o);
+                }
+                now.put(img, off);
+            }
+            // The slots of deleted layers are free too.
+            for (Map.Entry<TiledImage, long[]> e : slots.entrySet()) {
+                if (now.containsKey(e.getKey())) continue;
+                for (long o : e.getValue()) {
+                    if (o != 0  &&  o >= mappedEnd) release(freed, o, TILE_BYTES);
+                }
+            }
+
+            byte[] index= indexBytes(layersOf(d), d.getActiveIndex(), now);
+            long io= take(space, align(index.length));
+            if (io < 0) {
+                io= align(newEnd);
+                newEnd= io + index.length;
+            }
+            writeFully(ch, ByteBuffer.wrap(index), io);
+            // The header points at the new index only once all is on disk.
+            ch.force(false);
+            writeHeader(ch, d.getWidth(), d.getHeight(), io, index.length);
+            ch.force(false);
+
+            // The save is done: what the old index used is free now.
+            long first= align(indexOffset);
+            if (align(indexOffset + indexLength) > first) release(freed, first, align(indexOffset + indexLength) - first);
+            for (Map.Entry<Long, Long> e : freed.entrySet()) release(space, e.getKey(), e.getValue());
+            slots= now;
+            free= space;
+            indexOffset= io;
+            indexLength= index.length;
+            end= newEnd;
+            cutFreeEnd(ch);
+        }
+        for (int k= 0; k < d.layerCount(); k++) d.getLayer(k).getPixels().clearChanged();
+    }
+
+    /** Remove the free space at the end of the file (but not below
+     * mappedEnd) from free and cut it off the file. */
+    private void cutFreeEnd(FileChannel ch) throws IOException {
+        while (!free.isEmpty()) {
+            Map.Entry<Long, Long> e= free.lastEntry();
+            if (e.getKey() + e.getValue() < end  ||  e.getKey() < mappedEnd) break;
+            free.remove(e.getKey());
+            end= e.getKey();
+        }
+        if (ch.size() > end) ch.truncate(end);
+    }
+
+    /** Remove an extent of n bytes from free space m (extents as in free)
+     * and return its offset, or return -1 if no extent is large enough. */
+    private static long take(TreeMap<Long, Long> m, long n) {
+        for (Map.Entry<Long, Long> e : m.entrySet()) {
+            if (e.getValue() < n) continue;
+            long start= e.getKey();
+            long rest= e.getValue() - n;
+            m.remove(start);
+            if (rest > 0) m.put(start + n, rest);
+            return start;
+        }
+        return -1;
+    }
+
+    /** Add the extent of n bytes from start on to free space m (extents as
+     * in free), merging it with adjacent extents. */
+    private static void release(TreeMap<Long, Long> m, long start, long n) {
+        Map.Entry<Long, Long> before= m.floorEntry(start);
+        if (before != null  &&  before.getKey() + before.getValue() == start) {
+            m.remove(before.getKey());
+            start= before.getKey();
+            n += before.getValue();
+        }
+        Long after= m.remove(start + n);
+        if (after != null) n += after;
+        m.put(start, n);
+    }
+
+    /** Return a binding of file f to document d, whose job (getFullSave)
+     * writes all of d to a file, e.g. on an ImageSaver. The layers are
+     * snapshot now and their tiles are marked unchanged, so d may change
+     * while the job runs. Use the binding only after the job succeeded;
+     * if it fails, call saveFailed(). */
+    public static ProjectFile saveAs(File f, Document d) {
+        ProjectFile pf= new ProjectFile(f, 0);
+        pf.document= d;
+        ArrayList<Layer> copies= new ArrayList<>();
+        ArrayList<TiledImage> live= new ArrayList<>();
+        for (int k= 0; k < d.layerCount(); k++) {
+            Layer l= d.getLayer(k);
+            Layer c= new Layer(l.getName(), l.getPixels().snapshot());
+            c.setOpacity(l.getOpacity());
+            c.setBlendMode(l.getBlendMode());
+            c.setVisible(l.isVisible());
+            copies.add(c);
+            live.add(l.getPixels());
+            l.getPixels().clearChanged();
+        }
+        int active= d.getActiveIndex();
+        pf.live= live;
+        pf.fullSave= (tmp, progress) -> pf.writeAll(tmp, copies, active, d.getWidth(), d.getHeight(), progress);
+        return pf;
+    }
+
+    private List<TiledImage> live;   // the layer images of a full save (null if none)
+    private ImageSaver.Job fullSave; // the job of a full save (null if none)
+
+    /** Return the job that writes the document given to saveAs, or null if
+     * this binding was made by open. */
+    public ImageSaver.Job getFullSave() {
+        return fullSave;
+    }
+
+    /** The full save of this binding failed: mark the tiles of its layers
+     * changed, since the binding of another file may rely on the flags. */
+    public void saveFailed() {
+        if (live == null) return;
+        for (TiledImage img : live) img.markAllChanged();
+    }
+
+    /** Write layers ls (bottom first, snapshots of the images in live) of a
+     * document of size (w, h) with active layer active to file tmp, telling
+     * progress the progress, and record the slots of the tiles. */
+    private void writeAll(File tmp, List<Layer> ls, int active, int w, int h,
+                          IntConsumer progress) throws IOException {
+        int total= 0;
+        for (Layer l : ls) total += l.getPixels().allocatedTiles();
+        int done= 0;
+        try (FileChannel ch= FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE)) {
+            ByteBuffer buf= ByteBuffer.allocate(TILE_BYTES);
+            IdentityHashMap<TiledImage, long[]> s= new IdentityHashMap<>();
+            long pos= PAGE;
+            for (Layer l : ls) {
+                TiledImage img= l.getPixels();
+                long[] off= new long[img.getCols() * img.getRows()];
+                for (int i= 0; i < off.length; i++) {
+                    int col= i % img.getCols();
+                    int row= i / img.getCols();
+                    if (!img.isAllocated(col, row)) continue;
+                    off[i]= pos;
+                    buf.clear();
+                    buf.asIntBuffer().put(img.tileData(col, row));
+                    writeFully(ch, buf, pos);
+                    pos= align(pos + TILE_BYTES);
+                    done++;
+                    progress.accept(99 * done / total);
+                }
+                s.put(img, off);
+            }
+            byte[] index= indexBytes(ls, active, s);
+            writeFully(ch, ByteBuffer.wrap(index), pos);
+            writeHeader(ch, w, h, pos, index.length);
+            ch.force(false);
+
+            IdentityHashMap<TiledImage, long[]> now= new IdentityHashMap<>();
+            for (int k= 0; k < ls.size(); k++) now.put(live.get(k), s.get(ls.get(k).getPixels()));
+            slots= now;
+            indexOffset= pos;
+            indexLength= index.length;
+            end= pos + index.length;
+            mappedEnd= PAGE; // nothing of the new file is mapped
+            progress.accept(100);
+        }
+    }
+
+    /** Return the layers of d, bottom first. */
+    private static List<Layer> layersOf(Document d) {
+        ArrayList<Layer> ls= new ArrayList<>();
+        for (int k= 0; k < d.layerCount(); k++) ls.add(d.getLayer(k));
+        return ls;
+    }
+
+    /** Return the index of layers ls with active layer active, whose slots
+     * are s. */
+    private static byte[] indexBytes(List<Layer> ls, int active, IdentityHashMap<TiledImage, long[]> s)
+            throws IOException {
+        ByteArrayOutputStream bytes= new ByteArrayOutputStream();
+        DataOutputStream out= new DataOutputStream(bytes);
+        out.writeInt(ls.size());
+        out.writeInt(active);
+        for (Layer l : ls) {
+            out.writeUTF(l.getName());
+            out.writeInt(l.getOpacity());
+            out.writeUTF(l.getBlendMode().name());
+            out.writeBoolean(l.isVisible());
+            out.writeInt(l.getPixels().getBackground());
+            for (long off : s.get(l.getPixels())) out.writeLong(off);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /** Write the header of a document of size (w, h), with its index of
+     * indexLength bytes at offset indexOffset, to ch. */
+    private static void writeHeader(FileChannel ch, int w, int h, long indexOffset, int indexLength)
+            throws IOException {
+        ByteBuffer b= ByteBuffer.allocate(HEADER);
+        b.putLong(MAGIC).putInt(VERSION).putInt(w).putInt(h).putInt(indexLength).putLong(indexOffset);
+        b.flip();
+        writeFully(ch, b, 0);
+    }
+
+    /** Return the first multiple of PAGE at or after pos. */
+    private static long align(long pos) {
+        return (pos + PAGE - 1) / PAGE * PAGE;
+    }
+
+    /** Read bytes from ch at offset pos until b is full.
+     * Throw an EOFException if the channel ends first. */
+    private static void readFully(FileChannel ch, ByteBuffer b, long pos) throws IOException {
+        while (b.hasRemaining()) {
+            int n= ch.read(b, pos);
+            if (n < 0) throw new EOFException();
+            pos += n;
+        }
+    }
+
+    /** Write the bytes of b to ch at offset pos. */
+    private static void writeFully(FileChannel ch, ByteBuffer b, long pos) throws IOException {
+        while (b.hasRemaining()) {
+            pos += ch.write(b, pos);
+        }
+    }
+}
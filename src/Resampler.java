@@ -0,0 +1,286 @@
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** An instance resamples TiledImages to another size, with a separable
+ * filter: first along the rows, then along the columns.
+ *
+ * The weights of each output column (and row) are computed once, as a
+ * table of the first source pixel and int weights in 14-bit fixed point;
+ * when shrinking, the filter is stretched by the factor, so that each
+ * output pixel averages all the source pixels under it. Pixels are
+ * premultiplied, and two channels are weighed per multiplication, in the
+ * two 32-bit halves of a long (negative weights make a half negative,
+ * which is undone exactly when the halves are taken apart).
+ *
+ * Each row of output tiles is a task on a ForkJoinPool. A task resamples
+ * the source rows it needs along the rows into a ring of rows as its output
+ * rows need them (each source row once per task), and writes its output
+ * straight into the int[] pixels of its tiles. */
+class Resampler {
+    /** The filters. */
+    public enum Method {
+        /** Lanczos with 3 lobes: sharpest, for photographs. */
+        LANCZOS3("Lanczos3", 3),
+        /** Catmull-Rom cubic: sharp, with less ringing than Lanczos3. */
+        BICUBIC("Bicubic", 2),
+        /** Box: the average of the pixels under each output pixel; best
+         * (and fastest) for shrinking, blocky for enlarging. */
+        BOX("Box", 0.5);
+
+        private final String label;
+        final double support; // radius of the filter, in source pixels at scale 1
+
+        Method(String label, double support) {
+            this.label= label;
+            this.support= support;
+        }
+
+        /** Return the value of the filter at x. */
+        double weight(double x) {
+            x= Math.abs(x);
+            if (this == BOX) return x < 0.5 ? 1 : x == 0.5 ? 0.5 : 0;
+            if (this == BICUBIC) {
+                // Catmull-Rom (a = -0.5).
+                if (x < 1) return (1.5 * x - 2.5) * x * x + 1;
+                if (x < 2) return ((-0.5 * x + 2.5) * x - 4) * x + 2;
+                return 0;
+            }
+            if (x == 0) return 1;
+            if (x >= 3) return 0;
+            double px= Math.PI * x;
+            return 3 * Math.sin(px) * Math.sin(px / 3) / (px * px);
+        }
+
+        @Override public String toString() {
+            return label;
+        }
+    }
+
+    private static final int T= TiledImage.TILE_SIZE;
+    private static final int SHIFT= TiledImage.TILE_SHIFT;
+
+    /** Weights are in units of 1/ONE. */
+    private static final int ONE= 1 << 14;
+
+    private final ForkJoinPool pool; // runs the tasks
+
+    /** Constructor: a resampler that runs its tasks on the common pool. */
+    public Resampler() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /** Constructor: a resampler that runs its tasks on pool p. */
+    public Resampler(ForkJoinPool p) {
+        pool= p;
+    }
+
+    /** The weights of resampling n source pixels to m: output pixel i is
+     * the sum over k < count[i] of weights[i * span + k] times source pixel
+     * first[i] + k. */
+    private static final class Weights {
+        final int[] first, count, weights;
+        final int span; // largest count
+
+        Weights(int n, int m, Method method) {
+            double scale= m / (double) n;
+            double stretch= Math.max(1, 1 / scale); // filter widened when shrinking
+            double support= method.support * stretch;
+            span= (int) Math.ceil(2 * support) + 2;
+            first= new int[m];
+            count= new int[m];
+            weights= new int[m * span];
+            double[] w= new double[span];
+            for (int i= 0; i < m; i++) {
+                double center= (i + 0.5) / scale; // in source pixels
+                int lo= Math.max(0, (int) Math.floor(center - support));
+                int hi= Math.min(n, (int) Math.ceil(center + support));
+                double sum= 0;
+                int c= 0;
+                for (int j= lo; j < hi  &&  c < span; j++, c++) {
+                    w[c]= method.weight((j + 0.5 - center) / stretch);
+                    sum += w[c];
+                }
+                // Drop zero weights at both ends.
+                int a= 0, b= c;
+                while (a < b  &&  w[a] == 0) a++;
+                while (b > a  &&  w[b - 1] == 0) b--;
+                if (a == b) { // nothing under the filter: take the nearest pixel
+                    int j= Math.min(n - 1, Math.max(0, (int) center));
+                    first[i]= j;
+                    count[i]= 1;
+                    weights[i * span]= ONE;
+                    continue;
+                }
+                first[i]= lo + a;
+                count[i]= b - a;
+                // Normalize (the edges cut the filter off), rounding so that
+                // the weights sum to ONE exactly.
+                int total= 0, big= a;
+                for (int k= a; k < b; k++) {
+                    int v= (int) Math.round(w[k] / sum * ONE);
+                    weights[i * span + k - a]= v;
+                    total += v;
+                    if (w[k] > w[big]) big= k;
+                }
+                weights[i * span + big - a] += ONE - total;
+            }
+        }
+    }
+
+    /** Return a new image of width w and height h with the pixels of src
+     * resampled with method m. src must not change meanwhile.
+     * Throw an IllegalArgumentException if w or h is not positive. */
+    public TiledImage resample(TiledImage src, int w, int h, Method m) {
+        if (w <= 0  ||  h <= 0) throw new IllegalArgumentException("resample: size " + w + " x " + h);
+        // The background of dst is that of src as resampled (premultiplying
+        // rounds translucent colors), so that tiles left unallocated below
+        // have the pixels the resampling would give them.
+        int bg= Filters.unpremultiply(Filters.premultiply(src.getBackground()));
+        TiledImage dst= new TiledImage(w, h, new Color(bg, true));
+        Weights wx= new Weights(src.getWidth(), w, m);
+        Weights wy= new Weights(src.getHeight(), h, m);
+        List<RowTask> tasks= new ArrayList<>();
+        for (int row= 0; row < dst.getRows(); row++) {
+            // Tiles are allocated here, in one thread. A tile whose source
+            // pixels are all background stays unallocated.
+            int[][] data= new int[dst.getCols()][];
+            boolean any= false;
+            for (int col= 0; col < data.length; col++) {
+                if (!readsAllocated(src, wx, wy, col, row)) continue;
+                data[col]= dst.writableTileData(col, row);
+                any= true;
+            }
+            if (any) tasks.add(new RowTask(src, dst, data, row, wx, wy));
+        }
+        pool.invoke(new RecursiveAction() {
+            @Override protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+        return dst;
+    }
+
+    /** Return true iff output tile (col, row) of a resampling of src with
+     * weights wx and wy reads an allocated tile of src. */
+    private static boolean readsAllocated(TiledImage src, Weights wx, Weights wy, int col, int row) {
+        int[] xs= footprint(wx, col), ys= footprint(wy, row);
+        for (int r= ys[0] >> SHIFT; r <= (ys[1] - 1) >> SHIFT; r++) {
+            for (int c= xs[0] >> SHIFT; c <= (xs[1] - 1) >> SHIFT; c++) {
+                if (src.isAllocated(c, r)) return true;
+            }
+        }
+        return false;
+    }
+
+    /** Return {lo, hi}: source pixels lo..hi-1 are all those that output
+     * tile t (a column or row of tiles) of weights w reads. */
+    private static int[] footprint(Weights w, int t) {
+        int i0= t << SHIFT, i1= Math.min(i0 + T, w.first.length);
+        int lo= Integer.MAX_VALUE, hi= 0;
+        for (int i= i0; i < i1; i++) {
+            lo= Math.min(lo, w.first[i]);
+            hi= Math.max(hi, w.first[i] + w.count[i]);
+        }
+        return new int[] {lo, hi};
+    }
+
+    /** The task that fills a row of output tiles. */
+    private static final class RowTask extends RecursiveAction {
+        private static final long serialVersionUID = 201801;
+
+        private final TiledImage src;
+        private final int[][] data; // pixels of the tiles of the row, writable (null: left background)
+        private final int y0, y1;   // rows of the output
+        private final int width;    // width of the output
+        private final Weights wx, wy;
+
+        RowTask(TiledImage src, TiledImage dst, int[][] data, int row, Weights wx, Weights wy) {
+            this.src= src;
+            this.data= data;
+            y0= row << SHIFT;
+            y1= Math.min(y0 + T, dst.getHeight());
+            width= dst.getWidth();
+            this.wx= wx;
+            this.wy= wy;
+        }
+
+        @Override protected void compute() {
+            int sw= src.getWidth();
+            int w= width;
+            // A ring of the source rows resampled along x: slot k holds
+            // source row tag[k], as two arrays of lanes (red/blue, alpha/green).
+            int slots= wy.span;
+            long[][] rb= new long[slots][w], ag= new long[slots][w];
+            int[] tag= new int[slots];
+            Arrays.fill(tag, -1);
+            int[] line= new int[sw];
+            long[] lrb= new long[sw], lag= new long[sw];
+            long[] acc1= new long[w], acc2= new long[w];
+
+            for (int y= y0; y < y1; y++) {
+                int f= wy.first[y], n= wy.count[y];
+                for (int k= 0; k < n; k++) {
+                    int sy= f + k, slot= sy % slots;
+                    if (tag[slot] == sy) continue;
+                    tag[slot]= sy;
+                    Filter.read(src, 0, sy, sw, 1, line);
+                    for (int x= 0; x < sw; x++) {
+                        int p= Filters.premultiply(line[x]);
+                        lrb[x]= (long) (p >> 16 & 0xFF) << 32 | p & 0xFF;
+                        lag[x]= (long) (p >>> 24) << 32 | p >> 8 & 0xFF;
+                    }
+                    long[] orb= rb[slot], oag= ag[slot];
+                    for (int x= 0; x < w; x++) {
+                        int fx= wx.first[x], c= wx.count[x], base= x * wx.span;
+                        long s1= 0, s2= 0;
+                        for (int j= 0; j < c; j++) {
+                            int v= wx.weights[base + j];
+                            s1 += lrb[fx + j] * v;
+                            s2 += lag[fx + j] * v;
+                        }
+                        orb[x]= clampLanes(s1);
+                        oag[x]= clampLanes(s2);
+                    }
+                }
+
+                // Along y: sequential over x for each source row.
+                Arrays.fill(acc1, 0);
+                Arrays.fill(acc2, 0);
+                for (int k= 0; k < n; k++) {
+                    int v= wy.weights[y * wy.span + k], slot= (f + k) % slots;
+                    long[] orb= rb[slot], oag= ag[slot];
+                    for (int x= 0; x < w; x++) {
+                        acc1[x] += orb[x] * v;
+                        acc2[x] += oag[x] * v;
+                    }
+                }
+                int base= (y & (T - 1)) << SHIFT;
+                for (int x= 0; x < w; x++) {
+                    if (data[x >> SHIFT] == null) {
+                        x |= T - 1; // skip the tile
+                        continue;
+                    }
+                    long v1= clampLanes(acc1[x]), v2= clampLanes(acc2[x]);
+                    int a= (int) (v2 >>> 32);
+                    // Premultiplied colors cannot exceed alpha.
+                    int r= Math.min(a, (int) (v1 >>> 32)), g= Math.min(a, (int) v2), b= Math.min(a, (int) v1);
+                    data[x >> SHIFT][base + (x & (T - 1))]= Filters.unpremultiply(a << 24 | r << 16 | g << 8 | b);
+                }
+            }
+        }
+    }
+
+    /** Return the two 32-bit lanes of sums s (units of 1/ONE; the low lane
+     * may be negative) rounded and clamped to 0..255, in the same lanes. */
+    private static long clampLanes(long s) {
+        int lo= (int) s;                   // low lane, signed
+        int hi= (int) ((s - lo) >> 32);    // high lane, signed
+        lo= Math.min(255, Math.max(0, (lo + ONE / 2) >> 14));
+        hi= Math.min(255, Math.max(0, (hi + ONE / 2) >> 14));
+        return (long) hi << 32 | lo;
+    }
+}
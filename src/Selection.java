@@ -0,0 +1,277 @@
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.PathIterator;
+import java.util.Arrays;
+
+/** An instance is a selection: a set of pixels of an image, to which
+ * drawing and filters are limited. It is made from a shape (a rectangle,
+ * an ellipse or a lasso polygon): a pixel is selected iff its center is
+ * inside the shape.
+ *
+ * It is kept as a mask per tile of the image (tiles of the size of those
+ * of TiledImage): a tile is EMPTY (no pixel selected), FULL (all of its
+ * pixels in the image selected) or PARTIAL, with a bitmap of one bit per
+ * pixel. Only tiles on the edge of the shape need a bitmap, so a selection
+ * takes little memory, and work can skip EMPTY tiles and everything
+ * outside the bounds of the selection. */
+class Selection {
+    /** States of a tile. */
+    public static final int EMPTY= 0, PARTIAL= 1, FULL= 2;
+
+    private static final int T= TiledImage.TILE_SIZE;
+    private static final int SHIFT= TiledImage.TILE_SHIFT;
+
+    private final int width, height; // size of the image
+    private final int cols;          // number of columns of tiles
+    private final byte[] states;     // state of each tile
+    /** bits[i] is the bitmap of tile i if it is PARTIAL, else null. Pixel
+     * (x, y) of the tile is bit (y << TILE_SHIFT) + x. */
+    private final long[][] bits;
+    private final Rectangle bounds; // smallest rectangle containing the selected pixels
+    private final Shape shape;      // the shape it was made from
+
+    /** Constructor: the pixels of an image of size (w, h) whose centers
+     * are inside shape s (by its winding rule).
+     * Throw an IllegalArgumentException if w or h is not positive. */
+    public Selection(int w, int h, Shape s) {
+        if (w <= 0  ||  h <= 0) throw new IllegalArgumentException("Selection: size " + w + " x " + h);
+        width= w;
+        height= h;
+        cols= (w + T - 1) >> SHIFT;
+        int rows= (h + T - 1) >> SHIFT;
+        states= new byte[cols * rows];
+        bits= new long[cols * rows][];
+        shape= s;
+        bounds= rasterize(s);
+        compact();
+    }
+
+    /** Return the width of the image. */
+    public int getWidth() {
+        return width;
+    }
+
+    /** Return the height of the image. */
+    public int getHeight() {
+        return height;
+    }
+
+    /** Return the shape the selection was made from. */
+    public Shape getShape() {
+        return shape;
+    }
+
+    /** Return the smallest rectangle that contains the selected pixels
+     * (empty if there are none). */
+    public Rectangle getBounds() {
+        return new Rectangle(bounds);
+    }
+
+    /** Return true iff no pixel is selected. */
+    public boolean isEmpty() {
+        return bounds.isEmpty();
+    }
+
+    /** Return true iff pixel (x, y) is selected. */
+    public boolean contains(int x, int y) {
+        if (x < 0  ||  y < 0  ||  x >= width  ||  y >= height) return false;
+        int i= (y >> SHIFT) * cols + (x >> SHIFT);
+        if (states[i] != PARTIAL) return states[i] == FULL;
+        int k= ((y & (T - 1)) << SHIFT) + (x & (T - 1));
+        return (bits[i][k >> 6] & 1L << k) != 0;
+    }
+
+    /** Return the state of tile (col, row): EMPTY, PARTIAL or FULL. */
+    public int tileState(int col, int row) {
+        return states[row * cols + col];
+    }
+
+    /** Return the bitmap of tile (col, row) if it is PARTIAL, else null.
+     * Do not change it. */
+    public long[] tileBits(int col, int row) {
+        return bits[row * cols + col];
+    }
+
+    /** Return true iff any pixel of rectangle (x, y, w, h) may be selected:
+     * it meets the bounds of the selection. */
+    public boolean meets(int x, int y, int w, int h) {
+        return w > 0  &&  h > 0  &&  x < bounds.x + bounds.width  &&  x + w > bounds.x
+                &&  y < bounds.y + bounds.height  &&  y + h > bounds.y;
+    }
+
+    /** Set the bits of the pixels inside s and return the bounds of them. */
+    private Rectangle rasterize(Shape s) {
+        // The edges of the flattened shape: (x0, y0) to (x1, y1), direction dir.
+        double[] e= new double[64];
+        int n= 0; // number of edges * 5
+        double mx= 0, my= 0, lx= 0, ly= 0;
+        double[] c= new double[6];
+        PathIterator it= s.getPathIterator(null, 0.02);
+        boolean evenOdd= it.getWindingRule() == PathIterator.WIND_EVEN_ODD;
+        for (; !it.isDone(); it.next()) {
+            int type= it.currentSegment(c);
+            double x, y;
+            if (type == PathIterator.SEG_MOVETO) {
+                // Close the previous subpath.
+                if (lx != mx  ||  ly != my) {
+                    e= grow(e, n);
+                    n= addEdge(e, n, lx, ly, mx, my);
+                }
+                mx= lx= c[0];
+                my= ly= c[1];
+                continue;
+            }
+            if (type == PathIterator.SEG_CLOSE) {
+                x= mx;
+                y= my;
+            } else {
+                x= c[0];
+                y= c[1];
+            }
+            e= grow(e, n);
+            n= addEdge(e, n, lx, ly, x, y);
+            lx= x;
+            ly= y;
+        }
+        if (lx != mx  ||  ly != my) {
+            e= grow(e, n);
+            n= addEdge(e, n, lx, ly, mx, my);
+        }
+
+        // Sort the edges by their top (as indices), then sweep the rows.
+        int m= n / 5;
+        Integer[] order= new Integer[m];
+        for (int k= 0; k < m; k++) order[k]= k;
+        final double[] edges= e;
+        Arrays.sort(order, (a, b) -> Double.compare(edges[5 * a + 1], edges[5 * b + 1]));
+
+        int[] active= new int[16];
+        int numActive= 0;
+        double[] xs= new double[16];
+        int[] dirs= new int[16];
+        int next= 0;
+        int x0= width, y0= height, x1= -1, y1= -1;
+        int top= m == 0 ? height : Math.max(0, (int) Math.floor(e[5 * order[0] + 1] - 0.5));
+        for (int y= top; y < height; y++) {
+            double yc= y + 0.5;
+            while (next < m  &&  e[5 * order[next] + 1] <= yc) {
+                if (numActive == active.length) active= Arrays.copyOf(active, 2 * numActive);
+                active[numActive++]= order[next++];
+            }
+            // Drop the edges that end above yc; find the crossings of the rest.
+            int nx= 0;
+            for (int k= 0; k < numActive; k++) {
+                int a= active[k];
+                if (e[5 * a + 3] <= yc) {
+                    active[k--]= active[--numActive];
+                    continue;
+                }
+                if (nx == xs.length) {
+                    xs= Arrays.copyOf(xs, 2 * nx);
+                    dirs= Arrays.copyOf(dirs, 2 * nx);
+                }
+                double ex0= e[5 * a], ey0= e[5 * a + 1], ex1= e[5 * a + 2], ey1= e[5 * a + 3];
+                xs[nx]= ex0 + (yc - ey0) * (ex1 - ex0) / (ey1 - ey0);
+                dirs[nx++]= (int) e[5 * a + 4];
+            }
+            if (numActive == 0  &&  next == m) break;
+            sortCrossings(xs, dirs, nx);
+            int wind= 0;
+            for (int k= 0; k < nx - 1; k++) {
+                wind += dirs[k];
+                boolean inside= evenOdd ? (k & 1) == 0 : wind != 0;
+                if (!inside) continue;
+                // Pixels whose centers x + 0.5 are in [xs[k], xs[k+1]).
+                int a= Math.max(0, (int) Math.ceil(xs[k] - 0.5));
+                int b= Math.min(width, (int) Math.ceil(xs[k + 1] - 0.5)) - 1;
+                if (a > b) continue;
+                setRow(y, a, b);
+                x0= Math.min(x0, a);
+                x1= Math.max(x1, b);
+                y0= Math.min(y0, y);
+                y1= y;
+            }
+        }
+        if (x1 < 0) return new Rectangle();
+        return new Rectangle(x0, y0, x1 - x0 + 1, y1 - y0 + 1);
+    }
+
+    /** Return e, or a copy with room for another edge after its first n
+     * elements. */
+    private static double[] grow(double[] e, int n) {
+        return n + 5 <= e.length ? e : Arrays.copyOf(e, 2 * e.length);
+    }
+
+    /** Store the edge from (ax, ay) to (bx, by) at e[n..n+4] (top first, and
+     * its direction) unless it is horizontal, and return the new size. */
+    private static int addEdge(double[] e, int n, double ax, double ay, double bx, double by) {
+        if (ay == by) return n;
+        boolean down= ay < by;
+        e[n]= down ? ax : bx;
+        e[n + 1]= down ? ay : by;
+        e[n + 2]= down ? bx : ax;
+        e[n + 3]= down ? by : ay;
+        e[n + 4]= down ? 1 : -1;
+        return n + 5;
+    }
+
+    /** Sort xs[0..n-1] (and dirs with them) in increasing order. There are
+     * few crossings per row, so insertion sort is fastest. */
+    private static void sortCrossings(double[] xs, int[] dirs, int n) {
+        for (int i= 1; i < n; i++) {
+            double x= xs[i];
+            int d= dirs[i];
+            int j= i - 1;
+            for (; j >= 0  &&  xs[j] > x; j--) {
+                xs[j + 1]= xs[j];
+                dirs[j + 1]= dirs[j];
+            }
+            xs[j + 1]= x;
+            dirs[j + 1]= d;
+        }
+    }
+
+    /** Select pixels a..b of row y. */
+    private void setRow(int y, int a, int b) {
+        int base= (y & (T - 1)) << SHIFT;
+        int trow= (y >> SHIFT) * cols;
+        for (int col= a >> SHIFT; col <= b >> SHIFT; col++) {
+            int i= trow + col;
+            if (bits[i] == null) bits[i]= new long[T * T / 64];
+            int from= base + Math.max(a - (col << SHIFT), 0);
+            int to= base + Math.min(b - (col << SHIFT), T - 1);
+            int wi= from >> 6, wj= to >> 6;
+            long first= -1L << from, last= -1L >>> (63 - (to & 63));
+            if (wi == wj) {
+                bits[i][wi] |= first & last;
+            } else {
+                bits[i][wi] |= first;
+                for (int w= wi + 1; w < wj; w++) bits[i][w]= -1L;
+                bits[i][wj] |= last;
+            }
+        }
+    }
+
+    /** Set the state of each tile from its bitmap, dropping the bitmaps of
+     * tiles that are not PARTIAL. */
+    private void compact() {
+        for (int i= 0; i < bits.length; i++) {
+            if (bits[i] == null) continue;
+            int col= i % cols, row= i / cols;
+            int w= Math.min(T, width - (col << SHIFT));
+            int h= Math.min(T, height - (row << SHIFT));
+            int set= 0;
+            for (int y= 0; y < h; y++) {
+                for (int k= y << (SHIFT - 6); k < (y + 1) << (SHIFT - 6); k++) set += Long.bitCount(bits[i][k]);
+            }
+            if (set == w * h) {
+                states[i]= FULL;
+                bits[i]= null;
+            } else if (set == 0) {
+                bits[i]= null;
+            } else {
+                states[i]= PARTIAL;
+            }
+        }
+    }
+}
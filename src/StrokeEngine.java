@@ -0,0 +1,436 @@
+import java.awt.*;
+import java.awt.geom.Line2D;
+import java.util.Arrays;
+
+/** An instance draws the marks of the drawing tools (lines, brush strokes
+ * and airbrush sprays) into a TiledImage and records the area they change.
+ * If there is a selection, only selected pixels change: tiles outside it
+ * are skipped, and on tiles partly in it the pixels outside are put back
+ * after drawing (or, for brush dabs, not drawn).
+ * It does not use Swing, so it can draw without a GUI and on any thread,
+ * as long as only one thread uses it at a time.
+ *
+ * Brush strokes (of the pencil and eraser) are dabs of a Brush along a
+ * smooth curve through the positions of the stroke. The coverage mask of
+ * each dab comes from a DabCache and is blended straight into the int[]
+ * pixels of the tiles. With dynamics, the size and opacity of each dab
+ * are interpolated along the curve between those at the positions around
+ * it, given by the pressure (see setPressure) and by the speed of the
+ * stroke, measured from the times of the events (see setTime). */
+class StrokeEngine {
+    /** Weight of the latest speed in the smoothed speed of a stroke. */
+    private static final double SPEED_SMOOTHING= 0.5;
+
+    private TiledImage img; // the image drawn on
+    private final DirtyRegion damage= new DirtyRegion(); // area changed since last cleared
+    private final Airbrush airbrush; // spray kernel of the airbrush
+    private final FloodFill floodFill= new FloodFill(); // fills of the paint bucket
+    private Selection selection; // the pixels that may change (null: all)
+
+    // Pixels of a tile partly outside the selection, saved before drawing on
+    // it: rectangle (savedX0..savedX1, savedY0..savedY1) of tile (savedCol, savedRow).
+    private final int[] saved= new int[TiledImage.TILE_SIZE * TiledImage.TILE_SIZE];
+    private int savedCol, savedRow, savedX0, savedY0, savedX1, savedY1;
+
+    /** strokes[s] is the stroke of width s, or null if not yet needed. */
+    private BasicStroke[] strokes= new BasicStroke[0];
+
+    private Brush brush= Brush.DEFAULT; // brush of the pencil and eraser
+    private final DabCache dabs= new DabCache(DabCache.DEFAULT_BUDGET); // masks of its dabs
+    private double pressure= 1; // pressure of the pen at the next event, 0..1
+    private long time;          // time of the next event (microseconds)
+
+    // The brush stroke being drawn: its dabs, their color and tool size.
+    private final StrokeSmoother smoother= new StrokeSmoother(this::dab);
+    private Color dabColor;
+    private int dabSize;
+
+    // Dynamics of the brush stroke: its smoothed speed (pixels per ms) and
+    // its last event; the size and opacity factors (see Brush) at the last
+    // two positions given to the smoother (p1, p2) and at the ends of the
+    // segment whose dabs are being stamped.
+    private double speed;
+    private double eventX, eventY;
+    private long eventTime;
+    private double size1, size2, opacity1, opacity2;
+    private double segSize0, segSize1, segOpacity0, segOpacity1;
+
+    // The stroke of a tool being drawn (see press): its tool and last position.
+    private Tool tool;
+    private double lastX, lastY;
+
+    /** Constructor: an engine that draws on img, with airbrush seed seed. */
+    public StrokeEngine(TiledImage img, long seed) {
+        this.img= img;
+        airbrush= new Airbrush(seed);
+    }
+
+    /** Return the image drawn on. */
+    public TiledImage getImage() {
+        return img;
+    }
+
+    /** Draw on image i from now on. */
+    public void setImage(TiledImage i) {
+        img= i;
+    }
+
+    /** Return the selection (null if all pixels may change). */
+    public Selection getSelection() {
+        return selection;
+    }
+
+    /** Change only the pixels of selection s from now on (all pixels if s
+     * is null). */
+    public void setSelection(Selection s) {
+        selection= s;
+    }
+
+    /** Return the area changed by the drawing done since it was last cleared. */
+    public DirtyRegion getDamage() {
+        return damage;
+    }
+
+    /** Return the airbrush. */
+    public Airbrush getAirbrush() {
+        return airbrush;
+    }
+
+    /** Return the brush of the pencil and eraser. */
+    public Brush getBrush() {
+        return brush;
+    }
+
+    /** Draw with brush b from the next stroke on. */
+    public void setBrush(Brush b) {
+        brush= b;
+    }
+
+    /** Return the cache of the dabs of the brush. */
+    public DabCache getDabs() {
+        return dabs;
+    }
+
+    /** Set the pressure of the pen at the next events to p, 0..1 (it is 1,
+     * full pressure, unless set: a mouse has none). */
+    public void setPressure(double p) {
+        pressure= Math.min(1, Math.max(0, p));
+    }
+
+    /** Set the time of the next events to t (microseconds, from any fixed
+     * origin). Speeds are measured from the times of the events. */
+    public void setTime(long t) {
+        time= t;
+    }
+
+    /** Return the stroke of width s, creating it the first time. */
+    public BasicStroke strokeFor(int s) {
+        if (s >= strokes.length) {
+            strokes= Arrays.copyOf(strokes, Math.max(s + 1, 2 * strokes.length));
+        }
+        if (strokes[s] == null) {
+            strokes[s]= new BasicStroke(s);
+        }
+        return strokes[s];
+    }
+
+    /** Begin a stroke of tool t with color c and size s at (x, y), as a
+     * press of the mouse with t does: a pencil or eraser stamps a dab of
+     * the brush there and begins a brush stroke; an airbrush sprays. Other
+     * tools do nothing (a LINE is drawn with line). */
+    public void press(Tool t, Color c, double x, double y, int s) {
+        tool= t;
+        if (t == Tool.PENCIL  ||  t == Tool.ERASER) {
+            beginStroke(c, x, y, s);
+            stamp(c, x, y, s * size2, brush.getOpacity() * opacity2);
+        } else if (t == Tool.AIRBRUSH) {
+            spray(c, (int) x, (int) y, s);
+        }
+        lastX= x;
+        lastY= y;
+    }
+
+    /** Continue the stroke begun by press to (x, y), with color c and size
+     * s, as a drag of the mouse does. */
+    public void drag(Color c, double x, double y, int s) {
+        if (tool == Tool.PENCIL  ||  tool == Tool.ERASER) strokeTo(c, x, y, s);
+        else if (tool == Tool.AIRBRUSH) sprayLine(c, lastX, lastY, x, y, s);
+        lastX= x;
+        lastY= y;
+    }
+
+    /** End the stroke begun by press, as a release of the mouse does. */
+    public void release() {
+        endStroke();
+        tool= null;
+    }
+
+    /** Stamp one dab of the brush of color c and size s centered at (x, y),
+     * at the opacity of the brush. */
+    public void stamp(Color c, double x, double y, int s) {
+        stamp(c, x, y, s, brush.getOpacity());
+    }
+
+    /** Return how far (in pixels) a line of width s drawn with strokeFor(s)
+     * can reach beyond the box of its ends: its square caps reach s/2 *
+     * sqrt(2) from the ends, plus a pixel for truncation. */
+    public static int capPad(int s) {
+        return (int) Math.ceil(s * 0.7072) + 1;
+    }
+
+    /** Draw a line of color c and width s from (ax, ay) to (bx, by). */
+    public void line(Color c, double ax, double ay, double bx, double by, int s) {
+        int pad= capPad(s);
+        int x0= (int) Math.min(ax, bx) - pad;
+        int y0= (int) Math.min(ay, by) - pad;
+        int x1= (int) Math.max(ax, bx) + pad;
+        int y1= (int) Math.max(ay, by) + pad;
+        if (selection != null  &&  !selection.meets(x0, y0, x1 - x0 + 1, y1 - y0 + 1)) return;
+        BasicStroke stroke= strokeFor(s);
+        // Only the tiles the line's outline meets are drawn on (and so
+        // allocated); a pixel is added around each for antialiasing.
+        Shape outline= stroke.createStrokedShape(new Line2D.Double((int) ax, (int) ay, (int) bx, (int) by));
+        int t= TiledImage.TILE_SIZE;
+        for (int row= firstRow(y0); row <= lastRow(y1); row++) {
+            for (int col= firstCol(x0); col <= lastCol(x1); col++) {
+                if (!outline.intersects(col * t - 1, row * t - 1, t + 2, t + 2)) continue;
+                int clip= clipState(col, row);
+                if (clip == Selection.EMPTY) continue;
+                if (clip == Selection.PARTIAL) save(col, row, x0, y0, x1, y1);
+                Graphics2D g2d= img.graphics(col, row);
+                g2d.setColor(c);
+                g2d.setStroke(stroke);
+                g2d.drawLine((int) ax, (int) ay, (int) bx, (int) by);
+                if (clip == Selection.PARTIAL) restore();
+            }
+        }
+        damage.addRect(x0, y0, x1 - x0 + 1, y1 - y0 + 1);
+    }
+
+    /** Begin a brush stroke of color c and size s at (x, y). The stroke is
+     * drawn as dabs of the brush along a smooth curve through its
+     * positions; no dab is drawn at (x, y) itself. */
+    public void beginStroke(Color c, double x, double y, int s) {
+        if (smoother.isActive()) smoother.end();
+        dabColor= c;
+        dabSize= s;
+        speed= 0;
+        eventX= x;
+        eventY= y;
+        eventTime= time;
+        size1= size2= brush.sizeFactor(pressure, speed);
+        opacity1= opacity2= brush.opacityFactor(pressure, speed);
+        smoother.begin(x, y, s * size2 * brush.getSpacing());
+    }
+
+    /** Continue the brush stroke of color c and size s to (x, y). The part
+     * of the curve just before (x, y) is drawn when the next position is
+     * known (or the stroke ends). If no stroke has begun, begin one. */
+    public void strokeTo(Color c, double x, double y, int s) {
+        if (!smoother.isActive()) {
+            beginStroke(c, x, y, s);
+            return;
+        }
+        dabColor= c;
+        dabSize= s;
+        if (x == eventX  &&  y == eventY) return; // the smoother skips it too
+        long dt= time - eventTime;
+        if (dt > 0) speed += SPEED_SMOOTHING * (Math.hypot(x - eventX, y - eventY) * 1000 / dt - speed);
+        eventX= x;
+        eventY= y;
+        eventTime= time;
+        // add stamps the segment from p1 to p2.
+        segSize0= size1;
+        segSize1= size2;
+        segOpacity0= opacity1;
+        segOpacity1= opacity2;
+        size1= size2;
+        opacity1= opacity2;
+        size2= brush.sizeFactor(pressure, speed);
+        opacity2= brush.opacityFactor(pressure, speed);
+        smoother.add(x, y);
+    }
+
+    /** End the brush stroke (if any), drawing the rest of its curve. */
+    public void endStroke() {
+        segSize0= size1;
+        segSize1= size2;
+        segOpacity0= opacity1;
+        segOpacity1= opacity2;
+        smoother.end();
+    }
+
+    /** Stamp the dab of the brush stroke centered at (x, y), a fraction t
+     * of the way along its segment, and space the next dab after it. */
+    private void dab(double x, double y, double t) {
+        double d= dabSize * (segSize0 + t * (segSize1 - segSize0));
+        double o= brush.getOpacity() * (segOpacity0 + t * (segOpacity1 - segOpacity0));
+        stamp(dabColor, x, y, d, o);
+        smoother.setSpacing(Math.max(1, d) * brush.getSpacing());
+    }
+
+    /** Stamp a dab of the brush of color c, size d and opacity o centered
+     * at (x, y). Dabs of size 2 or less are squares (of size 1 or 2), as
+     * round ones that small are too faint to see. */
+    private void stamp(Color c, double x, double y, double d, double o) {
+        int argb= c.getRGB();
+        int alpha= (int) Math.round((argb >>> 24) * o);
+        if (alpha == 0) return;
+        if (d <= 2) {
+            int s= d <= 1 ? 1 : 2;
+            square(argb, alpha, (int) x - s/2, (int) y - s/2, s);
+            return;
+        }
+        int ix, iy, qx, qy; // center: (ix + qx/4, iy + qy/4)
+        if (DabCache.phased(d)) {
+            long x4= Math.round(x * 4), y4= Math.round(y * 4);
+            ix= (int) (x4 >> 2);
+            iy= (int) (y4 >> 2);
+            qx= (int) (x4 & 3);
+            qy= (int) (y4 & 3);
+        } else {
+            ix= (int) Math.floor(x);
+            iy= (int) Math.floor(y);
+            qx= qy= 2;
+        }
+        DabCache.Dab m= dabs.get(d, brush.getHardness(), qx, qy);
+        int left= ix - m.radius, top= iy - m.radius;
+        if (selection != null  &&  !selection.meets(left, top, m.side, m.side)) return;
+        blend(m.coverage, m.side, left, top, argb, alpha);
+        damage.addRect(left, top, m.side, m.side);
+    }
+
+    /** Blend color argb at alpha alpha over the square of size s with
+     * top-left corner (x, y). */
+    private void square(int argb, int alpha, int x, int y, int s) {
+        if (selection != null  &&  !selection.meets(x, y, s, s)) return;
+        byte[] full= s == 1 ? FULL1 : FULL2;
+        blend(full, s, x, y, argb, alpha);
+        damage.addRect(x, y, s, s);
+    }
+
+    private static final byte[] FULL1= {(byte) 255}, FULL2= {(byte) 255, (byte) 255, (byte) 255, (byte) 255};
+
+    /** Blend the color of argb over the selected pixels of the square of
+     * size side with top-left corner (x, y), at alpha alpha (0..255) times
+     * the coverage of each pixel, coverage[j * side + i] / 255 for pixel
+     * (x + i, y + j). */
+    private void blend(byte[] coverage, int side, int x, int y, int argb, int alpha) {
+        int x0= Math.max(x, 0), y0= Math.max(y, 0);
+        int x1= Math.min(x + side, img.getWidth()), y1= Math.min(y + side, img.getHeight());
+        if (x0 >= x1  ||  y0 >= y1) return;
+        int T= TiledImage.TILE_SIZE, SHIFT= TiledImage.TILE_SHIFT;
+        int sr= argb >> 16 & 0xFF, sg= argb >> 8 & 0xFF, sb= argb & 0xFF;
+        for (int row= y0 >> SHIFT; row <= (y1 - 1) >> SHIFT; row++) {
+            for (int col= x0 >> SHIFT; col <= (x1 - 1) >> SHIFT; col++) {
+                int clip= clipState(col, row);
+                if (clip == Selection.EMPTY) continue;
+                long[] bits= clip == Selection.PARTIAL ? selection.tileBits(col, row) : null;
+                int[] d= img.writableTileData(col, row);
+                int ox= col << SHIFT, oy= row << SHIFT;
+                int tx0= Math.max(x0, ox), tx1= Math.min(x1, ox + T);
+                int ty0= Math.max(y0, oy), ty1= Math.min(y1, oy + T);
+                for (int py= ty0; py < ty1; py++) {
+                    int k= (py - y) * side + tx0 - x;
+                    int i= ((py - oy) << SHIFT) + tx0 - ox;
+                    for (int px= tx0; px < tx1; px++, k++, i++) {
+                        int cv= coverage[k] & 0xFF;
+                        if (cv == 0) continue;
+                        if (bits != null  &&  (bits[i >> 6] & 1L << i) == 0) continue;
+                        int a= (cv * alpha * 257 + 32768) >> 16; // cv * alpha / 255
+                        if (a == 0) continue;
+                        int p= d[i];
+                        int da= p >>> 24;
+                        if (da == 255) {
+                            // Opaque: move each channel a/255 of the way to the color.
+                            int r= p >> 16 & 0xFF, g= p >> 8 & 0xFF, b= p & 0xFF;
+                            r += ((sr - r) * a * 257 + 32768) >> 16;
+                            g += ((sg - g) * a * 257 + 32768) >> 16;
+                            b += ((sb - b) * a * 257 + 32768) >> 16;
+                            d[i]= 0xFF000000 | r << 16 | g << 8 | b;
+                        } else {
+                            d[i]= BlendMode.NORMAL.composite(p, argb | 0xFF000000, a);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /** Airbrush with color c in the disk of size s centered at (x, y). */
+    public void spray(Color c, int x, int y, int s) {
+        airbrush.spray(img, x, y, s, c.getRGB(), selection);
+        damage.addRect(x - s/2, y - s/2, s, s);
+    }
+
+    /** Airbrush with color c and size s along the segment from (ax, ay)
+     * to (bx, by), continuing the spray line begun by spray (see
+     * Airbrush.sprayLine). */
+    public void sprayLine(Color c, double ax, double ay, double bx, double by, int s) {
+        airbrush.sprayLine(img, ax, ay, bx, by, s, c.getRGB(), selection);
+        damage.addSegment(ax, ay, bx, by, s/2);
+    }
+
+    /** Fill the area at (x, y) with color c, as a paint bucket does: the
+     * pixels whose color is within tolerance of the color at (x, y), only
+     * those connected to it if contiguous (see FloodFill). */
+    public void fill(Color c, int x, int y, int tolerance, boolean contiguous) {
+        int[] r= floodFill.fill(img, selection, x, y, c.getRGB(), tolerance, contiguous);
+        if (r != null) damage.addRect(r[0], r[1], r[2], r[3]);
+    }
+
+    /** Return the state of tile (col, row) in the selection: EMPTY, PARTIAL
+     * or (if there is no selection) FULL. */
+    private int clipState(int col, int row) {
+        return selection == null ? Selection.FULL : selection.tileState(col, row);
+    }
+
+    /** Save the pixels of tile (col, row) of img in the rectangle with
+     * corners (x0, y0) and (x1, y1) (inclusive, in image coordinates), for
+     * restore. */
+    private void save(int col, int row, int x0, int y0, int x1, int y1) {
+        int ox= col << TiledImage.TILE_SHIFT, oy= row << TiledImage.TILE_SHIFT;
+        savedCol= col;
+        savedRow= row;
+        savedX0= Math.max(x0 - ox, 0);
+        savedY0= Math.max(y0 - oy, 0);
+        savedX1= Math.min(x1 - ox, TiledImage.TILE_SIZE - 1);
+        savedY1= Math.min(y1 - oy, TiledImage.TILE_SIZE - 1);
+        int[] d= img.tileData(col, row);
+        for (int y= savedY0; y <= savedY1; y++) {
+            int i= (y << TiledImage.TILE_SHIFT) + savedX0;
+            System.arraycopy(d, i, saved, i, savedX1 - savedX0 + 1);
+        }
+    }
+
+    /** Put back the pixels saved by save that are not selected. */
+    private void restore() {
+        int[] d= img.tileData(savedCol, savedRow);
+        long[] bits= selection.tileBits(savedCol, savedRow);
+        for (int y= savedY0; y <= savedY1; y++) {
+            for (int i= (y << TiledImage.TILE_SHIFT) + savedX0, end= i + savedX1 - savedX0; i <= end; i++) {
+                if ((bits[i >> 6] & 1L << i) == 0) d[i]= saved[i];
+            }
+        }
+    }
+
+    /** Return the column of the first tile of img at or right of x. */
+    private int firstCol(int x) {
+        return Math.max(x, 0) >> TiledImage.TILE_SHIFT;
+    }
+
+    /** Return the column of the last tile of img at or left of x. */
+    private int lastCol(int x) {
+        return Math.min(x, img.getWidth() - 1) >> TiledImage.TILE_SHIFT;
+    }
+
+    /** Return the row of the first tile of img at or below y. */
+    private int firstRow(int y) {
+        return Math.max(y, 0) >> TiledImage.TILE_SHIFT;
+    }
+
+    /** Return the row of the last tile of img at or above y. */
+    private int lastRow(int y) {
+        return Math.min(y, img.getHeight() - 1) >> TiledImage.TILE_SHIFT;
+    }
+}
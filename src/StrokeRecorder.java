@@ -0,0 +1,154 @@
+import java.awt.Color;
+import java.io.*;
+
+/** An instance writes the stroke events of a Canvas (see StrokeRenderer)
+ * to a compact binary recording, which StrokeReplay draws again, headless
+ * and as fast as it can. Together with the seed of the airbrush at the
+ * start, the events determine the strokes exactly.
+ *
+ * A recording is a header followed by events, to the end of the stream:
+ *   header: int MAGIC, byte VERSION, int width, int height,
+ *           int background (ARGB), long airbrush seed, long start (ms since 1970)
+ *   event:  byte flags: the type (bits 0..2) and which fields follow
+ *           varint time since the previous event (microseconds)
+ *           [byte tool ordinal] [int color ARGB] [varint size]
+ *           coordinates: x0, y0 (LINE and FILL only), x, y
+ * The tool, color and size are written only when they change (a FILL
+ * has no tool; its size is its tolerance). Each
+ * coordinate is normally the difference from the previous one of the same
+ * axis in 1/256 pixel, as a zigzag varint: mouse positions are multiples
+ * of 1/2^(MAX_ZOOM_SHIFT+1) of a pixel, so this is exact. A coordinate
+ * that is not such a multiple makes the event store all of its
+ * coordinates as doubles (flag RAW). A drag is thus about 4 bytes. */
+class StrokeRecorder implements Closeable {
+    /** First bytes of a recording: "A6SR". */
+    public static final int MAGIC= 0x41365352;
+    /** Version of the format. Version 1 had no FILL events, and its UNDO
+     * and REDO were types 4 and 5; StrokeReplay reads it too. */
+    public static final int VERSION= 2;
+
+    /** Event types beyond those of StrokeRenderer: an undo and a redo. */
+    public static final int UNDO= 5, REDO= 6;
+
+    // Bits of the flags of an event (bits 0..2 are its type).
+    static final int TYPE_MASK= 0x07, TOOL= 0x08, COLOR= 0x10, NO_COLOR= 0x20, SIZE= 0x40, RAW= 0x80;
+
+    /** Fixed-point coordinates are in units of 1/FIXED of a pixel. */
+    static final double FIXED= 256;
+
+    private final DataOutputStream out; // where the recording goes
+    private long events;       // number of events written
+    private long lastTime;     // time of the last event (ns, System.nanoTime)
+
+    // Fields of the last event, which the next one writes only if changed.
+    private Tool tool;
+    private Color color;
+    private int size= -1;
+    private long fx, fy; // last x and y coordinates, fixed point
+
+    /** Constructor: a recorder that writes to out the strokes drawn on an
+     * image of width w, height h and background color bg (ARGB), starting
+     * with airbrush seed seed. Throw an IOException if the header cannot be
+     * written. */
+    public StrokeRecorder(OutputStream out, int w, int h, int bg, long seed) throws IOException {
+        this.out= new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(VERSION);
+        this.out.writeInt(w);
+        this.out.writeInt(h);
+        this.out.writeInt(bg);
+        this.out.writeLong(seed);
+        this.out.writeLong(System.currentTimeMillis());
+        lastTime= System.nanoTime();
+    }
+
+    /** Return the number of events recorded. */
+    public long events() {
+        return events;
+    }
+
+    /** Record event type with tool t, color c (may be null) and size s at
+     * (x, y); (x0, y0) is the first point of a LINE. For UNDO and REDO the
+     * other arguments are ignored. Throw an IOException if it cannot be
+     * written. */
+    public void record(int type, Tool t, Color c, int s, double x0, double y0, double x, double y) throws IOException {
+        long now= System.nanoTime();
+        int flags= type;
+        boolean stroke= type != UNDO  &&  type != REDO;
+        if (stroke) {
+            if (t != tool  &&  type != StrokeRenderer.FILL) flags |= TOOL;
+            if (c == null) flags |= NO_COLOR;
+            else if (!c.equals(color)) flags |= COLOR;
+            if (s != size) flags |= SIZE;
+            boolean two= type == StrokeRenderer.LINE  ||  type == StrokeRenderer.FILL;
+            if (!isFixed(x)  ||  !isFixed(y)  ||  two  &&  (!isFixed(x0)  ||  !isFixed(y0))) flags |= RAW;
+        }
+        out.writeByte(flags);
+        writeVarint(Math.max(0, (now - lastTime) / 1000));
+        lastTime= now;
+        if (!stroke) {
+            events++;
+            return;
+        }
+        if ((flags & TOOL) != 0) {
+            out.writeByte(t.ordinal());
+            tool= t;
+        }
+        if ((flags & COLOR) != 0) {
+            out.writeInt(c.getRGB());
+            color= c;
+        }
+        if ((flags & SIZE) != 0) {
+            writeVarint(s);
+            size= s;
+        }
+        if (type == StrokeRenderer.LINE  ||  type == StrokeRenderer.FILL) writePoint(flags, x0, y0);
+        writePoint(flags, x, y);
+        events++;
+    }
+
+    /** Write point (x, y) of an event with flags flags. */
+    private void writePoint(int flags, double x, double y) throws IOException {
+        if ((flags & RAW) != 0) {
+            out.writeDouble(x);
+            out.writeDouble(y);
+            return;
+        }
+        long nx= (long) (x * FIXED);
+        long ny= (long) (y * FIXED);
+        writeVarint(zigzag(nx - fx));
+        writeVarint(zigzag(ny - fy));
+        fx= nx;
+        fy= ny;
+    }
+
+    /** Return true iff v is a multiple of 1/FIXED that fits the fixed point. */
+    private static boolean isFixed(double v) {
+        double f= v * FIXED;
+        return f == Math.rint(f)  &&  Math.abs(f) < 1L << 52;
+    }
+
+    /** Return v with its sign in bit 0, so that small magnitudes are small. */
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    /** Write v >= 0 in 7-bit groups, low group first. */
+    private void writeVarint(long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) (v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    /** Write what is buffered to the stream. */
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /** Write what is buffered and close the stream. */
+    @Override public void close() throws IOException {
+        out.close();
+    }
+}
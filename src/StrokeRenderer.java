@@ -0,0 +1,220 @@
+import java.awt.Color;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import javax.swing.SwingUtilities;
+
+/** An instance draws the strokes of a Canvas on a background thread, so
+ * that the cost of a brush does not slow down the GUI.
+ *
+ * The mouse handlers (on the event dispatch thread, EDT) only post events
+ * to a lock-free ring buffer. The render thread takes all events posted
+ * so far as one batch, has the canvas draw them, and asks for a repaint of
+ * the area the batch changed (repaint may be called from any thread).
+ * Only then is the canvas told, on the EDT, that strokes were drawn.
+ *
+ * There is one producer (the EDT) and one consumer (the render thread).
+ * Slots are preallocated, so posting an event does not allocate. The
+ * render thread is started by the first post, not when the canvas is made.
+ *
+ * If the render thread dies (e.g. from an OutOfMemoryError), the failure
+ * is printed, await() returns at once and later events are dropped, so
+ * that the GUI does not hang waiting for it.
+ *
+ * With Metrics, each batch is timed (the RASTER phase) with the tool and
+ * size of its last event, and the time of the post of its first event is
+ * passed on to time it to the screen (the INPUT_TO_PIXEL phase). */
+class StrokeRenderer implements Runnable {
+    /** Event types. */
+    public static final int PRESS= 0, DRAG= 1, RELEASE= 2, LINE= 3, FILL= 4;
+
+    /** Number of slots of the ring buffer (a power of 2). */
+    private static final int CAPACITY= 4096;
+
+    /** The receiver of the events, called on the render thread. */
+    public interface Target {
+        /** Draw event type with tool t, color c and size s at (x, y). For
+         * LINE, (x0, y0) is the first point of the line. For FILL, t is
+         * null, s is the tolerance and x0 is 1 for a global fill, 0 for a
+         * contiguous one. */
+        void render(int type, Tool t, Color c, int s, double x0, double y0, double x, double y);
+
+        /** Repaint the area changed by the events rendered since the last
+         * call. Return true iff there was such an area. */
+        boolean present();
+
+        /** Called on the EDT after one or more batches were presented. */
+        void rendered();
+    }
+
+    // Slot i (index i & (CAPACITY-1)) of the ring buffer is event
+    // type[i] with tool[i], color[i], size[i] at (x[i], y[i]); (x0[i], y0[i])
+    // is the first point of a LINE.
+    private final int[] type= new int[CAPACITY];
+    private final Tool[] tool= new Tool[CAPACITY];
+    private final Color[] color= new Color[CAPACITY];
+    private final int[] size= new int[CAPACITY];
+    private final double[] x0= new double[CAPACITY], y0= new double[CAPACITY];
+    private final double[] x= new double[CAPACITY], y= new double[CAPACITY];
+    private final long[] time= new long[CAPACITY]; // when posted (System.nanoTime)
+
+    // Events head..tail-1 are posted but not yet rendered.
+    // Only the render thread writes head; only the EDT writes tail.
+    private final AtomicLong head= new AtomicLong();
+    private final AtomicLong tail= new AtomicLong();
+
+    private final Target target; // receiver of the events
+    private final Metrics metrics; // measures the batches (null if none)
+    private final Thread thread; // the render thread
+    private volatile boolean stopped; // true iff the render thread must end
+    private boolean started; // true iff the render thread was started (EDT only)
+    private volatile Throwable failure; // what ended the render thread (null if none)
+
+    /** True iff a call of rendered() is scheduled on the EDT. */
+    private final AtomicBoolean notifying= new AtomicBoolean();
+    private final Runnable notifyTask= this::notifyRendered;
+
+    // Only the render thread writes these; the EDT reads them.
+    private volatile long batches;   // number of batches rendered
+    private volatile long coalesced; // number of events rendered in a batch after its first
+    private long eventTime; // when the event being rendered was posted
+
+    /** Constructor: a renderer for target t that measures its batches
+     * with m (none if m is null). The render thread starts at the first post. */
+    public StrokeRenderer(Target t, Metrics m) {
+        target= t;
+        metrics= m;
+        thread= new Thread(this, "stroke-renderer");
+        thread.setDaemon(true);
+    }
+
+    /** Render the events posted so far, then end the render thread and
+     * wait for it to end. Events posted later are not rendered. */
+    public void stop() {
+        await();
+        stopped= true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Return the number of batches rendered. */
+    public long batches() {
+        return batches;
+    }
+
+    /** Return the number of events rendered in the same batch as an earlier
+     * event, i.e. without a repaint of their own. */
+    public long coalesced() {
+        return coalesced;
+    }
+
+    /** Return when the event being rendered was posted (System.nanoTime).
+     * Call only on the render thread, e.g. from Target.render. */
+    public long eventTime() {
+        return eventTime;
+    }
+
+    /** Post event type with tool t, color c and size s at (x, y); (x0, y0)
+     * is the first point of a LINE. Call only on the EDT.
+     * If the buffer is full, wait until the render thread frees a slot.
+     * If the render thread failed, drop the event. */
+    public void post(int type, Tool t, Color c, int s, double x0, double y0, double x, double y) {
+        if (failure != null  ||  stopped) return;
+        if (!started) {
+            started= true;
+            thread.start();
+        }
+        long i= tail.get();
+        while (i - head.get() >= CAPACITY) {
+            if (failure != null) return;
+            LockSupport.parkNanos(20_000);
+        }
+        int k= (int) (i & (CAPACITY - 1));
+        this.type[k]= type;
+        tool[k]= t;
+        color[k]= c;
+        size[k]= s;
+        this.x0[k]= x0;
+        this.y0[k]= y0;
+        this.x[k]= x;
+        this.y[k]= y;
+        time[k]= System.nanoTime();
+        tail.set(i + 1); // publishes the slot
+        LockSupport.unpark(thread);
+    }
+
+    /** Wait until all events posted so far have been rendered. Call it on
+     * the EDT before touching the image outside of strokes: afterwards the
+     * render thread is idle until the next post. Return at once if the
+     * render thread failed. */
+    public void await() {
+        long t= tail.get();
+        while (head.get() < t  &&  failure == null) {
+            LockSupport.parkNanos(50_000);
+        }
+    }
+
+    /** Render batches of events until stopped or until rendering throws
+     * an Error, which is recorded in failure. */
+    @Override public void run() {
+        try {
+            renderBatches();
+        } catch (Throwable exc) {
+            System.err.println("StrokeRenderer: render thread failed; strokes are no longer drawn");
+            exc.printStackTrace();
+            failure= exc;
+        }
+    }
+
+    /** Render batches of events until stopped. */
+    private void renderBatches() {
+        while (!stopped) {
+            long h= head.get();
+            long t= tail.get();
+            if (h == t) {
+                LockSupport.park(this);
+                continue;
+            }
+            long start= System.nanoTime();
+            long bytes= metrics == null ? -1 : Metrics.allocatedBytes();
+            int key= 0, s= 0; // tool (see Metrics.tool) and size of the last event
+            for (long i= h; i < t; i++) {
+                int k= (int) (i & (CAPACITY - 1));
+                if (metrics != null) {
+                    key= type[k] == FILL ? Metrics.tool(Canvas.OtherTool.FILL) : Metrics.tool(tool[k]);
+                    s= type[k] == FILL ? 1 : size[k];
+                }
+                eventTime= time[k];
+                try {
+                    target.render(type[k], tool[k], color[k], size[k], x0[k], y0[k], x[k], y[k]);
+                } catch (RuntimeException exc) {
+                    exc.printStackTrace();
+                }
+                tool[k]= null;
+                color[k]= null;
+            }
+            batches++;
+            coalesced += t - h - 1;
+            boolean changed= target.present();
+            if (metrics != null) {
+                metrics.record(Metrics.Phase.RASTER, key, s, System.nanoTime() - start);
+                metrics.countBatch((int) (t - h), bytes < 0 ? -1 : Metrics.allocatedBytes() - bytes);
+                if (changed) metrics.presented(time[(int) (h & (CAPACITY - 1))], key, s);
+            }
+            head.set(t);
+            if (changed  &&  notifying.compareAndSet(false, true)) {
+                SwingUtilities.invokeLater(notifyTask);
+            }
+        }
+    }
+
+    /** Tell the target, on the EDT, that strokes were rendered. */
+    private void notifyRendered() {
+        notifying.set(false);
+        target.rendered();
+    }
+}
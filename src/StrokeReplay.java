@@ -0,0 +1,344 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.file.Files;
+import java.util.zip.Deflater;
+import javax.imageio.ImageIO;
+
+/** An instance reads a recording written by a StrokeRecorder, one event at
+ * a time, and can draw it again on an image with a StrokeEngine, as fast
+ * as it can (the times of the events are read, not waited for). Replaying
+ * a recording gives exactly the pixels of the session, and is meant for
+ * performance tests whose work must not change from run to run. With a
+ * scale, it draws the same session on an image of another size.
+ *
+ * Only the strokes, fills, undos and redos are recorded: all strokes are
+ * drawn on one image, whatever layer they were drawn on, and selections
+ * are not recorded, so a session with a selection replays unclipped.
+ * Neither is the brush (see Brush): strokes replay with Brush.DEFAULT.
+ *
+ * As a program, it replays a recording without a display:
+ *   java -Djava.awt.headless=true -cp a6.jar StrokeReplay [options] recording [out-image]
+ * Options:
+ *   -scale f    draw at f times the size of the recording (default 1)
+ *   -base file  start from this image (scaled to the size) rather than
+ *               from the background color of the recording
+ *   -repeat n   replay n times and report the fastest (default 1)
+ *   -metrics f  write the time of each event (the raster phase of Metrics,
+ *               per tool and size) of the last replay to file f as JSON */
+class StrokeReplay {
+    private final DataInputStream in; // the recording
+
+    // The header of the recording.
+    private final int width, height, background;
+    private final long seed, startTime;
+
+    // The last event read (see next).
+    private int type;
+    private Tool tool;
+    private Color color, lastColor; // color of the event; last color written
+    private int size;
+    private double x0, y0, x, y;
+    private long time;   // microseconds since the start of the recording
+    private long fx, fy; // last x and y coordinates, fixed point
+    private boolean truncated; // true iff the recording ended inside an event
+    private final int version; // version of the format of the recording
+
+    /** Constructor: a reader of the recording in in. Throw an IOException
+     * if in cannot be read or does not start with a recording header. */
+    public StrokeReplay(InputStream in) throws IOException {
+        this.in= new DataInputStream(new BufferedInputStream(in, 1 << 16));
+        if (this.in.readInt() != StrokeRecorder.MAGIC) throw new IOException("not a stroke recording");
+        version= this.in.readUnsignedByte();
+        if (version < 1  ||  version > StrokeRecorder.VERSION) throw new IOException("unknown recording version " + version);
+        width= this.in.readInt();
+        height= this.in.readInt();
+        background= this.in.readInt();
+        seed= this.in.readLong();
+        startTime= this.in.readLong();
+        if (width <= 0  ||  height <= 0) throw new IOException("bad image size " + width + " x " + height);
+    }
+
+    /** Return the width of the image of the recording. */
+    public int getWidth() {
+        return width;
+    }
+
+    /** Return the height of the image of the recording. */
+    public int getHeight() {
+        return height;
+    }
+
+    /** Return the background color (ARGB) of the image of the recording. */
+    public int getBackground() {
+        return background;
+    }
+
+    /** Return the seed of the airbrush at the start of the recording. */
+    public long getSeed() {
+        return seed;
+    }
+
+    /** Return when the recording started, in ms since 1970. */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /** Return the type of the last event: a type of StrokeRenderer, or
+     * StrokeRecorder.UNDO or REDO. */
+    public int type() {
+        return type;
+    }
+
+    /** Return the tool of the last event. */
+    public Tool tool() {
+        return tool;
+    }
+
+    /** Return the color of the last event (null if it had none). */
+    public Color color() {
+        return color;
+    }
+
+    /** Return the size of the last event. */
+    public int size() {
+        return size;
+    }
+
+    /** Return the x-coordinate of the first point of the last event (a
+     * LINE), or 1 for a global FILL and 0 for a contiguous one. */
+    public double x0() {
+        return x0;
+    }
+
+    /** Return the y-coordinate of the first point of the last event (a LINE). */
+    public double y0() {
+        return y0;
+    }
+
+    /** Return the x-coordinate of the last event. */
+    public double x() {
+        return x;
+    }
+
+    /** Return the y-coordinate of the last event. */
+    public double y() {
+        return y;
+    }
+
+    /** Return the time of the last event, in microseconds since the start
+     * of the recording. */
+    public long time() {
+        return time;
+    }
+
+    /** Return true iff the recording ended inside an event (e.g. the
+     * program stopped while recording); that event is ignored. */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /** Read the next event and return true, or return false if there is
+     * none. Throw an IOException if the recording cannot be read or is
+     * not valid. */
+    public boolean next() throws IOException {
+        int flags= in.read();
+        if (flags < 0) return false;
+        try {
+            int t= flags & StrokeRecorder.TYPE_MASK;
+            if (version == 1  &&  t >= StrokeRenderer.FILL) t++; // version 1 had no FILL
+            if (t > StrokeRecorder.REDO) throw new IOException("bad event type " + t);
+            time += readVarint();
+            if (t == StrokeRecorder.UNDO  ||  t == StrokeRecorder.REDO) {
+                type= t;
+                return true;
+            }
+            if ((flags & StrokeRecorder.TOOL) != 0) {
+                int k= in.readUnsignedByte();
+                if (k >= Tool.values().length) throw new IOException("bad tool " + k);
+                tool= Tool.values()[k];
+            }
+            if ((flags & StrokeRecorder.COLOR) != 0) lastColor= new Color(in.readInt(), true);
+            if ((flags & StrokeRecorder.SIZE) != 0) size= (int) readVarint();
+            if (t == StrokeRenderer.LINE  ||  t == StrokeRenderer.FILL) {
+                readPoint(flags);
+                x0= x;
+                y0= y;
+            }
+            readPoint(flags);
+            type= t;
+            color= (flags & StrokeRecorder.NO_COLOR) != 0 ? null : lastColor;
+            return true;
+        } catch (EOFException exc) {
+            truncated= true;
+            return false;
+        }
+    }
+
+    /** Read a point of an event with flags flags into (x, y). */
+    private void readPoint(int flags) throws IOException {
+        if ((flags & StrokeRecorder.RAW) != 0) {
+            x= in.readDouble();
+            y= in.readDouble();
+            return;
+        }
+        fx += unzigzag(readVarint());
+        fy += unzigzag(readVarint());
+        x= fx / StrokeRecorder.FIXED;
+        y= fy / StrokeRecorder.FIXED;
+    }
+
+    /** Return the value whose zigzag encoding is v. */
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /** Read and return a varint written by StrokeRecorder. */
+    private long readVarint() throws IOException {
+        long v= 0;
+        for (int shift= 0; shift < 64; shift += 7) {
+            int b= in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IOException("bad varint");
+    }
+
+    /** Draw the rest of the recording on img, scaled by scale, as the
+     * Canvas drew it (with the same undo edits) and return the number of
+     * events drawn. img should be the size of the recording times scale.
+     * Throw an IOException if the recording cannot be read. */
+    public long replay(TiledImage img, double scale) throws IOException {
+        return replay(img, scale, null);
+    }
+
+    /** Do as replay(img, scale), and count each stroke or fill (not undos
+     * and redos) in m (if not null) as a batch of the RASTER phase, with the
+     * pixels it changed. */
+    public long replay(TiledImage img, double scale, Metrics m) throws IOException {
+        StrokeEngine e= new StrokeEngine(img, seed);
+        UndoHistory history= new UndoHistory();
+        history.attach(img);
+        long n= 0;
+        while (next()) {
+            n++;
+            long start= m == null ? 0 : System.nanoTime();
+            e.setTime(time);
+            int s= Math.max(1, (int) Math.round(size * scale));
+            if (type == StrokeRenderer.PRESS) {
+                history.beginEdit();
+                e.press(tool, color, x * scale, y * scale, s);
+            } else if (type == StrokeRenderer.DRAG) {
+                e.drag(color, x * scale, y * scale, s);
+            } else if (type == StrokeRenderer.RELEASE) {
+                e.release();
+                history.endEdit();
+            } else if (type == StrokeRenderer.LINE) {
+                history.beginEdit();
+                e.line(color, x0 * scale, y0 * scale, x * scale, y * scale, s);
+                history.endEdit();
+            } else if (type == StrokeRenderer.FILL) {
+                history.beginEdit();
+                e.fill(color, (int) (x * scale), (int) (y * scale), size, x0 == 0);
+                history.endEdit();
+            } else if (type == StrokeRecorder.UNDO) {
+                history.undo();
+            } else if (type == StrokeRecorder.REDO) {
+                history.redo();
+            }
+            if (m != null  &&  type != StrokeRecorder.UNDO  &&  type != StrokeRecorder.REDO) {
+                DirtyRegion d= e.getDamage();
+                m.countPixels(d.getArea());
+                int t= type == StrokeRenderer.FILL ? Metrics.tool(Canvas.OtherTool.FILL)
+                        : tool != null ? Metrics.tool(tool) : Metrics.NO_TOOL;
+                m.record(Metrics.Phase.RASTER, t, type == StrokeRenderer.FILL ? 1 : s, System.nanoTime() - start);
+                m.countBatch(1, -1);
+            }
+            e.getDamage().clear();
+        }
+        return n;
+    }
+
+    /** Return a new image for a replay of this recording at scale scale:
+     * base (if not null) scaled to the size, or else the background color. */
+    public TiledImage newImage(BufferedImage base, double scale) {
+        int w= Math.max(1, (int) Math.round(width * scale));
+        int h= Math.max(1, (int) Math.round(height * scale));
+        if (base == null) return new TiledImage(w, h, new Color(background, true));
+        BufferedImage b= new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g= b.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(base, 0, 0, w, h, null);
+        g.dispose();
+        return TiledImage.fromImage(b);
+    }
+
+    /** Print how to use the program and exit with status 2. */
+    private static void usage() {
+        System.err.println("Usage: java -Djava.awt.headless=true StrokeReplay [-scale f] [-base file] [-repeat n] [-metrics file] recording [out-image]");
+        System.exit(2);
+    }
+
+    /** Run the program with arguments args (see the class comment). */
+    public static void main(String[] args) {
+        double scale= 1;
+        File baseFile= null;
+        int repeat= 1;
+        File metricsFile= null;
+        int i= 0;
+        try {
+            for (; i < args.length  &&  args[i].startsWith("-"); i += 2) {
+                if (i + 1 >= args.length) usage();
+                if (args[i].equals("-scale")) scale= Double.parseDouble(args[i + 1]);
+                else if (args[i].equals("-base")) baseFile= new File(args[i + 1]);
+                else if (args[i].equals("-repeat")) repeat= Integer.parseInt(args[i + 1]);
+                else if (args[i].equals("-metrics")) metricsFile= new File(args[i + 1]);
+                else usage();
+            }
+        } catch (NumberFormatException exc) {
+            usage();
+        }
+        if (args.length - i < 1  ||  args.length - i > 2  ||  !(scale > 0)  ||  repeat < 1) usage();
+
+        try {
+            byte[] recording= Files.readAllBytes(new File(args[i]).toPath());
+            BufferedImage base= null;
+            if (baseFile != null) {
+                base= ImageIO.read(baseFile);
+                if (base == null) throw new IOException(baseFile + ": unknown image format");
+            }
+
+            // The recording is read from memory, so that the times measure drawing.
+            long best= Long.MAX_VALUE;
+            long events= 0;
+            StrokeReplay r= null;
+            TiledImage img= null;
+            Metrics metrics= null;
+            for (int k= 0; k < repeat; k++) {
+                r= new StrokeReplay(new ByteArrayInputStream(recording));
+                img= r.newImage(base, scale);
+                if (metricsFile != null) metrics= new Metrics();
+                long start= System.nanoTime();
+                events= r.replay(img, scale, metrics);
+                best= Math.min(best, System.nanoTime() - start);
+            }
+            if (r.isTruncated()) System.err.println("StrokeReplay: the recording ends inside an event; it was ignored");
+            System.out.printf("%d events (%.1f s of session) replayed at %d x %d in %.1f ms: %.0f events/s%n",
+                    events, r.time() / 1e6, img.getWidth(), img.getHeight(), best / 1e6, events / (best / 1e9));
+            if (metrics != null) metrics.writeJson(metricsFile);
+
+            if (args.length - i == 2) {
+                File out= new File(args[i + 1]);
+                String name= out.getName();
+                String format= name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+                if (format.equals("png")) new PngEncoder(Deflater.DEFAULT_COMPRESSION).write(img, out, p -> {});
+                else if (!ImageIO.write(img, format, out)) throw new IOException("cannot write format " + format);
+            }
+        } catch (IOException | IllegalArgumentException exc) {
+            System.err.println("StrokeReplay: " + exc.getMessage());
+            System.exit(1);
+        }
+    }
+}
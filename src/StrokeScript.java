@@ -0,0 +1,179 @@
+import java.awt.Color;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** An instance is a stroke script: a list of strokes of the drawing tools,
+ * read from text, which a StrokeEngine can draw on any image.
+ *
+ * A script has one command per line. Blank lines and lines that start
+ * with # are ignored. The commands:
+ *   color #RRGGBB or #AARRGGBB  set the color of the strokes that follow
+ *                               (default black)
+ *   eraser-color #RRGGBB        set the color of the eraser (default white)
+ *   size n                      set the size of the strokes that follow
+ *                               (default 1)
+ *   seed n                      set the seed of the airbrush (default 0)
+ *   pencil x,y x,y ...          a pencil stroke through the points
+ *   eraser x,y ...              an eraser stroke through the points
+ *   airbrush x,y ...            an airbrush stroke through the points
+ *   line x,y x,y                a line between the two points
+ * A stroke is drawn as the mouse draws it: a press at its first point, a
+ * drag to each other point, and a release. Coordinates may be fractions. */
+class StrokeScript {
+    /** A stroke of tool tool with color color and size size through the
+     * points (points[2k], points[2k+1]). */
+    public static class Stroke {
+        public final Tool tool;
+        public final Color color;
+        public final int size;
+        private final double[] points;
+
+        /** Constructor: a stroke of tool t with color c and size s through
+         * points p (x and y of each in turn). */
+        public Stroke(Tool t, Color c, int s, double[] p) {
+            tool= t;
+            color= c;
+            size= s;
+            points= p.clone();
+        }
+
+        /** Return the number of points. */
+        public int pointCount() {
+            return points.length / 2;
+        }
+
+        /** Return the x-coordinate of point k. */
+        public double getX(int k) {
+            return points[2 * k];
+        }
+
+        /** Return the y-coordinate of point k. */
+        public double getY(int k) {
+            return points[2 * k + 1];
+        }
+    }
+
+    private final ArrayList<Stroke> strokes= new ArrayList<>(); // the strokes, in order
+    private long seed; // seed of the airbrush
+
+    /** Return the strokes of the script, in order. */
+    public List<Stroke> getStrokes() {
+        return Collections.unmodifiableList(strokes);
+    }
+
+    /** Return the seed of the airbrush. */
+    public long getSeed() {
+        return seed;
+    }
+
+    /** Read the script in file f and return it. Throw an IOException if f
+     * cannot be read or is not a valid script. */
+    public static StrokeScript read(File f) throws IOException {
+        try (Reader r= new InputStreamReader(new FileInputStream(f), "UTF-8")) {
+            return read(r, f.getName());
+        }
+    }
+
+    /** Read a script from r, whose name (for messages) is name, and return
+     * it. Throw an IOException if r cannot be read or is not a valid script. */
+    public static StrokeScript read(Reader r, String name) throws IOException {
+        StrokeScript script= new StrokeScript();
+        Color color= Color.BLACK;
+        Color eraserColor= Color.WHITE;
+        int size= 1;
+        BufferedReader in= new BufferedReader(r);
+        int lineNumber= 0;
+        for (String line= in.readLine(); line != null; line= in.readLine()) {
+            lineNumber++;
+            String code= line.trim();
+            if (code.isEmpty()  ||  code.startsWith("#")) continue;
+            String[] words= code.split("\\s+");
+            try {
+                switch (words[0]) {
+                    case "color":
+                        color= parseColor(words);
+                        break;
+                    case "eraser-color":
+                        eraserColor= parseColor(words);
+                        break;
+                    case "size":
+                        size= Integer.parseInt(argument(words));
+                        if (size < 1) throw new IllegalArgumentException("size must be at least 1");
+                        break;
+                    case "seed":
+                        script.seed= Long.parseLong(argument(words));
+                        break;
+                    case "pencil":
+                        script.strokes.add(new Stroke(Tool.PENCIL, color, size, parsePoints(words, 1)));
+                        break;
+                    case "eraser":
+                        script.strokes.add(new Stroke(Tool.ERASER, eraserColor, size, parsePoints(words, 1)));
+                        break;
+                    case "airbrush":
+                        script.strokes.add(new Stroke(Tool.AIRBRUSH, color, size, parsePoints(words, 1)));
+                        break;
+                    case "line":
+                        double[] p= parsePoints(words, 2);
+                        if (p.length != 4) throw new IllegalArgumentException("a line has two points");
+                        script.strokes.add(new Stroke(Tool.LINE, color, size, p));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown command " + words[0]);
+                }
+            } catch (IllegalArgumentException exc) {
+                throw new IOException(name + ":" + lineNumber + ": " + exc.getMessage(), exc);
+            }
+        }
+        return script;
+    }
+
+    /** Return the only argument of command words.
+     * Throw an IllegalArgumentException if it has not exactly one. */
+    private static String argument(String[] words) {
+        if (words.length != 2) throw new IllegalArgumentException(words[0] + " takes one argument");
+        return words[1];
+    }
+
+    /** Return the color #RRGGBB or #AARRGGBB that is the argument of words.
+     * Throw an IllegalArgumentException if it is not one. */
+    private static Color parseColor(String[] words) {
+        String s= argument(words);
+        if (!s.startsWith("#")  ||  (s.length() != 7  &&  s.length() != 9))
+            throw new IllegalArgumentException("bad color " + s);
+        int argb= (int) Long.parseLong(s.substring(1), 16);
+        return new Color(s.length() == 7 ? 0xFF000000 | argb : argb, true);
+    }
+
+    /** Return the points x,y that are words[1..], as x and y in turn.
+     * Throw an IllegalArgumentException if there are fewer than min or one
+     * is not a point. */
+    private static double[] parsePoints(String[] words, int min) {
+        int n= words.length - 1;
+        if (n < min) throw new IllegalArgumentException(words[0] + " needs at least " + min + " point(s)");
+        double[] p= new double[2 * n];
+        for (int k= 0; k < n; k++) {
+            String[] xy= words[k + 1].split(",");
+            if (xy.length != 2) throw new IllegalArgumentException("bad point " + words[k + 1]);
+            p[2 * k]= Double.parseDouble(xy[0]);
+            p[2 * k + 1]= Double.parseDouble(xy[1]);
+        }
+        return p;
+    }
+
+    /** Draw the strokes of the script with engine e, on its image, starting
+     * the airbrush from the seed of the script. */
+    public void apply(StrokeEngine e) {
+        e.getAirbrush().setSeed(seed);
+        for (Stroke s : strokes) {
+            if (s.tool == Tool.LINE) {
+                e.line(s.color, s.getX(0), s.getY(0), s.getX(1), s.getY(1), s.size);
+                continue;
+            }
+            e.press(s.tool, s.color, s.getX(0), s.getY(0), s.size);
+            for (int k= 1; k < s.pointCount(); k++) e.drag(s.color, s.getX(k), s.getY(k), s.size);
+            e.release();
+        }
+    }
+}
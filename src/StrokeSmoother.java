@@ -0,0 +1,115 @@
+/** An instance turns the positions of a stroke into dabs (brush marks)
+ * spaced evenly along a Catmull-Rom spline through the positions.
+ *
+ * The spline between two positions depends on the positions before and
+ * after them, so each segment is emitted one position late: add(p) emits
+ * the segment that ends at the position before p, and end() emits the
+ * last one. Dabs are placed every spacing pixels of curve length, carrying
+ * the leftover distance from one segment to the next, so that dabs never
+ * pile up where positions are close together and never leave gaps where
+ * they are far apart. The spacing may change between dabs (e.g. with the
+ * size of the dabs). */
+class StrokeSmoother {
+    /** The receiver of the dabs. */
+    public interface Sink {
+        /** Stamp a dab centered at (x, y), a fraction t (0..1) of the way
+         * along the segment it is on, from the position before the last
+         * one given to the last one. */
+        void dab(double x, double y, double t);
+    }
+
+    private final Sink sink; // receiver of the dabs
+    private double spacing;  // distance between dabs along the curve
+
+    // The last positions: p0 (oldest) .. p2 (newest). n is how many of
+    // them have been given since begin (at most 3 matter).
+    private double x0, y0, x1, y1, x2, y2;
+    private int n;
+    private double carry; // length of curve since the last dab
+
+    /** Constructor: a smoother that sends its dabs to s. */
+    public StrokeSmoother(Sink s) {
+        sink= s;
+    }
+
+    /** Return true iff a stroke has begun and not ended. */
+    public boolean isActive() {
+        return n > 0;
+    }
+
+    /** Begin a stroke at (x, y) with dabs spacing pixels apart. No dab is
+     * stamped at (x, y); the caller marks the start of the stroke. */
+    public void begin(double x, double y, double spacing) {
+        this.spacing= Math.max(spacing, 0.5);
+        x2= x;
+        y2= y;
+        n= 1;
+        carry= 0;
+    }
+
+    /** Space the next dabs s pixels apart (at least 0.5). */
+    public void setSpacing(double s) {
+        spacing= Math.max(s, 0.5);
+    }
+
+    /** Add position (x, y) to the stroke. If no stroke has begun, begin one
+     * at (x, y) with the current spacing. */
+    public void add(double x, double y) {
+        if (n == 0) {
+            begin(x, y, spacing);
+            return;
+        }
+        if (x == x2  &&  y == y2) return;
+        if (n >= 2) {
+            // The segment from p1 to p2 now has its following point (x, y).
+            segment(n == 2 ? x1 : x0, n == 2 ? y1 : y0, x1, y1, x2, y2, x, y);
+        }
+        x0= x1;
+        y0= y1;
+        x1= x2;
+        y1= y2;
+        x2= x;
+        y2= y;
+        if (n < 3) n++;
+    }
+
+    /** End the stroke, emitting its last segment. */
+    public void end() {
+        if (n >= 2) {
+            segment(n == 2 ? x1 : x0, n == 2 ? y1 : y0, x1, y1, x2, y2, x2, y2);
+        }
+        n= 0;
+    }
+
+    /** Emit the dabs of the Catmull-Rom segment from (bx, by) to (cx, cy),
+     * whose neighbouring control points are (ax, ay) and (dx, dy). */
+    private void segment(double ax, double ay, double bx, double by,
+                         double cx, double cy, double dx, double dy) {
+        // Sample the curve finely enough that each step is at most half
+        // a spacing long (the curve is at most about 1.5 times its chord).
+        double chord= Math.hypot(cx - bx, cy - by);
+        int steps= Math.max(1, (int) Math.ceil(3 * chord / spacing));
+        double px= bx, py= by, pt= 0;
+        for (int k= 1; k <= steps; k++) {
+            double t= (double) k / steps;
+            double t2= t * t, t3= t2 * t;
+            double qx= 0.5 * (2*bx + (cx - ax)*t + (2*ax - 5*bx + 4*cx - dx)*t2 + (3*bx - ax - 3*cx + dx)*t3);
+            double qy= 0.5 * (2*by + (cy - ay)*t + (2*ay - 5*by + 4*cy - dy)*t2 + (3*by - ay - 3*cy + dy)*t3);
+            double len= Math.hypot(qx - px, qy - py);
+            // Stamp every dab that falls on the step from p to q.
+            while (carry + len >= spacing) {
+                double f= (spacing - carry) / len;
+                px += f * (qx - px);
+                py += f * (qy - py);
+                pt += f * (t - pt);
+                len -= spacing - carry;
+                carry= 0;
+                sink.dab(px, py, pt);
+            }
+            carry += len;
+            px= qx;
+            py= qy;
+            pt= t;
+        }
+    }
+}
@@ -0,0 +1,687 @@
+import java.awt.*;
+import java.awt.image.*;
+import java.util.*;
+
+/** An instance is an image of size (width x height) stored as square tiles
+ * of TILE_SIZE x TILE_SIZE pixels, so that huge, mostly empty images cost
+ * memory only for the parts that were actually drawn on.
+ *
+ * A tile is allocated only when it is first written. Until then it reads as
+ * the background color, and all unwritten tiles with the same background
+ * share one blank tile. Tiles at the right and bottom edges are full size;
+ * their pixels outside the image are never shown.
+ *
+ * A tile can also be read lazily from a TileSource (e.g. a memory-mapped
+ * file): it counts as allocated, but its pixels are read only when the
+ * tile is first used.
+ *
+ * Each tile has a flag that tells whether it was written since the flags
+ * were last cleared, so that a file of the image can be updated with the
+ * changed tiles only, and a stamp that changes whenever it is written, so
+ * that other copies (e.g. a recovery journal) can tell which tiles they
+ * lack.
+ *
+ * snapshot() returns a copy that shares the tiles of the image; a shared
+ * tile is copied when either image first writes it (copy-on-write). So a
+ * snapshot costs an array of references, and writing the image later does
+ * not change the snapshot (e.g. while it is being saved on another thread).
+ *
+ * One thread may write the image (e.g. the render thread) while another
+ * paints it (the EDT). Tiles are allocated, read from their source and
+ * looked up under a lock, so a tile is never seen half made; the painter
+ * sees the pixels written into a tile once it is told of them (e.g. by a
+ * repaint request, which synchronizes).
+ *
+ * Pixels are ints in the default ARGB format, as in BufferedImage.TYPE_INT_ARGB.
+ * The instance is a RenderedImage, so ImageIO can write it tile by tile. */
+public class TiledImage implements RenderedImage {
+    /** Width and height of a tile, in pixels. */
+    public static final int TILE_SIZE= 256;
+    /** log2(TILE_SIZE): x >> TILE_SHIFT is the column of the tile containing x. */
+    public static final int TILE_SHIFT= 8;
+
+    /** Color model of every tile (non-premultiplied ARGB). */
+    private static final ColorModel colorModel= ColorModel.getRGBdefault();
+
+    /** Blank tiles shared by all instances, keyed by background ARGB. */
+    private static final Map<Integer, BufferedImage> blanks= new HashMap<>();
+
+    private final int width;  // width of the image
+    private final int height; // height of the image
+    private final int cols;   // number of tile columns
+    private final int rows;   // number of tile rows
+    private final int background; // ARGB of pixels of unwritten tiles
+
+    private final BufferedImage blank; // shared blank tile. Never write to it!
+    private final int[] blankData;     // pixels of blank
+
+    // tiles[row*cols + col] is the tile at (col, row), or null if it has
+    // not been written yet. data[i] contains the pixels of tiles[i].
+    // tiles, data, sources and graphics are used only while holding lock.
+    private final BufferedImage[] tiles;
+    private final int[][] data;
+    private volatile int allocated; // number of non-null tiles, plus tiles still to read
+    private final Object lock= new Object(); // guards the tile arrays
+
+    // sources[i] is the source from which tile i is to be read when first
+    // used, or null if none (the tile has been read, or has no source).
+    private final TileSource[] sources;
+
+    // changed[i] is true iff tile i was written since the flags were cleared.
+    private final boolean[] changed;
+
+    // stamps[i] is the value of clock when tile i was last written (0 if
+    // never). clock counts the writes of tiles of this image.
+    private final long[] stamps;
+    private long clock;
+
+    // shared[i] is true iff tiles[i] may also be a tile of a snapshot of this
+    // image (or of the image this is a snapshot of). It is copied before it
+    // is written.
+    private final boolean[] shared;
+
+    // graphics[i] draws on tiles[i] in image coordinates (null if not yet
+    // needed). They are kept so that drawing does not create a Graphics2D
+    // and set its hints for every mouse event.
+    private final Graphics2D[] graphics;
+    private boolean antialiasing= true; // anti-aliasing of graphics
+
+    private WriteListener listener; // told before tiles are written (null if none)
+
+    /** A source of the pixels of tiles, from which they are read lazily. */
+    public interface TileSource {
+        /** Store the pixels of tile (col, row), TILE_SIZE per row, in dst.
+         * Throw an UncheckedIOException if they cannot be read. This may
+         * be called on any thread. */
+        void read(int col, int row, int[] dst);
+    }
+
+    /** A listener that is told before a tile of the image is written. */
+    public interface WriteListener {
+        /** Tile (col, row) of img is about to be written. Its current
+         * pixels are still given by img.tileData(col, row). */
+        void tileWillChange(TiledImage img, int col, int row);
+    }
+
+    /** Constructor: an image of size (w, h) filled with color c.
+     * Throw an IllegalArgumentException if w or h is not positive
+     * or c is null. */
+    public TiledImage(int w, int h, Color c) {
+        if (w <= 0  ||  h <= 0)
+            throw new IllegalArgumentException("TiledImage: size " + w + " x " + h);
+        if (c == null) throw new IllegalArgumentException();
+        width= w;
+        height= h;
+        cols= (w + TILE_SIZE - 1) >> TILE_SHIFT;
+        rows= (h + TILE_SIZE - 1) >> TILE_SHIFT;
+        background= c.getRGB();
+        blank= blankTile(background);
+        blankData= pixelsOf(blank);
+        tiles= new BufferedImage[cols * rows];
+        data= new int[cols * rows][];
+        graphics= new Graphics2D[cols * rows];
+        shared= new boolean[cols * rows];
+        sources= new TileSource[cols * rows];
+        changed= new boolean[cols * rows];
+        stamps= new long[cols * rows];
+    }
+
+    /** Constructor: a snapshot of img, sharing its tiles. The allocated
+     * tiles of both images must be marked shared. */
+    private TiledImage(TiledImage img) {
+        width= img.width;
+        height= img.height;
+        cols= img.cols;
+        rows= img.rows;
+        background= img.background;
+        blank= img.blank;
+        blankData= img.blankData;
+        tiles= img.tiles.clone();
+        data= img.data.clone();
+        graphics= new Graphics2D[cols * rows];
+        shared= img.shared.clone();
+        sources= img.sources.clone();
+        changed= img.changed.clone();
+        stamps= img.stamps.clone();
+        clock= img.clock;
+        allocated= img.allocated;
+        antialiasing= img.antialiasing;
+    }
+
+    /** Return a snapshot of this image: an image with the same pixels that
+     * does not change when this image changes, and vice versa. It shares
+     * the tiles of this image until one of the two writes them, so it is
+     * cheap. It has no write listener. */
+    public TiledImage snapshot() {
+        synchronized (lock) {
+            for (int i= 0; i < tiles.length; i++) {
+                if (tiles[i] != null) shared[i]= true;
+            }
+            return new TiledImage(this);
+        }
+    }
+
+    /** Return a new image of width w and height h with the pixels of this
+     * image moved right by dx and down by dy; the rest of it is the
+     * background color. If dx and dy are multiples of TILE_SIZE, each tile
+     * that lands whole inside the new image is shared with this image, as
+     * in snapshot, not copied; the other tiles are copied row by row.
+     * Throw an IllegalArgumentException if w or h is not positive. */
+    public TiledImage resized(int w, int h, int dx, int dy) {
+        TiledImage t= new TiledImage(w, h, new Color(background, true));
+        t.antialiasing= antialiasing;
+        boolean aligned= (dx & (TILE_SIZE - 1)) == 0  &&  (dy & (TILE_SIZE - 1)) == 0;
+        for (int row= 0; row < t.rows; row++) {
+            for (int col= 0; col < t.cols; col++) {
+                // The part of tile (col, row) of t in t, and where it comes from.
+                int x0= col << TILE_SHIFT, y0= row << TILE_SHIFT;
+                int x1= Math.min(x0 + TILE_SIZE, w), y1= Math.min(y0 + TILE_SIZE, h);
+                int sx0= Math.max(x0 - dx, 0), sy0= Math.max(y0 - dy, 0);
+                int sx1= Math.min(x1 - dx, width), sy1= Math.min(y1 - dy, height);
+                if (sx0 >= sx1  ||  sy0 >= sy1) continue;
+                if (!anyAllocated(sx0, sy0, sx1, sy1)) continue;
+                if (aligned  &&  sx1 - sx0 == x1 - x0  &&  sy1 - sy0 == y1 - y0) {
+                    // The tile of this image covers all of the tile of t.
+                    int i= (sy0 >> TILE_SHIFT) * cols + (sx0 >> TILE_SHIFT);
+                    int j= row * t.cols + col;
+                    synchronized (lock) {
+                        if (sources[i] != null) read(i);
+                        t.tiles[j]= tiles[i];
+                        t.data[j]= data[i];
+                        shared[i]= true;
+                    }
+                    t.shared[j]= true;
+                    t.changed[j]= true;
+                    t.allocated++;
+                    continue;
+                }
+                int[] d= t.writableTileData(col, row);
+                int tx= Math.max(x0, dx), ty= Math.max(y0, dy);
+                copyRect(sx0, sy0, sx1 - sx0, sy1 - sy0, d,
+                        ((ty - y0) << TILE_SHIFT) + tx - x0, TILE_SIZE, false);
+            }
+        }
+        return t;
+    }
+
+    /** Return true iff a tile over [x0, x1) x [y0, y1) is allocated. */
+    private boolean anyAllocated(int x0, int y0, int x1, int y1) {
+        for (int row= y0 >> TILE_SHIFT; row <= (y1 - 1) >> TILE_SHIFT; row++) {
+            for (int col= x0 >> TILE_SHIFT; col <= (x1 - 1) >> TILE_SHIFT; col++) {
+                if (isAllocated(col, row)) return true;
+            }
+        }
+        return false;
+    }
+
+    /** Return a new tiled image with the same pixels as img. Tiles that
+     * contain only the color of img's top-left pixel are not allocated. */
+    public static TiledImage fromImage(BufferedImage img) {
+        TiledImage t= new TiledImage(img.getWidth(), img.getHeight(),
+                new Color(img.getRGB(0, 0), true));
+        int[] buf= new int[TILE_SIZE * TILE_SIZE];
+        for (int row= 0; row < t.rows; row++) {
+            for (int col= 0; col < t.cols; col++) {
+                int x= col << TILE_SHIFT;
+                int y= row << TILE_SHIFT;
+                int w= Math.min(TILE_SIZE, t.width - x);
+                int h= Math.min(TILE_SIZE, t.height - y);
+                img.getRGB(x, y, w, h, buf, 0, TILE_SIZE);
+                if (!t.isBackground(buf, 0, TILE_SIZE, w, h)) {
+                    int[] d= t.writableTileData(col, row);
+                    for (int j= 0; j < h; j++) {
+                        System.arraycopy(buf, j * TILE_SIZE, d, j * TILE_SIZE, w);
+                    }
+                }
+            }
+        }
+        return t;
+    }
+
+    /** Return true iff the (w x h) pixels in buf from off on, scan per
+     * row, are all the background color. */
+    private boolean isBackground(int[] buf, int off, int scan, int w, int h) {
+        for (int j= 0; j < h; j++) {
+            for (int i= off + j * scan, end= i + w; i < end; i++) {
+                if (buf[i] != background) return false;
+            }
+        }
+        return true;
+    }
+
+    /** Return the shared blank tile of color argb, creating it if needed. */
+    private static BufferedImage blankTile(int argb) {
+        synchronized (blanks) {
+            BufferedImage b= blanks.get(argb);
+            if (b == null) {
+                b= new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+                Arrays.fill(pixelsOf(b), argb);
+                blanks.put(argb, b);
+            }
+            return b;
+        }
+    }
+
+    /** Return the pixel array of tile t, a BufferedImage of TYPE_INT_ARGB. */
+    private static int[] pixelsOf(BufferedImage t) {
+        return ((DataBufferInt) t.getRaster().getDataBuffer()).getData();
+    }
+
+    /** Set the listener that is told before tiles are written to l
+     * (null means none). */
+    public void setWriteListener(WriteListener l) {
+        listener= l;
+    }
+
+    /** Return the width of the image. */
+    @Override public int getWidth() {
+        return width;
+    }
+
+    /** Return the height of the image. */
+    @Override public int getHeight() {
+        return height;
+    }
+
+    /** Return the background color (ARGB) of unwritten pixels. */
+    public int getBackground() {
+        return background;
+    }
+
+    /** Return the number of tile columns. */
+    public int getCols() {
+        return cols;
+    }
+
+    /** Return the number of tile rows. */
+    public int getRows() {
+        return rows;
+    }
+
+    /** Return true iff tile (col, row) has been allocated (written), or
+     * is to be read from a source. */
+    public boolean isAllocated(int col, int row) {
+        int i= row * cols + col;
+        synchronized (lock) {
+            return tiles[i] != null  ||  sources[i] != null;
+        }
+    }
+
+    /** Read tile (col, row), which must not be allocated, from s when it
+     * is first used. The tile is not marked changed. */
+    public void readLazily(int col, int row, TileSource s) {
+        int i= row * cols + col;
+        synchronized (lock) {
+            if (tiles[i] != null  ||  sources[i] != null) throw new IllegalArgumentException("tile " + col + ", " + row + " allocated");
+            sources[i]= s;
+            allocated++;
+        }
+    }
+
+    /** If tile i is still to be read from its source, read it. */
+    private void read(int i) {
+        synchronized (lock) {
+            TileSource s= sources[i];
+            if (s == null) return;
+            BufferedImage t= new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+            int[] d= pixelsOf(t);
+            s.read(i % cols, i / cols, d);
+            data[i]= d;
+            tiles[i]= t;
+            sources[i]= null;
+        }
+    }
+
+    /** Return true iff tile (col, row) was written since the flags were
+     * last cleared. */
+    public boolean isChanged(int col, int row) {
+        return changed[row * cols + col];
+    }
+
+    /** Mark all tiles unchanged. */
+    public void clearChanged() {
+        Arrays.fill(changed, false);
+    }
+
+    /** Return a number that changes whenever tile (col, row) is written
+     * (0 if it was never written). A snapshot has the stamps the image had. */
+    public long getStamp(int col, int row) {
+        return stamps[row * cols + col];
+    }
+
+    /** Mark all tiles changed. */
+    public void markAllChanged() {
+        Arrays.fill(changed, true);
+    }
+
+    /** Return the number of allocated tiles. */
+    public int allocatedTiles() {
+        return allocated;
+    }
+
+    /** Return the tile at (col, row) for reading. Do not write to it. */
+    public BufferedImage tile(int col, int row) {
+        int i= row * cols + col;
+        synchronized (lock) {
+            if (sources[i] != null) read(i);
+            BufferedImage t= tiles[i];
+            return t == null ? blank : t;
+        }
+    }
+
+    /** Return the pixels of tile (col, row) for reading, TILE_SIZE per
+     * row. Do not write to them. */
+    public int[] tileData(int col, int row) {
+        int i= row * cols + col;
+        synchronized (lock) {
+            if (sources[i] != null) read(i);
+            int[] d= data[i];
+            return d == null ? blankData : d;
+        }
+    }
+
+    /** Return the tile at (col, row) for writing, allocating it if needed
+     * (or copying it, if it is shared with a snapshot). */
+    public BufferedImage writableTile(int col, int row) {
+        int i= row * cols + col;
+        synchronized (lock) {
+            if (sources[i] != null) read(i);
+        }
+        if (listener != null) listener.tileWillChange(this, col, row);
+        changed[i]= true;
+        stamps[i]= ++clock;
+        synchronized (lock) {
+            if (tiles[i] == null  ||  shared[i]) {
+                BufferedImage t= new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+                int[] d= pixelsOf(t);
+                System.arraycopy(tiles[i] == null ? blankData : data[i], 0, d, 0, d.length);
+                if (tiles[i] == null) allocated++;
+                tiles[i]= t;
+                data[i]= d;
+                shared[i]= false;
+                // A kept Graphics2D draws on the shared tile; make a new one.
+                if (graphics[i] != null) {
+                    graphics[i].dispose();
+                    graphics[i]= null;
+                }
+            }
+            return tiles[i];
+        }
+    }
+
+    /** Return the pixels of tile (col, row) for writing, TILE_SIZE per
+     * row, allocating the tile if needed. */
+    public int[] writableTileData(int col, int row) {
+        writableTile(col, row);
+        synchronized (lock) {
+            return data[row * cols + col];
+        }
+    }
+
+    /** Return the Graphics2D kept for drawing on tile (col, row) in image
+     * coordinates, allocating the tile if needed. Its anti-aliasing is as
+     * given by setAntialiasing. Set its color, stroke, etc. before each
+     * use, and do not dispose of it. */
+    public Graphics2D graphics(int col, int row) {
+        BufferedImage t= writableTile(col, row);
+        int i= row * cols + col;
+        synchronized (lock) {
+            if (graphics[i] == null) {
+                graphics[i]= t.createGraphics();
+                graphics[i].translate(-(col << TILE_SHIFT), -(row << TILE_SHIFT));
+                setAntialiasing(graphics[i], antialiasing);
+            }
+            return graphics[i];
+        }
+    }
+
+    /** Turn anti-aliasing of the Graphics2D objects returned by graphics
+     * on (if b) or off (if !b). */
+    public void setAntialiasing(boolean b) {
+        synchronized (lock) {
+            antialiasing= b;
+            for (Graphics2D g : graphics) {
+                if (g != null) setAntialiasing(g, b);
+            }
+        }
+    }
+
+    /** Turn anti-aliasing of g on (if b) or off (if !b). */
+    private static void setAntialiasing(Graphics2D g, boolean b) {
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                b ? RenderingHints.VALUE_ANTIALIAS_ON : RenderingHints.VALUE_ANTIALIAS_OFF);
+    }
+
+    /** Return a new Graphics2D that draws on tile (col, row) in image
+     * coordinates, allocating the tile if needed. Dispose of it when done. */
+    public Graphics2D createGraphics(int col, int row) {
+        Graphics2D g= writableTile(col, row).createGraphics();
+        g.translate(-(col << TILE_SHIFT), -(row << TILE_SHIFT));
+        return g;
+    }
+
+    /** Return the ARGB color of pixel (x, y).
+     * Throw an IllegalArgumentException if (x, y) is outside the image. */
+    public int getRGB(int x, int y) {
+        checkPixel(x, y);
+        int[] d= tileData(x >> TILE_SHIFT, y >> TILE_SHIFT);
+        return d[((y & (TILE_SIZE-1)) << TILE_SHIFT) + (x & (TILE_SIZE-1))];
+    }
+
+    /** Set pixel (x, y) to ARGB color argb.
+     * Throw an IllegalArgumentException if (x, y) is outside the image. */
+    public void setRGB(int x, int y, int argb) {
+        checkPixel(x, y);
+        int[] d= writableTileData(x >> TILE_SHIFT, y >> TILE_SHIFT);
+        d[((y & (TILE_SIZE-1)) << TILE_SHIFT) + (x & (TILE_SIZE-1))]= argb;
+    }
+
+    /** Set the pixels of rectangle (x, y, w, h) from src, as setRGB does,
+     * except that a tile that is not allocated stays so if the pixels it
+     * would get are all the background color (e.g. the empty parts of an
+     * image being decoded into this one).
+     * Throw an IllegalArgumentException if the rectangle is not inside the image. */
+    public void setRGBSparse(int x, int y, int w, int h, int[] src, int off, int scan) {
+        checkRect(x, y, w, h);
+        if (w == 0  ||  h == 0) return;
+        for (int row= y >> TILE_SHIFT; row <= (y + h - 1) >> TILE_SHIFT; row++) {
+            int y0= Math.max(y, row << TILE_SHIFT);
+            int y1= Math.min(y + h, (row + 1) << TILE_SHIFT);
+            for (int col= x >> TILE_SHIFT; col <= (x + w - 1) >> TILE_SHIFT; col++) {
+                int x0= Math.max(x, col << TILE_SHIFT);
+                int x1= Math.min(x + w, (col + 1) << TILE_SHIFT);
+                int b= off + (y0 - y) * scan + (x0 - x);
+                if (!isAllocated(col, row)  &&  isBackground(src, b, scan, x1 - x0, y1 - y0)) continue;
+                copyRect(x0, y0, x1 - x0, y1 - y0, src, b, scan, true);
+            }
+        }
+    }
+
+    /** Throw an IllegalArgumentException if (x, y) is outside the image. */
+    private void checkPixel(int x, int y) {
+        if (x < 0  ||  y < 0  ||  x >= width  ||  y >= height)
+            throw new IllegalArgumentException("pixel (" + x + ", " + y + ") outside image");
+    }
+
+    /** Copy the pixels of rectangle (x, y, w, h) into dst: pixel (x+i, y+j)
+     * goes to dst[off + j*scan + i].
+     * Throw an IllegalArgumentException if the rectangle is not inside the image. */
+    public void getRGB(int x, int y, int w, int h, int[] dst, int off, int scan) {
+        checkRect(x, y, w, h);
+        copyRect(x, y, w, h, dst, off, scan, false);
+    }
+
+    /** Set the pixels of rectangle (x, y, w, h) from src: pixel (x+i, y+j)
+     * gets src[off + j*scan + i]. Tiles are allocated as needed.
+     * Throw an IllegalArgumentException if the rectangle is not inside the image. */
+    public void setRGB(int x, int y, int w, int h, int[] src, int off, int scan) {
+        checkRect(x, y, w, h);
+        copyRect(x, y, w, h, src, off, scan, true);
+    }
+
+    /** Throw an IllegalArgumentException if rectangle (x, y, w, h) is not
+     * inside the image. */
+    private void checkRect(int x, int y, int w, int h) {
+        if (x < 0  ||  y < 0  ||  w < 0  ||  h < 0  ||  x + w > width  ||  y + h > height)
+            throw new IllegalArgumentException("rectangle (" + x + ", " + y + ", " + w
+                    + ", " + h + ") outside image");
+    }
+
+    /** Copy rectangle (x, y, w, h) between the tiles and buf (laid out as
+     * in getRGB). If write, copy from buf into the tiles; otherwise copy
+     * from the tiles into buf. */
+    private void copyRect(int x, int y, int w, int h, int[] buf, int off, int scan, boolean write) {
+        if (w == 0  ||  h == 0) return;
+        int col1= (x + w - 1) >> TILE_SHIFT;
+        int row1= (y + h - 1) >> TILE_SHIFT;
+        for (int row= y >> TILE_SHIFT; row <= row1; row++) {
+            int ty= row << TILE_SHIFT;
+            int y0= Math.max(y, ty);
+            int y1= Math.min(y + h, ty + TILE_SIZE);
+            for (int col= x >> TILE_SHIFT; col <= col1; col++) {
+                int tx= col << TILE_SHIFT;
+                int x0= Math.max(x, tx);
+                int x1= Math.min(x + w, tx + TILE_SIZE);
+                int[] d= write ? writableTileData(col, row) : tileData(col, row);
+                for (int yy= y0; yy < y1; yy++) {
+                    int t= ((yy - ty) << TILE_SHIFT) + (x0 - tx);
+                    int b= off + (yy - y) * scan + (x0 - x);
+                    if (write) System.arraycopy(buf, b, d, t, x1 - x0);
+                    else System.arraycopy(d, t, buf, b, x1 - x0);
+                }
+            }
+        }
+    }
+
+    /** Draw the part of this image in rectangle [x0, x1) x [y0, y1) on g,
+     * at the same coordinates. The rectangle is clipped to the image. */
+    public void paint(Graphics2D g, int x0, int y0, int x1, int y1) {
+        x0= Math.max(x0, 0);
+        y0= Math.max(y0, 0);
+        x1= Math.min(x1, width);
+        y1= Math.min(y1, height);
+        if (x0 >= x1  ||  y0 >= y1) return;
+        for (int row= y0 >> TILE_SHIFT; row <= (y1 - 1) >> TILE_SHIFT; row++) {
+            int ty= row << TILE_SHIFT;
+            int sy0= Math.max(y0, ty) - ty;
+            int sy1= Math.min(y1, ty + TILE_SIZE) - ty;
+            for (int col= x0 >> TILE_SHIFT; col <= (x1 - 1) >> TILE_SHIFT; col++) {
+                int tx= col << TILE_SHIFT;
+                int sx0= Math.max(x0, tx) - tx;
+                int sx1= Math.min(x1, tx + TILE_SIZE) - tx;
+                g.drawImage(tile(col, row), tx + sx0, ty + sy0, tx + sx1, ty + sy1,
+                        sx0, sy0, sx1, sy1, null);
+            }
+        }
+    }
+
+    /** Return a new BufferedImage of TYPE_INT_ARGB with the pixels of this
+     * image. This allocates the whole image; avoid it for huge images. */
+    public BufferedImage toBufferedImage() {
+        BufferedImage img= new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        getRGB(0, 0, width, height, pixelsOf(img), 0, width);
+        return img;
+    }
+
+    // ------------------------- RenderedImage -------------------------
+
+    @Override public Vector<RenderedImage> getSources() {
+        return null;
+    }
+
+    @Override public Object getProperty(String name) {
+        return Image.UndefinedProperty;
+    }
+
+    @Override public String[] getPropertyNames() {
+        return null;
+    }
+
+    @Override public ColorModel getColorModel() {
+        return colorModel;
+    }
+
+    @Override public SampleModel getSampleModel() {
+        return colorModel.createCompatibleSampleModel(TILE_SIZE, TILE_SIZE);
+    }
+
+    @Override public int getMinX() {
+        return 0;
+    }
+
+    @Override public int getMinY() {
+        return 0;
+    }
+
+    @Override public int getNumXTiles() {
+        return cols;
+    }
+
+    @Override public int getNumYTiles() {
+        return rows;
+    }
+
+    @Override public int getMinTileX() {
+        return 0;
+    }
+
+    @Override public int getMinTileY() {
+        return 0;
+    }
+
+    @Override public int getTileWidth() {
+        return TILE_SIZE;
+    }
+
+    @Override public int getTileHeight() {
+        return TILE_SIZE;
+    }
+
+    @Override public int getTileGridXOffset() {
+        return 0;
+    }
+
+    @Override public int getTileGridYOffset() {
+        return 0;
+    }
+
+    /** Return tile (tileX, tileY) as a Raster in image coordinates.
+     * It shares the tile's pixels; do not write to it. */
+    @Override public Raster getTile(int tileX, int tileY) {
+        return tile(tileX, tileY).getRaster()
+                .createChild(0, 0, TILE_SIZE, TILE_SIZE, tileX << TILE_SHIFT, tileY << TILE_SHIFT, null);
+    }
+
+    /** Return a copy of the whole image as one Raster. */
+    @Override public Raster getData() {
+        return getData(new Rectangle(0, 0, width, height));
+    }
+
+    /** Return a copy of rectangle rect of the image (clipped to the image)
+     * as a Raster in image coordinates. */
+    @Override public Raster getData(Rectangle rect) {
+        Rectangle r= rect.intersection(new Rectangle(0, 0, width, height));
+        WritableRaster wr= colorModel.createCompatibleWritableRaster(
+                Math.max(r.width, 1), Math.max(r.height, 1));
+        wr= wr.createWritableTranslatedChild(r.x, r.y);
+        copyData(wr);
+        return wr;
+    }
+
+    /** Copy the part of the image that overlaps raster wr into wr, which
+     * must have a sample model compatible with this image's, and return it.
+     * If wr is null, copy the whole image into a new raster. */
+    @Override public WritableRaster copyData(WritableRaster wr) {
+        if (wr == null) {
+            wr= colorModel.createCompatibleWritableRaster(width, height);
+        }
+        Rectangle r= wr.getBounds().intersection(new Rectangle(0, 0, width, height));
+        if (r.isEmpty()) return wr;
+        int[] buf= new int[r.width];
+        for (int y= r.y; y < r.y + r.height; y++) {
+            copyRect(r.x, y, r.width, 1, buf, 0, r.width, false);
+            wr.setDataElements(r.x, y, r.width, 1, buf);
+        }
+        return wr;
+    }
+}
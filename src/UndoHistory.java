@@ -0,0 +1,484 @@
+import java.awt.Rectangle;
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+/** An instance records the changes that edits (e.g. strokes) make to
+ * TiledImages (e.g. the layers of a Document), so that they can be undone
+ * and redone.
+ *
+ * An edit is everything written to the image between beginEdit() and
+ * endEdit(). While an edit is being recorded, the first write to a tile
+ * saves a copy of the tile. When the edit ends, each saved tile is compared
+ * with the tile's new pixels and only the bounding box of the pixels that
+ * changed is kept. So a small stroke costs a few bytes, not a copy of the
+ * image or even of a tile.
+ *
+ * Edits are kept in memory up to a memory budget, which also counts the
+ * spare tile copies kept for reuse (at most POOL_LIMIT of them). When the
+ * budget is exceeded, the spare copies are freed first, then the oldest
+ * edits are compressed and moved to a temporary file, from which they are
+ * read back if they are undone. The file is compacted when most of it is
+ * no longer used. */
+class UndoHistory implements TiledImage.WriteListener {
+    /** Default memory budget, in bytes. */
+    public static final long DEFAULT_BUDGET= 64L << 20;
+
+    private static final int TILE_PIXELS= TiledImage.TILE_SIZE * TiledImage.TILE_SIZE;
+
+    /** Largest number of spare tile copies kept for reuse. */
+    public static final int POOL_LIMIT= 32;
+
+    /** The spill file is compacted only if it has at least this many bytes. */
+    private static final long COMPACT_SIZE= 8L << 20;
+
+    /** A patch is a rectangle of pixels of an image, in image coordinates.
+     * Undoing or redoing it swaps its pixels with those of the image. */
+    private static class Patch {
+        TiledImage img; // the image
+        int x, y, w, h; // the rectangle
+        int[] pixels;   // its pixels, w per row (null if spilled to disk)
+        long fileOffset; // if spilled: position of the compressed pixels in the file
+        int fileLength;  // if spilled: number of compressed bytes
+    }
+
+    /** An edit is the list of patches written by one beginEdit/endEdit. */
+    private static class Edit {
+        final ArrayList<Patch> patches= new ArrayList<>();
+        boolean spilled; // true iff the pixels of the patches are on disk
+
+        /** Return the number of bytes of pixels of the patches. */
+        long bytes() {
+            long n= 0;
+            for (Patch p : patches) n += 4L * p.w * p.h;
+            return n;
+        }
+    }
+
+    private long budget= DEFAULT_BUDGET; // max bytes of edits kept in memory
+    private long memoryBytes; // bytes of pixels of edits kept in memory
+
+    // Edits that can be undone (last is the most recent) and redone
+    // (last is the most recently undone).
+    private final ArrayDeque<Edit> undoStack= new ArrayDeque<>();
+    private final ArrayDeque<Edit> redoStack= new ArrayDeque<>();
+
+    // State of the edit being recorded. For each image watched, saved.get(img)[i]
+    // is a copy of tile i of img (i= row*cols + col) as it was when the edit
+    // began, or null if tile i has not been written during the edit.
+    // Tile touched[k] of touchedImg[k], for k in 0..numTouched-1, are those tiles.
+    private boolean recording;
+    private final IdentityHashMap<TiledImage, int[][]> saved= new IdentityHashMap<>();
+    private TiledImage lastImg; // image of the last write (null if none)
+    private int[][] lastSaved;  // saved.get(lastImg)
+    private TiledImage[] touchedImg= new TiledImage[16];
+    private int[] touched= new int[16];
+    private int numTouched;
+
+    /** Copies of tiles no longer in use, so strokes do not allocate them
+     * (at most POOL_LIMIT; their bytes count in memoryBytes). */
+    private final ArrayDeque<int[]> pool= new ArrayDeque<>();
+
+    private RandomAccessFile spillFile; // file of spilled edits (null if none yet)
+    private File spillPath; // path of spillFile
+    private long spillUsed; // bytes of spillFile holding pixels of spilled edits
+
+    // For each image changed by the last undo or redo, the bounding box of
+    // the pixels it changed.
+    private final IdentityHashMap<TiledImage, Rectangle> lastChanges= new IdentityHashMap<>();
+
+    /** Set the maximum number of bytes of edits kept in memory to b.
+     * Throw an IllegalArgumentException if b < 0. */
+    public void setMemoryBudget(long b) {
+        if (b < 0) throw new IllegalArgumentException("setMemoryBudget: b < 0");
+        budget= b;
+        enforceBudget();
+    }
+
+    /** Return the number of bytes of edits and spare tile copies kept in
+     * memory. */
+    public long memoryBytes() {
+        return memoryBytes;
+    }
+
+    /** Forget all edits and record the changes to image i (only) from now on. */
+    public void attach(TiledImage i) {
+        clear();
+        watch(i);
+    }
+
+    /** Record the changes to image i from now on, as well as to the images
+     * already watched. */
+    public void watch(TiledImage i) {
+        i.setWriteListener(this);
+        saved.put(i, new int[i.getCols() * i.getRows()][]);
+    }
+
+    /** Stop recording the changes to image i and forget its changes in the
+     * edits (e.g. i was a layer that is deleted). Edits that changed only
+     * i are removed. If an edit is being recorded, end it first. */
+    public void unwatch(TiledImage i) {
+        if (recording) endEdit();
+        if (saved.remove(i) == null) return;
+        i.setWriteListener(null);
+        lastImg= null;
+        lastSaved= null;
+        lastChanges.remove(i);
+        for (ArrayDeque<Edit> stack : Arrays.asList(undoStack, redoStack)) {
+            for (Iterator<Edit> it= stack.iterator(); it.hasNext(); ) {
+                Edit e= it.next();
+                for (Iterator<Patch> pi= e.patches.iterator(); pi.hasNext(); ) {
+                    Patch p= pi.next();
+                    if (p.img != i) continue;
+                    if (e.spilled) spillUsed -= p.fileLength;
+                    else memoryBytes -= 4L * p.w * p.h;
+                    pi.remove();
+                }
+                if (e.patches.isEmpty()) it.remove();
+            }
+        }
+        compactSpillFile();
+    }
+
+    /** Forget all edits and stop recording the changes to any image. */
+    public void clear() {
+        for (TiledImage i : saved.keySet()) i.setWriteListener(null);
+        saved.clear();
+        lastImg= null;
+        lastSaved= null;
+        undoStack.clear();
+        redoStack.clear();
+        lastChanges.clear();
+        pool.clear();
+        memoryBytes= 0;
+        recording= false;
+        numTouched= 0;
+        closeSpillFile();
+    }
+
+    /** Return true iff there is an edit to undo. */
+    public boolean canUndo() {
+        return !undoStack.isEmpty();
+    }
+
+    /** Return true iff there is an edit to redo. */
+    public boolean canRedo() {
+        return !redoStack.isEmpty();
+    }
+
+    /** Start recording an edit. If one is being recorded, end it first. */
+    public void beginEdit() {
+        if (recording) endEdit();
+        recording= !saved.isEmpty();
+    }
+
+    /** Save a copy of tile (col, row) of i if this is the first write to
+     * it in the edit being recorded. */
+    @Override public void tileWillChange(TiledImage i, int col, int row) {
+        if (!recording) return;
+        if (i != lastImg) {
+            lastSaved= saved.get(i);
+            lastImg= i;
+        }
+        int t= row * i.getCols() + col;
+        if (lastSaved[t] != null) return;
+        int[] copy;
+        if (pool.isEmpty()) copy= new int[TILE_PIXELS];
+        else {
+            copy= pool.pop();
+            memoryBytes -= 4L * TILE_PIXELS;
+        }
+        System.arraycopy(i.tileData(col, row), 0, copy, 0, TILE_PIXELS);
+        lastSaved[t]= copy;
+        if (numTouched == touched.length) {
+            touched= Arrays.copyOf(touched, 2 * numTouched);
+            touchedImg= Arrays.copyOf(touchedImg, 2 * numTouched);
+        }
+        touchedImg[numTouched]= i;
+        touched[numTouched++]= t;
+    }
+
+    /** Stop recording the current edit and add it to the history (if it
+     * changed any pixel). This clears the edits that could be redone. */
+    public void endEdit() {
+        if (!recording) return;
+        recording= false;
+
+        Edit e= new Edit();
+        for (int k= 0; k < numTouched; k++) {
+            TiledImage img= touchedImg[k];
+            int[][] s= saved.get(img);
+            int t= touched[k];
+            Patch p= diff(img, t % img.getCols(), t / img.getCols(), s[t]);
+            if (p != null) e.patches.add(p);
+            if (pool.size() < POOL_LIMIT) {
+                pool.push(s[t]);
+                memoryBytes += 4L * TILE_PIXELS;
+            }
+            s[t]= null;
+            touchedImg[k]= null;
+        }
+        numTouched= 0;
+        if (e.patches.isEmpty()) {
+            enforceBudget();
+            return;
+        }
+
+        for (Edit r : redoStack) discard(r);
+        redoStack.clear();
+        undoStack.addLast(e);
+        memoryBytes += e.bytes();
+        enforceBudget();
+    }
+
+    /** Return a patch with the pixels of old (the saved copy of tile
+     * (col, row) of img) inside the bounding box of the pixels of the tile
+     * that differ from old. Return null if no pixel differs. */
+    private Patch diff(TiledImage img, int col, int row, int[] old) {
+        int[] now= img.tileData(col, row);
+        int tx= col << TiledImage.TILE_SHIFT;
+        int ty= row << TiledImage.TILE_SHIFT;
+        int w= Math.min(TiledImage.TILE_SIZE, img.getWidth() - tx);
+        int h= Math.min(TiledImage.TILE_SIZE, img.getHeight() - ty);
+
+        int x0= w, y0= h, x1= -1, y1= -1; // bounding box of changed pixels
+        for (int j= 0; j < h; j++) {
+            int r= j << TiledImage.TILE_SHIFT;
+            for (int i= 0; i < w; i++) {
+                if (now[r + i] != old[r + i]) {
+                    if (i < x0) x0= i;
+                    if (i > x1) x1= i;
+                    if (j < y0) y0= j;
+                    y1= j;
+                }
+            }
+        }
+        if (x1 < 0) return null;
+
+        Patch p= new Patch();
+        p.img= img;
+        p.x= tx + x0;
+        p.y= ty + y0;
+        p.w= x1 - x0 + 1;
+        p.h= y1 - y0 + 1;
+        p.pixels= new int[p.w * p.h];
+        for (int j= 0; j < p.h; j++) {
+            System.arraycopy(old, ((y0 + j) << TiledImage.TILE_SHIFT) + x0, p.pixels, j * p.w, p.w);
+        }
+        return p;
+    }
+
+    /** Undo the most recent edit and return the bounding box of the pixels
+     * it changed. Return null if there is nothing to undo. Throw an
+     * UncheckedIOException if the edit cannot be read back from the spill
+     * file; the edit then stays in the history, still to be undone. */
+    public Rectangle undo() {
+        if (recording) endEdit();
+        if (undoStack.isEmpty()) return null;
+        Edit e= undoStack.getLast();
+        Rectangle r= swap(e);
+        undoStack.removeLast();
+        redoStack.addLast(e);
+        enforceBudget();
+        return r;
+    }
+
+    /** Redo the most recently undone edit and return the bounding box of
+     * the pixels it changed. Return null if there is nothing to redo. Throw
+     * an UncheckedIOException if the edit cannot be read back from the
+     * spill file; the edit then stays in the history, still to be redone. */
+    public Rectangle redo() {
+        if (recording) endEdit();
+        if (redoStack.isEmpty()) return null;
+        Edit e= redoStack.getLast();
+        Rectangle r= swap(e);
+        redoStack.removeLast();
+        undoStack.addLast(e);
+        enforceBudget();
+        return r;
+    }
+
+    /** Return, for each image changed by the last undo or redo, the
+     * bounding box of the pixels it changed in it. Do not change it. */
+    public Map<TiledImage, Rectangle> lastChanges() {
+        return lastChanges;
+    }
+
+    /** Swap the pixels of the patches of e with those of their images and
+     * return the bounding box of the patches. */
+    private Rectangle swap(Edit e) {
+        if (e.spilled) load(e);
+        lastChanges.clear();
+        Rectangle r= null;
+        for (Patch p : e.patches) {
+            int[] current= new int[p.pixels.length];
+            p.img.getRGB(p.x, p.y, p.w, p.h, current, 0, p.w);
+            p.img.setRGB(p.x, p.y, p.w, p.h, p.pixels, 0, p.w);
+            p.pixels= current;
+            Rectangle pr= new Rectangle(p.x, p.y, p.w, p.h);
+            r= r == null ? pr : r.union(pr);
+            Rectangle ir= lastChanges.get(p.img);
+            lastChanges.put(p.img, ir == null ? pr : ir.union(pr));
+        }
+        return r;
+    }
+
+    /** Free spare tile copies, then spill the oldest edits kept in memory
+     * to disk, until the memory budget is met. Edits that can be redone
+     * are spilled last. */
+    private void enforceBudget() {
+        while (memoryBytes > budget  &&  !pool.isEmpty()) {
+            pool.pop();
+            memoryBytes -= 4L * TILE_PIXELS;
+        }
+        enforceBudget(undoStack);
+        enforceBudget(redoStack);
+        compactSpillFile();
+    }
+
+    /** Spill the edits of stack, oldest first, until the memory budget is
+     * met. If an edit cannot be spilled, remove it from the history, with
+     * the edits before it in stack: they cannot be undone (or redone)
+     * without it. */
+    private void enforceBudget(ArrayDeque<Edit> stack) {
+        Iterator<Edit> it= stack.iterator();
+        while (memoryBytes > budget  &&  it.hasNext()) {
+            Edit e= it.next();
+            if (e.spilled) continue;
+            try {
+                spill(e);
+            } catch (IOException exc) {
+                System.err.println("UndoHistory: cannot spill edit: " + exc.getMessage());
+                Edit d;
+                do {
+                    d= stack.removeFirst();
+                    discard(d);
+                } while (d != e);
+                it= stack.iterator();
+            }
+        }
+    }
+
+    /** Forget the pixels of e, which is being removed from the history. */
+    private void discard(Edit e) {
+        if (!e.spilled) memoryBytes -= e.bytes();
+        else for (Patch p : e.patches) spillUsed -= p.fileLength;
+    }
+
+    /** Compress the pixels of e, append them to the spill file, and drop
+     * them from memory. */
+    private void spill(Edit e) throws IOException {
+        if (spillFile == null) {
+            spillPath= File.createTempFile("paint-undo", ".bin");
+            spillPath.deleteOnExit();
+            spillFile= new RandomAccessFile(spillPath, "rw");
+        }
+        Deflater deflater= new Deflater(Deflater.BEST_SPEED);
+        try {
+            for (Patch p : e.patches) {
+                ByteArrayOutputStream bytes= new ByteArrayOutputStream();
+                DataOutputStream out= new DataOutputStream(new DeflaterOutputStream(bytes, deflater));
+                for (int v : p.pixels) out.writeInt(v);
+                out.close();
+                deflater.reset();
+
+                p.fileOffset= spillFile.length();
+                p.fileLength= bytes.size();
+                spillFile.seek(p.fileOffset);
+                spillFile.write(bytes.toByteArray());
+                spillUsed += p.fileLength;
+            }
+        } finally {
+            deflater.end();
+        }
+        long n= e.bytes();
+        for (Patch p : e.patches) p.pixels= null;
+        e.spilled= true;
+        memoryBytes -= n;
+    }
+
+    /** Read the pixels of spilled edit e back into memory.
+     * Throw an UncheckedIOException if the spill file cannot be read. */
+    private void load(Edit e) {
+        try {
+            for (Patch p : e.patches) {
+                byte[] bytes= new byte[p.fileLength];
+                spillFile.seek(p.fileOffset);
+                spillFile.readFully(bytes);
+                DataInputStream in= new DataInputStream(
+                        new InflaterInputStream(new ByteArrayInputStream(bytes)));
+                p.pixels= new int[p.w * p.h];
+                for (int i= 0; i < p.pixels.length; i++) p.pixels[i]= in.readInt();
+            }
+        } catch (IOException exc) {
+            throw new UncheckedIOException(exc);
+        }
+        e.spilled= false;
+        for (Patch p : e.patches) spillUsed -= p.fileLength;
+        memoryBytes += e.bytes();
+    }
+
+    /** If most of the spill file is no longer used, copy the pixels of the
+     * spilled edits to a new spill file, and delete the old one. If that
+     * fails, keep the old one. */
+    private void compactSpillFile() {
+        if (spillFile == null) return;
+        try {
+            long length= spillFile.length();
+            if (spillUsed == 0) {
+                if (length > 0) spillFile.setLength(0);
+                return;
+            }
+            if (length < COMPACT_SIZE  ||  2 * spillUsed > length) return;
+
+            File path= File.createTempFile("paint-undo", ".bin");
+            path.deleteOnExit();
+            ArrayList<Patch> moved= new ArrayList<>();
+            long[] offsets= new long[16];
+            RandomAccessFile out= new RandomAccessFile(path, "rw");
+            try {
+                byte[] buf= new byte[0];
+                for (ArrayDeque<Edit> stack : Arrays.asList(undoStack, redoStack)) {
+                    for (Edit e : stack) {
+                        if (!e.spilled) continue;
+                        for (Patch p : e.patches) {
+                            if (buf.length < p.fileLength) buf= new byte[p.fileLength];
+                            spillFile.seek(p.fileOffset);
+                            spillFile.readFully(buf, 0, p.fileLength);
+                            if (moved.size() == offsets.length) offsets= Arrays.copyOf(offsets, 2 * offsets.length);
+                            offsets[moved.size()]= out.getFilePointer();
+                            moved.add(p);
+                            out.write(buf, 0, p.fileLength);
+                        }
+                    }
+                }
+            } catch (IOException exc) {
+                out.close();
+                path.delete();
+                throw exc;
+            }
+            // The copy is complete: switch to it.
+            for (int k= 0; k < moved.size(); k++) moved.get(k).fileOffset= offsets[k];
+            closeSpillFile();
+            spillFile= out;
+            spillPath= path;
+            spillUsed= out.length();
+        } catch (IOException exc) {
+            System.err.println("UndoHistory: cannot compact the spill file: " + exc.getMessage());
+        }
+    }
+
+    /** Close and delete the spill file, if any. */
+    private void closeSpillFile() {
+        if (spillFile == null) return;
+        try {
+            spillFile.close();
+        } catch (IOException exc) {
+            System.err.println(exc.getMessage());
+        }
+        spillPath.delete();
+        spillFile= null;
+        spillPath= null;
+        spillUsed= 0;
+    }
+}
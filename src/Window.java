@@ -26,6 +26,11 @@ import java.awt.image.*;
  * Most of the GUI components are set up here. */
 class Window extends JFrame implements ActionListener, ChangeListener {
     private static final long serialVersionUID = 201801;
+
+    /** Traces of the actions of the user, at DEBUG, and the times of long
+     * operations, at INFO (see Log; e.g. -Dlog.window=INFO). */
+    private static final Log ACTION= Log.get("window.action");
+    private static final Log LOG= Log.get("window");
     private final int iconSize= 48; // Size of icons for buttons.
 
     private final int drawRegionWidth= 700; // Width of drawing region.
@@ -44,8 +49,17 @@ class Window extends JFrame implements ActionListener, ChangeListener {
     private JLabel sizeLabel= new JLabel();  // Label for dimensions of image.
     private JLabel mousePositionLabel= new JLabel("Position:");  // Label for position of mouse.
     private JLabel toolSizeLabel;     // Label for size of tool.
+    private JLabel layerLabel= new JLabel();  // Label for the active layer.
     private JLabel unsavedLabel= new JLabel("");  // Label to inform user of unsaved changes.
     private final String unsavedMsg = "SAVE"; // Default message if unsaved changes. 
+    private JLabel progressLabel= new JLabel("");  // Label for the progress of saves and opens.
+    private boolean quitting; // True iff Quit waits for saves to end.
+    private boolean recovering; // True iff the recovery journal is being read.
+
+    private final ImageSaver saver= new ImageSaver(); // Saves images in the background.
+    private int savesRunning; // Number of saves started and not yet ended.
+    private ImageLoader loader; // Loader of the image being opened (null if none).
+    private ProjectFile project; // Binding of the document to a file in the native format (null if none).
 
     private final int defToolSize= 1; // Default tool size.
 
@@ -54,6 +68,10 @@ class Window extends JFrame implements ActionListener, ChangeListener {
     private JToggleButton colorPicker; // Color picker button.
     private JToggleButton airbrush; // Airbrush button.
     private JToggleButton line; // Line button.
+    private JToggleButton fill; // Paint bucket button.
+    private JToggleButton selectRect; // Rectangle selection button.
+    private JToggleButton selectEllipse; // Ellipse selection button.
+    private JToggleButton selectLasso; // Lasso selection button.
     private JButton foreColorButton;  // Foreground color button.
     private JButton backColorButton; // Background color button.
 
@@ -68,6 +86,17 @@ class Window extends JFrame implements ActionListener, ChangeListener {
     final String defFileName= "untitled.png"; // Default file name to save to.
     boolean imageUnsaved= false; // Whether the image has unsaved changes or not.
 
+    private final long undoBudget= UndoHistory.DEFAULT_BUDGET; // Bytes of undo history kept in memory.
+
+    private final int autosaveInterval= 30_000; // Milliseconds between autosaves of unsaved changes.
+    private final double autosaveShare= 0.05; // Largest fraction of the time autosave may work.
+    private final Autosave autosave= new Autosave(Autosave.defaultFile(), autosaveShare); // Recovery journal.
+    private long editsJournaled; // Value of canvas.getEdits() at the last autosave.
+
+    private final JMenuItem recordItem= new JMenuItem(); // File -> Record Strokes / Stop Recording
+
+    private final String metricsName= "a6:type=Metrics"; // JMX name of the metrics of the canvas
+
     /** Constructor: the main window of the program. */
     public Window() {
         super(defTitle);
@@ -77,6 +106,8 @@ class Window extends JFrame implements ActionListener, ChangeListener {
 
         // Panel & scroller
         canvas= new Canvas(this, defImgWidth, defImgHeight, defImgBckColor, defToolSize);
+        canvas.getHistory().setMemoryBudget(undoBudget);
+        canvas.getMetrics().register(metricsName);
         JScrollPane scroller= new JScrollPane(canvas);
         scroller.setPreferredSize(new Dimension(drawRegionWidth, drawRegionHeight));
 
@@ -96,6 +127,8 @@ class Window extends JFrame implements ActionListener, ChangeListener {
         pack();
         setLocationRelativeTo(null);
         setVisible(true);
+
+        new Timer(autosaveInterval, e -> autosaveAction()).start();
     }
 
     /** Create and return the status panel. */
@@ -103,7 +136,7 @@ class Window extends JFrame implements ActionListener, ChangeListener {
         JPanel statusPanel= new JPanel();
         statusPanel.setBorder(new BevelBorder(BevelBorder.LOWERED));
         statusPanel.setPreferredSize(new Dimension(getWidth(), 18));
-        statusPanel.setLayout(new GridLayout(1, 4));
+        statusPanel.setLayout(new GridLayout(1, 6));
 
         mousePositionLabel.setHorizontalAlignment(SwingConstants.LEFT);
         statusPanel.add(mousePositionLabel);
@@ -114,9 +147,14 @@ class Window extends JFrame implements ActionListener, ChangeListener {
         updateSizeLabel();
         statusPanel.add(sizeLabel);
 
+        updateLayerLabel();
+        statusPanel.add(layerLabel);
+
         unsavedLabel.setForeground(Color.RED);
         statusPanel.add(unsavedLabel);
 
+        statusPanel.add(progressLabel);
+
         return statusPanel;
     }
 
@@ -145,6 +183,22 @@ class Window extends JFrame implements ActionListener, ChangeListener {
     private void setImageSaved() {
         imageUnsaved= false;
         unsavedLabel.setText("");
+        if (quitting) return;
+        // The recovery journal is needed only for unsaved changes.
+        autosave.discard();
+        editsJournaled= canvas.getEdits();
+    }
+
+    /** Call this method to indicate that document d, the document of the
+     * canvas, has been saved in or opened from the file of project. The
+     * recovery journal then starts from that file, so it needs only the
+     * changes made from now on. */
+    private void setProjectSaved(Document d) {
+        imageUnsaved= false;
+        unsavedLabel.setText("");
+        if (quitting) return;
+        autosave.saved(d, project.getFile());
+        editsJournaled= canvas.getEdits();
     }
 
     /** Call this method to indicate that the image has unsaved changes. */
@@ -176,24 +230,56 @@ class Window extends JFrame implements ActionListener, ChangeListener {
         // The image is in a field in class Canvas.
         // You have to retrieve the image to get its width and height.
         // A field of class Window gives you a pointer to the Canvas object.
-    	BufferedImage img = canvas.getImg();
+    	TiledImage img = canvas.getImg();
     	lastImgWidth = img.getWidth();
     	lastImgHeight = img.getHeight();
-    	sizeLabel.setText("Image : " + lastImgWidth + " x " + lastImgHeight);
+    	String text= "Image : " + lastImgWidth + " x " + lastImgHeight;
+    	int z= canvas.getZoomShift();
+    	if (z != 0) text += " @ " + (z > 0 ? (100 << z) + "%" : Math.round(Math.scalb(100.0, z) * 10) / 10.0 + "%");
+    	sizeLabel.setText(text);
         
     }
 
+    /** Update the label of the active layer, field layerLabel. */
+    public void updateLayerLabel() {
+        Document doc= canvas.getDocument();
+        Layer l= doc.getActive();
+        String text= "Layer " + (doc.getActiveIndex() + 1) + "/" + doc.layerCount() + ": " + l.getName();
+        if (!l.isVisible()) text += " (hidden)";
+        else if (l.getOpacity() != 255  ||  l.getBlendMode() != BlendMode.NORMAL)
+            text += " (" + l.getBlendMode() + " " + Math.round(l.getOpacity() * 100 / 255f) + "%)";
+        layerLabel.setText(text);
+    }
+
+    /** Ask the user for the opacity of the active layer, in percent,
+     * and set it. */
+    private void layerOpacityAction(ActionEvent e) {
+        int old= Math.round(canvas.getDocument().getActive().getOpacity() * 100 / 255f);
+        String s= JOptionPane.showInputDialog(this, "Opacity (0..100 %):", old);
+        if (s == null) return;
+        try {
+            int p= Integer.parseInt(s.trim());
+            if (p < 0  ||  p > 100) throw new NumberFormatException();
+            canvas.setLayerOpacity(Math.round(p * 255 / 100f));
+        } catch (NumberFormatException exc) {
+            JOptionPane.showMessageDialog(this, "Opacity must be an integer in 0..100.");
+        }
+    }
+
     /** Called to process action new */
     private void newAction(ActionEvent e) {
-        System.out.println("Action: New");
+        ACTION.debug("Action: New");
 
         NewImageDialog dialog= new NewImageDialog(this, true, lastImgWidth, lastImgHeight);
         Dimension d= dialog.getDimension();
-        System.out.println("Dimension given in dialog: " + d);
+        ACTION.debug("Dimension given in dialog: %s", d);
 
         if (d != null) {
+            cancelLoad();
+            project= null;
             canvas.newBlankImage(d.width, d.height, defImgBckColor);
             updateSizeLabel();
+            updateLayerLabel();
             
             lastImgWidth= d.width;
             lastImgHeight= d.height;
@@ -205,67 +291,188 @@ class Window extends JFrame implements ActionListener, ChangeListener {
     }
 
     /** Process click of menu item File -> Open to open a file chosen by the user.
-     */
+     * The image is shown as soon as its size is known and decoded in the
+     * background; it can be drawn on once it is fully decoded. */
     private void openAction(ActionEvent e) {
-        System.out.println("Action: Open");
+        ACTION.debug("Action: Open");
 
         JFileChooser chooser= new JFileChooser(".");
         FileNameExtensionFilter filter= new FileNameExtensionFilter(
-                "Image Files", "jpeg", "jpg", "gif", "png", "bmp");
+                "Image Files", "jpeg", "jpg", "gif", "png", "bmp", "tif", "tiff", ProjectFile.EXTENSION);
         chooser.setFileFilter(filter);
         int returnVal= chooser.showOpenDialog(this);
         File selectedFile= chooser.getSelectedFile();
         if (returnVal != JFileChooser.APPROVE_OPTION) return;
 
-        System.out.println("You chose to open file: " + selectedFile.getName());
-        BufferedImage img= null;
+        ACTION.debug("You chose to open file: %s", selectedFile.getName());
+        if (ProjectFile.isProjectFile(selectedFile)) {
+            openProject(selectedFile);
+            return;
+        }
+        ImageLoader l;
         try {
-            img= ImageIO.read(selectedFile);
+            l= ImageLoader.open(selectedFile);
         } catch (IOException exc) {
-            System.out.println(exc.getMessage());
+            System.err.println(exc.getMessage());
             return;
         }
+        cancelLoad();
+        loader= l;
+        project= null;
 
         lastUsedFile= selectedFile;
         setTitle(defTitle + " - " + lastUsedFile.getName());
         setImageSaved();
 
-        canvas.newImage(img);
+        TiledImage img= canvas.newLoadingImage(l.getWidth(), l.getHeight(), defImgBckColor);
+        updateSizeLabel();
+        updateLayerLabel();
+        progressLabel.setText("Opening " + selectedFile.getName());
+        l.start(img, canvas, new ImageLoader.Listener() {
+            @Override public void progress(File file, int percent) {
+                if (loader == l) progressLabel.setText("Opening " + file.getName() + ": " + percent + "%");
+            }
+
+            @Override public void done(File file, IOException exc) {
+                if (loader != l) return;
+                loader= null;
+                canvas.loadFinished();
+                progressLabel.setText("");
+                if (exc != null) {
+                    System.err.println(exc.getMessage());
+                    JOptionPane.showMessageDialog(Window.this, "Cannot open " + file.getName()
+                            + ":\n" + exc.getMessage(), "Open", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        });
+    }
+
+    /** Open document file f, in the native format. Its tiles are read from
+     * the file as they are needed. */
+    private void openProject(File f) {
+        ProjectFile pf;
+        try {
+            pf= ProjectFile.open(f);
+        } catch (IOException exc) {
+            System.err.println(exc.getMessage());
+            JOptionPane.showMessageDialog(this, "Cannot open " + f.getName()
+                    + ":\n" + exc.getMessage(), "Open", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        cancelLoad();
+        project= pf;
+        canvas.setDocument(pf.getDocument());
         updateSizeLabel();
+        updateLayerLabel();
+
+        lastUsedFile= f;
+        setTitle(defTitle + " - " + lastUsedFile.getName());
+        setProjectSaved(canvas.getDocument());
     }
 
-    /** Save the image to file f.
-     * @throws IOException. */
-    private void saveImg(File f) throws IOException {
+    /** Stop the loader of the image being opened, if any. */
+    private void cancelLoad() {
+        if (loader == null) return;
+        loader.cancel();
+        loader= null;
+        canvas.loadFinished();
+        progressLabel.setText("");
+    }
+
+    /** Start saving the image to file f in the background. The image is
+     * saved as it is now; painting may go on meanwhile. When the save ends,
+     * f becomes the last used file and the image is marked saved, unless
+     * it changed after the save began. */
+    private void saveImg(File f) {
+        if (canvas.isLoading()) {
+            JOptionPane.showMessageDialog(this, "The image is still being opened.", "Save",
+                    JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        if (canvas.isFiltering()) return;
         String fileName= f.getName();
         int dotPosition= fileName.lastIndexOf(".");
         String format= fileName.substring(dotPosition+1);
-        System.out.println("Saving in: " + fileName);
-        System.out.println("Format: " + format);
+        LOG.debug("Saving in: %s, format: %s", fileName, format);
+
+        ProjectFile pf= null;
+        TiledImage img= null;
+        if (ProjectFile.isProjectFile(f)) {
+            Document d= canvas.getDocument();
+            if (project != null  &&  project.getFile().equals(f)  &&  project.getDocument() == d) {
+                saveChanges(d);
+                return;
+            }
+            pf= ProjectFile.saveAs(f, d);
+        } else {
+            img= canvas.snapshot();
+        }
+        // The render thread is idle until the next stroke is posted (on
+        // this thread), so this counts exactly the changes being saved.
+        long editsSaved= canvas.getEdits();
+        ProjectFile binding= pf;
+        savesRunning++;
+        progressLabel.setText("Saving " + fileName);
+        ImageSaver.Listener l= new ImageSaver.Listener() {
+            @Override public void progress(File file, int percent) {
+                progressLabel.setText("Saving " + file.getName() + ": " + percent + "%");
+            }
+
+            @Override public void done(File file, IOException exc) {
+                savesRunning--;
+                if (exc != null) {
+                    if (binding != null) binding.saveFailed();
+                    System.err.println(exc.getMessage());
+                    progressLabel.setText("Save failed");
+                    JOptionPane.showMessageDialog(Window.this, "Cannot save " + file.getName()
+                            + ":\n" + exc.getMessage(), "Save", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                Document d= canvas.getDocument();
+                if (binding != null  &&  binding.getDocument() == d) project= binding;
+                progressLabel.setText(savesRunning == 0 ? "" : progressLabel.getText());
+                lastUsedFile= file;
+                setTitle(defTitle + " - " + file.getName());
+                if (canvas.getEdits() != editsSaved) return;
+                if (binding != null  &&  project == binding) setProjectSaved(d);
+                else setImageSaved();
+            }
+        };
+        if (pf != null) saver.save(f, pf.getFullSave(), l);
+        else saver.save(img, f, format, l);
+    }
 
-        ImageIO.write(canvas.getImg(),format,f);
+    /** Save the tiles of document d that changed since it was last saved in
+     * or opened from the file of project. This takes little time, so it is
+     * done at once. */
+    private void saveChanges(Document d) {
+        try {
+            project.saveChanges(d);
+            lastUsedFile= project.getFile();
+            setTitle(defTitle + " - " + lastUsedFile.getName());
+            setProjectSaved(d);
+        } catch (IOException exc) {
+            System.err.println(exc.getMessage());
+            progressLabel.setText("Save failed");
+            JOptionPane.showMessageDialog(this, "Cannot save " + project.getFile().getName()
+                    + ":\n" + exc.getMessage(), "Save", JOptionPane.ERROR_MESSAGE);
+        }
     }
 
     /** Process click of menu item File -> Save to save the file. */
     private void saveAction(ActionEvent e) {
-        System.out.println("Action: Save");
+        ACTION.debug("Action: Save");
 
         if (lastUsedFile == null) {
             saveAsAction(e);
         } else {
-            try {
-                saveImg(lastUsedFile);
-            }
-            catch(IOException exc) {
-                System.err.println(exc.getMessage());
-            }
-            setImageSaved();
+            saveImg(lastUsedFile);
         }
     }
 
     /** Process click of menu item File -> SaveAs. */
     private void saveAsAction(ActionEvent e) {
-        System.out.println("Action: Save As");	
+        ACTION.debug("Action: Save As");	
 
         JFileChooser chooser= new JFileChooser();
         if (lastUsedFile != null)
@@ -278,40 +485,319 @@ class Window extends JFrame implements ActionListener, ChangeListener {
         }
 
         FileNameExtensionFilter filter= new FileNameExtensionFilter("Image Files",
-                "jpeg", "jpg", "gif", "png", "bmp");
+                "jpeg", "jpg", "gif", "png", "bmp", ProjectFile.EXTENSION);
         chooser.setFileFilter(filter);
         int returnVal= chooser.showSaveDialog(this);
         File selectedFile= chooser.getSelectedFile(); 
         if (returnVal != JFileChooser.APPROVE_OPTION) return;
 
-        System.out.println("You chose to save to the file: " + selectedFile.getName());
+        ACTION.debug("You chose to save to the file: %s", selectedFile.getName());
+        saveImg(selectedFile);
+    }
+
+    /** Process click of menu item File -> PNG Compression: ask for the
+     * compression level of PNG files. */
+    private void pngLevelAction(ActionEvent e) {
+        int old= saver.getPngLevel();
+        String s= JOptionPane.showInputDialog(this, "PNG compression level (0 fastest .. 9 smallest):",
+                old < 0 ? 6 : old);
+        if (s == null) return;
         try {
-            saveImg(selectedFile);
+            saver.setPngLevel(Integer.parseInt(s.trim()));
+        } catch (IllegalArgumentException exc) {
+            JOptionPane.showMessageDialog(this, "The level must be an integer in 0..9.");
+        }
+    }
 
-            lastUsedFile= selectedFile;
-            setTitle(defTitle + " - " + lastUsedFile.getName());
-            setImageSaved();
+    /** Process click of menu item Edit -> Fill Tolerance: ask for the
+     * tolerance of the paint bucket. */
+    private void fillToleranceAction(ActionEvent e) {
+        String s= JOptionPane.showInputDialog(this,
+                "Fill tolerance (0 same color only .. 255 everything):", canvas.getFillTolerance());
+        if (s == null) return;
+        try {
+            canvas.setFillTolerance(Integer.parseInt(s.trim()));
+        } catch (IllegalArgumentException exc) {
+            JOptionPane.showMessageDialog(this, "The tolerance must be an integer in 0..255.");
         }
-        catch(IOException exc) {
-            System.err.println(exc.getMessage());
+    }
+
+    /** Process click of menu item Edit -> Brush: ask for the hardness,
+     * spacing and opacity of the brush of the pencil and eraser and for
+     * what varies the size and opacity of its dabs. */
+    private void brushAction(ActionEvent e) {
+        Brush b= canvas.getBrush();
+        JTextField hardnessField= new JTextField("" + Math.round(b.getHardness() * 100), 6);
+        JTextField spacingField= new JTextField("" + Math.round(b.getSpacing() * 100), 6);
+        JTextField opacityField= new JTextField("" + Math.round(b.getOpacity() * 100), 6);
+        JComboBox<Brush.Dynamics> sizeBox= new JComboBox<>(Brush.Dynamics.values());
+        sizeBox.setSelectedItem(b.getSizeDynamics());
+        JTextField minSizeField= new JTextField("" + Math.round(b.getMinSize() * 100), 6);
+        JComboBox<Brush.Dynamics> opacityBox= new JComboBox<>(Brush.Dynamics.values());
+        opacityBox.setSelectedItem(b.getOpacityDynamics());
+        JTextField minOpacityField= new JTextField("" + Math.round(b.getMinOpacity() * 100), 6);
+        JPanel panel= new JPanel(new GridLayout(7, 2, 6, 4));
+        panel.add(new JLabel("Hardness (%)"));
+        panel.add(hardnessField);
+        panel.add(new JLabel("Spacing (% of size)"));
+        panel.add(spacingField);
+        panel.add(new JLabel("Opacity (%)"));
+        panel.add(opacityField);
+        panel.add(new JLabel("Size varies with"));
+        panel.add(sizeBox);
+        panel.add(new JLabel("Minimum size (%)"));
+        panel.add(minSizeField);
+        panel.add(new JLabel("Opacity varies with"));
+        panel.add(opacityBox);
+        panel.add(new JLabel("Minimum opacity (%)"));
+        panel.add(minOpacityField);
+        if (JOptionPane.showConfirmDialog(this, panel, "Brush", JOptionPane.OK_CANCEL_OPTION)
+                != JOptionPane.OK_OPTION) return;
+
+        try {
+            canvas.setBrush(new Brush(
+                    Double.parseDouble(hardnessField.getText().trim()) / 100,
+                    Double.parseDouble(spacingField.getText().trim()) / 100,
+                    Double.parseDouble(opacityField.getText().trim()) / 100,
+                    (Brush.Dynamics) sizeBox.getSelectedItem(),
+                    Double.parseDouble(minSizeField.getText().trim()) / 100,
+                    (Brush.Dynamics) opacityBox.getSelectedItem(),
+                    Double.parseDouble(minOpacityField.getText().trim()) / 100));
+        } catch (IllegalArgumentException exc) {
+            JOptionPane.showMessageDialog(this,
+                    "The spacing must be in 1..1000 and the other percentages in 0..100.");
         }
     }
 
-    /** Process click of menu item File -> Quit. */
+    /** Process click of menu item Image -> Image Size: ask for a new size
+     * and a resampling method and resample the image to it. */
+    private void imageSizeAction(ActionEvent e) {
+        if (canvas.isLoading()) return;
+        Document doc= canvas.getDocument();
+        int w0= doc.getWidth(), h0= doc.getHeight();
+        JTextField widthField= new JTextField("" + w0, 6);
+        JTextField heightField= new JTextField("" + h0, 6);
+        JCheckBox keepBox= new JCheckBox("Keep proportions", true);
+        JComboBox<Resampler.Method> methodBox= new JComboBox<>(Resampler.Method.values());
+        JPanel panel= new JPanel(new GridLayout(4, 2, 6, 4));
+        panel.add(new JLabel("Width"));
+        panel.add(widthField);
+        panel.add(new JLabel("Height"));
+        panel.add(heightField);
+        panel.add(new JLabel("Resample with"));
+        panel.add(methodBox);
+        panel.add(keepBox);
+        if (JOptionPane.showConfirmDialog(this, panel, "Image Size", JOptionPane.OK_CANCEL_OPTION)
+                != JOptionPane.OK_OPTION) return;
+
+        int w, h;
+        try {
+            w= Integer.parseInt(widthField.getText().trim());
+            h= Integer.parseInt(heightField.getText().trim());
+        } catch (NumberFormatException exc) {
+            JOptionPane.showMessageDialog(this, "The width and height must be integers.");
+            return;
+        }
+        // With proportions kept, the field that was not changed follows the other.
+        if (keepBox.isSelected()  &&  h == h0  &&  w != w0) h= Math.max(1, (int) Math.round(w * (double) h0 / w0));
+        else if (keepBox.isSelected()  &&  w == w0  &&  h != h0) w= Math.max(1, (int) Math.round(h * (double) w0 / h0));
+        if (w <= 0  ||  h <= 0) {
+            JOptionPane.showMessageDialog(this, "The width and height must be positive.");
+            return;
+        }
+        if (w == w0  &&  h == h0) return;
+
+        long start= System.nanoTime();
+        canvas.resizeImage(w, h, (Resampler.Method) methodBox.getSelectedItem());
+        LOG.info("Image Size %d x %d -> %d x %d in %.1f ms", w0, h0, w, h, (System.nanoTime() - start) / 1e6);
+        project= null;
+        updateSizeLabel();
+    }
+
+    /** Process click of menu item Image -> Canvas Size: ask for a new size
+     * and where to put the image in it, and change the size of the image. */
+    private void canvasSizeAction(ActionEvent e) {
+        if (canvas.isLoading()) return;
+        Document doc= canvas.getDocument();
+        int w0= doc.getWidth(), h0= doc.getHeight();
+        JTextField widthField= new JTextField("" + w0, 6);
+        JTextField heightField= new JTextField("" + h0, 6);
+        String[] anchors= {"Top left", "Top", "Top right", "Left", "Center", "Right",
+            "Bottom left", "Bottom", "Bottom right"};
+        JComboBox<String> anchorBox= new JComboBox<>(anchors);
+        JPanel panel= new JPanel(new GridLayout(3, 2, 6, 4));
+        panel.add(new JLabel("Width"));
+        panel.add(widthField);
+        panel.add(new JLabel("Height"));
+        panel.add(heightField);
+        panel.add(new JLabel("Anchor the image at"));
+        panel.add(anchorBox);
+        if (JOptionPane.showConfirmDialog(this, panel, "Canvas Size", JOptionPane.OK_CANCEL_OPTION)
+                != JOptionPane.OK_OPTION) return;
+
+        int w, h;
+        try {
+            w= Integer.parseInt(widthField.getText().trim());
+            h= Integer.parseInt(heightField.getText().trim());
+        } catch (NumberFormatException exc) {
+            JOptionPane.showMessageDialog(this, "The width and height must be integers.");
+            return;
+        }
+        if (w <= 0  ||  h <= 0) {
+            JOptionPane.showMessageDialog(this, "The width and height must be positive.");
+            return;
+        }
+        if (w == w0  &&  h == h0) return;
+
+        // Anchor k is in column k % 3 and row k / 3 of the grid of anchors.
+        int k= anchorBox.getSelectedIndex();
+        int dx= (w - w0) * (k % 3) / 2;
+        int dy= (h - h0) * (k / 3) / 2;
+        long start= System.nanoTime();
+        canvas.resizeCanvas(w, h, dx, dy);
+        LOG.info("Canvas Size %d x %d -> %d x %d in %.1f ms", w0, h0, w, h, (System.nanoTime() - start) / 1e6);
+        project= null;
+        updateSizeLabel();
+    }
+
+    /** Process click of menu item File -> Record Strokes: ask for a file
+     * and record the strokes to it, or, if recording, stop. */
+    private void recordAction(ActionEvent e) {
+        if (canvas.isRecording()) {
+            long n= canvas.stopRecording();
+            if (n >= 0) LOG.info("Recorded %d events", n);
+            else JOptionPane.showMessageDialog(this, "The recording could not be written.");
+            return;
+        }
+        String why= canvas.whyNotRecordable();
+        if (why != null) {
+            JOptionPane.showMessageDialog(this, "Strokes cannot be recorded: " + why
+                    + ". Reset the brush and clear the selection first.");
+            return;
+        }
+
+        JFileChooser chooser= new JFileChooser();
+        chooser.setSelectedFile(new File(new File("").getAbsolutePath(), "strokes.a6r"));
+        chooser.setFileFilter(new FileNameExtensionFilter("Stroke Recordings", "a6r"));
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        File f= chooser.getSelectedFile();
+        OutputStream out= null;
+        try {
+            out= new FileOutputStream(f);
+            canvas.startRecording(out);
+        } catch (IOException exc) {
+            JOptionPane.showMessageDialog(this, "Cannot record to " + f.getName() + ": " + exc.getMessage());
+            try {
+                if (out != null) out.close();
+            } catch (IOException e2) {
+                // Already reported.
+            }
+        }
+    }
+
+    /** Append the changes to the image since the last autosave, if any, to
+     * the recovery journal, in the background. */
+    private void autosaveAction() {
+        if (quitting  ||  recovering  ||  !imageUnsaved  ||  canvas.isLoading()  ||  canvas.isFiltering()) return;
+        Document d= canvas.getDocument();
+        long n= canvas.getEdits();
+        if (n != editsJournaled  &&  autosave.checkpoint(d)) editsJournaled= n;
+    }
+
+    /** If the recovery journal holds changes of a session that ended
+     * without saving them (e.g. it crashed), offer to restore them. */
+    private void offerRecovery() {
+        File f= autosave.getFile();
+        if (!f.exists()) return;
+        // The journal may be large: read it on another thread.
+        recovering= true;
+        Thread t= new Thread(() -> {
+            Document d= null;
+            try {
+                d= Autosave.recover(f);
+            } catch (IOException exc) {
+                System.err.println("Recovery: " + exc.getMessage());
+            }
+            Document r= d;
+            SwingUtilities.invokeLater(() -> offerRecovery(r));
+        }, "recovery");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** Offer to restore document d, read from the recovery journal (if d
+     * is not null); if that is declined, delete the journal. */
+    private void offerRecovery(Document d) {
+        recovering= false;
+        if (quitting) return;
+        if (d != null  &&  JOptionPane.showConfirmDialog(this,
+                "The last session ended with unsaved changes. Restore them?", "Recovery",
+                JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
+            canvas.setDocument(d);
+            updateSizeLabel();
+            updateLayerLabel();
+            // Keep the journal until the restored image is journaled or saved.
+            setImageUnsaved();
+            return;
+        }
+        autosave.discard();
+    }
+
+    /** Process click of menu item File -> Quit. Saves in progress are let
+     * end first, so that their files are complete. They are waited for on
+     * another thread: meanwhile the window shows their progress and
+     * ignores input. */
     private void quitAction(ActionEvent e) {
-        System.out.println("Action: Quit");
-        System.exit(0);
+        ACTION.debug("Action: Quit");
+        if (quitting) return;
+        quitting= true;
+        canvas.stopRecording();
+        if (savesRunning > 0) progressLabel.setText("Quitting when saves end");
+        blockInput();
+        Thread t= new Thread(() -> {
+            if (!saver.finish(60_000)) System.err.println("Quit: a save did not end");
+            // Quitting abandons unsaved changes: they need no recovery.
+            autosave.discard();
+            if (!autosave.finish(10_000)) System.err.println("Quit: autosave did not end");
+            System.exit(0);
+        }, "quit");
+        t.start();
+    }
+
+    /** Make the window ignore mouse and key input (menu shortcuts too)
+     * and show a wait cursor, with a glass pane that takes the input. */
+    private void blockInput() {
+        JPanel glass= new JPanel();
+        glass.setOpaque(false);
+        glass.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        glass.addMouseListener(new MouseAdapter() {});
+        glass.addMouseMotionListener(new MouseMotionAdapter() {});
+        glass.addKeyListener(new KeyAdapter() {
+            @Override public void keyPressed(KeyEvent e) {
+                e.consume();
+            }
+        });
+        glass.setFocusable(true);
+        setGlassPane(glass);
+        glass.setVisible(true);
+        glass.requestFocusInWindow();
+    }
+
+    /** Make the window take input again after blockInput(). */
+    private void unblockInput() {
+        getGlassPane().setVisible(false);
+        canvas.requestFocusInWindow();
     }
 
     /** Process click of menu item Help. */
     private void helpAction(ActionEvent e) {
-        System.out.println("Action: Help");
+        ACTION.debug("Action: Help");
         JOptionPane.showMessageDialog(this,"help...", "Help", JOptionPane.PLAIN_MESSAGE);
     }
 
     /** Process click on menu item Help -> About. */
     private void aboutAction(ActionEvent e) {
-        System.out.println("Action: About");	
+        ACTION.debug("Action: About");	
         JOptionPane.showMessageDialog(this,"about...", "About", JOptionPane.PLAIN_MESSAGE);
     }
 
@@ -331,11 +817,8 @@ class Window extends JFrame implements ActionListener, ChangeListener {
 
     /** Process event e from the toolbar */
     @Override public void actionPerformed(ActionEvent e) {
-        System.out.println("actionPerformed");
-        System.out.println(e.getClass());
-
         Object s = e.getSource();
-        System.out.println(s.getClass());
+        ACTION.debug("actionPerformed: %s from %s", e.getClass().getName(), s.getClass().getName());
 
         if (s == pencil) {
             canvas.setActiveTool(Tool.PENCIL); return;
@@ -352,6 +835,18 @@ class Window extends JFrame implements ActionListener, ChangeListener {
         if (s == line) {
             canvas.setActiveTool(Tool.LINE); return;
         }
+        if (s == fill) {
+            canvas.setOtherTool(Canvas.OtherTool.FILL); return;
+        }
+        if (s == selectRect) {
+            canvas.setOtherTool(Canvas.OtherTool.SELECT_RECTANGLE); return;
+        }
+        if (s == selectEllipse) {
+            canvas.setOtherTool(Canvas.OtherTool.SELECT_ELLIPSE); return;
+        }
+        if (s == selectLasso) {
+            canvas.setOtherTool(Canvas.OtherTool.SELECT_LASSO); return;
+        }
         if (s == foreColorButton) {
             Color newColor= JColorChooser.showDialog(
                     this,"Foreground Color", canvas.foreGroundColor());
@@ -384,10 +879,20 @@ class Window extends JFrame implements ActionListener, ChangeListener {
         JMenuBar menuBar= new JMenuBar();
 
         JMenu fileMenu= fixFileMenu();
+        JMenu editMenu= fixEditMenu();
+        JMenu viewMenu= fixViewMenu();
+        JMenu imageMenu= fixImageMenu();
+        JMenu layerMenu= fixLayerMenu();
+        JMenu filterMenu= fixFilterMenu();
         JMenu helpMenu= fixHelpMenu();
 
         // Add to menu bar
         menuBar.add(fileMenu);
+        menuBar.add(editMenu);
+        menuBar.add(viewMenu);
+        menuBar.add(imageMenu);
+        menuBar.add(layerMenu);
+        menuBar.add(filterMenu);
         menuBar.add(helpMenu);
 
         return menuBar;
@@ -419,6 +924,19 @@ class Window extends JFrame implements ActionListener, ChangeListener {
         saveAsItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_S, ActionEvent.CTRL_MASK | ActionEvent.SHIFT_MASK));
         saveAsItem.addActionListener(e -> {saveAsAction(e);});
 
+        JMenuItem levelItem= new JMenuItem("PNG Compression...");
+        levelItem.addActionListener(e -> {pngLevelAction(e);});
+
+        recordItem.addActionListener(e -> {recordAction(e);});
+        // Recording stops when the image is replaced, so check when shown.
+        fileMenu.addMenuListener(new MenuListener() {
+            @Override public void menuSelected(MenuEvent e) {
+                recordItem.setText(canvas.isRecording() ? "Stop Recording" : "Record Strokes...");
+            }
+            @Override public void menuDeselected(MenuEvent e) {}
+            @Override public void menuCanceled(MenuEvent e) {}
+        });
+
         JMenuItem quitItem= new JMenuItem("Quit");
         quitItem.setMnemonic(KeyEvent.VK_Q);
         quitItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Q, ActionEvent.CTRL_MASK));
@@ -428,12 +946,283 @@ class Window extends JFrame implements ActionListener, ChangeListener {
         fileMenu.add(openItem);
         fileMenu.add(saveItem);
         fileMenu.add(saveAsItem);
+        fileMenu.add(levelItem);
+        fileMenu.add(recordItem);
         fileMenu.add(new JSeparator());
         fileMenu.add(quitItem);
 
         return fileMenu;
     }
 
+    /** Set up and return the edit menu. */
+    public JMenu fixEditMenu() {
+        JMenu editMenu= new JMenu("Edit");
+        editMenu.setMnemonic(KeyEvent.VK_E);
+
+        JMenuItem undoItem= new JMenuItem("Undo");
+        undoItem.setMnemonic(KeyEvent.VK_U);
+        undoItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, ActionEvent.CTRL_MASK));
+        undoItem.addActionListener(e -> {canvas.undo();});
+
+        JMenuItem redoItem= new JMenuItem("Redo");
+        redoItem.setMnemonic(KeyEvent.VK_R);
+        redoItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y, ActionEvent.CTRL_MASK));
+        redoItem.addActionListener(e -> {canvas.redo();});
+
+        JMenuItem deselectItem= new JMenuItem("Deselect");
+        deselectItem.setMnemonic(KeyEvent.VK_D);
+        deselectItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_D, ActionEvent.CTRL_MASK));
+        deselectItem.addActionListener(e -> {canvas.deselect();});
+
+        JMenuItem toleranceItem= new JMenuItem("Fill Tolerance...");
+        toleranceItem.addActionListener(e -> {fillToleranceAction(e);});
+
+        JMenuItem brushItem= new JMenuItem("Brush...");
+        brushItem.setMnemonic(KeyEvent.VK_B);
+        brushItem.addActionListener(e -> {brushAction(e);});
+
+        JCheckBoxMenuItem contiguousItem= new JCheckBoxMenuItem("Fill Contiguous Area", canvas.isFillContiguous());
+        contiguousItem.addActionListener(e -> {canvas.setFillContiguous(contiguousItem.isSelected());});
+
+        editMenu.add(undoItem);
+        editMenu.add(redoItem);
+        editMenu.add(new JSeparator());
+        editMenu.add(deselectItem);
+        editMenu.add(new JSeparator());
+        editMenu.add(toleranceItem);
+        editMenu.add(contiguousItem);
+        editMenu.add(new JSeparator());
+        editMenu.add(brushItem);
+
+        return editMenu;
+    }
+
+    /** Create a new JToggleButton labeled label with tool tip tip, for a
+     * tool that Tool has no constant for, add it to tools, and return it. */
+    private JToggleButton fixOtherToggleButton(String label, String tip, ButtonGroup tools) {
+        JToggleButton jtb= new JToggleButton(label);
+        jtb.setToolTipText(tip);
+        jtb.addActionListener(this);
+        tools.add(jtb);
+        return jtb;
+    }
+
+    /** Set up and return the view menu. */
+    public JMenu fixViewMenu() {
+        JMenu viewMenu= new JMenu("View");
+        viewMenu.setMnemonic(KeyEvent.VK_V);
+
+        JMenuItem zoomInItem= new JMenuItem("Zoom In");
+        zoomInItem.setMnemonic(KeyEvent.VK_I);
+        zoomInItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_EQUALS, ActionEvent.CTRL_MASK));
+        zoomInItem.addActionListener(e -> {zoomAction(canvas.getZoomShift() + 1);});
+
+        JMenuItem zoomOutItem= new JMenuItem("Zoom Out");
+        zoomOutItem.setMnemonic(KeyEvent.VK_O);
+        zoomOutItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_MINUS, ActionEvent.CTRL_MASK));
+        zoomOutItem.addActionListener(e -> {zoomAction(canvas.getZoomShift() - 1);});
+
+        JMenuItem actualItem= new JMenuItem("Actual Size");
+        actualItem.setMnemonic(KeyEvent.VK_A);
+        actualItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_0, ActionEvent.CTRL_MASK));
+        actualItem.addActionListener(e -> {zoomAction(0);});
+
+        JCheckBoxMenuItem metricsItem= new JCheckBoxMenuItem("Show Metrics");
+        metricsItem.setMnemonic(KeyEvent.VK_M);
+        metricsItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_M, ActionEvent.CTRL_MASK | ActionEvent.SHIFT_MASK));
+        metricsItem.addActionListener(e -> {canvas.setMetricsShown(metricsItem.isSelected());});
+
+        JMenuItem exportItem= new JMenuItem("Export Metrics...");
+        exportItem.setMnemonic(KeyEvent.VK_E);
+        exportItem.addActionListener(e -> {exportMetricsAction(e);});
+
+        viewMenu.add(zoomInItem);
+        viewMenu.add(zoomOutItem);
+        viewMenu.add(actualItem);
+        viewMenu.add(new JSeparator());
+        viewMenu.add(metricsItem);
+        viewMenu.add(exportItem);
+
+        return viewMenu;
+    }
+
+    /** Process click of menu item View -> Export Metrics: ask for a file
+     * and write the metrics of the canvas to it as JSON. */
+    private void exportMetricsAction(ActionEvent e) {
+        JFileChooser chooser= new JFileChooser();
+        chooser.setSelectedFile(new File(new File("").getAbsolutePath(), "metrics.json"));
+        chooser.setFileFilter(new FileNameExtensionFilter("JSON Files", "json"));
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        File f= chooser.getSelectedFile();
+        try {
+            canvas.getMetrics().writeJson(f);
+        } catch (IOException exc) {
+            System.err.println(exc.getMessage());
+            JOptionPane.showMessageDialog(this, "The metrics could not be written to " + f.getName() + ".");
+        }
+    }
+
+    /** Show the image at zoom 2^s (clamped to the zoom range). */
+    private void zoomAction(int s) {
+        canvas.setZoomShift(s);
+        updateSizeLabel();
+    }
+
+    /** Set up and return the image menu. */
+    public JMenu fixImageMenu() {
+        JMenu imageMenu= new JMenu("Image");
+        imageMenu.setMnemonic(KeyEvent.VK_I);
+
+        JMenuItem imageSizeItem= new JMenuItem("Image Size...");
+        imageSizeItem.setMnemonic(KeyEvent.VK_I);
+        imageSizeItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_I, ActionEvent.CTRL_MASK | ActionEvent.ALT_MASK));
+        imageSizeItem.addActionListener(e -> {imageSizeAction(e);});
+
+        JMenuItem canvasSizeItem= new JMenuItem("Canvas Size...");
+        canvasSizeItem.setMnemonic(KeyEvent.VK_C);
+        canvasSizeItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_C, ActionEvent.CTRL_MASK | ActionEvent.ALT_MASK));
+        canvasSizeItem.addActionListener(e -> {canvasSizeAction(e);});
+
+        imageMenu.add(imageSizeItem);
+        imageMenu.add(canvasSizeItem);
+
+        return imageMenu;
+    }
+
+    /** Set up and return the layer menu. */
+    public JMenu fixLayerMenu() {
+        JMenu layerMenu= new JMenu("Layer");
+        layerMenu.setMnemonic(KeyEvent.VK_L);
+
+        JMenuItem newItem= new JMenuItem("New Layer");
+        newItem.setMnemonic(KeyEvent.VK_N);
+        newItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_N, ActionEvent.CTRL_MASK | ActionEvent.SHIFT_MASK));
+        newItem.addActionListener(e -> {canvas.addLayer();});
+
+        JMenuItem deleteItem= new JMenuItem("Delete Layer");
+        deleteItem.setMnemonic(KeyEvent.VK_D);
+        deleteItem.addActionListener(e -> {canvas.deleteLayer();});
+
+        JMenuItem aboveItem= new JMenuItem("Select Layer Above");
+        aboveItem.setMnemonic(KeyEvent.VK_A);
+        aboveItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_CLOSE_BRACKET, ActionEvent.CTRL_MASK));
+        aboveItem.addActionListener(e -> {
+            Document doc= canvas.getDocument();
+            canvas.selectLayer(Math.min(doc.getActiveIndex() + 1, doc.layerCount() - 1));
+        });
+
+        JMenuItem belowItem= new JMenuItem("Select Layer Below");
+        belowItem.setMnemonic(KeyEvent.VK_B);
+        belowItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_OPEN_BRACKET, ActionEvent.CTRL_MASK));
+        belowItem.addActionListener(e -> {
+            canvas.selectLayer(Math.max(canvas.getDocument().getActiveIndex() - 1, 0));
+        });
+
+        JMenuItem upItem= new JMenuItem("Move Layer Up");
+        upItem.setMnemonic(KeyEvent.VK_U);
+        upItem.addActionListener(e -> {canvas.moveLayer(1);});
+
+        JMenuItem downItem= new JMenuItem("Move Layer Down");
+        downItem.setMnemonic(KeyEvent.VK_W);
+        downItem.addActionListener(e -> {canvas.moveLayer(-1);});
+
+        JMenuItem visibleItem= new JMenuItem("Show/Hide Layer");
+        visibleItem.setMnemonic(KeyEvent.VK_H);
+        visibleItem.addActionListener(e -> {
+            canvas.setLayerVisible(!canvas.getDocument().getActive().isVisible());
+        });
+
+        JMenuItem opacityItem= new JMenuItem("Opacity...");
+        opacityItem.setMnemonic(KeyEvent.VK_O);
+        opacityItem.addActionListener(e -> {layerOpacityAction(e);});
+
+        JMenu modeMenu= new JMenu("Blend Mode");
+        modeMenu.setMnemonic(KeyEvent.VK_M);
+        for (BlendMode m : BlendMode.values()) {
+            JMenuItem modeItem= new JMenuItem(m.toString());
+            modeItem.addActionListener(e -> {canvas.setLayerBlendMode(m);});
+            modeMenu.add(modeItem);
+        }
+
+        layerMenu.add(newItem);
+        layerMenu.add(deleteItem);
+        layerMenu.addSeparator();
+        layerMenu.add(aboveItem);
+        layerMenu.add(belowItem);
+        layerMenu.add(upItem);
+        layerMenu.add(downItem);
+        layerMenu.addSeparator();
+        layerMenu.add(visibleItem);
+        layerMenu.add(opacityItem);
+        layerMenu.add(modeMenu);
+
+        return layerMenu;
+    }
+
+    /** Set up and return the filter menu. */
+    public JMenu fixFilterMenu() {
+        JMenu filterMenu= new JMenu("Filter");
+        filterMenu.setMnemonic(KeyEvent.VK_T);
+
+        JMenuItem gaussianItem= new JMenuItem("Gaussian Blur...");
+        gaussianItem.addActionListener(e -> {filterAction("Gaussian Blur", new String[] {"Radius (px)"},
+                new int[] {0}, new int[] {100}, new int[] {2}, v -> Filters.gaussianBlur(v[0]));});
+
+        JMenuItem boxItem= new JMenuItem("Box Blur...");
+        boxItem.addActionListener(e -> {filterAction("Box Blur", new String[] {"Radius (px)"},
+                new int[] {0}, new int[] {100}, new int[] {2}, v -> Filters.boxBlur(v[0]));});
+
+        JMenuItem unsharpItem= new JMenuItem("Unsharp Mask...");
+        unsharpItem.addActionListener(e -> {filterAction("Unsharp Mask", new String[] {"Amount (%)", "Radius (px)", "Threshold"},
+                new int[] {0, 1, 0}, new int[] {500, 50, 255}, new int[] {100, 2, 0},
+                v -> Filters.unsharpMask(v[1], v[0], v[2]));});
+
+        JMenuItem levelsItem= new JMenuItem("Levels...");
+        levelsItem.addActionListener(e -> {filterAction("Levels",
+                new String[] {"Input black", "Input white", "Gamma (x100)", "Output black", "Output white"},
+                new int[] {0, 0, 10, 0, 0}, new int[] {255, 255, 500, 255, 255}, new int[] {0, 255, 100, 0, 255},
+                v -> Filters.levels(v[0], v[1], v[2] / 100.0, v[3], v[4]));});
+
+        JMenuItem curvesItem= new JMenuItem("Curves...");
+        curvesItem.addActionListener(e -> {filterAction("Curves", new String[] {"Shadows (64)", "Midtones (128)", "Highlights (192)"},
+                new int[] {0, 0, 0}, new int[] {255, 255, 255}, new int[] {64, 128, 192},
+                v -> Filters.curves(new int[] {0, 64, 128, 192, 255}, new int[] {0, v[0], v[1], v[2], 255}));});
+
+        JMenuItem hueItem= new JMenuItem("Hue/Saturation...");
+        hueItem.addActionListener(e -> {filterAction("Hue/Saturation", new String[] {"Hue", "Saturation", "Lightness"},
+                new int[] {-180, -100, -100}, new int[] {180, 100, 100}, new int[] {0, 0, 0},
+                v -> Filters.hueSaturation(v[0], v[1], v[2]));});
+
+        filterMenu.add(gaussianItem);
+        filterMenu.add(boxItem);
+        filterMenu.add(unsharpItem);
+        filterMenu.add(new JSeparator());
+        filterMenu.add(levelsItem);
+        filterMenu.add(curvesItem);
+        filterMenu.add(hueItem);
+
+        return filterMenu;
+    }
+
+    /** Show a FilterDialog titled title for the filter made by m from
+     * parameters names (ranges mins..maxs, first values values) and, unless
+     * it is canceled, apply the filter to the image in the background.
+     * Meanwhile the window shows that it is filtering and ignores input. */
+    private void filterAction(String title, String[] names, int[] mins, int[] maxs, int[] values,
+            FilterDialog.Maker m) {
+        if (canvas.isLoading()  ||  canvas.isFiltering()) return;
+        FilterDialog d= new FilterDialog(this, canvas, title, names, mins, maxs, values, m);
+        if (d.getFilter() == null) return;
+        long start= System.nanoTime();
+        progressLabel.setText("Applying " + title);
+        blockInput();
+        canvas.applyFilter(d.getFilter(), () -> {
+            unblockInput();
+            if (savesRunning == 0) progressLabel.setText("");
+            LOG.info("%s in %.1f ms", title, (System.nanoTime() - start) / 1e6);
+        });
+    }
+
     /** Set up and return the help menu. */
     public JMenu fixHelpMenu() {
         JMenu helpMenu= new JMenu("Help");
@@ -473,6 +1262,11 @@ class Window extends JFrame implements ActionListener, ChangeListener {
         eraser= fixJToggleButton(Tool.ERASER, tools);
         airbrush= fixJToggleButton(Tool.AIRBRUSH, tools);
         line= fixJToggleButton(Tool.LINE, tools);
+        // Tool has no paint bucket or selections (and must not be changed), so they have buttons of their own.
+        fill= fixOtherToggleButton("Fill", "fill", tools);
+        selectRect= fixOtherToggleButton("Select", "select a rectangle", tools);
+        selectEllipse= fixOtherToggleButton("Ellipse", "select an ellipse", tools);
+        selectLasso= fixOtherToggleButton("Lasso", "select a free-hand area", tools);
 
         // Foreground color chooser
         ImageIcon icon= getIcon(canvas.foreGroundColor(),iconSize);
@@ -509,6 +1303,10 @@ class Window extends JFrame implements ActionListener, ChangeListener {
         toolBar.add(eraser);
         toolBar.add(airbrush);
         toolBar.add(line);
+        toolBar.add(fill);
+        toolBar.add(selectRect);
+        toolBar.add(selectEllipse);
+        toolBar.add(selectLasso);
         toolBar.add(foreColorButton);
         toolBar.add(backColorButton);
         return toolBar;
@@ -519,7 +1317,14 @@ class Window extends JFrame implements ActionListener, ChangeListener {
     public static void main(String[] args) {
         Window mainWindow= new Window();
         mainWindow.canvas.revalidate();
-        mainWindow.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        // Closing the window quits as File -> Quit does, after saves in progress.
+        mainWindow.setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
+        mainWindow.addWindowListener(new WindowAdapter() {
+            @Override public void windowClosing(WindowEvent e) {
+                mainWindow.quitAction(null);
+            }
+        });
+        SwingUtilities.invokeLater(mainWindow::offerRecovery);
     }
 
 }